@@ -11,6 +11,7 @@ public class JAXAgentStorageApp extends AbstractJAXApp {
     protected Set<Class<?>> getAppClasses() {
         return ImmutableSet.of(
                 AgentConnectionResource.class,
+                ChunkedUploadResource.class,
                 DataBundleStorageResource.class,
                 PathBasedAgentStorageResource.class,
                 VolumeStorageResource.class,
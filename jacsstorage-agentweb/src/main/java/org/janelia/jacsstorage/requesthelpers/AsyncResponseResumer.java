@@ -0,0 +1,148 @@
+package org.janelia.jacsstorage.requesthelpers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.rest.ErrorResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resumes suspended requests once the storage operation they wait for completes. While the operation is pending
+ * no thread is held by the request. A response whose operation is already complete is built and sent by the request
+ * thread, so the content can still be transferred directly by the container. Otherwise the response is built on
+ * the resumer's bounded pool and never on the storage client's threads, because building it may block; the number
+ * of responses waiting to be built is bounded and a request that does not fit is answered with 503
+ * (Service Unavailable). The built response is then sent, which may take as long as the content transfer,
+ * from a separate pool that is not bounded, like the container's own request threads.
+ */
+@Singleton
+public class AsyncResponseResumer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncResponseResumer.class);
+
+    private final ThreadPoolExecutor resumeExecutor;
+    private final ExecutorService transferExecutor;
+
+    @Inject
+    public AsyncResponseResumer(@PropertyValue(name = "StorageAgent.AsyncResponseThreads", defaultValue = "64") int nThreads,
+                                @PropertyValue(name = "StorageAgent.AsyncResponseQueueSize", defaultValue = "256") int queueSize) {
+        int poolSize = Math.max(1, nThreads);
+        this.resumeExecutor = new ThreadPoolExecutor(
+                poolSize, poolSize,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("JACS-ASYNC-RESPONSE-%d")
+                        .setDaemon(true)
+                        .build());
+        this.resumeExecutor.allowCoreThreadTimeOut(true);
+        this.transferExecutor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("JACS-ASYNC-TRANSFER-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        resumeExecutor.shutdown();
+        transferExecutor.shutdown();
+        resumeExecutor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Build the response from the result of the storage operation. If the operation is already complete the response
+     * is built right away by the calling thread, i.e. the request thread; otherwise it is built on the resumer's pool
+     * once the operation completes. A response that cannot be scheduled because the pool is full fails with
+     * a {@link RejectedExecutionException} which resumes the request with 503.
+     *
+     * @param operationResult storage operation result
+     * @param responseBuilder creates the response from the operation's result
+     */
+    public <T, R> CompletableFuture<R> buildResponse(CompletableFuture<T> operationResult, Function<? super T, ? extends R> responseBuilder) {
+        if (operationResult.isDone()) {
+            return operationResult.thenApply(responseBuilder);
+        } else {
+            return operationResult.thenApplyAsync(responseBuilder, resumeExecutor);
+        }
+    }
+
+    /**
+     * Resume the request with the response or, if the operation failed, with the failure, which is then handled
+     * by the registered exception mappers.
+     *
+     * @param asyncResponse suspended request
+     * @param responseSupplier starts the operation and returns the pending response
+     */
+    public void resume(AsyncResponse asyncResponse, Supplier<CompletionStage<Response>> responseSupplier) {
+        CompletionStage<Response> responseStage;
+        try {
+            responseStage = responseSupplier.get();
+        } catch (RejectedExecutionException e) {
+            asyncResponse.resume(serviceUnavailable(e));
+            return;
+        } catch (RuntimeException e) {
+            asyncResponse.resume(e);
+            return;
+        }
+        if (responseStage.toCompletableFuture().isDone()) {
+            // the response is sent by the request thread
+            resumeWithResult(asyncResponse, responseStage);
+        } else {
+            responseStage.whenComplete((response, e) -> {
+                try {
+                    transferExecutor.execute(() -> resumeWithResult(asyncResponse, responseStage));
+                } catch (RejectedExecutionException rejectedException) {
+                    // only when the agent shuts down
+                    asyncResponse.resume(serviceUnavailable(rejectedException));
+                }
+            });
+        }
+    }
+
+    private void resumeWithResult(AsyncResponse asyncResponse, CompletionStage<Response> responseStage) {
+        Response response;
+        try {
+            response = responseStage.toCompletableFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                asyncResponse.resume(serviceUnavailable(e.getCause()));
+            } else {
+                asyncResponse.resume(e.getCause());
+            }
+            return;
+        } catch (CancellationException e) {
+            asyncResponse.resume(e);
+            return;
+        }
+        asyncResponse.resume(response);
+    }
+
+    private Response serviceUnavailable(Throwable e) {
+        LOG.warn("Too many pending responses - {} active, {} queued", resumeExecutor.getActiveCount(), resumeExecutor.getQueue().size(), e);
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .entity(new ErrorResponse("Too many pending requests"))
+                .type(MediaType.APPLICATION_JSON)
+                .build();
+    }
+}
@@ -4,6 +4,7 @@ import javax.ws.rs.core.MultivaluedMap;
 
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.service.ArchiveFormat;
 import org.janelia.jacsstorage.service.ContentAccessParams;
 
 public class ContentAccessRequestHelper {
@@ -27,6 +28,12 @@ public class ContentAccessRequestHelper {
             } else if ("alwaysArchive".equalsIgnoreCase(k)) {
                 if (CollectionUtils.isNotEmpty(vs))
                     filterParams.setAlwaysArchive(Boolean.parseBoolean(vs.get(0)));
+            } else if ("archiveFormat".equalsIgnoreCase(k)) {
+                if (CollectionUtils.isNotEmpty(vs))
+                    filterParams.setArchiveFormat(ArchiveFormat.fromFormatName(vs.get(0)));
+            } else if ("noCompression".equalsIgnoreCase(k)) {
+                if (CollectionUtils.isNotEmpty(vs))
+                    filterParams.setArchiveCompressionDisabled(Boolean.parseBoolean(vs.get(0)));
             } else if ("entryPattern".equalsIgnoreCase(k)) {
                 if (CollectionUtils.isNotEmpty(vs))
                     filterParams.setEntryNamePattern(vs.stream().filter(StringUtils::isNotBlank).findFirst().orElse(null));
@@ -0,0 +1,186 @@
+package org.janelia.jacsstorage.requesthelpers;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Providers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.cdi.ObjectMapperFactory;
+import org.janelia.jacsstorage.datarequest.DataNodeInfo;
+import org.janelia.jacsstorage.datarequest.NumberSerializerModule;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helper for writing content listings incrementally, either as a JSON array or as newline delimited JSON,
+ * so that the listing never has to be held in memory. Paged listings return a continuation token
+ * that lets the client resume the listing right after the last returned entry.
+ */
+public class ContentListingRequestHelper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContentListingRequestHelper.class);
+
+    public static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+    public static final String CONTINUATION_TOKEN_HEADER = "X-Continuation-Token";
+    public static final String CONTINUATION_TOKEN_PARAM = "continuationToken";
+    private static final MediaType NDJSON_MEDIA_TYPE_VALUE = MediaType.valueOf(NDJSON_MEDIA_TYPE);
+
+    /**
+     * @param acceptableMediaTypes acceptable media types ordered by their preference
+     * @return true if the client prefers newline delimited JSON over a JSON array
+     */
+    public static boolean isNDJsonRequested(List<MediaType> acceptableMediaTypes) {
+        for (MediaType mediaType : acceptableMediaTypes) {
+            if (mediaType.isWildcardType() || mediaType.isWildcardSubtype()) {
+                return false;
+            } else if (NDJSON_MEDIA_TYPE_VALUE.isCompatible(mediaType)) {
+                return true;
+            } else if (MediaType.APPLICATION_JSON_TYPE.isCompatible(mediaType)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    public static ObjectMapper getObjectMapper(Providers providers) {
+        ContextResolver<ObjectMapper> objectMapperResolver = providers != null
+                ? providers.getContextResolver(ObjectMapper.class, MediaType.APPLICATION_JSON_TYPE)
+                : null;
+        ObjectMapper objectMapper = objectMapperResolver != null ? objectMapperResolver.getContext(DataNodeInfo.class) : null;
+        if (objectMapper != null) {
+            return objectMapper;
+        } else {
+            return ObjectMapperFactory.instance().newObjectMapper().registerModule(new NumberSerializerModule());
+        }
+    }
+
+    /**
+     * Encode the key of the last returned entry into an opaque token that can be used for requesting the next page.
+     */
+    public static String encodeContinuationToken(String entryKey) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(entryKey.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the key of the entry after which the listing must resume or null if no token was provided
+     * @throws IllegalArgumentException if the token is not valid or if it references a parent directory
+     */
+    public static String decodeContinuationToken(String continuationToken) {
+        if (StringUtils.isBlank(continuationToken)) {
+            return null;
+        }
+        String entryKey;
+        try {
+            entryKey = new String(Base64.getUrlDecoder().decode(continuationToken.trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid continuation token: " + continuationToken, e);
+        }
+        // a token always references an entry of the listed content so it never needs to go up the tree
+        for (String keyComponent : StringUtils.split(entryKey, "/\\")) {
+            if ("..".equals(keyComponent)) {
+                throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+            }
+        }
+        return entryKey;
+    }
+
+    /**
+     * Create a response that writes the data nodes as they are read from the storage.
+     * The content nodes stream is closed once the response is written.
+     *
+     * If a page size is specified the content nodes stream is expected to contain up to pageSize + 1 nodes;
+     * the extra node is not returned, it only indicates that there are more nodes and in that case
+     * the response will contain a continuation token that can be used for retrieving the next page.
+     *
+     * @param contentNodes content nodes to be written
+     * @param dataNodeMapper maps a content node to the data node that is returned to the client
+     * @param pageSize maximum number of returned nodes - if this is not positive all nodes are returned
+     * @param requestURI the URI of the listing request used for creating the next page link
+     * @param objectMapper mapper used for serializing each node
+     * @param ndjson if true write one JSON object per line otherwise write a JSON array
+     * @return
+     */
+    public static Response.ResponseBuilder createListingResponse(Stream<ContentNode> contentNodes,
+                                                                 Function<ContentNode, DataNodeInfo> dataNodeMapper,
+                                                                 int pageSize,
+                                                                 UriInfo requestURI,
+                                                                 ObjectMapper objectMapper,
+                                                                 boolean ndjson) {
+        if (pageSize <= 0) {
+            return createStreamedListingResponse(contentNodes.map(dataNodeMapper), objectMapper, ndjson);
+        }
+        // a page is small enough to be read before the response headers are sent
+        List<ContentNode> pageNodes;
+        try (Stream<ContentNode> pageNodesStream = contentNodes) {
+            pageNodes = pageNodesStream.limit(pageSize + 1L).collect(Collectors.toList());
+        }
+        if (pageNodes.size() <= pageSize) {
+            return createStreamedListingResponse(pageNodes.stream().map(dataNodeMapper), objectMapper, ndjson);
+        }
+        String continuationToken = encodeContinuationToken(pageNodes.get(pageSize - 1).getObjectKey());
+        URI nextPageURI = requestURI.getRequestUriBuilder()
+                .replaceQueryParam("offset")
+                .replaceQueryParam(CONTINUATION_TOKEN_PARAM, continuationToken)
+                .build();
+        return createStreamedListingResponse(pageNodes.subList(0, pageSize).stream().map(dataNodeMapper), objectMapper, ndjson)
+                .header(CONTINUATION_TOKEN_HEADER, continuationToken)
+                .link(nextPageURI, "next");
+    }
+
+    /**
+     * Create a response that writes the data nodes as they are read from the storage.
+     * The data nodes stream is closed once the response is written.
+     *
+     * @param dataNodes data nodes to be written
+     * @param objectMapper mapper used for serializing each node
+     * @param ndjson if true write one JSON object per line otherwise write a JSON array
+     * @return
+     */
+    private static Response.ResponseBuilder createStreamedListingResponse(Stream<DataNodeInfo> dataNodes, ObjectMapper objectMapper, boolean ndjson) {
+        // serialize one node at a time and only flush when the generator's buffer is full
+        ObjectWriter dataNodeWriter = objectMapper.writerFor(DataNodeInfo.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        StreamingOutput listingOutput = output -> {
+            long nodesCount = 0;
+            try (Stream<DataNodeInfo> dataNodesToWrite = dataNodes;
+                 JsonGenerator jsonGenerator = objectMapper.getFactory().createGenerator(output)) {
+                jsonGenerator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                if (!ndjson) {
+                    jsonGenerator.writeStartArray();
+                }
+                for (DataNodeInfo dataNode : (Iterable<DataNodeInfo>) dataNodesToWrite::iterator) {
+                    dataNodeWriter.writeValue(jsonGenerator, dataNode);
+                    if (ndjson) {
+                        jsonGenerator.writeRaw('\n');
+                    }
+                    nodesCount++;
+                }
+                if (!ndjson) {
+                    jsonGenerator.writeEndArray();
+                }
+                jsonGenerator.flush();
+            } catch (Exception e) {
+                // the response is already committed so the only option is to abort it
+                LOG.error("Error writing content listing after {} nodes", nodesCount, e);
+                throw e;
+            }
+        };
+        return Response.ok(listingOutput, ndjson ? NDJSON_MEDIA_TYPE_VALUE : MediaType.APPLICATION_JSON_TYPE);
+    }
+}
@@ -0,0 +1,156 @@
+package org.janelia.jacsstorage.requesthelpers;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.google.common.base.Splitter;
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.app.undertow.FileTransferOutputStream;
+import org.janelia.jacsstorage.model.DataInterval;
+import org.janelia.jacsstorage.service.ContentGetter;
+
+/**
+ * Helper for serving HTTP byte range requests (RFC 7233) for the content endpoints.
+ */
+public class ContentRangeRequestHelper {
+
+    public static final String ACCEPT_RANGES_HEADER = "Accept-Ranges";
+    public static final String RANGE_HEADER = "Range";
+    private static final String BYTES_UNIT = "bytes";
+    private static final int MAX_RANGES = 32;
+    private static final String CRLF = "\r\n";
+
+    /**
+     * Parse the value of the Range header.
+     *
+     * @param rangeHeader Range header value
+     * @param contentSize size of the entire content
+     * @return null if the range header must be ignored and the entire content returned, an empty list if none of the
+     * requested ranges can be satisfied or the list of requested ranges. The end of each returned range is inclusive.
+     */
+    public static List<DataInterval<Long>> getRequestedRanges(String rangeHeader, long contentSize) {
+        if (StringUtils.isBlank(rangeHeader) || contentSize < 0) {
+            // without a known size we cannot honor a range request
+            return null;
+        }
+        int unitSeparatorIndex = rangeHeader.indexOf('=');
+        if (unitSeparatorIndex == -1 || !BYTES_UNIT.equalsIgnoreCase(rangeHeader.substring(0, unitSeparatorIndex).trim())) {
+            return null;
+        }
+        List<String> rangeSpecs = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(rangeHeader.substring(unitSeparatorIndex + 1));
+        if (rangeSpecs.isEmpty() || rangeSpecs.size() > MAX_RANGES) {
+            return null;
+        }
+        List<DataInterval<Long>> ranges = new ArrayList<>();
+        for (String rangeSpec : rangeSpecs) {
+            int dashIndex = rangeSpec.indexOf('-');
+            if (dashIndex == -1) {
+                return null;
+            }
+            String startValue = rangeSpec.substring(0, dashIndex).trim();
+            String endValue = rangeSpec.substring(dashIndex + 1).trim();
+            long start, end;
+            try {
+                if (startValue.isEmpty()) {
+                    // suffix range - the last N bytes
+                    long suffixLength = Long.parseLong(endValue);
+                    if (suffixLength <= 0) {
+                        continue; // unsatisfiable
+                    }
+                    start = Math.max(0, contentSize - suffixLength);
+                    end = contentSize - 1;
+                } else {
+                    start = Long.parseLong(startValue);
+                    end = endValue.isEmpty() ? contentSize - 1 : Long.parseLong(endValue);
+                    if (start < 0 || end < start) {
+                        return null; // syntactically invalid
+                    }
+                    end = Math.min(end, contentSize - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < contentSize) {
+                ranges.add(new DataInterval<>(start, end));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Create the response for the requested ranges: 206 for satisfiable ranges or 416 if none of the ranges
+     * can be satisfied.
+     *
+     * @param contentGetter content getter
+     * @param ranges requested ranges as returned by {@link #getRequestedRanges(String, long)}
+     * @param contentSize entire content size
+     * @param contentName name used for content disposition
+     * @return
+     */
+    public static Response.ResponseBuilder createRangeResponse(ContentGetter contentGetter,
+                                                               List<DataInterval<Long>> ranges,
+                                                               long contentSize,
+                                                               String contentName) {
+        if (ranges.isEmpty()) {
+            return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header("Content-Range", BYTES_UNIT + " */" + contentSize)
+                    .header(ACCEPT_RANGES_HEADER, BYTES_UNIT);
+        } else if (ranges.size() == 1) {
+            DataInterval<Long> range = ranges.get(0);
+            long rangeLength = range.getTo() - range.getFrom() + 1;
+            StreamingOutput outputStream = output -> {
+                contentGetter.streamContentRange(range.getFrom(), rangeLength, FileTransferOutputStream.wrap(output));
+                output.flush();
+            };
+            return Response.status(Response.Status.PARTIAL_CONTENT)
+                    .entity(outputStream)
+                    .type(MediaType.APPLICATION_OCTET_STREAM)
+                    .header("Content-Length", rangeLength)
+                    .header("Content-Range", formatContentRange(range, contentSize))
+                    .header(ACCEPT_RANGES_HEADER, BYTES_UNIT)
+                    .header("Content-Disposition", "attachment; filename = " + contentName);
+        } else {
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            List<byte[]> partHeaders = new ArrayList<>();
+            long multipartLength = 0;
+            for (DataInterval<Long> range : ranges) {
+                byte[] partHeader = ("--" + boundary + CRLF +
+                        "Content-Type: " + MediaType.APPLICATION_OCTET_STREAM + CRLF +
+                        "Content-Range: " + formatContentRange(range, contentSize) + CRLF +
+                        CRLF).getBytes(StandardCharsets.US_ASCII);
+                partHeaders.add(partHeader);
+                multipartLength += partHeader.length + (range.getTo() - range.getFrom() + 1) + CRLF.length();
+            }
+            byte[] closingBoundary = ("--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+            multipartLength += closingBoundary.length;
+            StreamingOutput outputStream = output -> {
+                OutputStream transferOutput = FileTransferOutputStream.wrap(output);
+                for (int i = 0; i < ranges.size(); i++) {
+                    DataInterval<Long> range = ranges.get(i);
+                    transferOutput.write(partHeaders.get(i));
+                    contentGetter.streamContentRange(range.getFrom(), range.getTo() - range.getFrom() + 1, transferOutput);
+                    transferOutput.write(CRLF.getBytes(StandardCharsets.US_ASCII));
+                }
+                transferOutput.write(closingBoundary);
+                transferOutput.flush();
+            };
+            return Response.status(Response.Status.PARTIAL_CONTENT)
+                    .entity(outputStream)
+                    .type("multipart/byteranges; boundary=" + boundary)
+                    .header("Content-Length", multipartLength)
+                    .header(ACCEPT_RANGES_HEADER, BYTES_UNIT)
+                    .header("Content-Disposition", "attachment; filename = " + contentName);
+        }
+    }
+
+    private static String formatContentRange(DataInterval<Long> range, long contentSize) {
+        return BYTES_UNIT + " " + range.getFrom() + "-" + range.getTo() + "/" + contentSize;
+    }
+}
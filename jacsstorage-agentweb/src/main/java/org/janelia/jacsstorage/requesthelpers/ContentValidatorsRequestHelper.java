@@ -0,0 +1,205 @@
+package org.janelia.jacsstorage.requesthelpers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helper for the validators (ETag and Last-Modified) of the content endpoints and for evaluating
+ * the conditional requests based on them, so that clients can revalidate the content they already have
+ * instead of downloading it again.
+ *
+ * The raw content of a single object has a strong ETag - the object's S3 ETag or one derived from the file's
+ * size and modification time. Anything derived from the content, such as archives, filtered content or metadata,
+ * has a weak ETag derived from all the objects it was created from and from the access parameters.
+ */
+public class ContentValidatorsRequestHelper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContentValidatorsRequestHelper.class);
+
+    public static final String IF_RANGE_HEADER = "If-Range";
+
+    /**
+     * @param contentNodes nodes from which the content is created
+     * @param contentAccessParams parameters used for creating the content or null for the raw content
+     * @param derivedContent if true the response is not the raw content of the nodes, e.g. it's their metadata
+     * @return the entity tag or null if the content has no validator
+     */
+    public static EntityTag getEntityTag(List<ContentNode> contentNodes, ContentAccessParams contentAccessParams, boolean derivedContent) {
+        if (contentNodes.isEmpty()) {
+            return null;
+        }
+        if (!derivedContent && contentNodes.size() == 1 && isRawContent(contentAccessParams)) {
+            ContentNode contentNode = contentNodes.get(0);
+            if (contentNode.isCollection()) {
+                return null;
+            } else if (StringUtils.isNotBlank(contentNode.getEtag())) {
+                return new EntityTag(StringUtils.strip(contentNode.getEtag(), "\""));
+            } else if (contentNode.getLastModified() != null) {
+                return new EntityTag(Long.toHexString(contentNode.getSize()) + "-" + Long.toHexString(contentNode.getLastModified().getTime()));
+            } else {
+                return null;
+            }
+        }
+        Hasher contentHasher = Hashing.murmur3_128().newHasher();
+        for (ContentNode contentNode : contentNodes) {
+            contentHasher.putString(contentNode.getObjectKey(), StandardCharsets.UTF_8)
+                    .putLong(contentNode.getSize())
+                    .putLong(contentNode.getLastModified() != null ? contentNode.getLastModified().getTime() : 0L)
+                    .putString(StringUtils.defaultString(contentNode.getEtag()), StandardCharsets.UTF_8);
+        }
+        if (contentAccessParams != null) {
+            putContentAccessParams(contentHasher, contentAccessParams);
+        }
+        return new EntityTag(contentHasher.hash().toString(), true);
+    }
+
+    /**
+     * Hash the parameters that determine the content in a fixed order so that the same request
+     * always gets the same tag - the collections are hashed sorted because their iteration order is not defined.
+     */
+    private static void putContentAccessParams(Hasher contentHasher, ContentAccessParams contentAccessParams) {
+        putNullableString(contentHasher, contentAccessParams.getFilterType());
+        contentHasher.putInt(contentAccessParams.getSelectedEntries().size());
+        for (String selectedEntry : new TreeSet<>(contentAccessParams.getSelectedEntries())) {
+            putNullableString(contentHasher, selectedEntry);
+        }
+        putNullableString(contentHasher, contentAccessParams.getEntryNamePattern());
+        contentHasher.putInt(contentAccessParams.getMaxDepth())
+                .putBoolean(contentAccessParams.isDirectoriesOnly())
+                .putBoolean(contentAccessParams.isAlwaysArchive());
+        putNullableString(contentHasher, contentAccessParams.getArchiveFormat().name());
+        contentHasher.putBoolean(contentAccessParams.isArchiveCompressionDisabled())
+                .putInt(contentAccessParams.getStartEntryIndex())
+                .putInt(contentAccessParams.getEntriesCount());
+        putNullableString(contentHasher, contentAccessParams.getStartAfterEntry());
+        Map<String, String> filterTypeSpecificParams = new TreeMap<>(contentAccessParams.getFilterTypeSpecificParams());
+        contentHasher.putInt(filterTypeSpecificParams.size());
+        filterTypeSpecificParams.forEach((name, value) -> {
+            putNullableString(contentHasher, name);
+            putNullableString(contentHasher, value);
+        });
+    }
+
+    /**
+     * The length prefix keeps adjacent values from running into each other, e.g. "ab","c" and "a","bc".
+     */
+    private static void putNullableString(Hasher contentHasher, String value) {
+        if (value == null) {
+            contentHasher.putInt(-1);
+        } else {
+            contentHasher.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return the latest modification time of the nodes or null if that is not known for all of them
+     */
+    public static Date getLastModified(List<ContentNode> contentNodes) {
+        Date lastModified = null;
+        for (ContentNode contentNode : contentNodes) {
+            if (contentNode.isCollection()) {
+                continue;
+            } else if (contentNode.getLastModified() == null) {
+                return null;
+            } else if (lastModified == null || contentNode.getLastModified().after(lastModified)) {
+                lastModified = contentNode.getLastModified();
+            }
+        }
+        // HTTP dates only have a resolution of one second
+        return lastModified != null ? DateUtils.truncate(lastModified, Calendar.SECOND) : null;
+    }
+
+    /**
+     * Evaluate the If-Match, If-Unmodified-Since, If-None-Match and If-Modified-Since preconditions.
+     *
+     * @return the response to be returned if the preconditions are not met (304 or 412) or null if
+     * the request must be processed
+     */
+    public static Response.ResponseBuilder evaluatePreconditions(Request request, EntityTag entityTag, Date lastModified) {
+        if (entityTag != null && lastModified != null) {
+            return request.evaluatePreconditions(lastModified, entityTag);
+        } else if (entityTag != null) {
+            return request.evaluatePreconditions(entityTag);
+        } else if (lastModified != null) {
+            return request.evaluatePreconditions(lastModified);
+        } else {
+            return null;
+        }
+    }
+
+    public static Response.ResponseBuilder addValidators(Response.ResponseBuilder responseBuilder, EntityTag entityTag, Date lastModified) {
+        if (entityTag != null) {
+            responseBuilder.tag(entityTag);
+        }
+        if (lastModified != null) {
+            responseBuilder.lastModified(lastModified);
+        }
+        return responseBuilder;
+    }
+
+    /**
+     * A range request is only honored if the validator from the If-Range header still matches the content,
+     * otherwise the entire content must be returned.
+     *
+     * @param ifRangeHeader If-Range header value
+     * @return true if there is no If-Range header or if its validator matches the current one
+     */
+    public static boolean isRangeRequestValid(String ifRangeHeader, EntityTag entityTag, Date lastModified) {
+        if (StringUtils.isBlank(ifRangeHeader)) {
+            return true;
+        }
+        String ifRangeValue = ifRangeHeader.trim();
+        if (ifRangeValue.startsWith("\"") || ifRangeValue.startsWith("W/")) {
+            // If-Range requires the strong comparison
+            if (entityTag == null || entityTag.isWeak()) {
+                return false;
+            }
+            try {
+                EntityTag ifRangeTag = EntityTag.valueOf(ifRangeValue);
+                return !ifRangeTag.isWeak() && ifRangeTag.getValue().equals(entityTag.getValue());
+            } catch (IllegalArgumentException e) {
+                LOG.debug("Invalid entity tag in {}: {}", IF_RANGE_HEADER, ifRangeValue);
+                return false;
+            }
+        }
+        if (lastModified == null) {
+            return false;
+        }
+        try {
+            ZonedDateTime ifRangeDate = ZonedDateTime.parse(ifRangeValue, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return ifRangeDate.toInstant().toEpochMilli() == lastModified.getTime();
+        } catch (DateTimeParseException e) {
+            LOG.debug("Invalid date in {}: {}", IF_RANGE_HEADER, ifRangeValue);
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the content is served as it is stored, i.e. it is not filtered and not archived
+     */
+    private static boolean isRawContent(ContentAccessParams contentAccessParams) {
+        return contentAccessParams == null
+                || StringUtils.isBlank(contentAccessParams.getFilterType()) && !contentAccessParams.isAlwaysArchive();
+    }
+}
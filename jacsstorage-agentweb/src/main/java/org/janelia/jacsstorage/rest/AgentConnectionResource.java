@@ -12,6 +12,8 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
@@ -19,6 +21,7 @@ import io.swagger.annotations.ApiResponses;
 import org.janelia.jacsstorage.agent.AgentState;
 import org.janelia.jacsstorage.datarequest.StorageAgentInfo;
 import org.janelia.jacsstorage.interceptors.annotations.Timed;
+import org.janelia.jacsstorage.service.impl.FileSystemListingCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +33,8 @@ public class AgentConnectionResource {
 
     @Inject
     private AgentState agentState;
+    @Inject
+    private FileSystemListingCache listingCache;
     @Context
     private UriInfo resourceURI;
 
@@ -43,6 +48,24 @@ public class AgentConnectionResource {
                 .build();
     }
 
+    @ApiOperation(value = "Retrieve the directory listing cache statistics")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("listing_cache_stats")
+    public Response getListingCacheStats() {
+        CacheStats cacheStats = listingCache.getStats();
+        return Response
+                .ok(ImmutableMap.<String, Object>builder()
+                        .put("hitCount", cacheStats.hitCount())
+                        .put("missCount", cacheStats.missCount())
+                        .put("hitRate", cacheStats.hitRate())
+                        .put("evictionCount", cacheStats.evictionCount())
+                        .put("cachedListings", listingCache.getCachedListingsCount())
+                        .put("watchedDirs", listingCache.getWatchedDirsCount())
+                        .build())
+                .build();
+    }
+
     @ApiOperation(value = "Connect this agent to the specified master URL")
     @ApiResponses(value = {
             @ApiResponse(code = 202, message = "Return this agent's connection status URL in the location header attribute"),
@@ -0,0 +1,314 @@
+package org.janelia.jacsstorage.rest;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+import org.apache.commons.collections4.CollectionUtils;
+import org.janelia.jacsstorage.cdi.qualifier.LocalInstance;
+import org.janelia.jacsstorage.datarequest.ChunkedUploadInfo;
+import org.janelia.jacsstorage.datarequest.DataNodeInfo;
+import org.janelia.jacsstorage.helper.StorageResourceHelper;
+import org.janelia.jacsstorage.interceptors.annotations.Timed;
+import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStoragePermission;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageVolume;
+import org.janelia.jacsstorage.security.JacsCredentials;
+import org.janelia.jacsstorage.securitycontext.RequireAuthentication;
+import org.janelia.jacsstorage.securitycontext.SecurityUtils;
+import org.janelia.jacsstorage.service.ChunkedUpload;
+import org.janelia.jacsstorage.service.ChunkedUploadService;
+import org.janelia.jacsstorage.service.StorageVolumeManager;
+import org.janelia.jacsstorage.service.interceptors.annotations.LogStorageEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chunked uploads to filesystem volumes. A client starts an upload for a data path, sends the content in parts,
+ * possibly concurrently, each part at its offset in the content, and then completes the upload. If the connection
+ * drops the client queries the upload and sends again only the missing ranges.
+ *
+ * An upload can only be accessed by the subject that started it and only as long as the volume it was started on
+ * still grants the write permission.
+ */
+@Api(value = "Agent chunked upload API.")
+@Timed
+@Path(Constants.AGENTSTORAGE_URI_PATH)
+public class ChunkedUploadResource {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkedUploadResource.class);
+
+    @Inject
+    private ChunkedUploadService chunkedUploadService;
+    @Inject
+    @LocalInstance
+    private StorageVolumeManager storageVolumeManager;
+    @Context
+    private UriInfo resourceURI;
+
+    @ApiOperation(value = "Start a chunked upload of the content for the specified data path.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 201, message = "The upload was started"),
+            @ApiResponse(code = 400, message = "Invalid content size or the data path is not on a filesystem volume"),
+            @ApiResponse(code = 403, message = "No write permission for the data path"),
+            @ApiResponse(code = 404, message = "No volume found for the data path"),
+            @ApiResponse(code = 500, message = "Data write error")
+    })
+    @RequireAuthentication
+    @POST
+    @Produces({MediaType.APPLICATION_JSON})
+    @Path("storage_path/chunked_upload/{dataPath:.+}")
+    public Response initiateUpload(@PathParam("dataPath") String dataPathParam,
+                                   @QueryParam("size") Long contentSizeParam,
+                                   @Context ContainerRequestContext requestContext,
+                                   @Context SecurityContext securityContext) {
+        LOG.debug("Start chunked upload to {}", dataPathParam);
+        if (contentSizeParam == null || contentSizeParam < 0) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(new ErrorResponse("The size of the content must be specified"))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        JADEStorageURI contentURI = JADEStorageURI.createStoragePathURI(dataPathParam, JADEOptions.create());
+        StorageResourceHelper storageResourceHelper = new StorageResourceHelper(storageVolumeManager);
+        List<JacsStorageVolume> volumeCandidates;
+        try {
+            volumeCandidates = storageResourceHelper.listStorageVolumesForURI(contentURI);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(new ErrorResponse(e.getMessage()))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        if (CollectionUtils.isEmpty(volumeCandidates)) {
+            return Response.status(Response.Status.NOT_FOUND)
+                    .entity(new ErrorResponse("No managed volume found for " + contentURI))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        List<JacsStorageVolume> accessibleVolumes = volumeCandidates.stream()
+                .filter(storageVolume -> storageVolume.hasPermission(JacsStoragePermission.WRITE))
+                .collect(Collectors.toList());
+        if (CollectionUtils.isEmpty(accessibleVolumes)) {
+            return Response.status(Response.Status.FORBIDDEN)
+                    .entity(new ErrorResponse("No permissions to access " + contentURI))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        JacsStorageVolume storageVolume = accessibleVolumes.get(0);
+        return storageVolume.resolveAbsoluteLocationURI(contentURI)
+                .map(resolvedContentURI -> {
+                    if (resolvedContentURI.getStorageType() != JacsStorageType.FILE_SYSTEM) {
+                        return Response.status(Response.Status.BAD_REQUEST)
+                                .entity(new ErrorResponse("Chunked uploads are only supported for filesystem volumes"))
+                                .type(MediaType.APPLICATION_JSON);
+                    }
+                    ChunkedUploadInfo uploadInfo = createUploadInfo(chunkedUploadService.initiateUpload(
+                            resolvedContentURI,
+                            contentSizeParam,
+                            getSubjectKey(securityContext),
+                            storageVolume.getId()));
+                    return Response.created(URI.create(uploadInfo.getUploadURL())).entity(uploadInfo);
+                })
+                .orElse(Response.status(Response.Status.NOT_FOUND))
+                .build();
+    }
+
+    @ApiOperation(value = "Retrieve the state of the upload, including the byte ranges that were not received yet.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "The upload is in progress"),
+            @ApiResponse(code = 403, message = "No write permission for the upload's data path"),
+            @ApiResponse(code = 404, message = "No upload in progress with the given id")
+    })
+    @RequireAuthentication
+    @GET
+    @Produces({MediaType.APPLICATION_JSON})
+    @Path("chunked_upload/{uploadId}")
+    public Response getUpload(@PathParam("uploadId") String uploadId,
+                              @Context SecurityContext securityContext) {
+        ChunkedUpload upload = chunkedUploadService.getUpload(uploadId);
+        Response accessDeniedResponse = checkUploadAccess(upload, securityContext);
+        if (accessDeniedResponse != null) {
+            return accessDeniedResponse;
+        }
+        return Response.ok(createUploadInfo(upload)).build();
+    }
+
+    @ApiOperation(value = "Write a part of the content at the given offset. A part that failed can be sent again.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "The part was written"),
+            @ApiResponse(code = 400, message = "Invalid offset"),
+            @ApiResponse(code = 403, message = "No write permission for the upload's data path"),
+            @ApiResponse(code = 404, message = "No upload in progress with the given id"),
+            @ApiResponse(code = 500, message = "Data write error")
+    })
+    @RequireAuthentication
+    @PUT
+    @Produces({MediaType.APPLICATION_JSON})
+    @Path("chunked_upload/{uploadId}/part")
+    public Response writePart(@PathParam("uploadId") String uploadId,
+                              @QueryParam("offset") Long offsetParam,
+                              @Context SecurityContext securityContext,
+                              InputStream partStream) {
+        if (offsetParam == null || offsetParam < 0) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(new ErrorResponse("A valid part offset must be specified"))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        Response accessDeniedResponse = checkUploadAccess(chunkedUploadService.getUpload(uploadId), securityContext);
+        if (accessDeniedResponse != null) {
+            return accessDeniedResponse;
+        }
+        return Response.ok(createUploadInfo(chunkedUploadService.writePart(uploadId, offsetParam, partStream))).build();
+    }
+
+    @ApiOperation(value = "Complete the upload and make the content available at its data path.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 201, message = "The content was stored"),
+            @ApiResponse(code = 403, message = "No write permission for the upload's data path"),
+            @ApiResponse(code = 404, message = "No upload in progress with the given id"),
+            @ApiResponse(code = 409, message = "Not all the content was received"),
+            @ApiResponse(code = 500, message = "Data write error")
+    })
+    @LogStorageEvent(
+            eventName = "CREATE_STORAGE_FILE",
+            argList = {0}
+    )
+    @RequireAuthentication
+    @POST
+    @Produces({MediaType.APPLICATION_JSON})
+    @Path("chunked_upload/{uploadId}/complete")
+    public Response completeUpload(@PathParam("uploadId") String uploadId,
+                                   @Context SecurityContext securityContext) {
+        ChunkedUpload upload = chunkedUploadService.getUpload(uploadId);
+        Response accessDeniedResponse = checkUploadAccess(upload, securityContext);
+        if (accessDeniedResponse != null) {
+            return accessDeniedResponse;
+        }
+        // the service checks that all the content was received while no part is written
+        ChunkedUpload completedUpload = chunkedUploadService.completeUpload(uploadId);
+        if (!completedUpload.isComplete()) {
+            return Response.status(Response.Status.CONFLICT)
+                    .entity(createUploadInfo(completedUpload))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        JADEStorageURI contentURI = completedUpload.getContentURI();
+        URI newContentURI = UriBuilder.fromUri(resourceURI.getBaseUri())
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_path/data_content")
+                .path(contentURI.getJadeStorage())
+                .build();
+        DataNodeInfo newContentNode = new DataNodeInfo();
+        newContentNode.setStorageType(contentURI.getStorageType().name());
+        newContentNode.setNodeInfoURL(UriBuilder.fromUri(resourceURI.getBaseUri())
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_path/data_info")
+                .path(contentURI.getJadeStorage())
+                .build()
+                .toString()
+        );
+        newContentNode.setNodeAccessURL(newContentURI.toString());
+        new StorageResourceHelper(storageVolumeManager).listStorageVolumesForURI(contentURI).stream()
+                .findFirst()
+                .ifPresent(storageVolume -> {
+                    newContentNode.setStorageRootLocation(storageVolume.getStorageRootLocation());
+                    newContentNode.setNodeRelativePath(storageVolume.getContentRelativePath(contentURI));
+                });
+        newContentNode.setSize(completedUpload.getContentSize());
+        newContentNode.setCollectionFlag(false);
+        return Response.created(newContentURI).entity(newContentNode).build();
+    }
+
+    @ApiOperation(value = "Cancel the upload and discard the parts received so far.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 204, message = "The upload was cancelled"),
+            @ApiResponse(code = 403, message = "No write permission for the upload's data path"),
+            @ApiResponse(code = 404, message = "No upload in progress with the given id")
+    })
+    @RequireAuthentication
+    @DELETE
+    @Path("chunked_upload/{uploadId}")
+    public Response abortUpload(@PathParam("uploadId") String uploadId,
+                                @Context SecurityContext securityContext) {
+        Response accessDeniedResponse = checkUploadAccess(chunkedUploadService.getUpload(uploadId), securityContext);
+        if (accessDeniedResponse != null) {
+            return accessDeniedResponse;
+        }
+        chunkedUploadService.abortUpload(uploadId);
+        return Response.noContent().build();
+    }
+
+    /**
+     * The upload id alone does not grant access to the upload - the caller must be the subject that started
+     * the upload and the upload's volume must still grant the write permission.
+     *
+     * @return the error response if the upload cannot be accessed or null if it can
+     */
+    private Response checkUploadAccess(ChunkedUpload upload, SecurityContext securityContext) {
+        if (!Objects.equals(upload.getOwnerKey(), getSubjectKey(securityContext))) {
+            // respond as if the upload did not exist so that the ids of other subjects' uploads are not revealed
+            return Response.status(Response.Status.NOT_FOUND)
+                    .entity(new ErrorResponse("No upload in progress found for " + upload.getUploadId()))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        boolean writable = new StorageResourceHelper(storageVolumeManager).listStorageVolumesForURI(upload.getContentURI()).stream()
+                .filter(storageVolume -> Objects.equals(storageVolume.getId(), upload.getVolumeId()))
+                .anyMatch(storageVolume -> storageVolume.hasPermission(JacsStoragePermission.WRITE));
+        if (!writable) {
+            return Response.status(Response.Status.FORBIDDEN)
+                    .entity(new ErrorResponse("No permissions to write " + upload.getContentURI()))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        return null;
+    }
+
+    private String getSubjectKey(SecurityContext securityContext) {
+        JacsCredentials credentials = SecurityUtils.getUserPrincipal(securityContext);
+        return credentials != null ? credentials.getSubjectKey() : null;
+    }
+
+    private ChunkedUploadInfo createUploadInfo(ChunkedUpload upload) {
+        ChunkedUploadInfo uploadInfo = new ChunkedUploadInfo();
+        uploadInfo.setUploadId(upload.getUploadId());
+        uploadInfo.setUploadURL(UriBuilder.fromUri(resourceURI.getBaseUri())
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("chunked_upload")
+                .path(upload.getUploadId())
+                .build()
+                .toString());
+        uploadInfo.setContentPath(upload.getContentURI().getJadeStorage());
+        uploadInfo.setContentSize(upload.getContentSize());
+        uploadInfo.setReceivedBytes(upload.getReceivedBytes());
+        uploadInfo.setMissingRanges(upload.getMissingRanges());
+        return uploadInfo;
+    }
+}
@@ -3,6 +3,7 @@ package org.janelia.jacsstorage.rest;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.Date;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -20,7 +21,9 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.StreamingOutput;
@@ -36,10 +39,12 @@ import io.swagger.annotations.Authorization;
 import io.swagger.annotations.SecurityDefinition;
 import io.swagger.annotations.SwaggerDefinition;
 import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.app.undertow.FileTransferOutputStream;
 import org.janelia.jacsstorage.cdi.qualifier.LocalInstance;
 import org.janelia.jacsstorage.datarequest.DataNodeInfo;
 import org.janelia.jacsstorage.interceptors.annotations.Timed;
 import org.janelia.jacsstorage.interceptors.annotations.TimedMethod;
+import org.janelia.jacsstorage.requesthelpers.ContentValidatorsRequestHelper;
 import org.janelia.jacsstorage.service.ContentAccessParams;
 import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
 import org.janelia.jacsstorage.model.jacsstorage.JacsBundle;
@@ -119,7 +124,8 @@ public class DataBundleStorageResource {
         ContentAccessParams contentAccessParams = ContentAccessRequestHelper.createContentAccessParamsFromQuery(requestURI.getQueryParameters())
                 .setMaxDepth(depth)
                 .setEntriesCount(length)
-                .setStartEntryIndex(offset);
+                .setStartEntryIndex(offset)
+                .setCachedListingAllowed(true);
 
         ContentGetter contentGetter = dataContentService.getDataContent(storageURI, contentAccessParams);
         List<DataNodeInfo> contentNodes = contentGetter.getObjectsList().stream()
@@ -205,6 +211,7 @@ public class DataBundleStorageResource {
     @Path("{dataBundleId}/data_content{dataEntryPath:(/.*)?}")
     public Response getEntryContent(@PathParam("dataBundleId") Long dataBundleId,
                                     @PathParam("dataEntryPath") String dataEntryPathParam,
+                                    @Context Request request,
                                     @Context UriInfo requestURI) {
         LOG.info("Get entry {} content from bundle {} ", dataEntryPathParam, dataBundleId);
         JacsBundle dataBundle = storageLookupService.getDataBundleById(dataBundleId);
@@ -212,10 +219,16 @@ public class DataBundleStorageResource {
         JADEStorageURI storageURI = dataBundle.getStorageURI().resolve(dataEntryPathParam);
         ContentAccessParams contentAccessParams = ContentAccessRequestHelper.createContentAccessParamsFromQuery(requestURI.getQueryParameters());
         ContentGetter contentGetter = dataContentService.getDataContent(storageURI, contentAccessParams);
+        List<ContentNode> contentNodes = contentGetter.getObjectsList();
+        EntityTag entityTag = ContentValidatorsRequestHelper.getEntityTag(contentNodes, contentAccessParams, false);
+        Date lastModified = ContentValidatorsRequestHelper.getLastModified(contentNodes);
+        Response.ResponseBuilder preconditionsResponse = ContentValidatorsRequestHelper.evaluatePreconditions(request, entityTag, lastModified);
+        if (preconditionsResponse != null) {
+            return ContentValidatorsRequestHelper.addValidators(preconditionsResponse, entityTag, lastModified).build();
+        }
         long contentSize = contentAccessParams.isEstimateSizeDisabled() ? -1 : contentGetter.estimateContentSize();
-        StreamingOutput bundleStream = output -> contentGetter.streamContent(output);
-        return Response
-                .ok(bundleStream, MediaType.APPLICATION_OCTET_STREAM)
+        StreamingOutput bundleStream = output -> contentGetter.streamContent(FileTransferOutputStream.wrap(output));
+        return ContentValidatorsRequestHelper.addValidators(Response.ok(bundleStream, MediaType.APPLICATION_OCTET_STREAM), entityTag, lastModified)
                 .header("Content-Length", contentSize)
                 .header("content-disposition","attachment; filename = " + JacsSubjectHelper.getNameFromSubjectKey(dataBundle.getOwnerKey()) + "-" + dataBundle.getName())
                 .build();
@@ -235,6 +248,7 @@ public class DataBundleStorageResource {
     @Path("{dataBundleId}/data_info{dataEntryPath:/?.*}")
     public Response getEntryContentInfo(@PathParam("dataBundleId") Long dataBundleId,
                                         @PathParam("dataEntryPath") String dataEntryPathParam,
+                                        @Context Request request,
                                         @Context UriInfo requestURI) {
         LOG.info("Get entry {} content from bundle {} ", dataEntryPathParam, dataBundleId);
         JacsBundle dataBundle = storageLookupService.getDataBundleById(dataBundleId);
@@ -242,7 +256,14 @@ public class DataBundleStorageResource {
         JADEStorageURI storageURI = dataBundle.getStorageURI().resolve(dataEntryPathParam);
         ContentAccessParams contentAccessParams = ContentAccessRequestHelper.createContentAccessParamsFromQuery(requestURI.getQueryParameters());
         ContentGetter contentGetter = dataContentService.getDataContent(storageURI, contentAccessParams);
-        return Response.ok(contentGetter.getMetaData()).build();
+        List<ContentNode> contentNodes = contentGetter.getObjectsList();
+        EntityTag entityTag = ContentValidatorsRequestHelper.getEntityTag(contentNodes, contentAccessParams, true);
+        Date lastModified = ContentValidatorsRequestHelper.getLastModified(contentNodes);
+        Response.ResponseBuilder preconditionsResponse = ContentValidatorsRequestHelper.evaluatePreconditions(request, entityTag, lastModified);
+        if (preconditionsResponse != null) {
+            return ContentValidatorsRequestHelper.addValidators(preconditionsResponse, entityTag, lastModified).build();
+        }
+        return ContentValidatorsRequestHelper.addValidators(Response.ok(contentGetter.getMetaData()), entityTag, lastModified).build();
     }
 
     @ApiOperation(value = "Create a new content entry in the specified data bundle.")
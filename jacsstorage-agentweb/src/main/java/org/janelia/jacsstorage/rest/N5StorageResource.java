@@ -1,14 +1,21 @@
 package org.janelia.jacsstorage.rest;
 
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 import javax.inject.Inject;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import com.google.common.collect.ImmutableMap;
 import io.swagger.annotations.Api;
@@ -51,8 +58,9 @@ public class N5StorageResource {
     @Path("storage_volume/{storageVolumeId}/n5tree/{storageRelativePath:.+}")
     public Response retrieveDataInfoFromStorageVolume(@PathParam("storageVolumeId") Long storageVolumeId,
                                                       @PathParam("storageRelativePath") String storageRelativeFilePath,
+                                                      @QueryParam("depth") Integer depthParam,
                                                       @Context ContainerRequestContext requestContext) {
-        LOG.debug("Retrieve N5 data sets from volume {}:{}", storageVolumeId, storageRelativeFilePath);
+        LOG.debug("Retrieve N5 data sets from volume {}:{} with a depthParameter {}", storageVolumeId, storageRelativeFilePath, depthParam);
         JacsStorageVolume storageVolume = storageVolumeManager.getVolumeById(storageVolumeId);
         if (storageVolume == null) {
             LOG.warn("No accessible volume found for {}", storageVolumeId);
@@ -76,7 +84,9 @@ public class N5StorageResource {
                         .entity(ImmutableMap.of("errormessage", "Could not resolve relative path: " + storageRelativeFilePath))
                         .build();
             }
-            N5TreeNode n5RootNode = n5ContentService.getN5Container(n5ContainerURI);
+            // without a depth the entire container is discovered
+            int depth = depthParam != null && depthParam >= 0 ? depthParam : -1;
+            N5TreeNode n5RootNode = n5ContentService.getN5Container(n5ContainerURI, depth);
             return Response
                     .ok(n5RootNode, MediaType.APPLICATION_JSON)
                     .build();
@@ -88,4 +98,113 @@ public class N5StorageResource {
                     .build();
         }
     }
+
+    @ApiOperation(value = "Retrieve data blocks of an N5 dataset by their grid positions. " +
+            "A single block is returned as it is. Multiple blocks are returned in the requested order, " +
+            "each block preceded by its size as a 4 byte big endian integer, which is -1 if there is no block at that position. " +
+            "The blocks are streamed as they are read.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "The operation was successful"),
+            @ApiResponse(code = 400, message = "Missing dataset, invalid grid position or too many blocks"),
+            @ApiResponse(code = 404, message = "Invalid volume identifier, invalid dataset or no block at the requested position"),
+            @ApiResponse(code = 500, message = "Data read error")
+    })
+    @GET
+    @Produces({MediaType.APPLICATION_OCTET_STREAM})
+    @Path("storage_volume/{storageVolumeId}/n5block/{storageRelativePath:.+}")
+    public Response retrieveBlocksFromStorageVolume(@PathParam("storageVolumeId") Long storageVolumeId,
+                                                    @PathParam("storageRelativePath") String storageRelativeFilePath,
+                                                    @QueryParam("dataset") String datasetPath,
+                                                    @QueryParam("position") List<String> positionParams,
+                                                    @QueryParam("decoded") Boolean decodedParam,
+                                                    @Context ContainerRequestContext requestContext) {
+        LOG.debug("Retrieve N5 blocks {} of {} from volume {}:{}", positionParams, datasetPath, storageVolumeId, storageRelativeFilePath);
+        if (datasetPath == null || positionParams == null || positionParams.isEmpty()) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(new ErrorResponse("Both the dataset and at least one block position are required"))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        List<long[]> gridPositions = new ArrayList<>();
+        for (String positionParam : positionParams) {
+            try {
+                String[] coords = positionParam.split(",");
+                long[] gridPosition = new long[coords.length];
+                for (int i = 0; i < coords.length; i++) {
+                    gridPosition[i] = Long.parseLong(coords[i].trim());
+                }
+                gridPositions.add(gridPosition);
+            } catch (NumberFormatException e) {
+                return Response
+                        .status(Response.Status.BAD_REQUEST)
+                        .entity(new ErrorResponse("Invalid block position " + positionParam + " - expected comma separated grid coordinates"))
+                        .type(MediaType.APPLICATION_JSON)
+                        .build();
+            }
+        }
+        JacsStorageVolume storageVolume = storageVolumeManager.getVolumeById(storageVolumeId);
+        if (storageVolume == null) {
+            LOG.warn("No accessible volume found for {}", storageVolumeId);
+            return Response
+                    .status(Response.Status.NOT_FOUND)
+                    .entity(new ErrorResponse("No accessible volume found for " + storageVolumeId))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        } else if (!storageVolume.hasPermission(JacsStoragePermission.READ)) {
+            LOG.warn("Attempt to read N5 blocks from {} on volume {} but the volume does not allow READ", storageRelativeFilePath, storageVolumeId);
+            return Response
+                    .status(Response.Status.FORBIDDEN)
+                    .entity(new ErrorResponse("No read permission for volume " + storageVolumeId))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        JADEOptions storageOptions = JADEOptions.create()
+                .setAccessKey(requestContext.getHeaderString("AccessKey"))
+                .setSecretKey(requestContext.getHeaderString("SecretKey"))
+                .setAWSRegion(requestContext.getHeaderString("AWSRegion"));
+        JADEStorageURI n5ContainerURI = storageVolume
+                .setStorageOptions(storageOptions)
+                .resolveRelativeLocation(storageRelativeFilePath)
+                .orElse(null);
+        if (n5ContainerURI == null) {
+            return Response
+                    .serverError()
+                    .entity(ImmutableMap.of("errormessage", "Could not resolve relative path: " + storageRelativeFilePath))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        // a missing dataset, a position that does not match the dataset or too many positions
+        // are reported by the exception handlers before any block is read
+        Iterator<byte[]> blocks = n5ContentService.getN5Blocks(n5ContainerURI, datasetPath, gridPositions, decodedParam != null && decodedParam);
+        if (gridPositions.size() == 1) {
+            byte[] block = blocks.next();
+            if (block == null) {
+                return Response
+                        .status(Response.Status.NOT_FOUND)
+                        .entity(new ErrorResponse("No block found at " + positionParams.get(0) + " in " + datasetPath))
+                        .type(MediaType.APPLICATION_JSON)
+                        .build();
+            }
+            return Response
+                    .ok(block, MediaType.APPLICATION_OCTET_STREAM)
+                    .build();
+        }
+        StreamingOutput blocksStream = output -> {
+            DataOutputStream blocksOutput = new DataOutputStream(output);
+            while (blocks.hasNext()) {
+                byte[] block = blocks.next();
+                if (block == null) {
+                    blocksOutput.writeInt(-1);
+                } else {
+                    blocksOutput.writeInt(block.length);
+                    blocksOutput.write(block);
+                }
+            }
+            blocksOutput.flush();
+        };
+        return Response
+                .ok(blocksStream, MediaType.APPLICATION_OCTET_STREAM)
+                .build();
+    }
 }
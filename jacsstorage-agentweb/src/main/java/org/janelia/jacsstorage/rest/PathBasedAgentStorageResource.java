@@ -2,8 +2,12 @@ package org.janelia.jacsstorage.rest;
 
 import java.io.InputStream;
 import java.net.URI;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.inject.Inject;
 import javax.ws.rs.DELETE;
@@ -14,14 +18,18 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.Providers;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -29,18 +37,24 @@ import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.tuple.Pair;
+import org.janelia.jacsstorage.app.undertow.FileTransferOutputStream;
 import org.janelia.jacsstorage.cdi.qualifier.LocalInstance;
 import org.janelia.jacsstorage.datarequest.DataNodeInfo;
 import org.janelia.jacsstorage.helper.StorageResourceHelper;
 import org.janelia.jacsstorage.interceptors.annotations.Timed;
+import org.janelia.jacsstorage.model.DataInterval;
 import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
 import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
 import org.janelia.jacsstorage.model.jacsstorage.JacsStoragePermission;
 import org.janelia.jacsstorage.model.jacsstorage.JacsStorageVolume;
+import org.janelia.jacsstorage.requesthelpers.AsyncResponseResumer;
 import org.janelia.jacsstorage.requesthelpers.ContentAccessRequestHelper;
+import org.janelia.jacsstorage.requesthelpers.ContentListingRequestHelper;
+import org.janelia.jacsstorage.requesthelpers.ContentRangeRequestHelper;
+import org.janelia.jacsstorage.requesthelpers.ContentValidatorsRequestHelper;
 import org.janelia.jacsstorage.securitycontext.RequireAuthentication;
 import org.janelia.jacsstorage.service.ContentAccessParams;
-import org.janelia.jacsstorage.service.ContentGetter;
+import org.janelia.jacsstorage.service.ContentNode;
 import org.janelia.jacsstorage.service.DataContentService;
 import org.janelia.jacsstorage.service.StorageVolumeManager;
 import org.janelia.jacsstorage.service.interceptors.annotations.LogStorageEvent;
@@ -57,10 +71,14 @@ public class PathBasedAgentStorageResource {
     @Inject
     private DataContentService dataContentService;
     @Inject
+    private AsyncResponseResumer asyncResponseResumer;
+    @Inject
     @LocalInstance
     private StorageVolumeManager storageVolumeManager;
     @Context
     private UriInfo resourceURI;
+    @Context
+    private Providers providers;
 
     @ApiOperation(value = "Check if the specified file path identifies a valid data bundle entry content.")
     @ApiResponses(value = {
@@ -72,126 +90,149 @@ public class PathBasedAgentStorageResource {
     @HEAD
     @Produces({MediaType.TEXT_PLAIN, MediaType.TEXT_HTML, MediaType.APPLICATION_JSON})
     @Path("storage_path/data_content/{dataPath:.+}")
-    public Response checkPath(@PathParam("dataPath") String dataPathParam,
-                              @QueryParam("directoryOnly") Boolean directoryOnlyParam,
-                              @Context ContainerRequestContext requestContext) {
+    public void checkPath(@PathParam("dataPath") String dataPathParam,
+                          @QueryParam("directoryOnly") Boolean directoryOnlyParam,
+                          @Context ContainerRequestContext requestContext,
+                          @Suspended AsyncResponse asyncResponse) {
+        LOG.debug("Start check path {}", dataPathParam);
+        asyncResponseResumer.resume(asyncResponse, () -> checkPathAsync(dataPathParam, requestContext)
+                .whenComplete((r, e) -> LOG.debug("Complete check path {}", dataPathParam)));
+    }
+
+    private CompletionStage<Response> checkPathAsync(String dataPathParam, ContainerRequestContext requestContext) {
+        StorageResourceHelper storageResourceHelper = new StorageResourceHelper(storageVolumeManager);
+        JADEOptions storageOptions = JADEOptions.create()
+                .setAccessKey(requestContext.getHeaderString("AccessKey"))
+                .setSecretKey(requestContext.getHeaderString("SecretKey"))
+                .setAWSRegion(requestContext.getHeaderString("AWSRegion"));
+        JADEStorageURI contentURI = JADEStorageURI.createStoragePathURI(dataPathParam, storageOptions);
+        List<JacsStorageVolume> volumeCandidates;
         try {
-            LOG.debug("Start check path {}", dataPathParam);
-            StorageResourceHelper storageResourceHelper = new StorageResourceHelper(storageVolumeManager);
-            JADEOptions storageOptions = JADEOptions.create()
-                    .setAccessKey(requestContext.getHeaderString("AccessKey"))
-                    .setSecretKey(requestContext.getHeaderString("SecretKey"))
-                    .setAWSRegion(requestContext.getHeaderString("AWSRegion"));
-            JADEStorageURI contentURI = JADEStorageURI.createStoragePathURI(dataPathParam, storageOptions);
-            List<JacsStorageVolume> volumeCandidates;
-            try {
-                volumeCandidates = storageResourceHelper.listStorageVolumesForURI(contentURI);
-            } catch (IllegalArgumentException e) {
-                return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(new ErrorResponse(e.getMessage()))
-                        .type(MediaType.APPLICATION_JSON)
-                        .build();
-            }
-            if (CollectionUtils.isEmpty(volumeCandidates)) {
-                return Response.status(Response.Status.NOT_FOUND)
-                        .entity(new ErrorResponse("No managed volume found for " + contentURI))
-                        .type(MediaType.APPLICATION_JSON)
-                        .build();
-            }
-            List<JacsStorageVolume> accessibleVolumes = volumeCandidates.stream()
-                    .filter(storageVolume -> storageVolume.hasPermission(JacsStoragePermission.READ))
-                    .collect(Collectors.toList());
-            if (CollectionUtils.isEmpty(accessibleVolumes)) {
-                return Response.status(Response.Status.FORBIDDEN)
-                        .entity(new ErrorResponse("No permissions to access " + contentURI))
-                        .type(MediaType.APPLICATION_JSON)
-                        .build();
-            }
-            return accessibleVolumes.stream()
-                    .findFirst()
-                    .flatMap(aStorageVolume -> aStorageVolume.setStorageOptions(storageOptions).resolveAbsoluteLocationURI(contentURI))
-                    .map(resolvedContentURI -> {
-                        boolean dataFound = dataContentService.exists(resolvedContentURI);
-                        if (dataFound) {
-                            return Response.ok();
-                        } else {
-                            return Response.status(Response.Status.NOT_FOUND);
-                        }
-                    })
-                    .orElse(Response.status(Response.Status.NOT_FOUND))
-                    .build();
-        } finally {
-            LOG.debug("Complete check path {}", dataPathParam);
+            volumeCandidates = storageResourceHelper.listStorageVolumesForURI(contentURI);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.BAD_REQUEST)
+                    .entity(new ErrorResponse(e.getMessage()))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
+        }
+        if (CollectionUtils.isEmpty(volumeCandidates)) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND)
+                    .entity(new ErrorResponse("No managed volume found for " + contentURI))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
         }
+        List<JacsStorageVolume> accessibleVolumes = volumeCandidates.stream()
+                .filter(storageVolume -> storageVolume.hasPermission(JacsStoragePermission.READ))
+                .collect(Collectors.toList());
+        if (CollectionUtils.isEmpty(accessibleVolumes)) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.FORBIDDEN)
+                    .entity(new ErrorResponse("No permissions to access " + contentURI))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
+        }
+        return accessibleVolumes.stream()
+                .findFirst()
+                .flatMap(aStorageVolume -> aStorageVolume.setStorageOptions(storageOptions).resolveAbsoluteLocationURI(contentURI))
+                .map(resolvedContentURI -> dataContentService.existsAsync(resolvedContentURI)
+                        .thenApply(dataFound -> {
+                            if (dataFound) {
+                                return Response.ok();
+                            } else {
+                                return Response.status(Response.Status.NOT_FOUND);
+                            }
+                        }))
+                .orElse(CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND)))
+                .thenApply(Response.ResponseBuilder::build);
     }
 
     @ApiOperation(value = "Retrieve the content of the specified data path.")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "The stream was successfull"),
+            @ApiResponse(code = 206, message = "The requested byte ranges were streamed successfully"),
             @ApiResponse(code = 404, message = "Invalid data bundle identifier"),
+            @ApiResponse(code = 416, message = "None of the requested byte ranges can be satisfied"),
             @ApiResponse(code = 409, message = "This may be caused by a misconfiguration which results in the system not being able to identify the volumes that hold the data file"),
             @ApiResponse(code = 500, message = "Data read error")
     })
     @GET
     @Produces({MediaType.APPLICATION_JSON, MediaType.APPLICATION_OCTET_STREAM})
     @Path("storage_path/data_content/{dataPath:.+}")
-    public Response retrieveContent(@PathParam("dataPath") String dataPathParam,
-                                    @Context UriInfo requestURI,
-                                    @Context ContainerRequestContext requestContext) {
+    public void retrieveContent(@PathParam("dataPath") String dataPathParam,
+                                @Context UriInfo requestURI,
+                                @Context ContainerRequestContext requestContext,
+                                @Suspended AsyncResponse asyncResponse) {
+        LOG.debug("Start retrieve data from {}", dataPathParam);
+        asyncResponseResumer.resume(asyncResponse, () -> retrieveContentAsync(dataPathParam, requestURI, requestContext)
+                .whenComplete((r, e) -> LOG.debug("Complete retrieve data from {}", dataPathParam)));
+    }
+
+    private CompletionStage<Response> retrieveContentAsync(String dataPathParam, UriInfo requestURI, ContainerRequestContext requestContext) {
+        JADEOptions storageOptions = JADEOptions.create()
+                .setAccessKey(requestContext.getHeaderString("AccessKey"))
+                .setSecretKey(requestContext.getHeaderString("SecretKey"))
+                .setAWSRegion(requestContext.getHeaderString("AWSRegion"));
+        JADEStorageURI contentURI = JADEStorageURI.createStoragePathURI(dataPathParam, storageOptions);
+        StorageResourceHelper storageResourceHelper = new StorageResourceHelper(storageVolumeManager);
+        List<JacsStorageVolume> volumeCandidates;
         try {
-            LOG.debug("Start retrieve data from {}", dataPathParam);
-            JADEOptions storageOptions = JADEOptions.create()
-                    .setAccessKey(requestContext.getHeaderString("AccessKey"))
-                    .setSecretKey(requestContext.getHeaderString("SecretKey"))
-                    .setAWSRegion(requestContext.getHeaderString("AWSRegion"));
-            JADEStorageURI contentURI = JADEStorageURI.createStoragePathURI(dataPathParam, storageOptions);
-            StorageResourceHelper storageResourceHelper = new StorageResourceHelper(storageVolumeManager);
-            List<JacsStorageVolume> volumeCandidates;
-            try {
-                volumeCandidates = storageResourceHelper.listStorageVolumesForURI(contentURI);
-            } catch (IllegalArgumentException e) {
-                return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(new ErrorResponse(e.getMessage()))
-                        .type(MediaType.APPLICATION_JSON)
-                        .build();
-            }
-            if (CollectionUtils.isEmpty(volumeCandidates)) {
-                return Response.status(Response.Status.NOT_FOUND)
-                        .entity(new ErrorResponse("No managed volume found for " + contentURI))
-                        .type(MediaType.APPLICATION_JSON)
-                        .build();
-            }
-            List<JacsStorageVolume> accessibleVolumes = volumeCandidates.stream()
-                    .filter(storageVolume -> storageVolume.hasPermission(JacsStoragePermission.READ))
-                    .collect(Collectors.toList());
-            if (CollectionUtils.isEmpty(accessibleVolumes)) {
-                return Response.status(Response.Status.FORBIDDEN)
-                        .entity(new ErrorResponse("No permissions to access " + contentURI))
-                        .type(MediaType.APPLICATION_JSON)
-                        .build();
-            }
-            ContentAccessParams contentAccessParams = ContentAccessRequestHelper.createContentAccessParamsFromQuery(requestURI.getQueryParameters());
-            return accessibleVolumes.stream()
-                    .findFirst()
-                    .flatMap(aStorageVolume -> aStorageVolume.setStorageOptions(storageOptions).resolveAbsoluteLocationURI(contentURI))
-                    .map(resolvedContentURI -> {
-                        ContentGetter contentGetter = dataContentService.getDataContent(resolvedContentURI, contentAccessParams);
-                        long contentSize = contentAccessParams.isEstimateSizeDisabled() ? -1 : contentGetter.estimateContentSize();
-                        StreamingOutput outputStream = output -> {
-                            contentGetter.streamContent(output);
-                            output.flush();
-                        };
-                        return Response
-                                .ok(outputStream, MediaType.APPLICATION_OCTET_STREAM)
-                                .header("Content-Length", contentSize)
-                                .header("Content-Disposition", "attachment; filename = " + resolvedContentURI.getObjectName())
-                                ;
-                    })
-                    .orElse(Response.status(Response.Status.NOT_FOUND))
-                    .build();
-        } finally {
-            LOG.debug("Complete retrieve data from {}", dataPathParam);
+            volumeCandidates = storageResourceHelper.listStorageVolumesForURI(contentURI);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.BAD_REQUEST)
+                    .entity(new ErrorResponse(e.getMessage()))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
         }
+        if (CollectionUtils.isEmpty(volumeCandidates)) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND)
+                    .entity(new ErrorResponse("No managed volume found for " + contentURI))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
+        }
+        List<JacsStorageVolume> accessibleVolumes = volumeCandidates.stream()
+                .filter(storageVolume -> storageVolume.hasPermission(JacsStoragePermission.READ))
+                .collect(Collectors.toList());
+        if (CollectionUtils.isEmpty(accessibleVolumes)) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.FORBIDDEN)
+                    .entity(new ErrorResponse("No permissions to access " + contentURI))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
+        }
+        ContentAccessParams contentAccessParams = ContentAccessRequestHelper.createContentAccessParamsFromQuery(requestURI.getQueryParameters());
+        return accessibleVolumes.stream()
+                .findFirst()
+                .flatMap(aStorageVolume -> aStorageVolume.setStorageOptions(storageOptions).resolveAbsoluteLocationURI(contentURI))
+                .map(resolvedContentURI -> asyncResponseResumer.buildResponse(dataContentService.getDataContentAsync(resolvedContentURI, contentAccessParams), contentGetter -> {
+                    List<ContentNode> contentNodes = contentGetter.getObjectsList();
+                    EntityTag entityTag = ContentValidatorsRequestHelper.getEntityTag(contentNodes, contentAccessParams, false);
+                    Date lastModified = ContentValidatorsRequestHelper.getLastModified(contentNodes);
+                    Response.ResponseBuilder preconditionsResponse = ContentValidatorsRequestHelper.evaluatePreconditions(requestContext.getRequest(), entityTag, lastModified);
+                    if (preconditionsResponse != null) {
+                        return ContentValidatorsRequestHelper.addValidators(preconditionsResponse, entityTag, lastModified);
+                    }
+                    long contentSize = contentAccessParams.isEstimateSizeDisabled() ? -1 : contentGetter.estimateContentSize();
+                    // a range of a different version of the content is never returned - if If-Range does not match send the entire content
+                    String rangeHeader = ContentValidatorsRequestHelper.isRangeRequestValid(requestContext.getHeaderString(ContentValidatorsRequestHelper.IF_RANGE_HEADER), entityTag, lastModified)
+                            ? requestContext.getHeaderString(ContentRangeRequestHelper.RANGE_HEADER)
+                            : null;
+                    List<DataInterval<Long>> requestedRanges = ContentRangeRequestHelper.getRequestedRanges(rangeHeader, contentSize);
+                    if (requestedRanges != null) {
+                        return ContentValidatorsRequestHelper.addValidators(
+                                ContentRangeRequestHelper.createRangeResponse(contentGetter, requestedRanges, contentSize, resolvedContentURI.getObjectName()),
+                                entityTag,
+                                lastModified);
+                    }
+                    StreamingOutput outputStream = output -> {
+                        contentGetter.streamContent(FileTransferOutputStream.wrap(output));
+                        output.flush();
+                    };
+                    return ContentValidatorsRequestHelper.addValidators(Response.ok(outputStream, MediaType.APPLICATION_OCTET_STREAM), entityTag, lastModified)
+                            .header("Content-Length", contentSize)
+                            .header(ContentRangeRequestHelper.ACCEPT_RANGES_HEADER, contentSize >= 0 ? "bytes" : "none")
+                            .header("Content-Disposition", "attachment; filename = " + resolvedContentURI.getObjectName())
+                            ;
+                }))
+                .orElse(CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND)))
+                .thenApply(Response.ResponseBuilder::build);
     }
 
     @ApiOperation(value = "Retrieve the content of the specified data path.")
@@ -209,53 +250,53 @@ public class PathBasedAgentStorageResource {
     @DELETE
     @Produces({MediaType.APPLICATION_JSON})
     @Path("storage_path/data_content/{dataPath:.+}")
-    public Response removeData(@PathParam("dataPath") String dataPathParam,
-                               @Context ContainerRequestContext requestContext,
-                               @Context SecurityContext securityContext) {
+    public void removeData(@PathParam("dataPath") String dataPathParam,
+                           @Context ContainerRequestContext requestContext,
+                           @Context SecurityContext securityContext,
+                           @Suspended AsyncResponse asyncResponse) {
+        LOG.debug("Remove data from {}", dataPathParam);
+        asyncResponseResumer.resume(asyncResponse, () -> removeDataAsync(dataPathParam, requestContext)
+                .whenComplete((r, e) -> LOG.debug("Complete remove data from {}", dataPathParam)));
+    }
+
+    private CompletionStage<Response> removeDataAsync(String dataPathParam, ContainerRequestContext requestContext) {
+        JADEOptions storageOptions = JADEOptions.create()
+                .setAccessKey(requestContext.getHeaderString("AccessKey"))
+                .setSecretKey(requestContext.getHeaderString("SecretKey"))
+                .setAWSRegion(requestContext.getHeaderString("AWSRegion"));
+        JADEStorageURI contentURI = JADEStorageURI.createStoragePathURI(dataPathParam, storageOptions);
+        StorageResourceHelper storageResourceHelper = new StorageResourceHelper(storageVolumeManager);
+        List<JacsStorageVolume> volumeCandidates;
         try {
-            LOG.debug("Remove data from {}", dataPathParam);
-            JADEOptions storageOptions = JADEOptions.create()
-                    .setAccessKey(requestContext.getHeaderString("AccessKey"))
-                    .setSecretKey(requestContext.getHeaderString("SecretKey"))
-                    .setAWSRegion(requestContext.getHeaderString("AWSRegion"));
-            JADEStorageURI contentURI = JADEStorageURI.createStoragePathURI(dataPathParam, storageOptions);
-            StorageResourceHelper storageResourceHelper = new StorageResourceHelper(storageVolumeManager);
-            List<JacsStorageVolume> volumeCandidates;
-            try {
-                volumeCandidates = storageResourceHelper.listStorageVolumesForURI(contentURI);
-            } catch (IllegalArgumentException e) {
-                return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(new ErrorResponse(e.getMessage()))
-                        .type(MediaType.APPLICATION_JSON)
-                        .build();
-            }
-            if (CollectionUtils.isEmpty(volumeCandidates)) {
-                return Response.status(Response.Status.NOT_FOUND)
-                        .entity(new ErrorResponse("No managed volume found for " + contentURI))
-                        .type(MediaType.APPLICATION_JSON)
-                        .build();
-            }
-            List<JacsStorageVolume> accessibleVolumes = volumeCandidates.stream()
-                    .filter(storageVolume -> storageVolume.hasPermission(JacsStoragePermission.DELETE))
-                    .collect(Collectors.toList());
-            if (CollectionUtils.isEmpty(accessibleVolumes)) {
-                return Response.status(Response.Status.FORBIDDEN)
-                        .entity(new ErrorResponse("No permissions to delete " + contentURI))
-                        .type(MediaType.APPLICATION_JSON)
-                        .build();
-            }
-            return accessibleVolumes.stream()
-                    .findFirst()
-                    .flatMap(aStorageVolume -> aStorageVolume.setStorageOptions(storageOptions).resolveAbsoluteLocationURI(contentURI))
-                    .map(resolvedContentURI -> {
-                        dataContentService.removeData(resolvedContentURI);
-                        return Response.noContent();
-                    })
-                    .orElse(Response.status(Response.Status.NOT_FOUND))
-                    .build();
-        } finally {
-            LOG.debug("Complete remove data from {}", dataPathParam);
+            volumeCandidates = storageResourceHelper.listStorageVolumesForURI(contentURI);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.BAD_REQUEST)
+                    .entity(new ErrorResponse(e.getMessage()))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
         }
+        if (CollectionUtils.isEmpty(volumeCandidates)) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND)
+                    .entity(new ErrorResponse("No managed volume found for " + contentURI))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
+        }
+        List<JacsStorageVolume> accessibleVolumes = volumeCandidates.stream()
+                .filter(storageVolume -> storageVolume.hasPermission(JacsStoragePermission.DELETE))
+                .collect(Collectors.toList());
+        if (CollectionUtils.isEmpty(accessibleVolumes)) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.FORBIDDEN)
+                    .entity(new ErrorResponse("No permissions to delete " + contentURI))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
+        }
+        return accessibleVolumes.stream()
+                .findFirst()
+                .flatMap(aStorageVolume -> aStorageVolume.setStorageOptions(storageOptions).resolveAbsoluteLocationURI(contentURI))
+                .map(resolvedContentURI -> dataContentService.removeDataAsync(resolvedContentURI)
+                        .thenApply(r -> Response.noContent()))
+                .orElse(CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND)))
+                .thenApply(Response.ResponseBuilder::build);
     }
 
     @ApiOperation(value = "Store the content at the specified data path.")
@@ -355,54 +396,62 @@ public class PathBasedAgentStorageResource {
     @GET
     @Produces({MediaType.APPLICATION_JSON})
     @Path("storage_path/data_info/{dataPath:.+}")
-    public Response retrieveContentMetadata(@PathParam("dataPath") String dataPathParam,
-                                            @Context ContainerRequestContext requestContext,
-                                            @Context UriInfo requestURI) {
+    public void retrieveContentMetadata(@PathParam("dataPath") String dataPathParam,
+                                        @Context ContainerRequestContext requestContext,
+                                        @Context UriInfo requestURI,
+                                        @Suspended AsyncResponse asyncResponse) {
+        LOG.debug("Retrieve metadata from {}", dataPathParam);
+        asyncResponseResumer.resume(asyncResponse, () -> retrieveContentMetadataAsync(dataPathParam, requestContext, requestURI)
+                .whenComplete((r, e) -> LOG.debug("Complete retrieve metadata from {}", dataPathParam)));
+    }
+
+    private CompletionStage<Response> retrieveContentMetadataAsync(String dataPathParam, ContainerRequestContext requestContext, UriInfo requestURI) {
+        JADEOptions storageOptions = JADEOptions.create()
+                .setAccessKey(requestContext.getHeaderString("AccessKey"))
+                .setSecretKey(requestContext.getHeaderString("SecretKey"))
+                .setAWSRegion(requestContext.getHeaderString("AWSRegion"));
+        JADEStorageURI contentURI = JADEStorageURI.createStoragePathURI(dataPathParam, storageOptions);
+        StorageResourceHelper storageResourceHelper = new StorageResourceHelper(storageVolumeManager);
+        List<JacsStorageVolume> volumeCandidates;
         try {
-            LOG.debug("Retrieve metadata from {}", dataPathParam);
-            JADEOptions storageOptions = JADEOptions.create()
-                    .setAccessKey(requestContext.getHeaderString("AccessKey"))
-                    .setSecretKey(requestContext.getHeaderString("SecretKey"))
-                    .setAWSRegion(requestContext.getHeaderString("AWSRegion"));
-            JADEStorageURI contentURI = JADEStorageURI.createStoragePathURI(dataPathParam, storageOptions);
-            StorageResourceHelper storageResourceHelper = new StorageResourceHelper(storageVolumeManager);
-            List<JacsStorageVolume> volumeCandidates;
-            try {
-                volumeCandidates = storageResourceHelper.listStorageVolumesForURI(contentURI);
-            } catch (IllegalArgumentException e) {
-                return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(new ErrorResponse(e.getMessage()))
-                        .type(MediaType.APPLICATION_JSON)
-                        .build();
-            }
-            if (CollectionUtils.isEmpty(volumeCandidates)) {
-                return Response.status(Response.Status.NOT_FOUND)
-                        .entity(new ErrorResponse("No managed volume found for " + contentURI))
-                        .type(MediaType.APPLICATION_JSON)
-                        .build();
-            }
-            List<JacsStorageVolume> accessibleVolumes = volumeCandidates.stream()
-                    .filter(storageVolume -> storageVolume.hasPermission(JacsStoragePermission.READ))
-                    .collect(Collectors.toList());
-            if (CollectionUtils.isEmpty(accessibleVolumes)) {
-                return Response.status(Response.Status.FORBIDDEN)
-                        .entity(new ErrorResponse("No permissions to access " + contentURI))
-                        .type(MediaType.APPLICATION_JSON)
-                        .build();
-            }
-            ContentAccessParams contentAccessParams = ContentAccessRequestHelper.createContentAccessParamsFromQuery(requestURI.getQueryParameters());
-            return accessibleVolumes.stream()
-                    .findFirst()
-                    .flatMap(aStorageVolume -> aStorageVolume.setStorageOptions(storageOptions).resolveAbsoluteLocationURI(contentURI))
-                    .map(resolvedContentURI -> {
-                        ContentGetter contentGetter = dataContentService.getDataContent(resolvedContentURI, contentAccessParams);
-                        return Response.ok(contentGetter.getMetaData());
-                    })
-                    .orElse(Response.status(Response.Status.NOT_FOUND))
-                    .build();
-        } finally {
-            LOG.debug("Complete retrieve metadata from {}", dataPathParam);
+            volumeCandidates = storageResourceHelper.listStorageVolumesForURI(contentURI);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.BAD_REQUEST)
+                    .entity(new ErrorResponse(e.getMessage()))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
         }
+        if (CollectionUtils.isEmpty(volumeCandidates)) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND)
+                    .entity(new ErrorResponse("No managed volume found for " + contentURI))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
+        }
+        List<JacsStorageVolume> accessibleVolumes = volumeCandidates.stream()
+                .filter(storageVolume -> storageVolume.hasPermission(JacsStoragePermission.READ))
+                .collect(Collectors.toList());
+        if (CollectionUtils.isEmpty(accessibleVolumes)) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.FORBIDDEN)
+                    .entity(new ErrorResponse("No permissions to access " + contentURI))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
+        }
+        ContentAccessParams contentAccessParams = ContentAccessRequestHelper.createContentAccessParamsFromQuery(requestURI.getQueryParameters());
+        return accessibleVolumes.stream()
+                .findFirst()
+                .flatMap(aStorageVolume -> aStorageVolume.setStorageOptions(storageOptions).resolveAbsoluteLocationURI(contentURI))
+                .map(resolvedContentURI -> asyncResponseResumer.buildResponse(dataContentService.getDataContentAsync(resolvedContentURI, contentAccessParams), contentGetter -> {
+                    List<ContentNode> contentNodes = contentGetter.getObjectsList();
+                    EntityTag entityTag = ContentValidatorsRequestHelper.getEntityTag(contentNodes, contentAccessParams, true);
+                    Date lastModified = ContentValidatorsRequestHelper.getLastModified(contentNodes);
+                    Response.ResponseBuilder preconditionsResponse = ContentValidatorsRequestHelper.evaluatePreconditions(requestContext.getRequest(), entityTag, lastModified);
+                    if (preconditionsResponse != null) {
+                        return ContentValidatorsRequestHelper.addValidators(preconditionsResponse, entityTag, lastModified);
+                    }
+                    return ContentValidatorsRequestHelper.addValidators(Response.ok(contentGetter.getMetaData()), entityTag, lastModified);
+                }))
+                .orElse(CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND)))
+                .thenApply(Response.ResponseBuilder::build);
     }
 
     @ApiOperation(
@@ -416,13 +465,14 @@ public class PathBasedAgentStorageResource {
     })
     @RequireAuthentication
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ContentListingRequestHelper.NDJSON_MEDIA_TYPE})
     @Path("storage_path/list/{dataPath:.*}")
     public Response listContent(@PathParam("dataPath") String dataPathParam,
                                 @QueryParam("depth") Integer depthParam,
                                 @QueryParam("offset") Integer offsetParam,
                                 @QueryParam("length") Integer lengthParam,
                                 @QueryParam("directoriesOnly") Boolean directoriesOnlyParam,
+                                @QueryParam(ContentListingRequestHelper.CONTINUATION_TOKEN_PARAM) String continuationTokenParam,
                                 @Context UriInfo requestURI,
                                 @Context ContainerRequestContext requestContext,
                                 @Context SecurityContext securityContext) {
@@ -437,6 +487,15 @@ public class PathBasedAgentStorageResource {
         int offset = offsetParam != null ? offsetParam : 0;
         int length = lengthParam != null ? lengthParam : -1;
         boolean directoriesOnly = directoriesOnlyParam != null ? directoriesOnlyParam : false;
+        String startAfterEntry;
+        try {
+            startAfterEntry = ContentListingRequestHelper.decodeContinuationToken(continuationTokenParam);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(new ErrorResponse(e.getMessage()))
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
         List<JacsStorageVolume> volumeCandidates;
         try {
             volumeCandidates = storageResourceHelper.listStorageVolumesForURI(contentURI);
@@ -464,9 +523,12 @@ public class PathBasedAgentStorageResource {
         URI endpointBaseURI = resourceURI.getBaseUri();
         ContentAccessParams contentAccessParams = ContentAccessRequestHelper.createContentAccessParamsFromQuery(requestURI.getQueryParameters())
                 .setMaxDepth(depth)
-                .setEntriesCount(length)
+                // read one more entry than requested to find out if there is a next page
+                .setEntriesCount(length > 0 ? length + 1 : length)
                 .setStartEntryIndex(offset)
-                .setDirectoriesOnly(directoriesOnly);
+                .setStartAfterEntry(startAfterEntry)
+                .setDirectoriesOnly(directoriesOnly)
+                .setCachedListingAllowed(true);
         return accessibleVolumes.stream()
                 .findFirst()
                 .flatMap(aStorageVolume -> aStorageVolume.setStorageOptions(storageOptions).resolveAbsoluteLocationURI(contentURI)
@@ -475,9 +537,10 @@ public class PathBasedAgentStorageResource {
                     JacsStorageVolume storageVolume = volAndContentURIPair.getLeft();
                     JADEStorageURI resolvedContentURI = volAndContentURIPair.getRight();
                     JADEStorageURI storageVolumeURI = storageVolume.getVolumeStorageRootURI();
-                    ContentGetter contentGetter = dataContentService.getDataContent(resolvedContentURI, contentAccessParams);
-                    List<DataNodeInfo> dataNodes = contentGetter.getObjectsList().stream()
-                            .map(contentNode -> {
+                    Stream<ContentNode> contentNodes = dataContentService.streamDataNodes(resolvedContentURI, contentAccessParams);
+                    return ContentListingRequestHelper.createListingResponse(
+                            contentNodes,
+                            contentNode -> {
                                 DataNodeInfo dataNode = new DataNodeInfo();
                                 dataNode.setStorageType(contentNode.getStorageType().name());
                                 dataNode.setStorageRootLocation(storageVolume.getStorageRootLocation());
@@ -506,9 +569,11 @@ public class PathBasedAgentStorageResource {
                                                 .build()
                                                 .toString());
                                 return dataNode;
-                            })
-                            .collect(Collectors.toList());
-                    return Response.ok(dataNodes, MediaType.APPLICATION_JSON);
+                            },
+                            length,
+                            requestURI,
+                            ContentListingRequestHelper.getObjectMapper(providers),
+                            ContentListingRequestHelper.isNDJsonRequested(requestContext.getAcceptableMediaTypes()));
                 })
                 .orElse(Response.status(Response.Status.NOT_FOUND))
                 .build();
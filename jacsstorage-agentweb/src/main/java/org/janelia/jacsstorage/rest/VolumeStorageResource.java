@@ -2,8 +2,9 @@ package org.janelia.jacsstorage.rest;
 
 import java.io.InputStream;
 import java.net.URI;
+import java.util.Date;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.inject.Inject;
 import javax.ws.rs.DELETE;
@@ -16,32 +17,40 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.Providers;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 import org.janelia.jacsstorage.agent.AgentState;
+import org.janelia.jacsstorage.app.undertow.FileTransferOutputStream;
 import org.janelia.jacsstorage.cdi.qualifier.LocalInstance;
 import org.janelia.jacsstorage.datarequest.DataNodeInfo;
 import org.janelia.jacsstorage.datarequest.PageResult;
 import org.janelia.jacsstorage.datarequest.StorageQuery;
 import org.janelia.jacsstorage.interceptors.annotations.Timed;
+import org.janelia.jacsstorage.model.DataInterval;
 import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
 import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
 import org.janelia.jacsstorage.model.jacsstorage.JacsStoragePermission;
 import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
 import org.janelia.jacsstorage.model.jacsstorage.JacsStorageVolume;
 import org.janelia.jacsstorage.requesthelpers.ContentAccessRequestHelper;
+import org.janelia.jacsstorage.requesthelpers.ContentListingRequestHelper;
+import org.janelia.jacsstorage.requesthelpers.ContentRangeRequestHelper;
+import org.janelia.jacsstorage.requesthelpers.ContentValidatorsRequestHelper;
 import org.janelia.jacsstorage.securitycontext.RequireAuthentication;
 import org.janelia.jacsstorage.service.ContentAccessParams;
 import org.janelia.jacsstorage.service.ContentGetter;
+import org.janelia.jacsstorage.service.ContentNode;
 import org.janelia.jacsstorage.service.DataContentService;
 import org.janelia.jacsstorage.service.StorageVolumeManager;
 import org.janelia.jacsstorage.service.interceptors.annotations.LogStorageEvent;
@@ -64,6 +73,8 @@ public class VolumeStorageResource {
     private AgentState agentState;
     @Context
     private UriInfo resourceURI;
+    @Context
+    private Providers providers;
 
     @ApiOperation(value = "Check if the specified file path identifies a valid data bundle entry content.")
     @ApiResponses(value = {
@@ -122,7 +133,9 @@ public class VolumeStorageResource {
     @ApiOperation(value = "Stream the specified data file identified by the relative path to the volume mount point.")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "The stream was successfull"),
+            @ApiResponse(code = 206, message = "The requested byte ranges were streamed successfully"),
             @ApiResponse(code = 404, message = "Invalid volume identifier or invalid file path"),
+            @ApiResponse(code = 416, message = "None of the requested byte ranges can be satisfied"),
             @ApiResponse(code = 500, message = "Data read error")
     })
     @GET
@@ -161,16 +174,34 @@ public class VolumeStorageResource {
                     .map(resolvedContentURI -> {
                         long startTime = System.currentTimeMillis();
                         ContentGetter contentGetter = dataContentService.getDataContent(resolvedContentURI, contentAccessParams);
+                        List<ContentNode> contentNodes = contentGetter.getObjectsList();
+                        EntityTag entityTag = ContentValidatorsRequestHelper.getEntityTag(contentNodes, contentAccessParams, false);
+                        Date lastModified = ContentValidatorsRequestHelper.getLastModified(contentNodes);
+                        Response.ResponseBuilder preconditionsResponse = ContentValidatorsRequestHelper.evaluatePreconditions(requestContext.getRequest(), entityTag, lastModified);
+                        if (preconditionsResponse != null) {
+                            return ContentValidatorsRequestHelper.addValidators(preconditionsResponse, entityTag, lastModified);
+                        }
                         long contentSize = contentAccessParams.isEstimateSizeDisabled() ? -1 : contentGetter.estimateContentSize();
                         LOG.debug("Retrieved {} size ({}) in {} secs", resolvedContentURI, contentSize, (System.currentTimeMillis()-startTime)/1000.);
+                        // a range of a different version of the content is never returned - if If-Range does not match send the entire content
+                        String rangeHeader = ContentValidatorsRequestHelper.isRangeRequestValid(requestContext.getHeaderString(ContentValidatorsRequestHelper.IF_RANGE_HEADER), entityTag, lastModified)
+                                ? requestContext.getHeaderString(ContentRangeRequestHelper.RANGE_HEADER)
+                                : null;
+                        List<DataInterval<Long>> requestedRanges = ContentRangeRequestHelper.getRequestedRanges(rangeHeader, contentSize);
+                        if (requestedRanges != null) {
+                            return ContentValidatorsRequestHelper.addValidators(
+                                    ContentRangeRequestHelper.createRangeResponse(contentGetter, requestedRanges, contentSize, resolvedContentURI.getObjectName()),
+                                    entityTag,
+                                    lastModified);
+                        }
                         StreamingOutput outputStream = output -> {
-                            contentGetter.streamContent(output);
+                            contentGetter.streamContent(FileTransferOutputStream.wrap(output));
                             output.flush();
                             LOG.debug("Finished streaming {} in {} secs", resolvedContentURI, (System.currentTimeMillis()-startTime)/1000.);
                         };
-                        return Response
-                                .ok(outputStream, MediaType.APPLICATION_OCTET_STREAM)
+                        return ContentValidatorsRequestHelper.addValidators(Response.ok(outputStream, MediaType.APPLICATION_OCTET_STREAM), entityTag, lastModified)
                                 .header("Content-Length", contentSize)
+                                .header(ContentRangeRequestHelper.ACCEPT_RANGES_HEADER, contentSize >= 0 ? "bytes" : "none")
                                 .header("Content-Disposition", "attachment; filename = " + resolvedContentURI.getObjectName())
                                 ;
                     })
@@ -221,7 +252,14 @@ public class VolumeStorageResource {
                     .resolveRelativeLocation(storageRelativeFilePath)
                     .map(resolvedContentURI -> {
                         ContentGetter contentGetter = dataContentService.getDataContent(resolvedContentURI, contentAccessParams);
-                        return Response.ok(contentGetter.getMetaData());
+                        List<ContentNode> contentNodes = contentGetter.getObjectsList();
+                        EntityTag entityTag = ContentValidatorsRequestHelper.getEntityTag(contentNodes, contentAccessParams, true);
+                        Date lastModified = ContentValidatorsRequestHelper.getLastModified(contentNodes);
+                        Response.ResponseBuilder preconditionsResponse = ContentValidatorsRequestHelper.evaluatePreconditions(requestContext.getRequest(), entityTag, lastModified);
+                        if (preconditionsResponse != null) {
+                            return ContentValidatorsRequestHelper.addValidators(preconditionsResponse, entityTag, lastModified);
+                        }
+                        return ContentValidatorsRequestHelper.addValidators(Response.ok(contentGetter.getMetaData()), entityTag, lastModified);
                     })
                     .orElse(Response.status(Response.Status.NOT_FOUND))
                     .build();
@@ -238,7 +276,7 @@ public class VolumeStorageResource {
             @ApiResponse(code = 500, message = "Data read error")
     })
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ContentListingRequestHelper.NDJSON_MEDIA_TYPE})
     @Path("storage_volume/{storageVolumeId}/list/{storageRelativePath:.*}")
     public Response listPathFromStorageVolume(@PathParam("storageVolumeId") Long storageVolumeId,
                                               @PathParam("storageRelativePath") String storageRelativeFilePath,
@@ -246,6 +284,7 @@ public class VolumeStorageResource {
                                               @QueryParam("offset") Integer offsetParam,
                                               @QueryParam("length") Integer lengthParam,
                                               @QueryParam("directoriesOnly") Boolean directoriesOnlyParam,
+                                              @QueryParam(ContentListingRequestHelper.CONTINUATION_TOKEN_PARAM) String continuationTokenParam,
                                               @Context ContainerRequestContext requestContext,
                                               @Context UriInfo requestURI) {
         try {
@@ -272,19 +311,32 @@ public class VolumeStorageResource {
             int offset = offsetParam != null ? offsetParam : 0;
             int length = lengthParam != null ? lengthParam : -1;
             boolean directoriesOnly = directoriesOnlyParam != null ? directoriesOnlyParam : false;
+            String startAfterEntry;
+            try {
+                startAfterEntry = ContentListingRequestHelper.decodeContinuationToken(continuationTokenParam);
+            } catch (IllegalArgumentException e) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(new ErrorResponse(e.getMessage()))
+                        .type(MediaType.APPLICATION_JSON)
+                        .build();
+            }
             URI endpointBaseURI = resourceURI.getBaseUri();
             ContentAccessParams contentAccessParams = ContentAccessRequestHelper.createContentAccessParamsFromQuery(requestURI.getQueryParameters())
                     .setMaxDepth(depth)
-                    .setEntriesCount(length)
+                    // read one more entry than requested to find out if there is a next page
+                    .setEntriesCount(length > 0 ? length + 1 : length)
                     .setStartEntryIndex(offset)
-                    .setDirectoriesOnly(directoriesOnly);
+                    .setStartAfterEntry(startAfterEntry)
+                    .setDirectoriesOnly(directoriesOnly)
+                    .setCachedListingAllowed(true);
             return storageVolume
                     .setStorageOptions(storageOptions)
                     .resolveRelativeLocation(storageRelativeFilePath)
                     .map(resolvedContentURI -> {
-                        ContentGetter contentGetter = dataContentService.getDataContent(resolvedContentURI, contentAccessParams);
-                        List<DataNodeInfo> dataNodes = contentGetter.getObjectsList().stream()
-                                .map(contentNode -> {
+                        Stream<ContentNode> contentNodes = dataContentService.streamDataNodes(resolvedContentURI, contentAccessParams);
+                        return ContentListingRequestHelper.createListingResponse(
+                                contentNodes,
+                                contentNode -> {
                                     DataNodeInfo dataNode = new DataNodeInfo();
                                     dataNode.setStorageType(contentNode.getStorageType().name());
                                     dataNode.setStorageRootLocation(storageVolume.getStorageRootLocation());
@@ -313,9 +365,11 @@ public class VolumeStorageResource {
                                                     .build()
                                                     .toString());
                                     return dataNode;
-                                })
-                                .collect(Collectors.toList());
-                        return Response.ok(dataNodes, MediaType.APPLICATION_JSON);
+                                },
+                                length,
+                                requestURI,
+                                ContentListingRequestHelper.getObjectMapper(providers),
+                                ContentListingRequestHelper.isNDJsonRequested(requestContext.getAcceptableMediaTypes()));
                     })
                     .orElse(Response.status(Response.Status.NOT_FOUND))
                     .build();
@@ -92,7 +92,8 @@ public class AgentWebdavResource {
         ContentAccessParams contentAccessParams = new ContentAccessParams()
                 .setMaxDepth(depthValue)
                 .setEntryNamePattern(entryName)
-                .setEntriesCount(MAX_NODE_ENTRIES);
+                .setEntriesCount(MAX_NODE_ENTRIES)
+                .setCachedListingAllowed(true);
         ContentGetter contentGetter = dataContentService.getDataContent(dataBundle.getStorageURI(), contentAccessParams);
         List<PropfindResponse> contentNodesResponses = propfindResponsesFromContentNodes(
                 contentGetter.getObjectsList(),
@@ -181,7 +182,8 @@ public class AgentWebdavResource {
             return storageNotFoundHandler.get().build();
         }
         ContentAccessParams contentAccessParams = ContentAccessRequestHelper.createContentAccessParamsFromQuery(requestURI.getQueryParameters())
-                .setMaxDepth(depth);
+                .setMaxDepth(depth)
+                .setCachedListingAllowed(true);
         return volumeCandidates.stream()
                 .findFirst()
                 .flatMap(aStorageVolume -> aStorageVolume.resolveAbsoluteLocationURI(contentURI)
@@ -0,0 +1,181 @@
+package org.janelia.jacsstorage.rest;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.janelia.jacsstorage.app.JAXAgentStorageApp;
+import org.janelia.jacsstorage.datarequest.StorageQuery;
+import org.janelia.jacsstorage.model.DataInterval;
+import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStoragePermission;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageVolume;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageVolumeBuilder;
+import org.janelia.jacsstorage.service.ChunkedUpload;
+import org.janelia.jacsstorage.service.ChunkedUploadService;
+import org.janelia.jacsstorage.service.StorageVolumeManager;
+import org.janelia.jacsstorage.testrest.AbstractCdiInjectedResourceTest;
+import org.janelia.jacsstorage.testrest.TestAgentStorageDependenciesProducer;
+import org.janelia.jacsstorage.testrest.TestResourceBinder;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChunkedUploadResourceTest extends AbstractCdiInjectedResourceTest {
+
+    private TestAgentStorageDependenciesProducer dependenciesProducer = new TestAgentStorageDependenciesProducer();
+
+    @Override
+    protected JAXAgentStorageApp configure() {
+        return new JAXAgentStorageApp() {
+            @Override
+            protected Set<Class<?>> getAppClasses() {
+                return ImmutableSet.<Class<?>>builder()
+                        .addAll(super.getAppClasses())
+                        .build()
+                ;
+            }
+
+            @Override
+            public Set<Object> getSingletons() {
+                return ImmutableSet.builder()
+                        .addAll(super.getSingletons())
+                        .add(new TestResourceBinder(dependenciesProducer))
+                        .build()
+                        ;
+            }
+        };
+    }
+
+    @Override
+    protected Class<?>[] getTestBeanProviders() {
+        return new Class<?>[] {
+                TestAgentStorageDependenciesProducer.class
+        };
+    }
+
+    @Test
+    public void uploadStartedByAnotherSubjectIsNotAccessible() {
+        ChunkedUploadService chunkedUploadService = dependenciesProducer.getChunkedUploadService();
+        mockUploadVolume(EnumSet.of(JacsStoragePermission.READ, JacsStoragePermission.WRITE));
+        when(chunkedUploadService.getUpload("u1")).thenReturn(createUpload("user:other"));
+
+        Response getResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("chunked_upload/u1")
+                .request()
+                .get();
+        assertEquals(404, getResponse.getStatus());
+
+        Response partResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("chunked_upload/u1/part")
+                .queryParam("offset", 0)
+                .request()
+                .put(Entity.entity(new byte[10], MediaType.APPLICATION_OCTET_STREAM));
+        assertEquals(404, partResponse.getStatus());
+
+        Response completeResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("chunked_upload/u1/complete")
+                .request()
+                .post(Entity.json(""));
+        assertEquals(404, completeResponse.getStatus());
+
+        Response abortResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("chunked_upload/u1")
+                .request()
+                .delete();
+        assertEquals(404, abortResponse.getStatus());
+
+        verify(chunkedUploadService, never()).writePart(anyString(), anyLong(), any(InputStream.class));
+        verify(chunkedUploadService, never()).completeUpload(anyString());
+        verify(chunkedUploadService, never()).abortUpload(anyString());
+    }
+
+    @Test
+    public void uploadIsNotAccessibleOnceTheVolumeIsNotWritable() {
+        ChunkedUploadService chunkedUploadService = dependenciesProducer.getChunkedUploadService();
+        StorageVolumeManager storageVolumeManager = mockUploadVolume(EnumSet.of(JacsStoragePermission.READ));
+        // the test requests are not authenticated so the upload has no owner
+        when(chunkedUploadService.getUpload("u1")).thenReturn(createUpload(null));
+
+        Response partResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("chunked_upload/u1/part")
+                .queryParam("offset", 0)
+                .request()
+                .put(Entity.entity(new byte[10], MediaType.APPLICATION_OCTET_STREAM));
+        assertEquals(403, partResponse.getStatus());
+        verify(chunkedUploadService, never()).writePart(anyString(), anyLong(), any(InputStream.class));
+
+        when(storageVolumeManager.findVolumes(any(StorageQuery.class)))
+                .thenReturn(ImmutableList.of(createVolume(EnumSet.of(JacsStoragePermission.READ, JacsStoragePermission.WRITE))));
+        Response abortResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("chunked_upload/u1")
+                .request()
+                .delete();
+        assertEquals(204, abortResponse.getStatus());
+        verify(chunkedUploadService).abortUpload(eq("u1"));
+    }
+
+    @Test
+    public void incompleteUploadIsAConflict() {
+        ChunkedUploadService chunkedUploadService = dependenciesProducer.getChunkedUploadService();
+        mockUploadVolume(EnumSet.of(JacsStoragePermission.READ, JacsStoragePermission.WRITE));
+        when(chunkedUploadService.getUpload("u1")).thenReturn(createUpload(null));
+        when(chunkedUploadService.completeUpload("u1")).thenReturn(createUpload(null));
+
+        Response completeResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("chunked_upload/u1/complete")
+                .request()
+                .post(Entity.json(""));
+        assertEquals(409, completeResponse.getStatus());
+        verify(chunkedUploadService).completeUpload(eq("u1"));
+    }
+
+    private StorageVolumeManager mockUploadVolume(Set<JacsStoragePermission> volumePermissions) {
+        StorageVolumeManager storageVolumeManager = dependenciesProducer.getStorageVolumeManager();
+        when(storageVolumeManager.findVolumes(any(StorageQuery.class)))
+                .thenReturn(ImmutableList.of(createVolume(volumePermissions)));
+        return storageVolumeManager;
+    }
+
+    private JacsStorageVolume createVolume(Set<JacsStoragePermission> volumePermissions) {
+        return new JacsStorageVolumeBuilder()
+                .storageVolumeId(10L)
+                .storageVirtualPath("/volBinding")
+                .storageRootTemplate("/volRoot")
+                .volumePermissions(volumePermissions)
+                .build();
+    }
+
+    private ChunkedUpload createUpload(String ownerKey) {
+        return new ChunkedUpload(
+                "u1",
+                JADEStorageURI.createStoragePathURI("/volRoot/testPath", JADEOptions.create()),
+                ownerKey,
+                10L,
+                10,
+                0,
+                Collections.singletonList(new DataInterval<>(0L, 10L)));
+    }
+}
@@ -0,0 +1,207 @@
+package org.janelia.jacsstorage.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Response;
+
+import com.google.common.collect.ImmutableSet;
+import org.janelia.jacsstorage.app.JAXAgentStorageApp;
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStoragePermission;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageVolumeBuilder;
+import org.janelia.jacsstorage.service.N5ContentService;
+import org.janelia.jacsstorage.service.StorageVolumeManager;
+import org.janelia.jacsstorage.testrest.AbstractCdiInjectedResourceTest;
+import org.janelia.jacsstorage.testrest.TestAgentStorageDependenciesProducer;
+import org.janelia.jacsstorage.testrest.TestResourceBinder;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class N5StorageResourceTest extends AbstractCdiInjectedResourceTest {
+
+    private static final Long TEST_VOLUME_ID = 10L;
+
+    private TestAgentStorageDependenciesProducer dependenciesProducer = new TestAgentStorageDependenciesProducer();
+
+    @Override
+    protected JAXAgentStorageApp configure() {
+        return new JAXAgentStorageApp() {
+            @Override
+            protected Set<Class<?>> getAppClasses() {
+                return ImmutableSet.<Class<?>>builder()
+                        .addAll(super.getAppClasses())
+                        .build()
+                ;
+            }
+
+            @Override
+            public Set<Object> getSingletons() {
+                return ImmutableSet.builder()
+                        .addAll(super.getSingletons())
+                        .add(new TestResourceBinder(dependenciesProducer))
+                        .build()
+                        ;
+            }
+        };
+    }
+
+    @Override
+    protected Class<?>[] getTestBeanProviders() {
+        return new Class<?>[] {
+                TestAgentStorageDependenciesProducer.class
+        };
+    }
+
+    @Test
+    public void blocksAreStreamedInTheRequestedOrder() throws IOException {
+        mockReadableVolume();
+        N5ContentService n5ContentService = dependenciesProducer.getN5ContentService();
+        AtomicReference<JADEStorageURI> requestedContainer = new AtomicReference<>();
+        AtomicReference<List<long[]>> requestedPositions = new AtomicReference<>();
+        when(n5ContentService.getN5Blocks(any(JADEStorageURI.class), eq("s0"), anyList(), eq(true)))
+                .thenAnswer(invocation -> {
+                    requestedContainer.set(invocation.getArgument(0));
+                    requestedPositions.set(invocation.getArgument(2));
+                    return Arrays.asList(new byte[]{1, 2, 3}, null, new byte[]{4}).iterator();
+                });
+
+        Response response = blocksTarget()
+                .queryParam("dataset", "s0")
+                .queryParam("position", "0,0,1")
+                .queryParam("position", "1, 0, 1")
+                .queryParam("position", "2,0,1")
+                .queryParam("decoded", true)
+                .request()
+                .get();
+        assertEquals(200, response.getStatus());
+        DataInputStream blocksStream = new DataInputStream(new ByteArrayInputStream(response.readEntity(byte[].class)));
+        assertEquals(3, blocksStream.readInt());
+        byte[] firstBlock = new byte[3];
+        blocksStream.readFully(firstBlock);
+        assertArrayEquals(new byte[]{1, 2, 3}, firstBlock);
+        assertEquals(-1, blocksStream.readInt());
+        assertEquals(1, blocksStream.readInt());
+        assertEquals(4, blocksStream.readByte());
+        assertEquals(-1, blocksStream.read());
+
+        assertEquals("/volRoot/c.n5", requestedContainer.get().getJadeStorage());
+        assertEquals(3, requestedPositions.get().size());
+        assertArrayEquals(new long[]{0, 0, 1}, requestedPositions.get().get(0));
+        assertArrayEquals(new long[]{1, 0, 1}, requestedPositions.get().get(1));
+        assertArrayEquals(new long[]{2, 0, 1}, requestedPositions.get().get(2));
+    }
+
+    @Test
+    public void singleBlockIsReturnedAsItIs() {
+        mockReadableVolume();
+        N5ContentService n5ContentService = dependenciesProducer.getN5ContentService();
+        when(n5ContentService.getN5Blocks(any(JADEStorageURI.class), eq("s0"), anyList(), eq(false)))
+                .thenReturn(Collections.singletonList(new byte[]{5, 6}).iterator());
+        Response response = blocksTarget()
+                .queryParam("dataset", "s0")
+                .queryParam("position", "0,0,0")
+                .request()
+                .get();
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(new byte[]{5, 6}, response.readEntity(byte[].class));
+
+        when(n5ContentService.getN5Blocks(any(JADEStorageURI.class), eq("s0"), anyList(), eq(false)))
+                .thenReturn(Collections.<byte[]>singletonList(null).iterator());
+        Response missingBlockResponse = blocksTarget()
+                .queryParam("dataset", "s0")
+                .queryParam("position", "0,0,1")
+                .request()
+                .get();
+        assertEquals(404, missingBlockResponse.getStatus());
+    }
+
+    @Test
+    public void invalidBlockRequestsAreRejected() {
+        mockReadableVolume();
+        N5ContentService n5ContentService = dependenciesProducer.getN5ContentService();
+
+        Response missingPositionResponse = blocksTarget()
+                .queryParam("dataset", "s0")
+                .request()
+                .get();
+        assertEquals(400, missingPositionResponse.getStatus());
+
+        Response invalidPositionResponse = blocksTarget()
+                .queryParam("dataset", "s0")
+                .queryParam("position", "0,x,1")
+                .request()
+                .get();
+        assertEquals(400, invalidPositionResponse.getStatus());
+        verify(n5ContentService, never()).getN5Blocks(any(JADEStorageURI.class), anyString(), anyList(), anyBoolean());
+
+        // the number of blocks is limited by the service
+        when(n5ContentService.getN5Blocks(any(JADEStorageURI.class), eq("s0"), anyList(), anyBoolean()))
+                .thenThrow(new IllegalArgumentException("Too many blocks requested"));
+        Response tooManyBlocksResponse = blocksTarget()
+                .queryParam("dataset", "s0")
+                .queryParam("position", "0,0,0")
+                .queryParam("position", "0,0,1")
+                .queryParam("position", "0,0,2")
+                .request()
+                .get();
+        assertEquals(400, tooManyBlocksResponse.getStatus());
+    }
+
+    @Test
+    public void blocksCannotBeReadFromUnreadableVolume() {
+        StorageVolumeManager storageVolumeManager = dependenciesProducer.getStorageVolumeManager();
+        when(storageVolumeManager.getVolumeById(TEST_VOLUME_ID))
+                .thenReturn(new JacsStorageVolumeBuilder()
+                        .storageVolumeId(TEST_VOLUME_ID)
+                        .storageVirtualPath("/volBinding")
+                        .storageRootTemplate("/volRoot")
+                        .volumePermissions(EnumSet.of(JacsStoragePermission.WRITE))
+                        .build());
+        Response response = blocksTarget()
+                .queryParam("dataset", "s0")
+                .queryParam("position", "0,0,0")
+                .request()
+                .get();
+        assertEquals(403, response.getStatus());
+        verify(dependenciesProducer.getN5ContentService(), never()).getN5Blocks(any(JADEStorageURI.class), anyString(), anyList(), anyBoolean());
+    }
+
+    private void mockReadableVolume() {
+        StorageVolumeManager storageVolumeManager = dependenciesProducer.getStorageVolumeManager();
+        when(storageVolumeManager.getVolumeById(TEST_VOLUME_ID))
+                .thenReturn(new JacsStorageVolumeBuilder()
+                        .storageVolumeId(TEST_VOLUME_ID)
+                        .storageVirtualPath("/volBinding")
+                        .storageRootTemplate("/volRoot")
+                        .volumePermissions(EnumSet.of(JacsStoragePermission.READ))
+                        .build());
+    }
+
+    private WebTarget blocksTarget() {
+        return target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_volume")
+                .path(TEST_VOLUME_ID.toString())
+                .path("n5block")
+                .path("c.n5");
+    }
+}
@@ -3,9 +3,22 @@ package org.janelia.jacsstorage.rest;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Response;
 
 import com.google.common.collect.ImmutableList;
@@ -21,6 +34,7 @@ import org.janelia.jacsstorage.model.jacsstorage.JacsStoragePermission;
 import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
 import org.janelia.jacsstorage.model.jacsstorage.JacsStorageVolumeBuilder;
 import org.janelia.jacsstorage.service.ContentGetter;
+import org.janelia.jacsstorage.service.ContentNode;
 import org.janelia.jacsstorage.service.DataContentService;
 import org.janelia.jacsstorage.service.StorageVolumeManager;
 import org.janelia.jacsstorage.testrest.AbstractCdiInjectedResourceTest;
@@ -30,8 +44,15 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -103,6 +124,134 @@ public class PathBasedAgentStorageResourceTest extends AbstractCdiInjectedResour
         assertArrayEquals(testData.getBytes(), ByteStreams.toByteArray(response.readEntity(InputStream.class)));
     }
 
+    @Test
+    public void retrieveDataStreamIsNotModified() throws IOException {
+        JADEStorageURI testDataURI = JADEStorageURI.createStoragePathURI("/volRoot/testPath", JADEOptions.create());
+        DataContentService storageContentReader = dependenciesProducer.getDataContentService();
+        StorageVolumeManager storageVolumeManager = dependenciesProducer.getStorageVolumeManager();
+        when(storageVolumeManager.findVolumes(eq(new StorageQuery().setDataStoragePath(testDataURI.getJadeStorage()))))
+                .thenReturn(ImmutableList.of(
+                        new JacsStorageVolumeBuilder()
+                                .storageVirtualPath("/volBinding")
+                                .storageRootTemplate("/volRoot")
+                                .volumePermissions(EnumSet.of(JacsStoragePermission.READ))
+                                .build()
+                        )
+                );
+        String testData = "Test data";
+        ContentGetter testContentGetter = mock(ContentGetter.class);
+        when(storageContentReader.getDataContent(eq(testDataURI), any(ContentAccessParams.class)))
+                .thenReturn(testContentGetter);
+        when(testContentGetter.getObjectsList()).thenReturn(ImmutableList.of(
+                new ContentNode(JacsStorageType.FILE_SYSTEM, testDataURI)
+                        .setName("testPath")
+                        .setSize(testData.length())
+                        .setLastModified(new Date(1500000000000L))
+        ));
+        when(testContentGetter.estimateContentSize()).thenReturn((long) testData.length());
+        when(testContentGetter.streamContent(any(OutputStream.class)))
+                .then(invocation -> {
+                    OutputStream os = invocation.getArgument(0);
+                    os.write(testData.getBytes());
+                    return (long) testData.length();
+                });
+        Response response = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_path/data_content")
+                .path(testDataURI.getJadeStorage())
+                .request()
+                .get();
+        assertEquals(200, response.getStatus());
+        EntityTag entityTag = response.getEntityTag();
+        assertNotNull(entityTag);
+        assertFalse(entityTag.isWeak());
+        assertArrayEquals(testData.getBytes(), ByteStreams.toByteArray(response.readEntity(InputStream.class)));
+
+        Response notModifiedResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_path/data_content")
+                .path(testDataURI.getJadeStorage())
+                .request()
+                .header("If-None-Match", entityTag.toString())
+                .get();
+        assertEquals(304, notModifiedResponse.getStatus());
+        assertEquals(entityTag, notModifiedResponse.getEntityTag());
+    }
+
+    @Test
+    public void retrieveFilteredDataStreamIsNotModified() throws IOException {
+        JADEStorageURI testDataURI = JADEStorageURI.createStoragePathURI("/volRoot/testPath", JADEOptions.create());
+        DataContentService storageContentReader = dependenciesProducer.getDataContentService();
+        StorageVolumeManager storageVolumeManager = dependenciesProducer.getStorageVolumeManager();
+        when(storageVolumeManager.findVolumes(eq(new StorageQuery().setDataStoragePath(testDataURI.getJadeStorage()))))
+                .thenReturn(ImmutableList.of(
+                        new JacsStorageVolumeBuilder()
+                                .storageVirtualPath("/volBinding")
+                                .storageRootTemplate("/volRoot")
+                                .volumePermissions(EnumSet.of(JacsStoragePermission.READ))
+                                .build()
+                        )
+                );
+        String testData = "Test data";
+        ContentGetter testContentGetter = mock(ContentGetter.class);
+        when(storageContentReader.getDataContent(eq(testDataURI), any(ContentAccessParams.class)))
+                .thenReturn(testContentGetter);
+        when(testContentGetter.getObjectsList()).thenReturn(ImmutableList.of(
+                new ContentNode(JacsStorageType.FILE_SYSTEM, testDataURI)
+                        .setName("testPath")
+                        .setSize(testData.length())
+                        .setLastModified(new Date(1500000000000L))
+        ));
+        when(testContentGetter.estimateContentSize()).thenReturn((long) testData.length());
+        when(testContentGetter.streamContent(any(OutputStream.class)))
+                .then(invocation -> {
+                    OutputStream os = invocation.getArgument(0);
+                    os.write(testData.getBytes());
+                    return (long) testData.length();
+                });
+        Response response = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_path/data_content")
+                .path(testDataURI.getJadeStorage())
+                .queryParam("filterType", "TIFF_ROI_PIXELS")
+                .queryParam("x0", "10")
+                .queryParam("y0", "20")
+                .request()
+                .get();
+        assertEquals(200, response.getStatus());
+        EntityTag entityTag = response.getEntityTag();
+        assertNotNull(entityTag);
+        assertTrue(entityTag.isWeak());
+        assertArrayEquals(testData.getBytes(), ByteStreams.toByteArray(response.readEntity(InputStream.class)));
+
+        // the same filter parameters in a different order are the same content
+        Response notModifiedResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_path/data_content")
+                .path(testDataURI.getJadeStorage())
+                .queryParam("y0", "20")
+                .queryParam("x0", "10")
+                .queryParam("filterType", "TIFF_ROI_PIXELS")
+                .request()
+                .header("If-None-Match", entityTag.toString())
+                .get();
+        assertEquals(304, notModifiedResponse.getStatus());
+        assertEquals(entityTag, notModifiedResponse.getEntityTag());
+
+        Response otherFilterResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_path/data_content")
+                .path(testDataURI.getJadeStorage())
+                .queryParam("filterType", "TIFF_ROI_PIXELS")
+                .queryParam("x0", "11")
+                .queryParam("y0", "20")
+                .request()
+                .header("If-None-Match", entityTag.toString())
+                .get();
+        assertEquals(200, otherFilterResponse.getStatus());
+        assertNotEquals(entityTag, otherFilterResponse.getEntityTag());
+    }
+
     @Test
     public void retrieveDataStreamUsingDataPathRelativeToVolumeBindingPath() throws IOException {
         String testPath = "/volBinding/testPath";
@@ -275,4 +424,161 @@ public class PathBasedAgentStorageResourceTest extends AbstractCdiInjectedResour
         assertArrayEquals(testData.getBytes(), ByteStreams.toByteArray(response.readEntity(InputStream.class)));
     }
 
+    @Test
+    public void retrieveDataStreamOnceTheContentIsFoundAsynchronously() throws Exception {
+        JADEStorageURI testDataURI = JADEStorageURI.createStoragePathURI("/volRoot/testPath", JADEOptions.create());
+        DataContentService storageContentReader = dependenciesProducer.getDataContentService();
+        mockReadableVolume(testDataURI);
+        String testData = "Test data";
+        AtomicReference<String> streamingThread = new AtomicReference<>();
+        ContentGetter testContentGetter = mock(ContentGetter.class);
+        when(testContentGetter.estimateContentSize()).thenReturn((long) testData.length());
+        when(testContentGetter.streamContent(any(OutputStream.class)))
+                .then(invocation -> {
+                    streamingThread.set(Thread.currentThread().getName());
+                    OutputStream os = invocation.getArgument(0);
+                    os.write(testData.getBytes());
+                    return (long) testData.length();
+                });
+        CompletableFuture<ContentGetter> pendingContent = new CompletableFuture<>();
+        doReturn(pendingContent).when(storageContentReader).getDataContentAsync(eq(testDataURI), any(ContentAccessParams.class));
+
+        Future<Response> pendingResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_path/data_content")
+                .path(testDataURI.getJadeStorage())
+                .request()
+                .async()
+                .get();
+        try {
+            pendingResponse.get(200, TimeUnit.MILLISECONDS);
+            fail("The request should wait for the content");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        pendingContent.complete(testContentGetter);
+
+        Response response = pendingResponse.get(5, TimeUnit.SECONDS);
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(testData.getBytes(), ByteStreams.toByteArray(response.readEntity(InputStream.class)));
+        // the content is not streamed from the thread that found it nor from the bounded response pool
+        assertTrue(streamingThread.get().startsWith("JACS-ASYNC-TRANSFER-"));
+    }
+
+    @Test
+    public void retrieveDataStreamIsSentByTheRequestThreadWhenTheContentIsFound() throws Exception {
+        JADEStorageURI testDataURI = JADEStorageURI.createStoragePathURI("/volRoot/testPath", JADEOptions.create());
+        DataContentService storageContentReader = dependenciesProducer.getDataContentService();
+        mockReadableVolume(testDataURI);
+        String testData = "Test data";
+        AtomicReference<String> streamingThread = new AtomicReference<>();
+        ContentGetter testContentGetter = mock(ContentGetter.class);
+        when(testContentGetter.estimateContentSize()).thenReturn((long) testData.length());
+        when(testContentGetter.streamContent(any(OutputStream.class)))
+                .then(invocation -> {
+                    streamingThread.set(Thread.currentThread().getName());
+                    OutputStream os = invocation.getArgument(0);
+                    os.write(testData.getBytes());
+                    return (long) testData.length();
+                });
+        doReturn(CompletableFuture.completedFuture(testContentGetter))
+                .when(storageContentReader).getDataContentAsync(eq(testDataURI), any(ContentAccessParams.class));
+
+        Response response = retrieveContentAsync(testDataURI).get(5, TimeUnit.SECONDS);
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(testData.getBytes(), ByteStreams.toByteArray(response.readEntity(InputStream.class)));
+        // the content is streamed by the request thread so that the container can transfer it directly
+        assertFalse(streamingThread.get().startsWith("JACS-ASYNC-"));
+    }
+
+    @Test
+    public void retrieveDataStreamIsRejectedWhenTooManyResponsesArePending() throws Exception {
+        // the test resumer has 2 threads and room for 1 pending response
+        JADEStorageURI testDataURI = JADEStorageURI.createStoragePathURI("/volRoot/testPath", JADEOptions.create());
+        DataContentService storageContentReader = dependenciesProducer.getDataContentService();
+        mockReadableVolume(testDataURI);
+        String testData = "Test data";
+        Queue<CompletableFuture<ContentGetter>> pendingContents = new ConcurrentLinkedQueue<>();
+        CountDownLatch buildStarted = new CountDownLatch(2);
+        CountDownLatch buildReleased = new CountDownLatch(1);
+        ContentGetter testContentGetter = mock(ContentGetter.class);
+        doAnswer(invocation -> {
+            CompletableFuture<ContentGetter> pendingContent = new CompletableFuture<>();
+            pendingContents.add(pendingContent);
+            return pendingContent;
+        }).when(storageContentReader).getDataContentAsync(eq(testDataURI), any(ContentAccessParams.class));
+        when(testContentGetter.estimateContentSize())
+                .then(invocation -> {
+                    buildStarted.countDown();
+                    buildReleased.await(5, TimeUnit.SECONDS);
+                    return (long) testData.length();
+                });
+        when(testContentGetter.streamContent(any(OutputStream.class)))
+                .then(invocation -> {
+                    OutputStream os = invocation.getArgument(0);
+                    os.write(testData.getBytes());
+                    return (long) testData.length();
+                });
+        try {
+            List<Future<Response>> responses = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                responses.add(retrieveContentAsync(testDataURI));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pendingContents.size() < 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(4, pendingContents.size());
+            // the first two responses occupy the resumer's threads, the third one is queued and the last one is rejected
+            pendingContents.poll().complete(testContentGetter);
+            pendingContents.poll().complete(testContentGetter);
+            assertTrue(buildStarted.await(5, TimeUnit.SECONDS));
+            pendingContents.poll().complete(testContentGetter);
+            pendingContents.poll().complete(testContentGetter);
+
+            deadline = System.currentTimeMillis() + 5000;
+            while (responses.stream().noneMatch(Future::isDone) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            List<Future<Response>> rejectedResponses = responses.stream().filter(Future::isDone).collect(Collectors.toList());
+            assertEquals(1, rejectedResponses.size());
+            assertEquals(503, rejectedResponses.get(0).get(5, TimeUnit.SECONDS).getStatus());
+
+            buildReleased.countDown();
+            for (Future<Response> acceptedResponse : responses) {
+                if (rejectedResponses.contains(acceptedResponse)) {
+                    continue;
+                }
+                Response response = acceptedResponse.get(5, TimeUnit.SECONDS);
+                assertEquals(200, response.getStatus());
+                assertArrayEquals(testData.getBytes(), ByteStreams.toByteArray(response.readEntity(InputStream.class)));
+            }
+        } finally {
+            buildReleased.countDown();
+        }
+    }
+
+    private void mockReadableVolume(JADEStorageURI testDataURI) {
+        StorageVolumeManager storageVolumeManager = dependenciesProducer.getStorageVolumeManager();
+        when(storageVolumeManager.findVolumes(eq(new StorageQuery().setDataStoragePath(testDataURI.getJadeStorage()))))
+                .thenReturn(ImmutableList.of(
+                        new JacsStorageVolumeBuilder()
+                                .storageVirtualPath("/volBinding")
+                                .storageRootTemplate("/volRoot")
+                                .volumePermissions(EnumSet.of(JacsStoragePermission.READ))
+                                .build()
+                        )
+                );
+    }
+
+    private Future<Response> retrieveContentAsync(JADEStorageURI testDataURI) {
+        return target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_path/data_content")
+                .path(testDataURI.getJadeStorage())
+                .request()
+                .async()
+                .get();
+    }
+
 }
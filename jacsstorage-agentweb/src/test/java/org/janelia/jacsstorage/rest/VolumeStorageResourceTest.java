@@ -4,10 +4,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Stream;
 
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteStreams;
 import org.janelia.jacsstorage.app.JAXAgentStorageApp;
@@ -17,8 +23,10 @@ import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
 import org.janelia.jacsstorage.model.jacsstorage.JacsStoragePermission;
 import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
 import org.janelia.jacsstorage.model.jacsstorage.JacsStorageVolumeBuilder;
+import org.janelia.jacsstorage.requesthelpers.ContentListingRequestHelper;
 import org.janelia.jacsstorage.service.ContentException;
 import org.janelia.jacsstorage.service.ContentGetter;
+import org.janelia.jacsstorage.service.ContentNode;
 import org.janelia.jacsstorage.service.DataContentService;
 import org.janelia.jacsstorage.service.NoContentFoundException;
 import org.janelia.jacsstorage.service.StorageVolumeManager;
@@ -29,9 +37,13 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class VolumeStorageResourceTest extends AbstractCdiInjectedResourceTest {
@@ -107,6 +119,145 @@ public class VolumeStorageResourceTest extends AbstractCdiInjectedResourceTest {
 
     }
 
+    @Test
+    public void listContent() throws IOException {
+        Long testStorageVolumeId = 10L;
+        String testPath = "d1";
+        String testPhysicalRoot = "/storageRoot";
+        DataContentService storageContentReader = dependenciesProducer.getDataContentService();
+        StorageVolumeManager storageVolumeManager = dependenciesProducer.getStorageVolumeManager();
+        when(storageVolumeManager.getVolumeById(testStorageVolumeId))
+                .thenReturn(new JacsStorageVolumeBuilder()
+                        .storageVolumeId(testStorageVolumeId)
+                        .storageVirtualPath("/virtualRoot")
+                        .storageRootTemplate(testPhysicalRoot)
+                        .volumePermissions(EnumSet.of(JacsStoragePermission.READ))
+                        .build()
+                );
+        JADEStorageURI expectedDataURI = JADEStorageURI.createStoragePathURI(testPhysicalRoot, JADEOptions.create()).resolve(testPath);
+        when(storageContentReader.streamDataNodes(eq(expectedDataURI), any(ContentAccessParams.class)))
+                .then(invocation -> Stream.of("f1", "f2", "f3")
+                        .map(n -> new ContentNode(JacsStorageType.FILE_SYSTEM, JADEStorageURI.createStoragePathURI("", JADEOptions.create()))
+                                .setPrefix(testPhysicalRoot + "/" + testPath)
+                                .setName(n)
+                                .setSize(n.length())));
+        ObjectMapper objectMapper = dependenciesProducer.getObjectMapper();
+
+        Response jsonResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_volume")
+                .path(testStorageVolumeId.toString())
+                .path("list")
+                .path(testPath)
+                .request(MediaType.APPLICATION_JSON)
+                .get();
+        assertEquals(200, jsonResponse.getStatus());
+        JsonNode jsonListing = objectMapper.readTree(jsonResponse.readEntity(InputStream.class));
+        assertTrue(jsonListing.isArray());
+        assertEquals(3, jsonListing.size());
+        assertEquals("d1/f1", jsonListing.get(0).get("nodeRelativePath").asText());
+
+        Response ndjsonResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_volume")
+                .path(testStorageVolumeId.toString())
+                .path("list")
+                .path(testPath)
+                .request(ContentListingRequestHelper.NDJSON_MEDIA_TYPE)
+                .get();
+        assertEquals(200, ndjsonResponse.getStatus());
+        assertEquals(ContentListingRequestHelper.NDJSON_MEDIA_TYPE, ndjsonResponse.getMediaType().toString());
+        List<String> ndjsonLines = Splitter.on('\n').omitEmptyStrings().splitToList(ndjsonResponse.readEntity(String.class));
+        assertEquals(3, ndjsonLines.size());
+        for (int i = 0; i < ndjsonLines.size(); i++) {
+            assertEquals("d1/f" + (i + 1), objectMapper.readTree(ndjsonLines.get(i)).get("nodeRelativePath").asText());
+        }
+    }
+
+    @Test
+    public void listContentRejectsTraversalContinuationToken() {
+        Long testStorageVolumeId = 10L;
+        String testPath = "d1";
+        String testPhysicalRoot = "/storageRoot";
+        DataContentService storageContentReader = dependenciesProducer.getDataContentService();
+        StorageVolumeManager storageVolumeManager = dependenciesProducer.getStorageVolumeManager();
+        when(storageVolumeManager.getVolumeById(testStorageVolumeId))
+                .thenReturn(new JacsStorageVolumeBuilder()
+                        .storageVolumeId(testStorageVolumeId)
+                        .storageVirtualPath("/virtualRoot")
+                        .storageRootTemplate(testPhysicalRoot)
+                        .volumePermissions(EnumSet.of(JacsStoragePermission.READ))
+                        .build()
+                );
+        Response response = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_volume")
+                .path(testStorageVolumeId.toString())
+                .path("list")
+                .path(testPath)
+                .queryParam("length", 10)
+                .queryParam(ContentListingRequestHelper.CONTINUATION_TOKEN_PARAM,
+                        ContentListingRequestHelper.encodeContinuationToken(testPhysicalRoot + "/" + testPath + "/../../etc/passwd"))
+                .request(MediaType.APPLICATION_JSON)
+                .get();
+        assertEquals(400, response.getStatus());
+        verify(storageContentReader, never()).streamDataNodes(any(JADEStorageURI.class), any(ContentAccessParams.class));
+    }
+
+    @Test
+    public void retrieveContentRange() throws IOException {
+        Long testStorageVolumeId = 10L;
+        String testPath = "d1/d2/f1";
+        String testPhysicalRoot = "/storageRoot";
+        DataContentService storageContentReader = dependenciesProducer.getDataContentService();
+        StorageVolumeManager storageVolumeManager = dependenciesProducer.getStorageVolumeManager();
+        when(storageVolumeManager.getVolumeById(testStorageVolumeId))
+                .thenReturn(new JacsStorageVolumeBuilder()
+                        .storageVolumeId(testStorageVolumeId)
+                        .storageVirtualPath("/virtualRoot")
+                        .storageRootTemplate(testPhysicalRoot)
+                        .volumePermissions(EnumSet.of(JacsStoragePermission.READ))
+                        .build()
+                );
+        String testContent = "This is the content";
+        JADEStorageURI expectedDataURI = JADEStorageURI.createStoragePathURI(testPhysicalRoot, JADEOptions.create()).resolve(testPath);
+        ContentGetter testContentGetter = mock(ContentGetter.class);
+        when(storageContentReader.getDataContent(eq(expectedDataURI), any(ContentAccessParams.class)))
+                .thenReturn(testContentGetter);
+        when(testContentGetter.estimateContentSize()).thenReturn((long) testContent.length());
+        when(testContentGetter.streamContentRange(anyLong(), anyLong(), any(OutputStream.class)))
+                .then(invocation -> {
+                    long offset = invocation.getArgument(0);
+                    long length = invocation.getArgument(1);
+                    OutputStream os = invocation.getArgument(2);
+                    os.write(testContent.getBytes(), (int) offset, (int) length);
+                    return length;
+                });
+        Response response = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_volume")
+                .path(testStorageVolumeId.toString())
+                .path("data_content")
+                .path(testPath)
+                .request()
+                .header("Range", "bytes=5-6")
+                .get();
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 5-6/" + testContent.length(), response.getHeaderString("Content-Range"));
+        assertArrayEquals("is".getBytes(), ByteStreams.toByteArray(response.readEntity(InputStream.class)));
+
+        Response unsatisfiableRangeResponse = target()
+                .path(Constants.AGENTSTORAGE_URI_PATH)
+                .path("storage_volume")
+                .path(testStorageVolumeId.toString())
+                .path("data_content")
+                .path(testPath)
+                .request()
+                .header("Range", "bytes=100-")
+                .get();
+        assertEquals(416, unsatisfiableRangeResponse.getStatus());
+    }
+
     @Test
     public void retrieveContentFromS3() throws IOException {
         Long testStorageVolumeId = 10L;
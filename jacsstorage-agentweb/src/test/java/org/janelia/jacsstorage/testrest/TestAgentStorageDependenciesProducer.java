@@ -1,11 +1,16 @@
 package org.janelia.jacsstorage.testrest;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.janelia.jacsstorage.agent.AgentState;
 import org.janelia.jacsstorage.cdi.ObjectMapperFactory;
 import org.janelia.jacsstorage.cdi.qualifier.LocalInstance;
 import org.janelia.jacsstorage.datarequest.NumberSerializerModule;
 import org.janelia.jacsstorage.filter.AuthFilter;
+import org.janelia.jacsstorage.filter.ContentEncodingFilter;
+import org.janelia.jacsstorage.requesthelpers.AsyncResponseResumer;
+import org.janelia.jacsstorage.service.ChunkedUploadService;
 import org.janelia.jacsstorage.service.DataContentService;
 import org.janelia.jacsstorage.service.N5ContentService;
 import org.janelia.jacsstorage.service.StorageAllocatorService;
@@ -15,11 +20,15 @@ import org.janelia.jacsstorage.service.StorageVolumeManager;
 
 import javax.enterprise.inject.Produces;
 
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.mock;
 
 public class TestAgentStorageDependenciesProducer {
 
-    private DataContentService dataContentService = mock(DataContentService.class);
+    // the asynchronous variants delegate to the mocked blocking methods
+    private DataContentService dataContentService = mock(DataContentService.class, CALLS_REAL_METHODS);
+    private AsyncResponseResumer asyncResponseResumer = new AsyncResponseResumer(2, 1);
+    private ChunkedUploadService chunkedUploadService = mock(ChunkedUploadService.class);
     private N5ContentService n5ContentService = mock(N5ContentService.class);
     private StorageAllocatorService storageAllocatorService = mock(StorageAllocatorService.class);
     private StorageLookupService storageLookupService = mock(StorageLookupService.class);
@@ -27,12 +36,26 @@ public class TestAgentStorageDependenciesProducer {
     private StorageVolumeManager storageVolumeManager = mock(StorageVolumeManager.class);
     private AgentState agentState = mock(AgentState.class);
     private AuthFilter authFilter = mock(AuthFilter.class);
+    private ContentEncodingFilter contentEncodingFilter = new ContentEncodingFilter(1024,
+            ImmutableList.of("zstd", "gzip"),
+            ImmutableSet.of("application/json", "application/xml"),
+            ImmutableSet.of());
 
     @Produces
     public DataContentService getDataContentService() {
         return dataContentService;
     }
 
+    @Produces
+    public AsyncResponseResumer getAsyncResponseResumer() {
+        return asyncResponseResumer;
+    }
+
+    @Produces
+    public ChunkedUploadService getChunkedUploadService() {
+        return chunkedUploadService;
+    }
+
     @Produces
     public N5ContentService getN5ContentService() {
         return n5ContentService;
@@ -78,4 +101,9 @@ public class TestAgentStorageDependenciesProducer {
         return authFilter;
     }
 
+    @Produces
+    public ContentEncodingFilter getContentEncodingFilter() {
+        return contentEncodingFilter;
+    }
+
 }
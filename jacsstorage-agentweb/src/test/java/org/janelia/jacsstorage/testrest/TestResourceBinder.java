@@ -6,6 +6,7 @@ import java.lang.reflect.Method;
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
 import org.janelia.jacsstorage.agent.AgentState;
 import org.janelia.jacsstorage.cdi.qualifier.LocalInstance;
+import org.janelia.jacsstorage.requesthelpers.AsyncResponseResumer;
 import org.janelia.jacsstorage.service.DataContentService;
 import org.janelia.jacsstorage.service.N5ContentService;
 import org.janelia.jacsstorage.service.StorageAllocatorService;
@@ -30,6 +31,7 @@ public class TestResourceBinder extends AbstractBinder {
             throw new IllegalStateException(e);
         }
         bind(dependenciesProducer.getDataContentService()).to(DataContentService.class);
+        bind(dependenciesProducer.getAsyncResponseResumer()).to(AsyncResponseResumer.class);
         bind(dependenciesProducer.getN5ContentService()).to(N5ContentService.class);
         bind(dependenciesProducer.getStorageAllocatorService()).qualifiedBy(localInstanceAnnotation).to(StorageAllocatorService.class);
         bind(dependenciesProducer.getStorageLookupService()).qualifiedBy(localInstanceAnnotation).to(StorageLookupService.class);
@@ -0,0 +1,78 @@
+package org.janelia.jacsstorage.datarequest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.janelia.jacsstorage.model.DataInterval;
+
+/**
+ * State of a chunked upload as returned to the clients. A client resumes an interrupted upload by sending again
+ * only the missing ranges.
+ */
+public class ChunkedUploadInfo {
+    private String uploadId;
+    private String uploadURL;
+    private String contentPath;
+    private long contentSize;
+    private long receivedBytes;
+    private List<DataInterval<Long>> missingRanges = new ArrayList<>(); // start offset is inclusive, end offset is exclusive
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public void setUploadId(String uploadId) {
+        this.uploadId = uploadId;
+    }
+
+    public String getUploadURL() {
+        return uploadURL;
+    }
+
+    public void setUploadURL(String uploadURL) {
+        this.uploadURL = uploadURL;
+    }
+
+    public String getContentPath() {
+        return contentPath;
+    }
+
+    public void setContentPath(String contentPath) {
+        this.contentPath = contentPath;
+    }
+
+    public long getContentSize() {
+        return contentSize;
+    }
+
+    public void setContentSize(long contentSize) {
+        this.contentSize = contentSize;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    public void setReceivedBytes(long receivedBytes) {
+        this.receivedBytes = receivedBytes;
+    }
+
+    public List<DataInterval<Long>> getMissingRanges() {
+        return missingRanges;
+    }
+
+    public void setMissingRanges(List<DataInterval<Long>> missingRanges) {
+        this.missingRanges = missingRanges;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("uploadId", uploadId)
+                .append("contentPath", contentPath)
+                .append("contentSize", contentSize)
+                .append("receivedBytes", receivedBytes)
+                .toString();
+    }
+}
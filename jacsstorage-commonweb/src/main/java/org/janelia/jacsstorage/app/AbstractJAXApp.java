@@ -5,6 +5,7 @@ import com.google.common.collect.ImmutableSet;
 import io.swagger.jaxrs.listing.ApiListingResource;
 import org.janelia.jacsstorage.filter.CORSResponseFilter;
 import org.janelia.jacsstorage.filter.AuthFilter;
+import org.janelia.jacsstorage.filter.ContentEncodingFilter;
 import org.janelia.jacsstorage.provider.ObjectMapperResolver;
 import org.janelia.jacsstorage.rest.*;
 
@@ -20,6 +21,7 @@ public abstract class AbstractJAXApp extends Application {
                         JacksonJaxbXMLProvider.class,
                         AuthFilter.class,
                         CORSResponseFilter.class,
+                        ContentEncodingFilter.class,
                         InvalidArgumentRequestHandler.class,
                         IllegalAccessRequestHandler.class,
                         IllegalStateRequestHandler.class,
@@ -0,0 +1,143 @@
+package org.janelia.jacsstorage.app.undertow;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import io.undertow.io.BufferWritableOutputStream;
+import io.undertow.servlet.handlers.ServletRequestContext;
+import io.undertow.servlet.spec.ServletOutputStreamImpl;
+import org.janelia.jacsstorage.coreutils.ByteBufferTransferTarget;
+import org.janelia.jacsstorage.coreutils.FileRegionTransferTarget;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Response output stream wrapper that lets Undertow send file content using its native file transfer (sendfile)
+ * and byte buffers received from other sources as they are, instead of copying them through the JAX-RS entity stream.
+ * If the request is not served by Undertow or the content cannot be transferred directly, the caller falls back
+ * to a regular copy.
+ */
+public class FileTransferOutputStream extends FilterOutputStream implements FileRegionTransferTarget, ByteBufferTransferTarget {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileTransferOutputStream.class);
+
+    public static OutputStream wrap(OutputStream outputStream) {
+        if (outputStream instanceof FileTransferOutputStream) {
+            return outputStream;
+        } else {
+            return new FileTransferOutputStream(outputStream);
+        }
+    }
+
+    // set once the entity stream was flushed and the content is written directly to the response;
+    // from then on everything goes directly to the response so that the writes stay in order
+    private ServletOutputStream directOutputStream;
+    private boolean directOutputChecked;
+
+    FileTransferOutputStream(OutputStream outputStream) {
+        super(outputStream);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (directOutputStream != null) {
+            directOutputStream.write(b);
+        } else {
+            out.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (directOutputStream != null) {
+            directOutputStream.write(b, off, len);
+        } else {
+            out.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (directOutputStream != null) {
+            directOutputStream.flush();
+        } else {
+            out.flush();
+        }
+    }
+
+    @Override
+    public long transferFileRegion(FileChannel fileChannel, long position, long count) throws IOException {
+        HttpServletResponse response = getUndertowResponse();
+        if (response == null) {
+            // not running inside an undertow servlet request
+            return -1;
+        }
+        if (position + count != fileChannel.size()) {
+            // undertow always transfers until the end of the file
+            return -1;
+        }
+        // flush everything that was written so far; this also commits the response headers
+        out.flush();
+        if (response.getHeader("Content-Encoding") != null) {
+            // the entity stream encodes the content so it cannot be bypassed
+            return -1;
+        }
+        ServletOutputStream servletOutputStream = response.getOutputStream();
+        if (!(servletOutputStream instanceof ServletOutputStreamImpl)) {
+            return -1;
+        }
+        LOG.debug("Transfer {} bytes starting at {} directly to the response", count, position);
+        fileChannel.position(position);
+        ((ServletOutputStreamImpl) servletOutputStream).transferFrom(fileChannel);
+        return count;
+    }
+
+    @Override
+    public long transferBuffer(ByteBuffer buffer) throws IOException {
+        if (!directOutputChecked) {
+            directOutputStream = getDirectOutputStream();
+            directOutputChecked = true;
+        }
+        if (directOutputStream == null) {
+            return -1;
+        }
+        int nbytes = buffer.remaining();
+        // undertow writes the buffer to the connection without copying it if it does not fit in its own buffer
+        ((BufferWritableOutputStream) directOutputStream).write(buffer);
+        return nbytes;
+    }
+
+    private ServletOutputStream getDirectOutputStream() throws IOException {
+        HttpServletResponse response = getUndertowResponse();
+        if (response == null) {
+            // not running inside an undertow servlet request
+            return null;
+        }
+        // flush everything that was written so far; this also commits the response headers
+        out.flush();
+        if (response.getHeader("Content-Encoding") != null) {
+            // the entity stream encodes the content so it cannot be bypassed
+            return null;
+        }
+        ServletOutputStream servletOutputStream = response.getOutputStream();
+        if (!(servletOutputStream instanceof BufferWritableOutputStream)) {
+            return null;
+        }
+        LOG.debug("Write buffers directly to the response");
+        return servletOutputStream;
+    }
+
+    /**
+     * @return the response of the current undertow servlet request or null if the request is not served by undertow
+     */
+    HttpServletResponse getUndertowResponse() {
+        ServletRequestContext servletRequestContext = ServletRequestContext.current();
+        return servletRequestContext != null ? servletRequestContext.getOriginalResponse() : null;
+    }
+}
@@ -2,6 +2,8 @@ package org.janelia.jacsstorage.app.undertow;
 
 import java.nio.file.Paths;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -37,6 +39,7 @@ import org.janelia.jacsstorage.app.AppArgs;
 import org.janelia.jacsstorage.app.AppContainer;
 import org.janelia.jacsstorage.app.ContextPathBuilder;
 import org.janelia.jacsstorage.config.ApplicationConfig;
+import org.janelia.jacsstorage.coreutils.VirtualThreads;
 import org.jboss.weld.environment.servlet.Listener;
 import org.jboss.weld.module.web.servlet.WeldInitialListener;
 import org.jboss.weld.module.web.servlet.WeldTerminalListener;
@@ -60,6 +63,7 @@ public class UndertowAppContainer implements AppContainer {
 
     private AppArgs serverAppArgs;
     private Undertow server;
+    private ExecutorService requestsExecutor;
 
     public UndertowAppContainer(String applicationId,
                                 String restApiContext,
@@ -108,6 +112,21 @@ public class UndertowAppContainer implements AppContainer {
                         .addListener(Servlets.listener(WeldTerminalListener.class))
                         .addServlets(restApiServlet, swaggerDocsServlet);
 
+        if (applicationConfig.getBooleanPropertyValue("StorageService.VirtualThreads", false)) {
+            if (VirtualThreads.isSupported()) {
+                // requests are dispatched to virtual threads instead of the server's worker threads so the number of
+                // requests that wait for the storage at the same time is not limited by the number of workers
+                VirtualThreads.tracePinnedThreads(applicationConfig.getStringPropertyValue("StorageService.VirtualThreadsPinnedTrace"));
+                requestsExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor("JACS-STORAGE-REQUEST-");
+                servletBuilder.setExecutor(requestsExecutor)
+                        .setAsyncExecutor(requestsExecutor);
+                LOG.info("Dispatch requests to virtual threads");
+            } else {
+                LOG.warn("Virtual threads require Java 21 or newer - current version is {} so requests use the server's worker threads",
+                        System.getProperty("java.version"));
+            }
+        }
+
         LOG.info("Deploying REST API at {}", basepath);
         DeploymentManager deploymentManager = Servlets.defaultContainer().addDeployment(servletBuilder);
         deploymentManager.deploy();
@@ -166,6 +185,14 @@ public class UndertowAppContainer implements AppContainer {
             LOG.info("Stopping JACS storage listener on {}:{}", serverAppArgs.host, serverAppArgs.portNumber);
             server.stop();
         }
+        if (requestsExecutor != null) {
+            requestsExecutor.shutdown();
+            try {
+                requestsExecutor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     private Predicate getAccessLogFilter() {
@@ -0,0 +1,238 @@
+package org.janelia.jacsstorage.filter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Priority;
+import javax.inject.Inject;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import com.github.luben.zstd.util.Native;
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compresses the response entity with the best encoding accepted by the client (zstd or gzip).
+ * Only successful full responses with a compressible media type are compressed - range responses, responses
+ * that are already encoded and responses known to be smaller than the configured threshold are sent as they are.
+ * Binary content is compressed only for the filter types configured as compressible, such as raw ROI voxels.
+ *
+ * The entity is compressed while it is written so streamed responses still use a constant amount of memory.
+ * Since the compressed size is not known in advance, the Content-Length of a compressed response is removed
+ * and the response is sent chunked. The ETag of a compressed response becomes weak because the encoded bytes
+ * differ from the stored ones; conditional requests still match it since If-None-Match uses the weak comparison.
+ */
+@Priority(Priorities.ENTITY_CODER)
+public class ContentEncodingFilter implements ContainerResponseFilter, WriterInterceptor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContentEncodingFilter.class);
+    private static final String CONTENT_ENCODING_PROPERTY = ContentEncodingFilter.class.getName() + ".encoding";
+    private static final String GZIP_ENCODING = "gzip";
+    private static final String ZSTD_ENCODING = "zstd";
+    private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
+    private static final boolean ZSTD_AVAILABLE = isZstdAvailable();
+
+    private final int minCompressedSize;
+    private final List<String> supportedEncodings;
+    private final Set<String> compressedMediaTypes;
+    private final Set<String> compressedFilterTypes;
+
+    @Inject
+    public ContentEncodingFilter(@PropertyValue(name = "StorageService.CompressionMinSize", defaultValue = "1024") Integer minCompressedSize,
+                                 @PropertyValue(name = "StorageService.CompressionEncodings", defaultValue = "zstd,gzip") List<String> supportedEncodings,
+                                 @PropertyValue(name = "StorageService.CompressedMediaTypes", defaultValue = "application/json,application/x-ndjson,application/xml,text/*") Set<String> compressedMediaTypes,
+                                 @PropertyValue(name = "StorageService.CompressedFilterTypes", defaultValue = "TIFF_ROI_PIXELS") Set<String> compressedFilterTypes) {
+        this.minCompressedSize = minCompressedSize;
+        this.supportedEncodings = supportedEncodings;
+        this.compressedMediaTypes = compressedMediaTypes;
+        this.compressedFilterTypes = compressedFilterTypes;
+    }
+
+    private static boolean isZstdAvailable() {
+        try {
+            Native.load();
+            return true;
+        } catch (Throwable e) {
+            LOG.warn("Zstd compression is not available", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        if (responseContext.getStatus() != Response.Status.OK.getStatusCode()
+                || !responseContext.hasEntity()
+                || responseContext.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)
+                || !isCompressible(requestContext, responseContext.getMediaType())) {
+            return;
+        }
+        // the response depends on the accepted encodings even if this one is not compressed
+        responseContext.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        long contentLength = getContentLength(responseContext);
+        if (contentLength >= 0 && contentLength < minCompressedSize) {
+            return;
+        }
+        String encoding = selectEncoding(requestContext.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+        if (encoding == null) {
+            return;
+        }
+        responseContext.getHeaders().putSingle(HttpHeaders.CONTENT_ENCODING, encoding);
+        // both the length and the byte ranges refer to the uncompressed content
+        responseContext.getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+        responseContext.getHeaders().remove("Accept-Ranges");
+        Object entityTag = responseContext.getHeaders().getFirst(HttpHeaders.ETAG);
+        if (entityTag != null) {
+            responseContext.getHeaders().putSingle(HttpHeaders.ETAG, toWeakEntityTag(entityTag));
+        }
+        requestContext.setProperty(CONTENT_ENCODING_PROPERTY, encoding);
+    }
+
+    private Object toWeakEntityTag(Object entityTag) {
+        if (entityTag instanceof EntityTag) {
+            EntityTag tag = (EntityTag) entityTag;
+            return tag.isWeak() ? tag : new EntityTag(tag.getValue(), true);
+        }
+        String tagValue = entityTag.toString().trim();
+        return tagValue.startsWith("W/") ? tagValue : "W/" + tagValue;
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        String encoding = (String) context.getProperty(CONTENT_ENCODING_PROPERTY);
+        if (encoding == null) {
+            context.proceed();
+            return;
+        }
+        OutputStream compressedOutput = createCompressedOutput(encoding, new NonClosingOutputStream(context.getOutputStream()));
+        context.setOutputStream(compressedOutput);
+        context.proceed();
+        // write the compression trailer - the underlying response stream is closed by the container
+        compressedOutput.close();
+    }
+
+    private boolean isCompressible(ContainerRequestContext requestContext, MediaType mediaType) {
+        if (mediaType == null) {
+            return false;
+        } else if (MediaType.APPLICATION_OCTET_STREAM_TYPE.isCompatible(mediaType) && !mediaType.isWildcardType()) {
+            String filterType = requestContext.getUriInfo().getQueryParameters().getFirst("filterType");
+            return StringUtils.isNotBlank(filterType) && compressedFilterTypes.stream().anyMatch(filterType::equalsIgnoreCase);
+        } else {
+            return compressedMediaTypes.stream()
+                    .map(MediaType::valueOf)
+                    .anyMatch(compressedMediaType -> compressedMediaType.isCompatible(mediaType));
+        }
+    }
+
+    private long getContentLength(ContainerResponseContext responseContext) {
+        Object entity = responseContext.getEntity();
+        if (entity instanceof byte[]) {
+            return ((byte[]) entity).length;
+        } else if (entity instanceof String) {
+            return ((String) entity).getBytes(StandardCharsets.UTF_8).length;
+        } else {
+            return responseContext.getLength();
+        }
+    }
+
+    /**
+     * Select the encoding from the Accept-Encoding header. Among the encodings with the highest quality value
+     * the one that comes first in the supported encodings is selected.
+     *
+     * @return the selected encoding or null if the content should not be encoded
+     */
+    private String selectEncoding(String acceptEncodingHeader) {
+        if (StringUtils.isBlank(acceptEncodingHeader)) {
+            return null;
+        }
+        String selectedEncoding = null;
+        double selectedQuality = 0;
+        for (String supportedEncoding : supportedEncodings) {
+            boolean encodingAvailable = GZIP_ENCODING.equalsIgnoreCase(supportedEncoding)
+                    || ZSTD_ENCODING.equalsIgnoreCase(supportedEncoding) && ZSTD_AVAILABLE;
+            if (!encodingAvailable) {
+                continue;
+            }
+            double quality = getAcceptedQuality(acceptEncodingHeader, supportedEncoding);
+            if (quality > selectedQuality) {
+                selectedEncoding = supportedEncoding.toLowerCase();
+                selectedQuality = quality;
+            }
+        }
+        return selectedEncoding;
+    }
+
+    /**
+     * @return the quality value of the encoding in the Accept-Encoding header or 0 if the encoding is not accepted
+     */
+    private double getAcceptedQuality(String acceptEncodingHeader, String encoding) {
+        double wildcardQuality = 0;
+        for (String acceptedEncoding : StringUtils.split(acceptEncodingHeader, ',')) {
+            String[] encodingParams = StringUtils.split(acceptedEncoding, ';');
+            if (encodingParams.length == 0) {
+                continue;
+            }
+            String encodingName = encodingParams[0].trim();
+            double quality = 1;
+            for (int i = 1; i < encodingParams.length; i++) {
+                String encodingParam = encodingParams[i].trim();
+                if (StringUtils.startsWithIgnoreCase(encodingParam, "q=")) {
+                    try {
+                        quality = Double.parseDouble(encodingParam.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        LOG.debug("Invalid quality value in {}", acceptEncodingHeader);
+                        quality = 0;
+                    }
+                }
+            }
+            if (encodingName.equalsIgnoreCase(encoding)) {
+                return quality;
+            } else if ("*".equals(encodingName)) {
+                wildcardQuality = quality;
+            }
+        }
+        return wildcardQuality;
+    }
+
+    private OutputStream createCompressedOutput(String encoding, OutputStream output) throws IOException {
+        if (ZSTD_ENCODING.equals(encoding)) {
+            return new ZstdOutputStream(output);
+        } else if (GZIP_ENCODING.equals(encoding)) {
+            return new GZIPOutputStream(output, COMPRESSION_BUFFER_SIZE);
+        } else {
+            throw new IllegalStateException("Unsupported content encoding: " + encoding);
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.janelia.jacsstorage.app.undertow;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import io.undertow.io.BufferWritableOutputStream;
+import org.janelia.jacsstorage.coreutils.IOStreamUtils;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class FileTransferOutputStreamTest {
+
+    private static class TestResponseOutputStream extends ServletOutputStream implements BufferWritableOutputStream {
+        private final OutputStream connectionStream;
+        private int bufferWrites;
+
+        TestResponseOutputStream(OutputStream connectionStream) {
+            this.connectionStream = connectionStream;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            connectionStream.write(b);
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers) throws IOException {
+            for (ByteBuffer buffer : buffers) {
+                write(buffer);
+            }
+        }
+
+        @Override
+        public void write(ByteBuffer byteBuffer) throws IOException {
+            bufferWrites++;
+            byte[] bytes = new byte[byteBuffer.remaining()];
+            byteBuffer.get(bytes);
+            connectionStream.write(bytes);
+        }
+
+        @Override
+        public void transferFrom(FileChannel source) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Test
+    public void directBufferWriteKeepsTheOrderOfTheBufferedBytes() throws IOException {
+        ByteArrayOutputStream connectionStream = new ByteArrayOutputStream();
+        TestResponseOutputStream responseOutputStream = new TestResponseOutputStream(connectionStream);
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(response.getOutputStream()).thenReturn(responseOutputStream);
+        // the entity stream buffers the bytes until it is flushed
+        OutputStream testOutputStream = createTestOutputStream(new BufferedOutputStream(connectionStream, 1024), response);
+
+        testOutputStream.write(bytes("header,"));
+        assertThat(IOStreamUtils.copyFrom(directBuffer("content,"), testOutputStream), equalTo(8L));
+        testOutputStream.write(bytes("trailer"));
+        testOutputStream.flush();
+
+        assertThat(connectionStream.toString(StandardCharsets.UTF_8.name()), equalTo("header,content,trailer"));
+        assertThat(responseOutputStream.bufferWrites, equalTo(1));
+    }
+
+    @Test
+    public void encodedContentIsNotWrittenDirectly() throws IOException {
+        ByteArrayOutputStream connectionStream = new ByteArrayOutputStream();
+        TestResponseOutputStream responseOutputStream = new TestResponseOutputStream(connectionStream);
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(response.getHeader("Content-Encoding")).thenReturn("gzip");
+        Mockito.when(response.getOutputStream()).thenReturn(responseOutputStream);
+        OutputStream testOutputStream = createTestOutputStream(new BufferedOutputStream(connectionStream, 1024), response);
+
+        testOutputStream.write(bytes("header,"));
+        assertThat(IOStreamUtils.copyFrom(directBuffer("content,"), testOutputStream), equalTo(8L));
+        testOutputStream.write(bytes("trailer"));
+        testOutputStream.flush();
+
+        assertThat(connectionStream.toString(StandardCharsets.UTF_8.name()), equalTo("header,content,trailer"));
+        assertThat(responseOutputStream.bufferWrites, equalTo(0));
+    }
+
+    @Test
+    public void buffersAreCopiedOutsideOfUndertowRequests() throws IOException {
+        ByteArrayOutputStream entityStream = new ByteArrayOutputStream();
+        OutputStream testOutputStream = FileTransferOutputStream.wrap(entityStream);
+
+        testOutputStream.write(bytes("header,"));
+        assertThat(IOStreamUtils.copyFrom(directBuffer("content"), testOutputStream), equalTo(7L));
+
+        assertThat(entityStream.toString(StandardCharsets.UTF_8.name()), equalTo("header,content"));
+    }
+
+    private OutputStream createTestOutputStream(OutputStream entityStream, HttpServletResponse response) {
+        return new FileTransferOutputStream(entityStream) {
+            @Override
+            HttpServletResponse getUndertowResponse() {
+                return response;
+            }
+        };
+    }
+
+    private byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer directBuffer(String s) {
+        byte[] bytes = bytes(s);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+}
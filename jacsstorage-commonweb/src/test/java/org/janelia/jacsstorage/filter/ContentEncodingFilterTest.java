@@ -0,0 +1,189 @@
+package org.janelia.jacsstorage.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ContentEncodingFilterTest {
+
+    private static class TestExchange {
+        final ContainerRequestContext requestContext = mock(ContainerRequestContext.class);
+        final ContainerResponseContext responseContext = mock(ContainerResponseContext.class);
+        final MultivaluedMap<String, Object> responseHeaders = new MultivaluedHashMap<>();
+        final Map<String, Object> requestProperties = new HashMap<>();
+
+        TestExchange(String acceptEncoding, int status, MediaType mediaType, Object entity, String filterType) {
+            UriInfo uriInfo = mock(UriInfo.class);
+            MultivaluedMap<String, String> queryParams = new MultivaluedHashMap<>();
+            if (filterType != null) {
+                queryParams.putSingle("filterType", filterType);
+            }
+            when(uriInfo.getQueryParameters()).thenReturn(queryParams);
+            when(requestContext.getUriInfo()).thenReturn(uriInfo);
+            when(requestContext.getHeaderString(HttpHeaders.ACCEPT_ENCODING)).thenReturn(acceptEncoding);
+            doAnswer(invocation -> requestProperties.put(invocation.getArgument(0), invocation.getArgument(1)))
+                    .when(requestContext).setProperty(anyString(), any());
+            when(responseContext.getStatus()).thenReturn(status);
+            when(responseContext.hasEntity()).thenReturn(entity != null);
+            when(responseContext.getEntity()).thenReturn(entity);
+            when(responseContext.getMediaType()).thenReturn(mediaType);
+            when(responseContext.getLength()).thenReturn(-1);
+            when(responseContext.getHeaders()).thenReturn(responseHeaders);
+        }
+
+        Object getContentEncoding() {
+            return responseHeaders.getFirst(HttpHeaders.CONTENT_ENCODING);
+        }
+    }
+
+    private ContentEncodingFilter createFilter(String... supportedEncodings) {
+        return new ContentEncodingFilter(
+                1024,
+                Arrays.asList(supportedEncodings),
+                ImmutableSet.of("application/json", "text/*"),
+                Collections.singleton("TIFF_ROI_PIXELS"));
+    }
+
+    @Test
+    public void encodingIsSelectedUsingQualityValuesAndWildcards() throws IOException {
+        ContentEncodingFilter filter = createFilter("gzip");
+        String[][] testData = new String[][] {
+                {"gzip", "gzip"},
+                {"br;q=1.0, gzip;q=0.5", "gzip"},
+                {"GZIP", "gzip"},
+                {"gzip;q=0", null},
+                {"gzip;q=invalid", null},
+                {"*", "gzip"},
+                {"deflate, *;q=0.1", "gzip"},
+                {"*;q=0.5, gzip;q=0", null},
+                {"identity", null},
+                {"", null},
+                {null, null}
+        };
+        for (String[] td : testData) {
+            TestExchange testExchange = new TestExchange(td[0], 200, MediaType.APPLICATION_JSON_TYPE, new byte[4096], null);
+            filter.filter(testExchange.requestContext, testExchange.responseContext);
+            assertEquals("Accept-Encoding: " + td[0], td[1], testExchange.getContentEncoding());
+            assertEquals(HttpHeaders.ACCEPT_ENCODING, testExchange.responseHeaders.getFirst(HttpHeaders.VARY));
+        }
+    }
+
+    @Test
+    public void smallResponsesAreNotCompressed() throws IOException {
+        ContentEncodingFilter filter = createFilter("gzip");
+        TestExchange smallExchange = new TestExchange("gzip", 200, MediaType.APPLICATION_JSON_TYPE, new byte[1023], null);
+        filter.filter(smallExchange.requestContext, smallExchange.responseContext);
+        assertNull(smallExchange.getContentEncoding());
+
+        TestExchange smallStringExchange = new TestExchange("gzip", 200, MediaType.TEXT_PLAIN_TYPE, "small", null);
+        filter.filter(smallStringExchange.requestContext, smallStringExchange.responseContext);
+        assertNull(smallStringExchange.getContentEncoding());
+
+        TestExchange thresholdExchange = new TestExchange("gzip", 200, MediaType.APPLICATION_JSON_TYPE, new byte[1024], null);
+        filter.filter(thresholdExchange.requestContext, thresholdExchange.responseContext);
+        assertEquals("gzip", thresholdExchange.getContentEncoding());
+    }
+
+    @Test
+    public void onlyFullSuccessfulResponsesAreCompressed() throws IOException {
+        ContentEncodingFilter filter = createFilter("gzip");
+        for (int status : new int[] {206, 304, 404, 500}) {
+            TestExchange testExchange = new TestExchange("gzip", status, MediaType.APPLICATION_JSON_TYPE, new byte[4096], null);
+            filter.filter(testExchange.requestContext, testExchange.responseContext);
+            assertNull("Status " + status, testExchange.getContentEncoding());
+            assertTrue(testExchange.requestProperties.isEmpty());
+        }
+        // content that is already encoded is sent as it is
+        TestExchange encodedExchange = new TestExchange("gzip", 200, MediaType.APPLICATION_JSON_TYPE, new byte[4096], null);
+        encodedExchange.responseHeaders.putSingle(HttpHeaders.CONTENT_ENCODING, "zstd");
+        filter.filter(encodedExchange.requestContext, encodedExchange.responseContext);
+        assertEquals("zstd", encodedExchange.getContentEncoding());
+        assertTrue(encodedExchange.requestProperties.isEmpty());
+    }
+
+    @Test
+    public void binaryContentIsOnlyCompressedForCompressibleFilterTypes() throws IOException {
+        ContentEncodingFilter filter = createFilter("gzip");
+        TestExchange rawExchange = new TestExchange("gzip", 200, MediaType.APPLICATION_OCTET_STREAM_TYPE, new byte[4096], null);
+        filter.filter(rawExchange.requestContext, rawExchange.responseContext);
+        assertNull(rawExchange.getContentEncoding());
+
+        TestExchange roiExchange = new TestExchange("gzip", 200, MediaType.APPLICATION_OCTET_STREAM_TYPE, new byte[4096], "tiff_roi_pixels");
+        filter.filter(roiExchange.requestContext, roiExchange.responseContext);
+        assertEquals("gzip", roiExchange.getContentEncoding());
+    }
+
+    @Test
+    public void compressedResponseHasNoLengthAndAWeakEntityTag() throws IOException {
+        ContentEncodingFilter filter = createFilter("gzip");
+        byte[] testContent = new byte[4096];
+        Arrays.fill(testContent, (byte) 'a');
+        TestExchange testExchange = new TestExchange("gzip", 200, MediaType.APPLICATION_JSON_TYPE, testContent, null);
+        testExchange.responseHeaders.putSingle(HttpHeaders.CONTENT_LENGTH, testContent.length);
+        testExchange.responseHeaders.putSingle("Accept-Ranges", "bytes");
+        testExchange.responseHeaders.putSingle(HttpHeaders.ETAG, new EntityTag("abc"));
+        filter.filter(testExchange.requestContext, testExchange.responseContext);
+
+        assertEquals("gzip", testExchange.getContentEncoding());
+        assertFalse(testExchange.responseHeaders.containsKey(HttpHeaders.CONTENT_LENGTH));
+        assertFalse(testExchange.responseHeaders.containsKey("Accept-Ranges"));
+        EntityTag compressedEntityTag = (EntityTag) testExchange.responseHeaders.getFirst(HttpHeaders.ETAG);
+        assertTrue(compressedEntityTag.isWeak());
+        assertEquals("abc", compressedEntityTag.getValue());
+
+        ByteArrayOutputStream responseOutput = new ByteArrayOutputStream();
+        OutputStream[] entityOutput = new OutputStream[] {responseOutput};
+        WriterInterceptorContext writerContext = mock(WriterInterceptorContext.class);
+        when(writerContext.getProperty(anyString())).then(invocation -> testExchange.requestProperties.get(invocation.<String>getArgument(0)));
+        when(writerContext.getOutputStream()).then(invocation -> entityOutput[0]);
+        doAnswer(invocation -> entityOutput[0] = invocation.getArgument(0)).when(writerContext).setOutputStream(any(OutputStream.class));
+        doAnswer(invocation -> {
+            entityOutput[0].write(testContent);
+            return null;
+        }).when(writerContext).proceed();
+        filter.aroundWriteTo(writerContext);
+
+        assertTrue(responseOutput.size() < testContent.length);
+        assertArrayEquals(testContent, ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(responseOutput.toByteArray()))));
+    }
+
+    @Test
+    public void stringEntityTagIsWeakened() throws IOException {
+        ContentEncodingFilter filter = createFilter("gzip");
+        TestExchange testExchange = new TestExchange("gzip", 200, MediaType.APPLICATION_JSON_TYPE, new byte[4096], null);
+        testExchange.responseHeaders.putSingle(HttpHeaders.ETAG, "\"abc\"");
+        filter.filter(testExchange.requestContext, testExchange.responseContext);
+        assertEquals("W/\"abc\"", testExchange.responseHeaders.getFirst(HttpHeaders.ETAG));
+    }
+}
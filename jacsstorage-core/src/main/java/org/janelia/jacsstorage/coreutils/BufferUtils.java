@@ -2,6 +2,7 @@ package org.janelia.jacsstorage.coreutils;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
@@ -38,6 +39,26 @@ public class BufferUtils {
         return nread;
     }
 
+    static long copy(FileChannel source, long position, long count, WritableByteChannel sink)
+            throws IOException {
+        long nread = 0L;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (nread < count) {
+            if (count - nread < buffer.remaining()) {
+                buffer.limit((int) (count - nread));
+            }
+            int n = source.read(buffer, position + nread);
+            if (n < 0) {
+                break; // reached EOF before count bytes
+            }
+            nread += n;
+            buffer.flip();
+            copy(buffer, sink);
+            buffer.clear();
+        }
+        return nread;
+    }
+
     static long copy(ByteBuffer source, WritableByteChannel sink)
             throws IOException {
         // make sure the buffer is fully drained.
@@ -0,0 +1,20 @@
+package org.janelia.jacsstorage.coreutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by output streams that can write byte buffers directly to their destination without copying
+ * the bytes to an intermediate array first.
+ */
+public interface ByteBufferTransferTarget {
+    /**
+     * Write the remaining bytes of the buffer. The buffer's position is advanced by the number of bytes written.
+     *
+     * @param buffer source buffer
+     * @return number of bytes written or -1 if the buffer cannot be written directly,
+     * in which case nothing was written and the caller must copy the content.
+     * @throws IOException
+     */
+    long transferBuffer(ByteBuffer buffer) throws IOException;
+}
@@ -0,0 +1,22 @@
+package org.janelia.jacsstorage.coreutils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by output streams that can send a file region directly to their destination, e.g. using sendfile,
+ * without copying the bytes through user space buffers.
+ */
+public interface FileRegionTransferTarget {
+    /**
+     * Transfer the file region.
+     *
+     * @param fileChannel source file channel
+     * @param position region start
+     * @param count region length
+     * @return number of bytes transferred or -1 if the region cannot be transferred directly,
+     * in which case nothing was written and the caller must copy the content.
+     * @throws IOException
+     */
+    long transferFileRegion(FileChannel fileChannel, long position, long count) throws IOException;
+}
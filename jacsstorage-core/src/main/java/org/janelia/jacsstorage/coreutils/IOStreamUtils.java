@@ -4,6 +4,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 
 import com.google.common.io.ByteStreams;
@@ -27,6 +28,32 @@ public class IOStreamUtils {
         }
     }
 
+    /**
+     * Copies count bytes starting at the given position from a file channel to a stream.
+     * If the destination stream supports direct file transfers the region is handed over to it
+     * so that it does not have to go through a user space buffer.
+     *
+     * @param fileChannel
+     * @param position
+     * @param count
+     * @param dstStream
+     * @return number of bytes copied
+     * @throws IllegalStateException
+     */
+    public static long copyFrom(FileChannel fileChannel, long position, long count, OutputStream dstStream) {
+        try {
+            if (dstStream instanceof FileRegionTransferTarget) {
+                long nbytes = ((FileRegionTransferTarget) dstStream).transferFileRegion(fileChannel, position, count);
+                if (nbytes >= 0) {
+                    return nbytes;
+                }
+            }
+            return BufferUtils.copy(fileChannel, position, count, Channels.newChannel(dstStream));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Copy from inputBytes array to a stream.
      * @param inputBytes
@@ -44,4 +71,35 @@ public class IOStreamUtils {
             }
         }
     }
+
+    /**
+     * Copy the remaining bytes of a buffer to a stream. The buffer's position and limit are respected and
+     * the buffer is written directly if the destination stream supports it, otherwise heap buffers are written
+     * from their backing array without an additional copy.
+     *
+     * @param buffer
+     * @param dstStream
+     * @return number of bytes copied
+     * @throws IllegalStateException
+     */
+    public static long copyFrom(ByteBuffer buffer, OutputStream dstStream) {
+        try {
+            if (dstStream instanceof ByteBufferTransferTarget) {
+                long nbytes = ((ByteBufferTransferTarget) dstStream).transferBuffer(buffer);
+                if (nbytes >= 0) {
+                    return nbytes;
+                }
+            }
+            int nbytes = buffer.remaining();
+            if (buffer.hasArray()) {
+                dstStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), nbytes);
+                buffer.position(buffer.limit());
+                return nbytes;
+            } else {
+                return BufferUtils.copy(buffer, Channels.newChannel(dstStream));
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
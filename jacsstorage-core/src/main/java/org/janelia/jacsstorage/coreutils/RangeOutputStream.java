@@ -0,0 +1,85 @@
+package org.janelia.jacsstorage.coreutils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that only forwards the bytes that fall within [offset, offset + length) of
+ * everything that is written to it. It is used for serving byte ranges of content that can only be
+ * generated sequentially, e.g. archives or filtered content.
+ */
+public class RangeOutputStream extends OutputStream {
+
+    private final OutputStream outputStream;
+    private final long rangeStart;
+    private final long rangeEnd;
+    private long currentPos;
+    private long bytesWritten;
+
+    /**
+     * @param outputStream destination stream
+     * @param offset       range start
+     * @param length       range length - if negative the range extends to the end of the content
+     */
+    public RangeOutputStream(OutputStream outputStream, long offset, long length) {
+        this.outputStream = outputStream;
+        this.rangeStart = offset;
+        this.rangeEnd = length >= 0 ? offset + length : Long.MAX_VALUE;
+        this.currentPos = 0;
+        this.bytesWritten = 0;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return true if all bytes from the requested range have already been written.
+     */
+    public boolean isRangeComplete() {
+        return currentPos >= rangeEnd;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (currentPos >= rangeStart && currentPos < rangeEnd) {
+            outputStream.write(b);
+            bytesWritten++;
+        }
+        advance(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long writeStart = Math.max(currentPos, rangeStart);
+        long writeEnd = Math.min(currentPos + len, rangeEnd);
+        if (writeStart < writeEnd) {
+            int n = (int) (writeEnd - writeStart);
+            outputStream.write(b, off + (int) (writeStart - currentPos), n);
+            bytesWritten += n;
+        }
+        advance(len);
+    }
+
+    private void advance(long n) throws IOException {
+        if (currentPos >= rangeEnd) {
+            // the producer keeps writing after the range was served so stop it
+            throw new RangeCompleteException();
+        }
+        currentPos += n;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        outputStream.flush();
+    }
+
+    /**
+     * Signals that the range was fully written and no more content is needed.
+     */
+    public static class RangeCompleteException extends IOException {
+        RangeCompleteException() {
+            super("Requested range already written");
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.janelia.jacsstorage.coreutils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that only flushes the destination stream when it is closed. It is used for wrapping
+ * the response stream in encoders, such as archivers or compressors, that must be closed to write their trailer
+ * while the response stream itself is owned by the caller.
+ */
+public class UnclosableOutputStream extends FilterOutputStream {
+
+    public UnclosableOutputStream(OutputStream outputStream) {
+        super(outputStream);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
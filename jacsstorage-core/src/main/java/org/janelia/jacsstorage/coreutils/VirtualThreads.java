@@ -0,0 +1,91 @@
+package org.janelia.jacsstorage.coreutils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates executors that run each task on its own virtual thread. The code is compiled for Java 8 so the virtual
+ * thread API is looked up at runtime and it is only available when the service runs on Java 21 or newer.
+ */
+public class VirtualThreads {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreads.class);
+    private static final String PINNED_THREADS_TRACE_PROPERTY = "jdk.tracePinnedThreads";
+
+    /**
+     * @return true if the current JVM supports virtual threads
+     */
+    public static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task or, if the JVM does not support
+     * virtual threads, the fallback executor.
+     *
+     * @param namePrefix prefix of the virtual thread names
+     * @param fallbackExecutorSupplier creates the executor used when virtual threads are not supported
+     * @return the executor
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutorOrElse(String namePrefix, Supplier<ExecutorService> fallbackExecutorSupplier) {
+        return newVirtualThreadPerTaskExecutorOrElse(isSupported(), namePrefix, fallbackExecutorSupplier);
+    }
+
+    static ExecutorService newVirtualThreadPerTaskExecutorOrElse(boolean virtualThreadsSupported, String namePrefix, Supplier<ExecutorService> fallbackExecutorSupplier) {
+        if (virtualThreadsSupported) {
+            return newVirtualThreadPerTaskExecutor(namePrefix);
+        } else {
+            LOG.warn("Virtual threads require Java 21 or newer - current version is {} so {} tasks use platform threads",
+                    System.getProperty("java.version"), namePrefix);
+            return fallbackExecutorSupplier.get();
+        }
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     *
+     * @param namePrefix prefix of the thread names - the threads are numbered in the order they are started
+     * @return the executor
+     * @throws UnsupportedOperationException if the JVM does not support virtual threads
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+        try {
+            Object threadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> threadBuilderClass = Class.forName("java.lang.Thread$Builder");
+            threadBuilder = threadBuilderClass.getMethod("name", String.class, long.class).invoke(threadBuilder, namePrefix, 0L);
+            ThreadFactory threadFactory = (ThreadFactory) threadBuilderClass.getMethod("factory").invoke(threadBuilder);
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+        } catch (NoSuchMethodException | ClassNotFoundException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer - current version is "
+                    + System.getProperty("java.version"), e);
+        } catch (Exception e) {
+            throw new IllegalStateException("Error creating virtual thread executor", e);
+        }
+    }
+
+    /**
+     * Report virtual threads that block while pinned to their carrier thread, e.g. inside a synchronized block,
+     * because they hold the carrier for the entire time they are blocked. This must be called before the first
+     * virtual thread is started and it has no effect if the JVM was started with its own trace setting.
+     *
+     * @param traceMode 'short' or 'full' to report the pinning stack trace; blank disables the report
+     */
+    public static void tracePinnedThreads(String traceMode) {
+        if (StringUtils.isNotBlank(traceMode) && System.getProperty(PINNED_THREADS_TRACE_PROPERTY) == null) {
+            System.setProperty(PINNED_THREADS_TRACE_PROPERTY, traceMode.trim());
+        }
+    }
+}
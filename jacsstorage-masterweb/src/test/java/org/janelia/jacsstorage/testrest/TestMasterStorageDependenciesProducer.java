@@ -1,10 +1,13 @@
 package org.janelia.jacsstorage.testrest;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.janelia.jacsstorage.cdi.ObjectMapperFactory;
 import org.janelia.jacsstorage.cdi.qualifier.RemoteInstance;
 import org.janelia.jacsstorage.datarequest.NumberSerializerModule;
 import org.janelia.jacsstorage.filter.AuthFilter;
+import org.janelia.jacsstorage.filter.ContentEncodingFilter;
 import org.janelia.jacsstorage.service.StorageAllocatorService;
 import org.janelia.jacsstorage.service.StorageLookupService;
 import org.janelia.jacsstorage.service.StorageUsageManager;
@@ -23,6 +26,10 @@ public class TestMasterStorageDependenciesProducer {
     private StorageUsageManager storageUsageManager = mock(StorageUsageManager.class);
     private StorageVolumeManager storageVolumeManager = mock(StorageVolumeManager.class);
     private AuthFilter authFilter = mock(AuthFilter.class);
+    private ContentEncodingFilter contentEncodingFilter = new ContentEncodingFilter(1024,
+            ImmutableList.of("zstd", "gzip"),
+            ImmutableSet.of("application/json", "application/xml"),
+            ImmutableSet.of());
 
     @Produces
     public StorageAgentManager getStorageAgentManager() {
@@ -64,4 +71,9 @@ public class TestMasterStorageDependenciesProducer {
         return authFilter;
     }
 
+    @Produces
+    public ContentEncodingFilter getContentEncodingFilter() {
+        return contentEncodingFilter;
+    }
+
 }
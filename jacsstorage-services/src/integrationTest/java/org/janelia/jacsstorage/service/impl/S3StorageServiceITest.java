@@ -16,6 +16,9 @@ import org.janelia.jacsstorage.service.ContentNode;
 import org.janelia.jacsstorage.service.ContentStorageService;
 import org.janelia.jacsstorage.service.s3.S3Adapter;
 import org.janelia.jacsstorage.service.s3.S3AdapterProvider;
+import org.janelia.jacsstorage.service.s3.S3MultipartUploader;
+import org.janelia.jacsstorage.service.s3.S3RangedDownloader;
+import org.janelia.jacsstorage.service.s3.S3TreeLister;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -457,6 +460,14 @@ public class S3StorageServiceITest {
     }
 
     private ContentStorageService getS3StorageService(S3Adapter s3Adapter, boolean async) {
-        return async ? new AsyncS3StorageService(s3Adapter) : new SyncS3StorageService(s3Adapter);
+        S3MultipartUploader multipartUploader = new S3MultipartUploader(5, 4, 64, 60);
+        S3RangedDownloader rangedDownloader = new S3RangedDownloader(8, 2, 4, 3, 64);
+        // depth 2 listings are scanned flat in small partitions
+        S3TreeLister treeLister = new S3TreeLister(2, 2, 2);
+        S3ListingCache listingCache = new S3ListingCache(0, 0, 0);
+        S3MetadataCache metadataCache = new S3MetadataCache(0, 0, 0);
+        return async
+                ? new AsyncS3StorageService(s3Adapter, listingCache, metadataCache, multipartUploader, rangedDownloader, treeLister)
+                : new SyncS3StorageService(s3Adapter, listingCache, metadataCache, multipartUploader, rangedDownloader);
     }
 }
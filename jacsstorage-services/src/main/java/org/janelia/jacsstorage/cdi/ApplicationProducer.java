@@ -23,6 +23,7 @@ import org.janelia.jacsstorage.cdi.qualifier.PooledResource;
 import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
 import org.janelia.jacsstorage.cdi.qualifier.ScheduledResource;
 import org.janelia.jacsstorage.config.ApplicationConfig;
+import org.janelia.jacsstorage.coreutils.VirtualThreads;
 import org.janelia.jacsstorage.dao.IdGenerator;
 import org.janelia.jacsstorage.dao.TimebasedIdGenerator;
 
@@ -113,7 +114,16 @@ public class ApplicationProducer {
 
     @PooledResource
     @Produces
-    public ExecutorService createPooledExecutorService(@PropertyValue(name = "StorageAgent.ThreadPoolSize") Integer poolSize) {
+    public ExecutorService createPooledExecutorService(@PropertyValue(name = "StorageAgent.ThreadPoolSize") Integer poolSize,
+                                                       @PropertyValue(name = "StorageService.VirtualThreads", defaultValue = "false") Boolean virtualThreads) {
+        if (virtualThreads) {
+            // the pooled tasks mostly wait for the storage so they are not limited by the pool size
+            return VirtualThreads.newVirtualThreadPerTaskExecutorOrElse("JACS-STORAGE-POOLED-", () -> createFixedThreadPool(poolSize));
+        }
+        return createFixedThreadPool(poolSize);
+    }
+
+    private ExecutorService createFixedThreadPool(int poolSize) {
         return Executors.newFixedThreadPool(poolSize, r -> {
             Thread t = new Thread(r);
             t.setDaemon(true);
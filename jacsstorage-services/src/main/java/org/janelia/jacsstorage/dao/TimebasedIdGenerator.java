@@ -7,7 +7,13 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * The generator uses locks instead of synchronized blocks so that a virtual thread waiting for an ID block
+ * does not pin its carrier thread.
+ */
 public class TimebasedIdGenerator implements IdGenerator {
 
     private static final Long CURRENT_TIME_OFFSET = 921700000000L;
@@ -15,6 +21,7 @@ public class TimebasedIdGenerator implements IdGenerator {
 
     private final int ipComponent;
     private final int deploymentContext;
+    private final Lock idBlockLock = new ReentrantLock();
     private IDBlock lastIDBlock;
 
     private static final class IDBlock {
@@ -23,18 +30,38 @@ public class TimebasedIdGenerator implements IdGenerator {
         private long deploymentContext;
         private long ipComponent;
         private long currentIndex = 0;
+        private final Lock lock = new ReentrantLock();
 
-        private synchronized boolean hasNext() {
-            return currentIndex < BLOCK_SIZE;
+        private boolean hasNext() {
+            lock.lock();
+            try {
+                return currentIndex < BLOCK_SIZE;
+            } finally {
+                lock.unlock();
+            }
         }
 
-        private synchronized Number next() {
-            BigInteger nextId = BigInteger.valueOf(timeComponent).shiftLeft(22)
-                                    .add(BigInteger.valueOf(currentIndex << 12))
-                                    .add(BigInteger.valueOf(deploymentContext << 8))
-                                    .add(BigInteger.valueOf(ipComponent));
-            currentIndex++;
-            return nextId;
+        /**
+         * The check and the increment are done under the same lock so that concurrent callers that share the block
+         * never take more than BLOCK_SIZE ids, which would overflow the index into the time component.
+         *
+         * @return the next id or null if the block is exhausted
+         */
+        private Number tryNext() {
+            lock.lock();
+            try {
+                if (currentIndex >= BLOCK_SIZE) {
+                    return null;
+                }
+                BigInteger nextId = BigInteger.valueOf(timeComponent).shiftLeft(22)
+                                        .add(BigInteger.valueOf(currentIndex << 12))
+                                        .add(BigInteger.valueOf(deploymentContext << 8))
+                                        .add(BigInteger.valueOf(ipComponent));
+                currentIndex++;
+                return nextId;
+            } finally {
+                lock.unlock();
+            }
         }
 
     }
@@ -48,40 +75,49 @@ public class TimebasedIdGenerator implements IdGenerator {
     }
 
     public Number generateId() {
-        IDBlock idBlock = getIDBlock();
-        return idBlock.next();
+        for (;;) {
+            Number id = getIDBlock().tryNext();
+            if (id != null) {
+                return id;
+            }
+        }
     }
 
     public List<Number> generateIdList(long n) {
         List<Number> idList = new ArrayList<>();
-        long total = 0L;
-        while (total < n) {
-            IDBlock idBlock = getIDBlock();
-            for (; total < n && idBlock.hasNext(); total++) {
-                idList.add(idBlock.next());
+        while (idList.size() < n) {
+            Number id = getIDBlock().tryNext();
+            if (id != null) {
+                idList.add(id);
             }
         }
         return idList;
     }
 
-    private synchronized IDBlock getIDBlock() {
-        if (lastIDBlock != null && lastIDBlock.hasNext()) {
-            return lastIDBlock;
-        }
-        IDBlock idBlock = new IDBlock();
-        idBlock.ipComponent = ipComponent;
-        idBlock.deploymentContext = deploymentContext;
-        idBlock.timeComponent = System.currentTimeMillis() - CURRENT_TIME_OFFSET;
-        if (lastIDBlock != null && lastIDBlock.timeComponent == idBlock.timeComponent) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                throw new IllegalStateException(e);
+    private IDBlock getIDBlock() {
+        idBlockLock.lock();
+        try {
+            if (lastIDBlock != null && lastIDBlock.hasNext()) {
+                return lastIDBlock;
             }
+            IDBlock idBlock = new IDBlock();
+            idBlock.ipComponent = ipComponent;
+            idBlock.deploymentContext = deploymentContext;
             idBlock.timeComponent = System.currentTimeMillis() - CURRENT_TIME_OFFSET;
+            // the clock may not advance after a single 1ms sleep if its resolution is coarser than that
+            while (lastIDBlock != null && lastIDBlock.timeComponent == idBlock.timeComponent) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                idBlock.timeComponent = System.currentTimeMillis() - CURRENT_TIME_OFFSET;
+            }
+            lastIDBlock = idBlock;
+            return idBlock;
+        } finally {
+            idBlockLock.unlock();
         }
-        lastIDBlock = idBlock;
-        return idBlock;
     }
 
     private int getIpAddrCompoment() {
@@ -0,0 +1,39 @@
+package org.janelia.jacsstorage.service;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Format of the archive generated when the content of multiple nodes is retrieved.
+ */
+public enum ArchiveFormat {
+    TAR("tar"),
+    TAR_ZST("tar.zst"),
+    ZIP("zip");
+
+    private final String formatName;
+
+    ArchiveFormat(String formatName) {
+        this.formatName = formatName;
+    }
+
+    public String getFormatName() {
+        return formatName;
+    }
+
+    /**
+     * @param formatName format name, e.g. "tar", "tar.zst" or "zip"
+     * @return the corresponding archive format or TAR if no name is specified
+     * @throws IllegalArgumentException if the format is not supported
+     */
+    public static ArchiveFormat fromFormatName(String formatName) {
+        if (StringUtils.isBlank(formatName)) {
+            return TAR;
+        }
+        for (ArchiveFormat archiveFormat : values()) {
+            if (archiveFormat.formatName.equalsIgnoreCase(formatName.trim())) {
+                return archiveFormat;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported archive format: " + formatName);
+    }
+}
@@ -0,0 +1,87 @@
+package org.janelia.jacsstorage.service;
+
+import java.util.List;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.janelia.jacsstorage.model.DataInterval;
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+
+/**
+ * Snapshot of the state of a chunked upload.
+ */
+public class ChunkedUpload {
+    private final String uploadId;
+    private final JADEStorageURI contentURI;
+    private final String ownerKey;
+    private final Number volumeId;
+    private final long contentSize;
+    private final long receivedBytes;
+    private final List<DataInterval<Long>> missingRanges;
+
+    public ChunkedUpload(String uploadId, JADEStorageURI contentURI, String ownerKey, Number volumeId,
+                         long contentSize, long receivedBytes, List<DataInterval<Long>> missingRanges) {
+        this.uploadId = uploadId;
+        this.contentURI = contentURI;
+        this.ownerKey = ownerKey;
+        this.volumeId = volumeId;
+        this.contentSize = contentSize;
+        this.receivedBytes = receivedBytes;
+        this.missingRanges = missingRanges;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    /**
+     * @return the URI where the content is stored once the upload is completed
+     */
+    public JADEStorageURI getContentURI() {
+        return contentURI;
+    }
+
+    /**
+     * @return the key of the subject that started the upload
+     */
+    public String getOwnerKey() {
+        return ownerKey;
+    }
+
+    /**
+     * @return the id of the volume for which the write permission was granted when the upload was started
+     */
+    public Number getVolumeId() {
+        return volumeId;
+    }
+
+    public long getContentSize() {
+        return contentSize;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     * @return the byte ranges that were not received yet; the start of each range is inclusive and the end is exclusive
+     */
+    public List<DataInterval<Long>> getMissingRanges() {
+        return missingRanges;
+    }
+
+    public boolean isComplete() {
+        return missingRanges.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("uploadId", uploadId)
+                .append("contentURI", contentURI)
+                .append("ownerKey", ownerKey)
+                .append("volumeId", volumeId)
+                .append("contentSize", contentSize)
+                .append("receivedBytes", receivedBytes)
+                .toString();
+    }
+}
@@ -0,0 +1,58 @@
+package org.janelia.jacsstorage.service;
+
+import java.io.InputStream;
+
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+
+/**
+ * Service for uploading large content in parts. The parts can be sent concurrently, in any order and over
+ * separate connections, and a part that failed can simply be sent again, so an interrupted upload can be resumed
+ * without sending again the parts that were already received.
+ */
+public interface ChunkedUploadService {
+
+    /**
+     * Start a new upload.
+     *
+     * @param contentURI where the content will be stored once the upload is completed
+     * @param contentSize total size of the content
+     * @param ownerKey key of the subject that starts the upload
+     * @param volumeId id of the volume that grants the write permission for the content URI
+     * @return the new upload
+     */
+    ChunkedUpload initiateUpload(JADEStorageURI contentURI, long contentSize, String ownerKey, Number volumeId);
+
+    /**
+     * @param uploadId upload identifier
+     * @return the current state of the upload
+     * @throws NoContentFoundException if there's no upload in progress with the given id
+     */
+    ChunkedUpload getUpload(String uploadId);
+
+    /**
+     * Write a part of the content. If the same byte range is written again, for example when a part is retried,
+     * the new bytes replace the old ones.
+     *
+     * @param uploadId upload identifier
+     * @param offset offset of the part in the content
+     * @param partStream part content
+     * @return the state of the upload after the part was written
+     */
+    ChunkedUpload writePart(String uploadId, long offset, InputStream partStream);
+
+    /**
+     * Move the uploaded content to its final location. This succeeds only if all the content was received, which is
+     * checked while no part is being written, so an incomplete upload is left in progress and returned as it is.
+     *
+     * @param uploadId upload identifier
+     * @return the state of the upload - the content was stored only if the returned upload is complete
+     */
+    ChunkedUpload completeUpload(String uploadId);
+
+    /**
+     * Cancel the upload and discard all the parts received so far.
+     *
+     * @param uploadId upload identifier
+     */
+    void abortUpload(String uploadId);
+}
@@ -5,6 +5,7 @@ import org.apache.commons.lang3.builder.ToStringBuilder;
 
 import java.nio.file.Paths;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -21,10 +22,14 @@ public class ContentAccessParams {
     private Pattern regexEntryNamePattern;
     private int maxDepth = DEFAULT_DEPTH;
     private boolean alwaysArchive;
+    private ArchiveFormat archiveFormat = ArchiveFormat.TAR;
+    private boolean archiveCompressionDisabled;
     private int startEntryIndex;
     private int entriesCount;
+    private String startAfterEntry;
     private boolean directoriesOnly;
     private boolean estimateSizeDisabled;
+    private boolean cachedListingAllowed;
     private final Map<String, String> filterTypeSpecificParams = new HashMap<>();
 
     public String getFilterType() {
@@ -82,6 +87,10 @@ public class ContentAccessParams {
         return this;
     }
 
+    public Map<String, String> getFilterTypeSpecificParams() {
+        return Collections.unmodifiableMap(filterTypeSpecificParams);
+    }
+
     public String getAsString(String filterParam, String defaultValue) {
         return StringUtils.defaultIfBlank(filterTypeSpecificParams.get(filterParam), defaultValue);
     }
@@ -117,6 +126,30 @@ public class ContentAccessParams {
         return this;
     }
 
+    public ArchiveFormat getArchiveFormat() {
+        return archiveFormat;
+    }
+
+    public ContentAccessParams setArchiveFormat(ArchiveFormat archiveFormat) {
+        this.archiveFormat = archiveFormat != null ? archiveFormat : ArchiveFormat.TAR;
+        return this;
+    }
+
+    /**
+     * If compression is disabled the entries of a compressed archive format are stored as they are,
+     * so the size of the archive can be determined in advance.
+     *
+     * @return true if the archive entries must not be compressed
+     */
+    public boolean isArchiveCompressionDisabled() {
+        return archiveCompressionDisabled;
+    }
+
+    public ContentAccessParams setArchiveCompressionDisabled(boolean archiveCompressionDisabled) {
+        this.archiveCompressionDisabled = archiveCompressionDisabled;
+        return this;
+    }
+
     public int getStartEntryIndex() {
         return startEntryIndex;
     }
@@ -135,6 +168,43 @@ public class ContentAccessParams {
         return this;
     }
 
+    /**
+     * @return the key of the entry after which the listing must resume or null if the listing starts at the beginning
+     */
+    public String getStartAfterEntry() {
+        return startAfterEntry;
+    }
+
+    public ContentAccessParams setStartAfterEntry(String startAfterEntry) {
+        this.startAfterEntry = startAfterEntry;
+        return this;
+    }
+
+    /**
+     * Resumable listings traverse the content in key order so that a listing can continue
+     * right after the last returned entry without going again through the preceding entries.
+     *
+     * @return true if the listing must be done in key order
+     */
+    public boolean isOrderedListing() {
+        return StringUtils.isNotEmpty(startAfterEntry) || entriesCount > 0;
+    }
+
+    /**
+     * A cached listing may not reflect the latest changes, so it is only allowed for browsing the content
+     * and never when the listed nodes are used for reading the content.
+     *
+     * @return true if the listing can be served from a cache
+     */
+    public boolean isCachedListingAllowed() {
+        return cachedListingAllowed;
+    }
+
+    public ContentAccessParams setCachedListingAllowed(boolean cachedListingAllowed) {
+        this.cachedListingAllowed = cachedListingAllowed;
+        return this;
+    }
+
     public boolean isEstimateSizeDisabled() {
         return estimateSizeDisabled;
     }
@@ -161,6 +231,12 @@ public class ContentAccessParams {
                 .append("selectedEntries", selectedEntries)
                 .append("entryNamePattern", entryNamePattern)
                 .append("maxDepth", maxDepth)
+                .append("alwaysArchive", alwaysArchive)
+                .append("archiveFormat", archiveFormat)
+                .append("archiveCompressionDisabled", archiveCompressionDisabled)
+                .append("startEntryIndex", startEntryIndex)
+                .append("entriesCount", entriesCount)
+                .append("startAfterEntry", startAfterEntry)
                 .append("filterTypeSpecificParams", filterTypeSpecificParams)
                 .toString();
     }
@@ -37,4 +37,14 @@ public interface ContentGetter {
      * @return number of bytes
      */
     long streamContent(OutputStream outputStream);
+
+    /**
+     * Stream only the specified byte range of the content that would be returned by {@link #streamContent(OutputStream)}.
+     *
+     * @param offset first byte of the range
+     * @param length number of bytes in the range; if negative the range extends to the end of the content
+     * @param outputStream result output stream
+     * @return number of bytes
+     */
+    long streamContentRange(long offset, long length, OutputStream outputStream);
 }
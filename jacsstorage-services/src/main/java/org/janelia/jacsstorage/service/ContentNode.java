@@ -19,6 +19,7 @@ public class ContentNode {
     private String name;
     private long size;
     private Date lastModified;
+    private String etag;
     private boolean collection;
 
     public ContentNode(JacsStorageType storageType, JADEStorageURI rootStorageURI) {
@@ -75,6 +76,19 @@ public class ContentNode {
         return this;
     }
 
+    /**
+     * @return the entity tag provided by the storage for this object (e.g. the S3 ETag) or null if the storage
+     * does not provide one
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    public ContentNode setEtag(String etag) {
+        this.etag = etag;
+        return this;
+    }
+
     public boolean isCollection() {
         return collection;
     }
@@ -2,18 +2,51 @@ package org.janelia.jacsstorage.service;
 
 import java.io.InputStream;
 import java.util.List;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Storage access. The asynchronous variants of the operations by default run the blocking operation
+ * in the calling thread; storages with a non blocking client override them so that no thread waits for the storage.
+ */
 public interface ContentStorageService extends ContentStreamReader {
 
     boolean canAccess(String contentLocation);
 
+    default CompletableFuture<Boolean> canAccessAsync(String contentLocation) {
+        return CompletableFuture.completedFuture(contentLocation).thenApply(this::canAccess);
+    }
+
     ContentNode getObjectNode(String contentLocation);
 
-    List<ContentNode> listContentNodes(String contentLocation, ContentAccessParams filterParams);
+    /**
+     * Stream the content nodes found at the specified location. The nodes are retrieved from the storage
+     * as the stream is consumed, so the stream must be closed in order to release the underlying resources.
+     *
+     * @param contentLocation
+     * @param filterParams
+     * @return
+     */
+    Stream<ContentNode> streamContentNodes(String contentLocation, ContentAccessParams filterParams);
+
+    default List<ContentNode> listContentNodes(String contentLocation, ContentAccessParams filterParams) {
+        try (Stream<ContentNode> contentNodes = streamContentNodes(contentLocation, filterParams)) {
+            return contentNodes.collect(Collectors.toList());
+        }
+    }
+
+    default CompletableFuture<List<ContentNode>> listContentNodesAsync(String contentLocation, ContentAccessParams filterParams) {
+        return CompletableFuture.completedFuture(contentLocation).thenApply(l -> listContentNodes(l, filterParams));
+    }
 
     long writeContent(String contentLocation, InputStream inputStream);
 
     void deleteContent(String contentLocation);
 
+    default CompletableFuture<Void> deleteContentAsync(String contentLocation) {
+        return CompletableFuture.completedFuture(contentLocation).thenAccept(this::deleteContent);
+    }
+
     StorageCapacity getStorageCapacity(String contentLocation);
 }
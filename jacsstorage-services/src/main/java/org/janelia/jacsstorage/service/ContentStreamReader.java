@@ -7,4 +7,15 @@ public interface ContentStreamReader {
     InputStream getContentInputStream(String contentLocation);
 
     long streamContentToOutput(String contentLocation, OutputStream outputStream);
+
+    /**
+     * Stream only the specified byte range of the object to the output.
+     *
+     * @param contentLocation object location
+     * @param offset first byte of the range
+     * @param length number of bytes in the range; if negative the range extends to the end of the object
+     * @param outputStream result output stream
+     * @return number of bytes written
+     */
+    long streamContentRangeToOutput(String contentLocation, long offset, long length, OutputStream outputStream);
 }
@@ -1,11 +1,14 @@
 package org.janelia.jacsstorage.service;
 
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
 
 /**
- * Service for reading and writing content to a specified storage URI
+ * Service for reading and writing content to a specified storage URI. The asynchronous variants complete
+ * when the storage responds, without blocking the calling thread if the storage has a non blocking client.
  */
 public interface DataContentService {
     /**
@@ -16,6 +19,10 @@ public interface DataContentService {
      */
     boolean exists(JADEStorageURI storageURI);
 
+    default CompletableFuture<Boolean> existsAsync(JADEStorageURI storageURI) {
+        return CompletableFuture.completedFuture(storageURI).thenApply(this::exists);
+    }
+
     /**
      * Compute storage capacity.
      *
@@ -41,6 +48,21 @@ public interface DataContentService {
      */
     ContentGetter getDataContent(JADEStorageURI contentURI, ContentAccessParams contentAccessParams);
 
+    default CompletableFuture<ContentGetter> getDataContentAsync(JADEStorageURI contentURI, ContentAccessParams contentAccessParams) {
+        return CompletableFuture.completedFuture(contentURI).thenApply(uri -> getDataContent(uri, contentAccessParams));
+    }
+
+    /**
+     * Stream the content nodes found at the specified URI. Unlike {@link #getDataContent(JADEStorageURI, ContentAccessParams)}
+     * the nodes are not collected and sorted; they are returned in the storage traversal order as they are read
+     * so the returned stream must be closed when it is no longer needed.
+     *
+     * @param storageURI
+     * @param contentAccessParams
+     * @return
+     */
+    Stream<ContentNode> streamDataNodes(JADEStorageURI storageURI, ContentAccessParams contentAccessParams);
+
     /**
      * Write data at the specified URI
      *
@@ -56,4 +78,8 @@ public interface DataContentService {
      * @param storageURI
      */
     void removeData(JADEStorageURI storageURI);
+
+    default CompletableFuture<Void> removeDataAsync(JADEStorageURI storageURI) {
+        return CompletableFuture.completedFuture(storageURI).thenAccept(this::removeData);
+    }
 }
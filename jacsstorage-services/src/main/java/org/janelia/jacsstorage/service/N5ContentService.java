@@ -1,16 +1,52 @@
 package org.janelia.jacsstorage.service;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Iterators;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.janelia.jacsstorage.cdi.qualifier.PooledResource;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
 import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.service.impl.n5.N5BlockCache;
 import org.janelia.jacsstorage.service.impl.n5.N5ReaderProvider;
 import org.janelia.jacsstorage.service.impl.n5.N5ViewerMultichannelMetadata;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.KeyValueAccess;
+import org.janelia.saalfeldlab.n5.LockedChannel;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5KeyValueReader;
 import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5URI;
 import org.janelia.saalfeldlab.n5.universe.N5DatasetDiscoverer;
 import org.janelia.saalfeldlab.n5.universe.N5TreeNode;
 import org.janelia.saalfeldlab.n5.universe.metadata.N5CosemMetadataParser;
@@ -22,12 +58,24 @@ import org.janelia.saalfeldlab.n5.universe.metadata.N5MultiScaleMetadata;
 import org.janelia.saalfeldlab.n5.universe.metadata.N5SingleScaleMetadataParser;
 import org.janelia.saalfeldlab.n5.universe.metadata.N5ViewerMultiscaleMetadataParser;
 import org.janelia.saalfeldlab.n5.universe.metadata.canonical.CanonicalMetadataParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Service for reading and writing content to a specified storage URI
+ * Service for reading and writing content to a specified storage URI.
+ *
+ * The discovered N5 trees are cached by container location, credentials and depth. A cached tree that is older
+ * than the refresh time is still returned while it is discovered again in the background, so repeated requests
+ * for the same container do not wait for the discovery.
+ *
+ * The data blocks are read through the shared N5 readers and they are kept in a block cache. The blocks of a request
+ * are read ahead on a dedicated pool, so that large block requests cannot take over the pool shared by other services.
  */
+@Singleton
 public class N5ContentService {
 
+    private static final Logger LOG = LoggerFactory.getLogger(N5ContentService.class);
+
     private static final N5MetadataParser<? extends N5Metadata>[] N5_GROUP_PARSERS = new N5MetadataParser<?>[]{
             new N5CosemMultiScaleMetadata.CosemMultiScaleParser(),
             new N5ViewerMultiscaleMetadataParser(),
@@ -43,32 +91,311 @@ public class N5ContentService {
             new N5GenericSingleScaleMetadataParser()
     };
 
+    private static class N5TreeKey {
+        private final JADEStorageURI storageURI;
+        private final String containerKey;
+        private final int maxDepth;
+
+        N5TreeKey(JADEStorageURI storageURI, int maxDepth) {
+            this.storageURI = storageURI;
+            this.containerKey = N5ReaderProvider.containerKey(storageURI);
+            this.maxDepth = maxDepth;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            N5TreeKey that = (N5TreeKey) o;
+            return maxDepth == that.maxDepth && containerKey.equals(that.containerKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * containerKey.hashCode() + maxDepth;
+        }
+    }
+
     private final N5ReaderProvider n5ReaderProvider;
+    private final N5BlockCache n5BlockCache;
     private final ExecutorService executorService;
+    private final LoadingCache<N5TreeKey, N5TreeNode> n5TreeCache; // null if caching is disabled
+    private final int maxBlocksPerRequest;
+    private final int blocksReadAhead;
+    private final ExecutorService blockReadExecutor; // null if the blocks are read only when they are sent
 
     @Inject
-    N5ContentService(N5ReaderProvider n5ReaderProvider, @PooledResource ExecutorService executorService) {
+    N5ContentService(N5ReaderProvider n5ReaderProvider,
+                     N5BlockCache n5BlockCache,
+                     @PooledResource ExecutorService executorService,
+                     @PropertyValue(name = "StorageAgent.N5TreeCacheMaxEntries", defaultValue = "500") int cacheMaxEntries,
+                     @PropertyValue(name = "StorageAgent.N5TreeCacheRefreshInSeconds", defaultValue = "300") int refreshInSeconds,
+                     @PropertyValue(name = "StorageAgent.N5TreeCacheExpirationInSeconds", defaultValue = "3600") int expirationInSeconds,
+                     @PropertyValue(name = "StorageAgent.N5MaxBlocksPerRequest", defaultValue = "256") int maxBlocksPerRequest,
+                     @PropertyValue(name = "StorageAgent.N5BlocksReadAhead", defaultValue = "16") int blocksReadAhead,
+                     @PropertyValue(name = "StorageAgent.N5BlockReadThreads", defaultValue = "8") int blockReadThreads) {
+        this(n5ReaderProvider, n5BlockCache, executorService, cacheMaxEntries, refreshInSeconds, expirationInSeconds,
+                maxBlocksPerRequest, blocksReadAhead, blockReadThreads, Ticker.systemTicker());
+    }
+
+    N5ContentService(N5ReaderProvider n5ReaderProvider,
+                     N5BlockCache n5BlockCache,
+                     ExecutorService executorService,
+                     int cacheMaxEntries,
+                     int refreshInSeconds,
+                     int expirationInSeconds,
+                     int maxBlocksPerRequest,
+                     int blocksReadAhead,
+                     int blockReadThreads,
+                     Ticker ticker) {
         this.n5ReaderProvider = n5ReaderProvider;
+        this.n5BlockCache = n5BlockCache;
         this.executorService = executorService;
+        this.maxBlocksPerRequest = maxBlocksPerRequest;
+        this.blocksReadAhead = blocksReadAhead;
+        if (blockReadThreads > 0 && blocksReadAhead > 0) {
+            this.blockReadExecutor = Executors.newFixedThreadPool(blockReadThreads,
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("JACS-N5-BLOCK-READ-%d")
+                            .setDaemon(true)
+                            .build());
+        } else {
+            this.blockReadExecutor = null;
+        }
+        if (cacheMaxEntries > 0 && expirationInSeconds > 0) {
+            CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+                    .maximumSize(cacheMaxEntries)
+                    .expireAfterWrite(expirationInSeconds, TimeUnit.SECONDS)
+                    .ticker(ticker)
+                    .recordStats();
+            if (refreshInSeconds > 0 && refreshInSeconds < expirationInSeconds) {
+                cacheBuilder.refreshAfterWrite(refreshInSeconds, TimeUnit.SECONDS);
+            }
+            // the refreshes run one at a time because the discovery itself waits for tasks on the same pool
+            this.n5TreeCache = cacheBuilder.build(CacheLoader.asyncReloading(
+                    CacheLoader.from((N5TreeKey n5TreeKey) -> discoverN5Tree(n5TreeKey.storageURI, n5TreeKey.maxDepth)),
+                    MoreExecutors.newSequentialExecutor(executorService)));
+        } else {
+            this.n5TreeCache = null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (blockReadExecutor != null) {
+            blockReadExecutor.shutdownNow();
+        }
+    }
+
+    public CacheStats getStats() {
+        return n5TreeCache != null ? n5TreeCache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
     }
 
     /**
-     * Check if the content identified by the specified URI exists.
+     * Discover all N5 data sets of the container identified by the specified URI.
      *
      * @param storageURI N5 container location
      * @return N5TreeNode
      */
     public N5TreeNode getN5Container(JADEStorageURI storageURI) {
+        return getN5Container(storageURI, -1);
+    }
+
+    /**
+     * Discover the N5 data sets of the container identified by the specified URI.
+     *
+     * @param storageURI N5 container location
+     * @param maxDepth maximum depth of the discovered groups relative to the container - a negative value
+     *                 discovers the entire container
+     * @return N5TreeNode
+     */
+    public N5TreeNode getN5Container(JADEStorageURI storageURI, int maxDepth) {
+        if (n5TreeCache == null) {
+            return discoverN5Tree(storageURI, maxDepth);
+        }
+        try {
+            return n5TreeCache.getUnchecked(new N5TreeKey(storageURI, maxDepth < 0 ? -1 : maxDepth));
+        } catch (UncheckedExecutionException | ExecutionError e) {
+            LOG.debug("Error discovering N5 tree for {}", storageURI, e);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ContentException("Error discovering N5 tree for " + storageURI, e.getCause());
+        }
+    }
+
+    private N5TreeNode discoverN5Tree(JADEStorageURI storageURI, int maxDepth) {
+        long startTime = System.currentTimeMillis();
         try {
-            N5Reader n5Reader = n5ReaderProvider.getN5Reader(storageURI);
+            // the full discovery visits every group of the container so list the container once instead of each group;
+            // a depth limited discovery only visits the top groups so it uses the cached reader
+            N5Reader n5Reader = maxDepth < 0
+                    ? n5ReaderProvider.getN5Reader(storageURI, true)
+                    : n5ReaderProvider.getN5Reader(storageURI);
             N5DatasetDiscoverer datasetDiscoverer = new N5DatasetDiscoverer(
                     n5Reader,
                     executorService,
                     Arrays.asList(N5_METADATA_PARSERS),
                     Arrays.asList(N5_GROUP_PARSERS));
-            return datasetDiscoverer.discoverAndParseRecursive("/");
+            N5TreeNode n5RootNode;
+            if (maxDepth < 0) {
+                n5RootNode = datasetDiscoverer.discoverAndParseRecursive("/");
+            } else {
+                n5RootNode = new N5TreeNode("/");
+                discoverGroups(n5Reader, n5RootNode, maxDepth);
+                datasetDiscoverer.parseMetadataRecursive(n5RootNode);
+            }
+            LOG.debug("Discovered N5 tree for {} up to depth {} in {} ms", storageURI, maxDepth, System.currentTimeMillis() - startTime);
+            return n5RootNode;
         } catch (IOException e) {
             throw new ContentException(e);
         }
     }
+
+    /**
+     * Add the child groups of the given node up to the given depth. The datasets are not traversed because
+     * their children are the data blocks.
+     */
+    private void discoverGroups(N5Reader n5Reader, N5TreeNode n5Node, int depth) {
+        if (depth <= 0 || n5Reader.datasetExists(n5Node.getPath())) {
+            return;
+        }
+        String parentPath = n5Node.getPath().endsWith("/") ? n5Node.getPath() : n5Node.getPath() + "/";
+        for (String childName : n5Reader.list(n5Node.getPath())) {
+            N5TreeNode childNode = new N5TreeNode(parentPath + childName);
+            n5Node.childrenList().add(childNode);
+            discoverGroups(n5Reader, childNode, depth - 1);
+        }
+    }
+
+    /**
+     * Read the blocks of a dataset. The dataset and the grid positions are checked before any block is read and
+     * the blocks are read as they are consumed; while a block is consumed a limited number of the following blocks
+     * are read concurrently so that at most that many blocks are held in memory.
+     *
+     * @param storageURI N5 container location
+     * @param datasetPath dataset path relative to the container
+     * @param gridPositions grid positions of the blocks
+     * @param decoded if true the blocks are decompressed and only their data is returned in big endian order,
+     *                otherwise the blocks are returned as they are stored, including the N5 block header
+     * @return the content of the blocks in the order of the grid positions - the content is null if there is no block
+     * at the corresponding position
+     */
+    public Iterator<byte[]> getN5Blocks(JADEStorageURI storageURI, String datasetPath, List<long[]> gridPositions, boolean decoded) {
+        if (maxBlocksPerRequest > 0 && gridPositions.size() > maxBlocksPerRequest) {
+            throw new IllegalArgumentException("Too many blocks requested: " + gridPositions.size()
+                    + " - at most " + maxBlocksPerRequest + " blocks can be read at once");
+        }
+        String containerKey = N5ReaderProvider.containerKey(storageURI);
+        String normalizedDatasetPath = N5URI.normalizeGroupPath(datasetPath);
+        String datasetLocation = N5BlockCache.datasetLocation(storageURI.getJadeStorage(), normalizedDatasetPath);
+        N5Reader n5Reader = n5ReaderProvider.getN5Reader(storageURI);
+        DatasetAttributes datasetAttributes = n5BlockCache.getDatasetAttributes(
+                containerKey,
+                datasetLocation,
+                () -> {
+                    DatasetAttributes attributes = n5Reader.getDatasetAttributes(normalizedDatasetPath);
+                    if (attributes == null) {
+                        throw new NoContentFoundException("No dataset found at " + datasetPath + " in " + storageURI);
+                    }
+                    return attributes;
+                });
+        for (long[] gridPosition : gridPositions) {
+            if (gridPosition.length != datasetAttributes.getNumDimensions()) {
+                throw new IllegalArgumentException("Grid position " + Arrays.toString(gridPosition) + " does not match the "
+                        + datasetAttributes.getNumDimensions() + " dimensions of " + datasetPath);
+            }
+        }
+        Function<long[], byte[]> blockReader = gridPosition -> n5BlockCache.getBlock(
+                containerKey,
+                N5BlockCache.blockLocation(datasetLocation, gridPosition),
+                decoded,
+                () -> decoded
+                        ? readDecodedBlock(n5Reader, normalizedDatasetPath, datasetAttributes, gridPosition)
+                        : readRawBlock(n5Reader, normalizedDatasetPath, gridPosition));
+        if (gridPositions.size() == 1) {
+            return Collections.singletonList(blockReader.apply(gridPositions.get(0))).iterator();
+        } else if (blockReadExecutor == null) {
+            return Iterators.transform(gridPositions.iterator(), blockReader::apply);
+        }
+        return new ReadAheadBlocksIterator(gridPositions.iterator(), blockReader);
+    }
+
+    /**
+     * Returns the blocks in order while the next blocks are read concurrently. Each request has at most
+     * blocksReadAhead reads queued on the block read pool.
+     */
+    private class ReadAheadBlocksIterator implements Iterator<byte[]> {
+        private final Iterator<long[]> remainingPositions;
+        private final Function<long[], byte[]> blockReader;
+        private final Deque<CompletableFuture<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+        ReadAheadBlocksIterator(Iterator<long[]> remainingPositions, Function<long[], byte[]> blockReader) {
+            this.remainingPositions = remainingPositions;
+            this.blockReader = blockReader;
+            while (pendingBlocks.size() < blocksReadAhead && remainingPositions.hasNext()) {
+                readNextBlock();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !pendingBlocks.isEmpty();
+        }
+
+        @Override
+        public byte[] next() {
+            CompletableFuture<byte[]> block = pendingBlocks.poll();
+            if (block == null) {
+                throw new NoSuchElementException();
+            }
+            if (remainingPositions.hasNext()) {
+                readNextBlock();
+            }
+            try {
+                return block.join();
+            } catch (CompletionException e) {
+                pendingBlocks.forEach(f -> f.cancel(true));
+                pendingBlocks.clear();
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new ContentException("Error reading N5 block", e.getCause());
+            }
+        }
+
+        private void readNextBlock() {
+            long[] gridPosition = remainingPositions.next();
+            pendingBlocks.add(CompletableFuture.supplyAsync(() -> blockReader.apply(gridPosition), blockReadExecutor));
+        }
+    }
+
+    private byte[] readDecodedBlock(N5Reader n5Reader, String datasetPath, DatasetAttributes datasetAttributes, long[] gridPosition) {
+        DataBlock<?> dataBlock = n5Reader.readBlock(datasetPath, datasetAttributes, gridPosition);
+        if (dataBlock == null) {
+            return null;
+        }
+        ByteBuffer blockData = dataBlock.toByteBuffer();
+        byte[] blockBytes = new byte[blockData.remaining()];
+        blockData.get(blockBytes);
+        return blockBytes;
+    }
+
+    private byte[] readRawBlock(N5Reader n5Reader, String datasetPath, long[] gridPosition) {
+        N5KeyValueReader keyValueReader = (N5KeyValueReader) n5Reader;
+        KeyValueAccess keyValueAccess = keyValueReader.getKeyValueAccess();
+        String blockPath = keyValueReader.absoluteDataBlockPath(datasetPath, gridPosition);
+        try (LockedChannel blockChannel = keyValueAccess.lockForReading(blockPath);
+             InputStream blockStream = blockChannel.newInputStream()) {
+            return ByteStreams.toByteArray(blockStream);
+        } catch (NoSuchFileException | N5Exception.N5NoSuchKeyException e) {
+            return null;
+        } catch (IOException e) {
+            throw new ContentException("Error reading block " + blockPath, e);
+        }
+    }
 }
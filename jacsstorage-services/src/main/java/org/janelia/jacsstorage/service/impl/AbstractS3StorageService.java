@@ -1,10 +1,27 @@
 package org.janelia.jacsstorage.service.impl;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.io.ByteStreams;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
 import org.janelia.jacsstorage.service.ContentAccessParams;
 import org.janelia.jacsstorage.service.ContentException;
@@ -12,8 +29,17 @@ import org.janelia.jacsstorage.service.ContentNode;
 import org.janelia.jacsstorage.service.ContentStorageService;
 import org.janelia.jacsstorage.service.StorageCapacity;
 import org.janelia.jacsstorage.service.s3.S3Adapter;
+import org.janelia.jacsstorage.service.s3.S3MultipartUploader;
+import org.janelia.jacsstorage.service.s3.S3RangedDownloader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.model.S3Object;
 
 abstract class AbstractS3StorageService implements ContentStorageService {
@@ -21,32 +47,309 @@ abstract class AbstractS3StorageService implements ContentStorageService {
     private final static Logger LOG = LoggerFactory.getLogger(AbstractS3StorageService.class);
 
     final S3Adapter s3Adapter;
+    final S3ListingCache listingCache;
+    final S3MetadataCache metadataCache;
+    private final S3MultipartUploader multipartUploader;
+    private final S3RangedDownloader rangedDownloader;
 
-    AbstractS3StorageService(S3Adapter s3Adapter) {
+    AbstractS3StorageService(S3Adapter s3Adapter,
+                             S3ListingCache listingCache,
+                             S3MetadataCache metadataCache,
+                             S3MultipartUploader multipartUploader,
+                             S3RangedDownloader rangedDownloader) {
         this.s3Adapter = s3Adapter;
+        this.listingCache = listingCache;
+        this.metadataCache = metadataCache;
+        this.multipartUploader = multipartUploader;
+        this.rangedDownloader = rangedDownloader;
     }
 
-    public List<ContentNode> listContentNodes(String contentLocation, ContentAccessParams contentAccessParams) {
+    @Override
+    public Stream<ContentNode> streamContentNodes(String contentLocation, ContentAccessParams contentAccessParams) {
         long startTime = System.currentTimeMillis();
+        String s3Location = adjustLocation(contentLocation);
+        LOG.debug("List content {} with {}", s3Location, contentAccessParams);
+
+        Stream<ContentNode> matchingNodes = listingCache.streamListing(s3Adapter, s3Location, contentAccessParams,
+                startAfterEntry -> streamMatchingNodes(s3Location, startAfterEntry, contentAccessParams));
+        // the entries are selected after the listing so that a cached listing can serve any page
+        return matchingNodes
+                .skip(Math.max(0, contentAccessParams.getStartEntryIndex()))
+                .limit(contentAccessParams.getEntriesCount() > 0
+                        ? contentAccessParams.getEntriesCount()
+                        : Long.MAX_VALUE)
+                .onClose(() -> LOG.debug("List content {} with {} - {} secs", contentLocation, contentAccessParams, (System.currentTimeMillis() - startTime) / 1000.));
+    }
+
+    private Stream<ContentNode> streamMatchingNodes(String s3Location, String startAfterEntry, ContentAccessParams contentAccessParams) {
+        if (contentAccessParams.isOrderedListing()) {
+            return streamOrderedNodes(s3Location, startAfterEntry, contentAccessParams);
+        } else if (contentAccessParams.isDirectoriesOnly()) {
+            return streamPrefixNodes(s3Location, contentAccessParams);
+        } else {
+            return streamObjectNodes(s3Location, contentAccessParams);
+        }
+    }
+
+    abstract Stream<ContentNode> streamPrefixNodes(String s3Location, ContentAccessParams contentAccessParams);
+
+    abstract Stream<ContentNode> streamObjectNodes(String s3Location, ContentAccessParams contentAccessParams);
+
+    /**
+     * Retrieve a single page of a listing.
+     */
+    abstract ListObjectsV2Response listObjectsPage(ListObjectsV2Request listRequest);
+
+    private Stream<ContentNode> streamOrderedNodes(String s3Location, String startAfterEntry, ContentAccessParams contentAccessParams) {
+        LOG.debug("List ordered nodes at {} after {} with {}", s3Location, startAfterEntry, contentAccessParams);
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(new OrderedNodesIterator(s3Location, startAfterEntry, contentAccessParams), Spliterator.ORDERED | Spliterator.NONNULL),
+                false);
+    }
+
+    /**
+     * Listing of the direct children of a prefix in key order, one page at a time.
+     */
+    private class PrefixListing {
+        private final String prefix;
+        private final String skippedPrefix;
+        private final Deque<Pair<String, S3Object>> pendingEntries = new ArrayDeque<>();
+        private ListObjectsV2Request nextPageRequest;
+
+        /**
+         * @param prefix listed prefix
+         * @param startAfter if not null, only the keys after this one are listed
+         * @param skippedPrefix common prefix that must not be returned because it was already traversed
+         */
+        PrefixListing(String prefix, String startAfter, String skippedPrefix) {
+            this.prefix = prefix;
+            this.skippedPrefix = skippedPrefix;
+            this.nextPageRequest = ListObjectsV2Request.builder()
+                    .bucket(s3Adapter.getBucket())
+                    .prefix(prefix)
+                    .delimiter("/")
+                    .startAfter(startAfter)
+                    .build();
+        }
+
+        /**
+         * @return the next entry as a (key, object) pair where the object is null if the entry is a common prefix
+         */
+        Pair<String, S3Object> next() {
+            while (pendingEntries.isEmpty() && nextPageRequest != null) {
+                ListObjectsV2Response listResponse = listObjectsPage(nextPageRequest);
+                nextPageRequest = Boolean.TRUE.equals(listResponse.isTruncated())
+                        ? nextPageRequest.toBuilder().continuationToken(listResponse.nextContinuationToken()).build()
+                        : null;
+                List<Pair<String, S3Object>> pageEntries = new ArrayList<>();
+                listResponse.commonPrefixes().stream()
+                        .map(CommonPrefix::prefix)
+                        .filter(p -> !p.equals(skippedPrefix))
+                        .forEach(p -> pageEntries.add(Pair.of(p, null)));
+                listResponse.contents().forEach(o -> pageEntries.add(Pair.of(o.key(), o)));
+                // interleave the prefixes and the objects in key order
+                pageEntries.sort(Comparator.comparing(Pair::getLeft));
+                pendingEntries.addAll(pageEntries);
+            }
+            return pendingEntries.poll();
+        }
+    }
+
+    /**
+     * Depth first traversal in which every prefix is followed by its content and all entries of a prefix are in key order.
+     * A listing that starts after a given key only needs to list the prefixes on that key's path.
+     */
+    private class OrderedNodesIterator extends AbstractIterator<ContentNode> {
+        private final String s3Location;
+        private final ContentAccessParams contentAccessParams;
+        private final Deque<PrefixListing> prefixListings = new ArrayDeque<>();
+        private boolean firstEntry;
+        private Pair<String, S3Object> replayedEntry;
+
+        OrderedNodesIterator(String s3Location, String startAfterEntry, ContentAccessParams contentAccessParams) {
+            this.s3Location = s3Location;
+            this.contentAccessParams = contentAccessParams;
+            String startAfter = StringUtils.isEmpty(startAfterEntry)
+                    ? null
+                    : adjustLocation(startAfterEntry);
+            if (startAfter == null) {
+                firstEntry = true;
+                prefixListings.push(new PrefixListing(s3Location, null, null));
+            } else if (!startAfter.startsWith(s3Location)) {
+                throw new IllegalArgumentException("Cannot resume listing " + s3Location + " after " + startAfter);
+            } else {
+                positionAfter(startAfter);
+            }
+        }
+
+        private void positionAfter(String startAfter) {
+            if (startAfter.equals(s3Location)) {
+                // the listed prefix itself was the last returned entry
+                prefixListings.push(new PrefixListing(s3Location, null, null));
+                return;
+            }
+            String currentPrefix = s3Location;
+            for (;;) {
+                int separatorIndex = startAfter.indexOf('/', currentPrefix.length());
+                if (separatorIndex == -1) {
+                    // the last returned entry was an object
+                    prefixListings.push(new PrefixListing(currentPrefix, startAfter, null));
+                    return;
+                }
+                String childPrefix = startAfter.substring(0, separatorIndex + 1);
+                // the entries that follow the child prefix are listed after the child prefix' content
+                prefixListings.push(new PrefixListing(currentPrefix, childPrefix, childPrefix));
+                if (!contentAccessParams.checkDepth(getPathDepth(s3Location, childPrefix))) {
+                    return;
+                }
+                if (childPrefix.equals(startAfter)) {
+                    // the last returned entry was a prefix so its content comes next
+                    prefixListings.push(new PrefixListing(childPrefix, null, null));
+                    return;
+                }
+                currentPrefix = childPrefix;
+            }
+        }
+
+        @Override
+        protected ContentNode computeNext() {
+            while (!prefixListings.isEmpty()) {
+                Pair<String, S3Object> entry;
+                if (replayedEntry != null) {
+                    entry = replayedEntry;
+                    replayedEntry = null;
+                } else {
+                    entry = prefixListings.peek().next();
+                }
+                if (entry == null) {
+                    prefixListings.pop();
+                    continue;
+                }
+                String entryKey = entry.getLeft();
+                S3Object s3Object = entry.getRight();
+                if (firstEntry) {
+                    firstEntry = false;
+                    if (s3Object != null && entryKey.equals(s3Location) && !s3Location.endsWith("/")) {
+                        // if there is an exact key match only return that object
+                        prefixListings.clear();
+                        return createObjectNode(s3Object);
+                    }
+                    if (s3Location.endsWith("/") &&
+                            contentAccessParams.checkDepth(getPathDepth(s3Location, s3Location)) &&
+                            contentAccessParams.matchEntry(s3Location)) {
+                        // the listed prefix is returned only if it has some content and it comes before its first entry
+                        replayedEntry = entry;
+                        return createPrefixNode(s3Location);
+                    }
+                }
+                if (s3Object != null && entryKey.endsWith("/")) {
+                    // a folder marker object has the same key as its prefix, which is already returned as a prefix node
+                    continue;
+                }
+                if (s3Object == null) {
+                    if (contentAccessParams.checkDepth(getPathDepth(s3Location, entryKey))) {
+                        prefixListings.push(new PrefixListing(entryKey, null, null));
+                    }
+                    if (contentAccessParams.matchEntry(entryKey)) {
+                        return createPrefixNode(entryKey);
+                    }
+                } else if (!contentAccessParams.isDirectoriesOnly() && contentAccessParams.matchEntry(entryKey)) {
+                    return createObjectNode(s3Object);
+                }
+            }
+            return endOfData();
+        }
+    }
+
+    @Override
+    public long streamContentToOutput(String contentLocation, OutputStream outputStream) {
+        String s3Location = adjustLocation(contentLocation);
+        LOG.debug("Stream from {}:{} to another output stream", s3Adapter.getBucket(), s3Location);
+        return streamObjectToOutput(s3Location, 0, -1, outputStream);
+    }
+
+    @Override
+    public long streamContentRangeToOutput(String contentLocation, long offset, long length, OutputStream outputStream) {
+        if (length == 0) {
+            return 0L;
+        }
+        String s3Location = adjustLocation(contentLocation);
+        LOG.debug("Stream range {}:{} from {}:{} to another output stream", offset, length, s3Adapter.getBucket(), s3Location);
         try {
-            String s3Location = adjustLocation(contentLocation);
-            LOG.debug("List content {} with {}", s3Location, contentAccessParams);
+            return streamObjectToOutput(s3Location, offset, length, outputStream);
+        } catch (S3Exception e) {
+            if (e.statusCode() == 416) {
+                // range is outside of the object
+                return 0L;
+            }
+            throw new ContentException("Error streaming range " + getByteRange(offset, length) + " from " + contentLocation, e);
+        }
+    }
+
+    /**
+     * Open the content of the object. The returned stream is positioned after the response headers
+     * so the size of the content is known before any content is read.
+     */
+    abstract ResponseInputStream<GetObjectResponse> openObjectStream(GetObjectRequest getObjectRequest);
 
-            if (contentAccessParams.isDirectoriesOnly()) {
-                return listPrefixNodes(s3Location, contentAccessParams);
+    /**
+     * Large content is not streamed over the connection opened for the request. Once the response
+     * shows that the content exceeds the ranged download threshold, the connection is dropped and the content is
+     * downloaded as ranges fetched in parallel.
+     */
+    long streamObjectToOutput(String s3Location, long offset, long length, OutputStream outputStream) {
+        ResponseInputStream<GetObjectResponse> objectStream = openObjectStream(createGetObjectRequest(s3Location, offset, length));
+        try {
+            if (isRangedDownload(objectStream.response())) {
+                objectStream.abort();
+                return downloadRanges(s3Location, offset, objectStream.response(), outputStream);
             } else {
-                return listObjectNodes(s3Location, contentAccessParams);
+                return ByteStreams.copy(objectStream, outputStream);
             }
+        } catch (IOException e) {
+            throw new ContentException("Error streaming content from " + s3Location, e);
         } finally {
-            LOG.debug("List content {} with {} - {} secs", contentLocation, contentAccessParams, (System.currentTimeMillis() - startTime) / 1000.);
+            try {
+                objectStream.close();
+            } catch (IOException ignore) {
+                // nothing to do
+            }
         }
     }
 
-    abstract List<ContentNode> listPrefixNodes(String s3Location, ContentAccessParams contentAccessParams);
+    GetObjectRequest createGetObjectRequest(String s3Location, long offset, long length) {
+        GetObjectRequest.Builder getObjectRequestBuilder = GetObjectRequest.builder()
+                .bucket(s3Adapter.getBucket())
+                .key(s3Location);
+        if (offset > 0 || length >= 0) {
+            getObjectRequestBuilder.range(getByteRange(offset, length));
+        }
+        return getObjectRequestBuilder.build();
+    }
+
+    boolean isRangedDownload(GetObjectResponse getObjectResponse) {
+        return getObjectResponse.contentLength() != null && rangedDownloader.isRangedDownload(getObjectResponse.contentLength());
+    }
+
+    long downloadRanges(String s3Location, long offset, GetObjectResponse getObjectResponse, OutputStream outputStream) {
+        return rangedDownloader.download(s3Adapter, s3Location, offset, getObjectResponse.contentLength(), getObjectResponse.eTag(), outputStream);
+    }
 
-    abstract List<ContentNode> listObjectNodes(String s3Location, ContentAccessParams contentAccessParams);
+    /**
+     * The content is uploaded in parts so the memory used does not depend on the size of the content.
+     */
+    @Override
+    public long writeContent(String contentLocation, InputStream inputStream) {
+        String s3Location = adjustLocation(contentLocation);
+        try {
+            return multipartUploader.upload(s3Adapter, s3Location, inputStream);
+        } finally {
+            // a failed upload may still have replaced the object
+            invalidateCachedContent(s3Location);
+        }
+    }
 
-    ContentNode createObjectNode(String key, Long size, Instant lastModified) {
+    ContentNode createObjectNode(String key, Long size, Instant lastModified, String etag) {
         try {
             int pathSeparatorIndex = key.lastIndexOf('/');
             String prefix;
@@ -63,6 +366,7 @@ abstract class AbstractS3StorageService implements ContentStorageService {
                     .setPrefix(prefix)
                     .setSize(size != null ? size : 0L)
                     .setLastModified(new Date(lastModified.toEpochMilli()))
+                    .setEtag(etag)
                     .setCollection(false)
                     ;
         } catch (Exception e) {
@@ -71,7 +375,7 @@ abstract class AbstractS3StorageService implements ContentStorageService {
     }
 
     ContentNode createObjectNode(S3Object s3Object) {
-        return createObjectNode(s3Object.key(), s3Object.size(), s3Object.lastModified());
+        return createObjectNode(s3Object.key(), s3Object.size(), s3Object.lastModified(), s3Object.eTag());
     }
 
     ContentNode createPrefixNode(String s3Prefix) {
@@ -111,6 +415,37 @@ abstract class AbstractS3StorageService implements ContentStorageService {
         return StringUtils.isBlank(s) ? "" : s;
     }
 
+    /**
+     * @return the HTTP range header value used for ranged GETs
+     */
+    String getByteRange(long offset, long length) {
+        return length >= 0
+                ? "bytes=" + offset + "-" + (offset + length - 1)
+                : "bytes=" + offset + "-";
+    }
+
+    /**
+     * Invalidate the cached listings and metadata that may have been changed by writing or deleting the given key.
+     */
+    void invalidateCachedContent(String s3Location) {
+        listingCache.invalidateKey(s3Adapter, s3Location);
+        metadataCache.invalidateKey(s3Adapter, s3Location);
+    }
+
+    /**
+     * Wait for the result and rethrow the failure as it was raised by the asynchronous operation.
+     */
+    <T> T join(CompletableFuture<T> resultPromise) {
+        try {
+            return resultPromise.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ContentException(e.getCause());
+        }
+    }
+
     int getPathDepth(String basePath, String p) {
         String relativePrefix = StringUtils.removeEnd(
                 StringUtils.removeStart(p.substring(basePath.length()), '/'),
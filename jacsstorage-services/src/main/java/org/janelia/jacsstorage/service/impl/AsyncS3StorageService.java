@@ -2,95 +2,151 @@ package org.janelia.jacsstorage.service.impl;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
 
 import org.janelia.jacsstorage.coreutils.ComparatorUtils;
-import org.janelia.jacsstorage.coreutils.IOStreamUtils;
 import org.janelia.jacsstorage.service.ContentAccessParams;
 import org.janelia.jacsstorage.service.ContentException;
 import org.janelia.jacsstorage.service.ContentNode;
 import org.janelia.jacsstorage.service.NoContentFoundException;
 import org.janelia.jacsstorage.service.s3.S3Adapter;
+import org.janelia.jacsstorage.service.s3.S3ContentWriter;
+import org.janelia.jacsstorage.service.s3.S3MultipartUploader;
+import org.janelia.jacsstorage.service.s3.S3RangedDownloader;
+import org.janelia.jacsstorage.service.s3.S3TreeLister;
 import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.BaseSubscriber;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.async.AsyncResponseTransformer;
-import software.amazon.awssdk.core.async.BlockingInputStreamAsyncRequestBody;
+import software.amazon.awssdk.core.async.ResponsePublisher;
 import software.amazon.awssdk.services.s3.model.CommonPrefix;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
 import software.amazon.awssdk.services.s3.model.NoSuchBucketException;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
-import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.model.S3Object;
 import software.amazon.awssdk.services.s3.paginators.ListObjectsV2Publisher;
 
 public class AsyncS3StorageService extends AbstractS3StorageService {
 
     private final static Logger LOG = LoggerFactory.getLogger(AsyncS3StorageService.class);
-
-    AsyncS3StorageService(S3Adapter s3Adapter) {
-        super(s3Adapter);
+    // number of buffers received from S3 ahead of the buffer being written
+    private final static int PREFETCHED_BUFFERS = 4;
+
+    private final S3TreeLister treeLister;
+
+    AsyncS3StorageService(S3Adapter s3Adapter,
+                          S3ListingCache listingCache,
+                          S3MetadataCache metadataCache,
+                          S3MultipartUploader multipartUploader,
+                          S3RangedDownloader rangedDownloader,
+                          S3TreeLister treeLister) {
+        super(s3Adapter, listingCache, metadataCache, multipartUploader, rangedDownloader);
+        this.treeLister = treeLister;
     }
 
     @Override
     public boolean canAccess(String contentLocation) {
+        return join(canAccessAsync(contentLocation));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> canAccessAsync(String contentLocation) {
         String s3Location = adjustLocation(contentLocation);
-        LOG.debug("Check access to {}", s3Location);
-        // we cannot simply do a head request because that only works for existing objects
-        // and contentLocation may be a prefix
-        ListObjectsV2Request initialRequest = ListObjectsV2Request.builder()
-                .bucket(s3Adapter.getBucket())
-                .prefix(s3Location)
-                .maxKeys(1)
-                .build();
-        Publisher<Boolean> contentIsAccessible = s3Adapter.getAsyncS3Client().listObjectsV2Paginator(initialRequest)
-                .map(r -> !r.contents().isEmpty())
-                .limit(1);
-        return Mono.from(contentIsAccessible).block();
+        return metadataCache.canAccess(s3Adapter, s3Location, () -> {
+            LOG.debug("Check access to {}", s3Location);
+            // we cannot simply do a head request because that only works for existing objects
+            // and contentLocation may be a prefix
+            ListObjectsV2Request initialRequest = ListObjectsV2Request.builder()
+                    .bucket(s3Adapter.getBucket())
+                    .prefix(s3Location)
+                    .maxKeys(1)
+                    .build();
+            Publisher<Boolean> contentIsAccessible = s3Adapter.getAsyncS3Client().listObjectsV2Paginator(initialRequest)
+                    .map(r -> !r.contents().isEmpty())
+                    .limit(1);
+            return Mono.from(contentIsAccessible).defaultIfEmpty(false).toFuture();
+        });
     }
 
     @Override
     public ContentNode getObjectNode(String contentLocation) {
         String s3Location = adjustLocation(contentLocation);
 
-        HeadObjectRequest contentRequest = HeadObjectRequest.builder()
-                .bucket(s3Adapter.getBucket())
-                .key(s3Location)
-                .build();
-
-        CompletableFuture<ContentNode> contentPromise = s3Adapter.getAsyncS3Client().headObject(contentRequest)
-                .thenApply(contentResponse -> createObjectNode(contentLocation, contentResponse.contentLength(), contentResponse.lastModified()))
-                .whenComplete((n, e) -> {
-                    if (e != null) {
-                        if (e instanceof NoSuchBucketException || e instanceof NoSuchKeyException) {
-                            throw new NoContentFoundException(e);
-                        } else {
-                            throw new ContentException(e);
+        return join(metadataCache.getObjectNode(s3Adapter, s3Location, () -> {
+            HeadObjectRequest contentRequest = HeadObjectRequest.builder()
+                    .bucket(s3Adapter.getBucket())
+                    .key(s3Location)
+                    .build();
+
+            return s3Adapter.getAsyncS3Client().headObject(contentRequest)
+                    .handle((contentResponse, e) -> {
+                        if (e != null) {
+                            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                            if (cause instanceof NoSuchBucketException || cause instanceof NoSuchKeyException) {
+                                throw new NoContentFoundException(cause);
+                            } else {
+                                throw new ContentException(cause);
+                            }
                         }
-                    }
-                });
+                        return createObjectNode(s3Location, contentResponse.contentLength(), contentResponse.lastModified(), contentResponse.eTag());
+                    });
+        }));
+    }
 
-        return contentPromise.join();
+    @Override
+    public CompletableFuture<List<ContentNode>> listContentNodesAsync(String contentLocation, ContentAccessParams contentAccessParams) {
+        if (contentAccessParams.isOrderedListing()) {
+            // ordered listings are retrieved page by page
+            return super.listContentNodesAsync(contentLocation, contentAccessParams);
+        }
+        String s3Location = adjustLocation(contentLocation);
+        LOG.debug("List content {} with {}", s3Location, contentAccessParams);
+        return listingCache.getListing(s3Adapter, s3Location, contentAccessParams,
+                        () -> {
+                            Flux<ContentNode> contentNodes = contentAccessParams.isDirectoriesOnly()
+                                    ? prefixNodes(s3Location, contentAccessParams)
+                                    : objectNodes(s3Location, contentAccessParams);
+                            return contentNodes.collectList().toFuture();
+                        })
+                .thenApply(contentNodes -> {
+                    // an unordered listing has no entries count so only the first entries may be skipped;
+                    // the cached listing is shared so the caller gets its own copy
+                    int startEntryIndex = Math.min(Math.max(0, contentAccessParams.getStartEntryIndex()), contentNodes.size());
+                    return new ArrayList<>(contentNodes.subList(startEntryIndex, contentNodes.size()));
+                });
     }
 
     @Override
-    List<ContentNode> listPrefixNodes(String s3Location, ContentAccessParams contentAccessParams) {
+    Stream<ContentNode> streamPrefixNodes(String s3Location, ContentAccessParams contentAccessParams) {
         LOG.debug("List prefix nodes at {}", s3Location);
 
-        return processSubPrefixes(s3Location, s3Location, contentAccessParams, 0)
-                .toStream()
-                .collect(Collectors.toList());
+        // the stream requests more listing pages only as the nodes are consumed;
+        // closing the stream cancels the remaining listing requests
+        return prefixNodes(s3Location, contentAccessParams).toStream();
+    }
+
+    private Flux<ContentNode> prefixNodes(String s3Location, ContentAccessParams contentAccessParams) {
+        if (treeLister.isFlatListing(contentAccessParams)) {
+            return treeLister.listTree(s3Adapter, s3Location, contentAccessParams, false)
+                    .map(this::createTreeEntryNode);
+        }
+        return processSubPrefixes(s3Location, s3Location, contentAccessParams, 0);
     }
 
     private Flux<ContentNode> processSubPrefixes(String basePrefix,
@@ -130,16 +186,16 @@ public class AsyncS3StorageService extends AbstractS3StorageService {
     }
 
     @Override
-    List<ContentNode> listObjectNodes(String s3Location, ContentAccessParams contentAccessParams) {
+    Stream<ContentNode> streamObjectNodes(String s3Location, ContentAccessParams contentAccessParams) {
         LOG.debug("List object nodes at {}", s3Location);
 
-        return processAllNodes(s3Location, s3Location, contentAccessParams, 0)
-                .skip(Math.max(0, contentAccessParams.getStartEntryIndex()))
-                .take(contentAccessParams.getEntriesCount() > 0
-                        ? contentAccessParams.getEntriesCount()
-                        : Long.MAX_VALUE)
-                .toStream()
-                .collect(Collectors.toList());
+        return objectNodes(s3Location, contentAccessParams).toStream();
+    }
+
+    private Flux<ContentNode> objectNodes(String s3Location, ContentAccessParams contentAccessParams) {
+        return treeLister.isFlatListing(contentAccessParams)
+                ? treeLister.listTree(s3Adapter, s3Location, contentAccessParams, true).map(this::createTreeEntryNode)
+                : processAllNodes(s3Location, s3Location, contentAccessParams, 0);
     }
 
     private Flux<ContentNode> processAllNodes(String basePrefix,
@@ -193,6 +249,21 @@ public class AsyncS3StorageService extends AbstractS3StorageService {
                 });
     }
 
+    private ContentNode createTreeEntryNode(S3TreeLister.TreeEntry treeEntry) {
+        return treeEntry.isPrefix()
+                ? createPrefixNode(treeEntry.getKey())
+                : createObjectNode(treeEntry.getS3Object());
+    }
+
+    @Override
+    ListObjectsV2Response listObjectsPage(ListObjectsV2Request listRequest) {
+        try {
+            return s3Adapter.getAsyncS3Client().listObjectsV2(listRequest).join();
+        } catch (CompletionException e) {
+            throw new ContentException("Error listing " + listRequest.prefix(), e.getCause());
+        }
+    }
+
     @Override
     public InputStream getContentInputStream(String contentLocation) {
         String s3Location = adjustLocation(contentLocation);
@@ -202,47 +273,54 @@ public class AsyncS3StorageService extends AbstractS3StorageService {
                 .bucket(s3Adapter.getBucket())
                 .key(s3Location)
                 .build();
-        return s3Adapter.getAsyncS3Client().getObject(getObjectRequest, AsyncResponseTransformer.toBlockingInputStream())
-                .join();
+        return openObjectStream(getObjectRequest);
     }
 
     @Override
-    public long streamContentToOutput(String contentLocation, OutputStream outputStream) {
-        String s3Location = adjustLocation(contentLocation);
-        LOG.debug("Stream async from {}:{} to another output stream", s3Adapter.getBucket(), s3Location);
-
-        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                .bucket(s3Adapter.getBucket())
-                .key(s3Location)
-                .build();
-        AtomicLong nbytes = new AtomicLong(0L);
-        s3Adapter.getAsyncS3Client().getObject(getObjectRequest, AsyncResponseTransformer.toPublisher())
-                .thenCompose(pub -> pub.subscribe(buf -> nbytes.addAndGet(IOStreamUtils.copyFrom(buf.array(), outputStream))))
-                .join();
-        return nbytes.get();
+    ResponseInputStream<GetObjectResponse> openObjectStream(GetObjectRequest getObjectRequest) {
+        return getObject(getObjectRequest, AsyncResponseTransformer.toBlockingInputStream());
     }
 
+    /**
+     * The content is written from the buffers received by the S3 client, requesting more content only as
+     * the output stream consumes it.
+     */
     @Override
-    public long writeContent(String contentLocation, InputStream inputStream) {
-        String s3Location = adjustLocation(contentLocation);
-
-        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                .bucket(s3Adapter.getBucket())
-                .key(s3Location)
-                .build();
-
-        // prepare the body - indicating that stream will be provided later
-        BlockingInputStreamAsyncRequestBody body = AsyncRequestBody.forBlockingInputStream(null);
+    long streamObjectToOutput(String s3Location, long offset, long length, OutputStream outputStream) {
+        ResponsePublisher<GetObjectResponse> objectPublisher = getObject(createGetObjectRequest(s3Location, offset, length), AsyncResponseTransformer.toPublisher());
+        if (isRangedDownload(objectPublisher.response())) {
+            objectPublisher.subscribe(new BaseSubscriber<ByteBuffer>() {
+                @Override
+                protected void hookOnSubscribe(Subscription subscription) {
+                    // release the connection without receiving the content
+                    cancel();
+                }
+            });
+            return downloadRanges(s3Location, offset, objectPublisher.response(), outputStream);
+        }
+        S3ContentWriter contentWriter = new S3ContentWriter(PREFETCHED_BUFFERS);
+        objectPublisher.subscribe(contentWriter);
+        return contentWriter.writeTo(outputStream);
+    }
 
-        CompletableFuture<PutObjectResponse> putContentPromise = s3Adapter.getAsyncS3Client().putObject(putObjectRequest, body);
-        // write the content
-        long nbytes = body.writeInputStream(inputStream);
-        putContentPromise.join();
-        return nbytes;
+    private <T> T getObject(GetObjectRequest getObjectRequest, AsyncResponseTransformer<GetObjectResponse, T> responseTransformer) {
+        try {
+            return s3Adapter.getAsyncS3Client().getObject(getObjectRequest, responseTransformer).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof S3Exception) {
+                throw (S3Exception) e.getCause();
+            }
+            throw new ContentException("Error getting " + getObjectRequest.key(), e.getCause());
+        }
     }
 
     @Override
     public void deleteContent(String contentLocation) {
+        join(deleteContentAsync(contentLocation));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteContentAsync(String contentLocation) {
         String s3Location = adjustLocation(contentLocation);
 
         DeleteObjectRequest deleteObjectRequest = DeleteObjectRequest.builder()
@@ -250,15 +328,13 @@ public class AsyncS3StorageService extends AbstractS3StorageService {
                 .key(s3Location)
                 .build();
 
-        CompletableFuture<Void> deletePromise = s3Adapter.getAsyncS3Client().deleteObject(deleteObjectRequest)
-                .whenComplete((deleteResponse, ex) -> {
-                    if (ex != null) {
-                        throw new ContentException("Error deleting content at " + contentLocation, ex);
+        return s3Adapter.getAsyncS3Client().deleteObject(deleteObjectRequest)
+                .handle((deleteResponse, e) -> {
+                    invalidateCachedContent(s3Location);
+                    if (e != null) {
+                        throw new ContentException("Error deleting content at " + contentLocation, e instanceof CompletionException ? e.getCause() : e);
                     }
-                })
-                .thenAccept(response -> {
+                    return null;
                 });
-
-        deletePromise.join();
     }
 }
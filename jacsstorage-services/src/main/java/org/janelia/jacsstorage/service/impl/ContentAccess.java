@@ -3,6 +3,7 @@ package org.janelia.jacsstorage.service.impl;
 import java.io.OutputStream;
 import java.util.List;
 
+import org.janelia.jacsstorage.coreutils.RangeOutputStream;
 import org.janelia.jacsstorage.service.ContentAccessParams;
 import org.janelia.jacsstorage.service.ContentNode;
 import org.janelia.jacsstorage.service.ContentStreamReader;
@@ -41,4 +42,33 @@ public interface ContentAccess {
     long retrieveContent(List<ContentNode> contentNodes, ContentAccessParams contentAccessParams,
                          ContentStreamReader contentObjectReader,
                          OutputStream outputStream);
+
+    /**
+     * Retrieve only a byte range of the content that would be returned by retrieveContent.
+     * The default implementation generates the content and discards everything outside of the requested range,
+     * so implementations that can locate the range directly should override it.
+     *
+     * @param contentNodes list of nodes from which the content is extracted
+     * @param contentAccessParams content access specific paremeters.
+     * @param contentObjectReader object that knows how to stream content for a single node.
+     * @param offset range start
+     * @param length range length; if negative the range extends to the end of the content
+     * @param outputStream result output stream
+     * @return number of bytes written
+     */
+    default long retrieveContentRange(List<ContentNode> contentNodes, ContentAccessParams contentAccessParams,
+                                      ContentStreamReader contentObjectReader,
+                                      long offset, long length,
+                                      OutputStream outputStream) {
+        RangeOutputStream rangeOutputStream = new RangeOutputStream(outputStream, offset, length);
+        try {
+            retrieveContent(contentNodes, contentAccessParams, contentObjectReader, rangeOutputStream);
+        } catch (RuntimeException e) {
+            // once the range was written, the generator is stopped by an exception so ignore it
+            if (!rangeOutputStream.isRangeComplete()) {
+                throw e;
+            }
+        }
+        return rangeOutputStream.getBytesWritten();
+    }
 }
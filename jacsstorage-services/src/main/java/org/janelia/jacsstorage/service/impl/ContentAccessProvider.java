@@ -5,27 +5,34 @@ import javax.inject.Inject;
 
 import com.google.common.collect.Streams;
 import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.janelia.jacsstorage.service.impl.contenthandling.ContentPrefetcher;
 import org.janelia.jacsstorage.service.impl.contenthandling.DirectContentAccess;
 import org.janelia.jacsstorage.service.impl.contenthandling.SimpleMetadataReader;
+import org.janelia.jacsstorage.service.impl.contenthandling.ZipContentArchiver;
 
 public class ContentAccessProvider {
 
     private final Instance<ContentAccess> contentAccessProvider;
     private final Instance<ContentMetadataReader> contentMetadataReaderProvider;
-
+    private final ContentPrefetcher contentPrefetcher;
+    private final ZipContentArchiver zipContentArchiver;
 
     @Inject
     public ContentAccessProvider(Instance<ContentAccess> contentAccessProvider,
-                                 Instance<ContentMetadataReader> contentMetadataReaderProvider) {
+                                 Instance<ContentMetadataReader> contentMetadataReaderProvider,
+                                 ContentPrefetcher contentPrefetcher,
+                                 ZipContentArchiver zipContentArchiver) {
         this.contentAccessProvider = contentAccessProvider;
         this.contentMetadataReaderProvider = contentMetadataReaderProvider;
+        this.contentPrefetcher = contentPrefetcher;
+        this.zipContentArchiver = zipContentArchiver;
     }
 
     ContentAccess getContentFilter(ContentAccessParams contentAccessParams) {
         return Streams.stream(contentAccessProvider)
                 .filter(contentStreamFilter -> contentAccessParams != null && contentStreamFilter.isAccessTypeSupported(contentAccessParams.getFilterType()))
                 .findFirst()
-                .orElseGet(() -> new DirectContentAccess(contentAccessParams != null && contentAccessParams.isAlwaysArchive()));
+                .orElseGet(() -> new DirectContentAccess(contentAccessParams != null && contentAccessParams.isAlwaysArchive(), contentPrefetcher, zipContentArchiver));
     }
 
     ContentMetadataReader getContentMetadataReader(String mimeType) {
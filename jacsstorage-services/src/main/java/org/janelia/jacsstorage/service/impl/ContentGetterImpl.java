@@ -60,4 +60,10 @@ public class ContentGetterImpl implements ContentGetter {
         ContentAccess contentAccess = contentAccessProvider.getContentFilter(contentAccessParams);
         return contentAccess.retrieveContent(contentNodes, contentAccessParams, contentStorageService, outputStream);
     }
+
+    @Override
+    public long streamContentRange(long offset, long length, OutputStream outputStream) {
+        ContentAccess contentAccess = contentAccessProvider.getContentFilter(contentAccessParams);
+        return contentAccess.retrieveContentRange(contentNodes, contentAccessParams, contentStorageService, offset, length, outputStream);
+    }
 }
@@ -9,6 +9,9 @@ import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
 import org.janelia.jacsstorage.service.ContentStorageService;
 import org.janelia.jacsstorage.service.s3.S3Adapter;
 import org.janelia.jacsstorage.service.s3.S3AdapterProvider;
+import org.janelia.jacsstorage.service.s3.S3MultipartUploader;
+import org.janelia.jacsstorage.service.s3.S3RangedDownloader;
+import org.janelia.jacsstorage.service.s3.S3TreeLister;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,6 +19,13 @@ class ContentStorageServiceProvider {
     private static final Logger LOG = LoggerFactory.getLogger(ContentStorageServiceProvider.class);
 
     private final S3AdapterProvider s3AdapterProvider;
+    private final S3MultipartUploader s3MultipartUploader;
+    private final S3RangedDownloader s3RangedDownloader;
+    private final S3TreeLister s3TreeLister;
+    private final FileSystemDirectoryWalker directoryWalker;
+    private final FileSystemListingCache listingCache;
+    private final S3ListingCache s3ListingCache;
+    private final S3MetadataCache s3MetadataCache;
     private final String defaultAWSRegion;
     private final boolean defaultAsyncAccess;
     private final boolean tryAnonymousAccessFirst;
@@ -24,12 +34,26 @@ class ContentStorageServiceProvider {
 
     @Inject
     ContentStorageServiceProvider(S3AdapterProvider s3AdapterProvider,
+                                  S3MultipartUploader s3MultipartUploader,
+                                  S3RangedDownloader s3RangedDownloader,
+                                  S3TreeLister s3TreeLister,
+                                  FileSystemDirectoryWalker directoryWalker,
+                                  FileSystemListingCache listingCache,
+                                  S3ListingCache s3ListingCache,
+                                  S3MetadataCache s3MetadataCache,
                                   @PropertyValue(name = "AWS.Region.Default", defaultValue = "us-east-1") String defaultAWSRegion,
                                   @PropertyValue(name = "AWS.AsyncAccess.Default", defaultValue = "false") boolean defaultAsyncAccess,
                                   @PropertyValue(name = "AWS.TryAnonymousAccessFirstIfNoCredentialsProvided.Default", defaultValue = "false") boolean tryAnonymousAccessFirst,
                                   @PropertyValue(name = "AWS.ApiCallBufferInMiB.Default", defaultValue = "1024") int apiBufferSizeInMiB,
                                   @PropertyValue(name = "AWS.MinPartSizeInMiB.Default", defaultValue = "384") int minPartSizeInMiB) {
         this.s3AdapterProvider = s3AdapterProvider;
+        this.s3MultipartUploader = s3MultipartUploader;
+        this.s3RangedDownloader = s3RangedDownloader;
+        this.s3TreeLister = s3TreeLister;
+        this.directoryWalker = directoryWalker;
+        this.listingCache = listingCache;
+        this.s3ListingCache = s3ListingCache;
+        this.s3MetadataCache = s3MetadataCache;
         this.defaultAWSRegion = defaultAWSRegion;
         this.defaultAsyncAccess = defaultAsyncAccess;
         this.tryAnonymousAccessFirst = tryAnonymousAccessFirst;
@@ -49,7 +73,7 @@ class ContentStorageServiceProvider {
     }
 
     private ContentStorageService createFileStorageServiceInstance() {
-        return new FileSystemStorageService();
+        return new FileSystemStorageService(directoryWalker, listingCache);
     }
 
     private ContentStorageService createS3StorageServiceInstance(JADEStorageURI storageURI) {
@@ -88,6 +112,8 @@ class ContentStorageServiceProvider {
     }
 
     private ContentStorageService createS3StorageServiceInstance(S3Adapter s3Adapter, boolean useAsync) {
-        return useAsync ? new AsyncS3StorageService(s3Adapter) : new SyncS3StorageService(s3Adapter);
+        return useAsync
+                ? new AsyncS3StorageService(s3Adapter, s3ListingCache, s3MetadataCache, s3MultipartUploader, s3RangedDownloader, s3TreeLister)
+                : new SyncS3StorageService(s3Adapter, s3ListingCache, s3MetadataCache, s3MultipartUploader, s3RangedDownloader);
     }
 }
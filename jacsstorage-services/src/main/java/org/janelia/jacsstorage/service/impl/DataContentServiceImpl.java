@@ -4,6 +4,8 @@ import java.io.InputStream;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 import javax.inject.Inject;
 
@@ -15,17 +17,21 @@ import org.janelia.jacsstorage.service.ContentNode;
 import org.janelia.jacsstorage.service.ContentStorageService;
 import org.janelia.jacsstorage.service.DataContentService;
 import org.janelia.jacsstorage.service.StorageCapacity;
+import org.janelia.jacsstorage.service.impl.n5.N5BlockCache;
 
 public class DataContentServiceImpl implements DataContentService {
 
     private final ContentStorageServiceProvider contentStorageServiceProvider;
     private final ContentAccessProvider contentAccessProvider;
+    private final N5BlockCache n5BlockCache;
 
     @Inject
     DataContentServiceImpl(ContentStorageServiceProvider contentStorageServiceProvider,
-                           ContentAccessProvider contentAccessProvider) {
+                           ContentAccessProvider contentAccessProvider,
+                           N5BlockCache n5BlockCache) {
         this.contentStorageServiceProvider = contentStorageServiceProvider;
         this.contentAccessProvider = contentAccessProvider;
+        this.n5BlockCache = n5BlockCache;
     }
 
     @Override
@@ -37,6 +43,15 @@ public class DataContentServiceImpl implements DataContentService {
         return contentStorageService.canAccess(storageURI.getContentKey());
     }
 
+    @Override
+    public CompletableFuture<Boolean> existsAsync(JADEStorageURI storageURI) {
+        ContentStorageService contentStorageService = contentStorageServiceProvider.getStorageService(storageURI);
+        if (contentStorageService == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return contentStorageService.canAccessAsync(storageURI.getContentKey());
+    }
+
     @Override
     public StorageCapacity storageCapacity(JADEStorageURI storageURI) {
         ContentStorageService contentStorageService = contentStorageServiceProvider.getStorageService(storageURI);
@@ -68,6 +83,22 @@ public class DataContentServiceImpl implements DataContentService {
             throw new IllegalArgumentException("Invalid storage URI");
         }
         List<ContentNode> contentNodes = contentStorageService.listContentNodes(storageURI.getContentKey(), contentAccessParams);
+        return createContentGetter(contentStorageService, contentNodes, contentAccessParams);
+    }
+
+    @Override
+    public CompletableFuture<ContentGetter> getDataContentAsync(JADEStorageURI storageURI, ContentAccessParams contentAccessParams) {
+        ContentStorageService contentStorageService = contentStorageServiceProvider.getStorageService(storageURI);
+        if (contentStorageService == null) {
+            throw new IllegalArgumentException("Invalid storage URI");
+        }
+        return contentStorageService.listContentNodesAsync(storageURI.getContentKey(), contentAccessParams)
+                .thenApply(contentNodes -> createContentGetter(contentStorageService, contentNodes, contentAccessParams));
+    }
+
+    private ContentGetter createContentGetter(ContentStorageService contentStorageService,
+                                              List<ContentNode> contentNodes,
+                                              ContentAccessParams contentAccessParams) {
         contentNodes.sort((n1, n2) -> ComparatorUtils.naturalCompare(n1.getObjectKey(), n2.getObjectKey(), true)); // sort by key
         return new ContentGetterImpl(
                 contentStorageService,
@@ -77,13 +108,26 @@ public class DataContentServiceImpl implements DataContentService {
         );
     }
 
+    @Override
+    public Stream<ContentNode> streamDataNodes(JADEStorageURI storageURI, ContentAccessParams contentAccessParams) {
+        ContentStorageService contentStorageService = contentStorageServiceProvider.getStorageService(storageURI);
+        if (contentStorageService == null) {
+            throw new IllegalArgumentException("Invalid storage URI");
+        }
+        return contentStorageService.streamContentNodes(storageURI.getContentKey(), contentAccessParams);
+    }
+
     @Override
     public long writeDataStream(JADEStorageURI storageURI, InputStream dataStream) {
         ContentStorageService contentStorageService = contentStorageServiceProvider.getStorageService(storageURI);
         if (contentStorageService == null) {
             throw new IllegalArgumentException("Invalid storage URI");
         }
-        return contentStorageService.writeContent(storageURI.getContentKey(), dataStream);
+        try {
+            return contentStorageService.writeContent(storageURI.getContentKey(), dataStream);
+        } finally {
+            n5BlockCache.invalidateLocation(storageURI.getJadeStorage());
+        }
     }
 
     @Override
@@ -92,6 +136,20 @@ public class DataContentServiceImpl implements DataContentService {
         if (contentStorageService == null) {
             throw new IllegalArgumentException("Invalid storage URI");
         }
-        contentStorageService.deleteContent(storageURI.getContentKey());
+        try {
+            contentStorageService.deleteContent(storageURI.getContentKey());
+        } finally {
+            n5BlockCache.invalidateLocation(storageURI.getJadeStorage());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> removeDataAsync(JADEStorageURI storageURI) {
+        ContentStorageService contentStorageService = contentStorageServiceProvider.getStorageService(storageURI);
+        if (contentStorageService == null) {
+            throw new IllegalArgumentException("Invalid storage URI");
+        }
+        return contentStorageService.deleteContentAsync(storageURI.getContentKey())
+                .whenComplete((r, e) -> n5BlockCache.invalidateLocation(storageURI.getJadeStorage()));
     }
 }
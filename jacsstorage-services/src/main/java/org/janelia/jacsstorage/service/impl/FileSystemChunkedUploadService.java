@@ -0,0 +1,365 @@
+package org.janelia.jacsstorage.service.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.cdi.qualifier.ScheduledResource;
+import org.janelia.jacsstorage.model.DataInterval;
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
+import org.janelia.jacsstorage.service.ChunkedUpload;
+import org.janelia.jacsstorage.service.ChunkedUploadService;
+import org.janelia.jacsstorage.service.ContentException;
+import org.janelia.jacsstorage.service.NoContentFoundException;
+import org.janelia.jacsstorage.service.impl.n5.N5BlockCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chunked uploads to filesystem volumes. The parts are written with positional writes directly into a temporary
+ * file, sized to the full content when the upload starts, that is placed in a hidden staging directory next to
+ * the target file so that on completion it can be atomically renamed to the target. The staging directories are
+ * never listed, so readers never see a partially uploaded file, and a failed upload leaves the existing target
+ * untouched.
+ *
+ * The state of the uploads is kept in memory - uploads that are not accessed for the configured time
+ * are periodically discarded together with their temporary file.
+ */
+@Singleton
+public class FileSystemChunkedUploadService implements ChunkedUploadService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileSystemChunkedUploadService.class);
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final String TEMP_FILE_SUFFIX = ".upload";
+    public static final String STAGING_DIR_NAME = ".jade_chunked_uploads";
+
+    /**
+     * @return true if the path is a staging directory or it is inside one
+     */
+    public static boolean isStagingPath(Path p) {
+        for (Path pathComponent : p) {
+            if (STAGING_DIR_NAME.equals(pathComponent.toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class UploadState {
+        private final String uploadId;
+        private final JADEStorageURI contentURI;
+        private final String ownerKey;
+        private final Number volumeId;
+        private final Path targetPath;
+        private final Path tempPath;
+        private final long contentSize;
+        private final FileChannel fileChannel;
+        // part writes share the read lock while completing or aborting the upload requires the write lock
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final RangeSet<Long> receivedRanges = TreeRangeSet.create(); // guarded by this
+        private boolean closed; // guarded by lock
+
+        private UploadState(String uploadId, JADEStorageURI contentURI, String ownerKey, Number volumeId,
+                            Path targetPath, Path tempPath, long contentSize, FileChannel fileChannel) {
+            this.uploadId = uploadId;
+            this.contentURI = contentURI;
+            this.ownerKey = ownerKey;
+            this.volumeId = volumeId;
+            this.targetPath = targetPath;
+            this.tempPath = tempPath;
+            this.contentSize = contentSize;
+            this.fileChannel = fileChannel;
+        }
+
+        synchronized void addReceivedRange(long from, long to) {
+            if (to > from) {
+                receivedRanges.add(Range.closedOpen(from, to));
+            }
+        }
+
+        synchronized ChunkedUpload snapshot() {
+            long receivedBytes = 0;
+            for (Range<Long> receivedRange : receivedRanges.asRanges()) {
+                receivedBytes += receivedRange.upperEndpoint() - receivedRange.lowerEndpoint();
+            }
+            List<DataInterval<Long>> missingRanges = new ArrayList<>();
+            if (contentSize > 0) {
+                for (Range<Long> missingRange : receivedRanges.complement().subRangeSet(Range.closedOpen(0L, contentSize)).asRanges()) {
+                    missingRanges.add(new DataInterval<>(missingRange.lowerEndpoint(), missingRange.upperEndpoint()));
+                }
+            }
+            return new ChunkedUpload(uploadId, contentURI, ownerKey, volumeId, contentSize, receivedBytes, missingRanges);
+        }
+
+        void discard() {
+            try {
+                fileChannel.close();
+                Files.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                LOG.warn("Error discarding temporary upload file {}", tempPath, e);
+            }
+        }
+    }
+
+    private final FileSystemListingCache listingCache;
+    private final N5BlockCache n5BlockCache;
+    private final Cache<String, UploadState> uploads;
+    // serializes creating the temporary files with removing the staging directories that became empty
+    private final Lock stagingDirsLock = new ReentrantLock();
+    private final ScheduledFuture<?> expiredUploadsSweep;
+
+    @Inject
+    public FileSystemChunkedUploadService(FileSystemListingCache listingCache,
+                                          N5BlockCache n5BlockCache,
+                                          @ScheduledResource ScheduledExecutorService scheduler,
+                                          @PropertyValue(name = "StorageAgent.ChunkedUploadExpirationInHours", defaultValue = "24") int expirationInHours,
+                                          @PropertyValue(name = "StorageAgent.ChunkedUploadSweepPeriodInMinutes", defaultValue = "10") int sweepPeriodInMinutes) {
+        this(listingCache, n5BlockCache, scheduler, TimeUnit.HOURS.toMillis(expirationInHours), TimeUnit.MINUTES.toMillis(sweepPeriodInMinutes));
+    }
+
+    FileSystemChunkedUploadService(FileSystemListingCache listingCache,
+                                   N5BlockCache n5BlockCache,
+                                   ScheduledExecutorService scheduler,
+                                   long expirationInMillis,
+                                   long sweepPeriodInMillis) {
+        this.listingCache = listingCache;
+        this.n5BlockCache = n5BlockCache;
+        this.uploads = CacheBuilder.newBuilder()
+                .expireAfterAccess(expirationInMillis, TimeUnit.MILLISECONDS)
+                .removalListener((RemovalNotification<String, UploadState> notification) -> {
+                    if (notification.wasEvicted()) {
+                        LOG.info("Discard expired upload {} to {}", notification.getKey(), notification.getValue().targetPath);
+                        discardUpload(notification.getValue());
+                    }
+                })
+                .build();
+        // the cache only evicts expired uploads when it is accessed so without the sweep
+        // the temporary files of abandoned uploads would stay around until the next upload
+        this.expiredUploadsSweep = scheduler.scheduleWithFixedDelay(this::discardExpiredUploads, sweepPeriodInMillis, sweepPeriodInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        expiredUploadsSweep.cancel(false);
+        // the upload state is not persisted so the partially uploaded files cannot be used after a restart
+        uploads.asMap().values().forEach(this::discardUpload);
+        uploads.invalidateAll();
+    }
+
+    @Override
+    public ChunkedUpload initiateUpload(JADEStorageURI contentURI, long contentSize, String ownerKey, Number volumeId) {
+        if (contentURI.getStorageType() != JacsStorageType.FILE_SYSTEM) {
+            throw new IllegalArgumentException("Chunked uploads are only supported for filesystem storage: " + contentURI);
+        } else if (contentSize < 0) {
+            throw new IllegalArgumentException("Invalid content size for " + contentURI + ": " + contentSize);
+        }
+        Path targetPath = Paths.get(contentURI.getContentKey());
+        if (Files.isDirectory(targetPath)) {
+            throw new ContentException("Folder cannot be overwritten at: " + contentURI);
+        }
+        if (isStagingPath(targetPath)) {
+            throw new IllegalArgumentException("Content cannot be uploaded to a staging directory: " + contentURI);
+        }
+        String uploadId = UUID.randomUUID().toString();
+        // the staging directory is next to the target so the completed file can be atomically renamed
+        Path stagingDir = targetPath.resolveSibling(STAGING_DIR_NAME);
+        Path tempPath = stagingDir.resolve(uploadId + TEMP_FILE_SUFFIX);
+        try {
+            Path parentPath = targetPath.getParent();
+            if (parentPath != null && !Files.exists(parentPath)) {
+                LOG.info("Create directory {}", parentPath);
+                Files.createDirectories(parentPath);
+            }
+            if (parentPath != null && Files.getFileStore(parentPath).getUsableSpace() < contentSize) {
+                throw new ContentException("Not enough space for uploading " + contentSize + " bytes to " + contentURI);
+            }
+            FileChannel fileChannel;
+            stagingDirsLock.lock();
+            try {
+                Files.createDirectories(stagingDir);
+                try (RandomAccessFile tempFile = new RandomAccessFile(tempPath.toFile(), "rw")) {
+                    // reserve the full size up front so that the parts can be written in any order
+                    tempFile.setLength(contentSize);
+                    fileChannel = FileChannel.open(tempPath, StandardOpenOption.WRITE);
+                }
+            } finally {
+                stagingDirsLock.unlock();
+            }
+            UploadState uploadState = new UploadState(uploadId, contentURI, ownerKey, volumeId, targetPath, tempPath, contentSize, fileChannel);
+            uploads.put(uploadId, uploadState);
+            LOG.info("Started upload {} of {} bytes to {}", uploadId, contentSize, contentURI);
+            return uploadState.snapshot();
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException ignore) {
+                // nothing else to do
+            }
+            removeStagingDirIfEmpty(stagingDir);
+            throw new ContentException("Error starting upload to " + contentURI, e);
+        }
+    }
+
+    @Override
+    public ChunkedUpload getUpload(String uploadId) {
+        return getUploadState(uploadId).snapshot();
+    }
+
+    @Override
+    public ChunkedUpload writePart(String uploadId, long offset, InputStream partStream) {
+        UploadState uploadState = getUploadState(uploadId);
+        if (offset < 0 || offset > uploadState.contentSize) {
+            throw new IllegalArgumentException("Invalid offset " + offset + " for upload " + uploadId + " of " + uploadState.contentSize + " bytes");
+        }
+        uploadState.lock.readLock().lock();
+        try {
+            if (uploadState.closed) {
+                throw new NoContentFoundException("No upload in progress found for " + uploadId);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            long position = offset;
+            for (;;) {
+                int n = partStream.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (n > 0) {
+                    buffer.position(buffer.position() + n);
+                }
+                if (n == -1 || !buffer.hasRemaining()) {
+                    buffer.flip();
+                    if (position + buffer.remaining() > uploadState.contentSize) {
+                        throw new IllegalArgumentException("Part at offset " + offset + " exceeds the size of upload " + uploadId + " of " + uploadState.contentSize + " bytes");
+                    }
+                    while (buffer.hasRemaining()) {
+                        position += uploadState.fileChannel.write(buffer, position);
+                    }
+                    buffer.clear();
+                    if (n == -1) {
+                        break;
+                    }
+                }
+            }
+            // a part is recorded only after it was entirely written, so an interrupted part must be sent again
+            uploadState.addReceivedRange(offset, position);
+            LOG.debug("Wrote {} bytes at {} for upload {}", position - offset, offset, uploadId);
+            return uploadState.snapshot();
+        } catch (IOException e) {
+            throw new ContentException("Error writing part at " + offset + " for upload " + uploadId, e);
+        } finally {
+            uploadState.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ChunkedUpload completeUpload(String uploadId) {
+        UploadState uploadState = getUploadState(uploadId);
+        uploadState.lock.writeLock().lock();
+        try {
+            if (uploadState.closed) {
+                throw new NoContentFoundException("No upload in progress found for " + uploadId);
+            }
+            ChunkedUpload upload = uploadState.snapshot();
+            if (!upload.isComplete()) {
+                LOG.info("Upload {} cannot be completed because it is missing {} bytes", uploadId, upload.getContentSize() - upload.getReceivedBytes());
+                return upload;
+            }
+            uploadState.fileChannel.force(true);
+            uploadState.fileChannel.close();
+            Files.move(uploadState.tempPath, uploadState.targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            uploadState.closed = true;
+            uploads.invalidate(uploadId);
+            removeStagingDirIfEmpty(uploadState.tempPath.getParent());
+            listingCache.invalidatePath(uploadState.targetPath);
+            n5BlockCache.invalidateLocation(uploadState.contentURI.getJadeStorage());
+            LOG.info("Completed upload {} of {} bytes to {}", uploadId, uploadState.contentSize, uploadState.contentURI);
+            return upload;
+        } catch (IOException e) {
+            uploadState.closed = true;
+            uploads.invalidate(uploadId);
+            uploadState.discard();
+            removeStagingDirIfEmpty(uploadState.tempPath.getParent());
+            throw new ContentException("Error completing upload " + uploadId + " to " + uploadState.contentURI, e);
+        } finally {
+            uploadState.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void abortUpload(String uploadId) {
+        UploadState uploadState = getUploadState(uploadId);
+        uploads.invalidate(uploadId);
+        discardUpload(uploadState);
+        LOG.info("Aborted upload {} to {}", uploadId, uploadState.contentURI);
+    }
+
+    private UploadState getUploadState(String uploadId) {
+        UploadState uploadState = uploads.getIfPresent(uploadId);
+        if (uploadState == null) {
+            throw new NoContentFoundException("No upload in progress found for " + uploadId);
+        }
+        return uploadState;
+    }
+
+    private void discardUpload(UploadState uploadState) {
+        uploadState.lock.writeLock().lock();
+        try {
+            if (!uploadState.closed) {
+                uploadState.closed = true;
+                uploadState.discard();
+                removeStagingDirIfEmpty(uploadState.tempPath.getParent());
+            }
+        } finally {
+            uploadState.lock.writeLock().unlock();
+        }
+    }
+
+    private void discardExpiredUploads() {
+        try {
+            uploads.cleanUp();
+        } catch (Exception e) {
+            // an exception would cancel all the next sweeps
+            LOG.warn("Error discarding expired uploads", e);
+        }
+    }
+
+    private void removeStagingDirIfEmpty(Path stagingDir) {
+        stagingDirsLock.lock();
+        try {
+            Files.deleteIfExists(stagingDir);
+        } catch (DirectoryNotEmptyException e) {
+            // other uploads to the same directory are still in progress
+        } catch (IOException e) {
+            LOG.warn("Error removing staging directory {}", stagingDir, e);
+        } finally {
+            stagingDirsLock.unlock();
+        }
+    }
+}
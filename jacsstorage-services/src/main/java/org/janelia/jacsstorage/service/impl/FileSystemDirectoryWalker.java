@@ -0,0 +1,432 @@
+package org.janelia.jacsstorage.service.impl;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.collect.AbstractIterator;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.service.ContentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Depth first directory walker that reads the attributes of every entry exactly once.
+ *
+ * An ordered walk, which can be resumed after any returned entry, visits the entries of each directory in name order.
+ * While it returns the entries of one directory, the listings of the subdirectories that come next are read ahead
+ * on a fork/join pool, so on network filesystems the metadata requests for a deep listing are issued in parallel
+ * instead of one at a time. The number of entries read ahead for a walk is limited.
+ *
+ * An unordered walk iterates each directory lazily, in the order returned by the filesystem, so it never holds
+ * an entire directory in memory and it returns the first entries of a large directory right away.
+ */
+@Singleton
+public class FileSystemDirectoryWalker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileSystemDirectoryWalker.class);
+
+    private final ForkJoinPool listingPool; // null if the directories are listed only when they are traversed
+    private final int maxPrefetchedEntries;
+
+    @Inject
+    public FileSystemDirectoryWalker(@PropertyValue(name = "StorageAgent.DirectoryListingParallelism", defaultValue = "8") int parallelism,
+                                     @PropertyValue(name = "StorageAgent.DirectoryListingPrefetchEntries", defaultValue = "10000") int maxPrefetchedEntries) {
+        this.listingPool = parallelism > 1 && maxPrefetchedEntries > 0 ? new ForkJoinPool(parallelism) : null;
+        this.maxPrefetchedEntries = maxPrefetchedEntries;
+    }
+
+    /**
+     * Sequential walker.
+     */
+    FileSystemDirectoryWalker() {
+        this(1, 0);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (listingPool != null) {
+            listingPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Walk the directory tree. The directory handles and the pending listings are released when the stream is closed.
+     *
+     * @param rootPath directory to be walked
+     * @param maxDepth maximum depth - 0 returns only the root directory
+     * @param startAfterPath path relative to the root after which the walk resumes or null to start with the root itself
+     * @param ordered if false and the walk starts with the root the entries are returned in the filesystem's order
+     * @param dirVisitor called with each directory right before its entries are read, possibly from the read-ahead threads
+     * @return a lazy stream of the visited entries
+     */
+    Stream<PathEntry> walk(Path rootPath, int maxDepth, Path startAfterPath, boolean ordered, Consumer<Path> dirVisitor) {
+        if (!ordered && startAfterPath == null) {
+            UnorderedPathIterator pathIterator = new UnorderedPathIterator(rootPath, maxDepth, dirVisitor);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pathIterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(pathIterator::closeDirStreams);
+        }
+        OrderedPathIterator pathIterator = new OrderedPathIterator(rootPath, maxDepth, startAfterPath, dirVisitor);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pathIterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(pathIterator::cancelPrefetchedListings);
+    }
+
+    static PathEntry readPathEntry(Path p) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (attributes.isSymbolicLink()) {
+            // links are described by their target's attributes but they are never traversed
+            try {
+                return new PathEntry(p, Files.readAttributes(p, BasicFileAttributes.class), false);
+            } catch (IOException e) {
+                LOG.debug("Could not read the target's attributes for {}", p, e);
+                return new PathEntry(p, attributes, false);
+            }
+        } else {
+            return new PathEntry(p, attributes, attributes.isDirectory());
+        }
+    }
+
+    private static List<PathEntry> listSortedDirEntries(Path dirPath) {
+        List<PathEntry> dirEntries = new ArrayList<>();
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dirPath)) {
+            for (Path p : dirStream) {
+                PathEntry dirEntry = readDirEntry(dirPath, p);
+                if (dirEntry != null) {
+                    dirEntries.add(dirEntry);
+                }
+            }
+        } catch (IOException e) {
+            throw new ContentException("Error reading directory content from: " + dirPath, e);
+        }
+        dirEntries.sort(Comparator.comparing(e -> e.getPath().getFileName().toString()));
+        return dirEntries;
+    }
+
+    /**
+     * @return the directory entry or null if the entry must be skipped
+     */
+    private static PathEntry readDirEntry(Path dirPath, Path p) throws IOException {
+        if (FileSystemChunkedUploadService.STAGING_DIR_NAME.equals(p.getFileName().toString())) {
+            // the temporary files of the chunked uploads in progress
+            return null;
+        }
+        try {
+            return readPathEntry(p);
+        } catch (NoSuchFileException e) {
+            LOG.debug("{} was removed while listing {}", p, dirPath);
+            return null;
+        }
+    }
+
+    static class PathEntry {
+        private final Path path;
+        private final BasicFileAttributes attributes;
+        private final boolean traversable;
+
+        private PathEntry(Path path, BasicFileAttributes attributes, boolean traversable) {
+            this.path = path;
+            this.attributes = attributes;
+            this.traversable = traversable;
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        BasicFileAttributes getAttributes() {
+            return attributes;
+        }
+
+        boolean isDirectory() {
+            return attributes.isDirectory();
+        }
+    }
+
+    /**
+     * Traversal that keeps one open directory stream for each directory level being traversed.
+     */
+    private static class UnorderedPathIterator extends AbstractIterator<PathEntry> {
+        private final int maxDepth;
+        private final Consumer<Path> dirVisitor;
+        // one stream for each directory level that is currently being traversed - the top is the deepest level
+        private final Deque<DirectoryStream<Path>> dirStreams = new ArrayDeque<>();
+        private final Deque<Iterator<Path>> dirIterators = new ArrayDeque<>();
+        private Path rootPath;
+
+        UnorderedPathIterator(Path rootPath, int maxDepth, Consumer<Path> dirVisitor) {
+            this.rootPath = rootPath;
+            this.maxDepth = maxDepth;
+            this.dirVisitor = dirVisitor;
+        }
+
+        @Override
+        protected PathEntry computeNext() {
+            if (rootPath != null) {
+                Path currentPath = rootPath;
+                rootPath = null;
+                PathEntry rootEntry;
+                try {
+                    rootEntry = readPathEntry(currentPath);
+                } catch (IOException e) {
+                    throw new ContentException("Error reading attributes of " + currentPath, e);
+                }
+                if (maxDepth > 0 && rootEntry.traversable) {
+                    openDir(currentPath);
+                }
+                return rootEntry;
+            }
+            while (!dirIterators.isEmpty()) {
+                Iterator<Path> currentDirIterator = dirIterators.peek();
+                if (!currentDirIterator.hasNext()) {
+                    dirIterators.pop();
+                    closeDirStream(dirStreams.pop());
+                    continue;
+                }
+                Path currentPath = currentDirIterator.next();
+                PathEntry currentEntry;
+                try {
+                    currentEntry = readDirEntry(currentPath.getParent(), currentPath);
+                } catch (IOException e) {
+                    throw new ContentException("Error reading attributes of " + currentPath, e);
+                }
+                if (currentEntry == null) {
+                    continue;
+                }
+                // the depth of the current entry is the number of directory levels being traversed
+                int currentDepth = dirIterators.size();
+                if (currentDepth < maxDepth && currentEntry.traversable) {
+                    openDir(currentEntry.getPath());
+                }
+                return currentEntry;
+            }
+            return endOfData();
+        }
+
+        private void openDir(Path dirPath) {
+            dirVisitor.accept(dirPath);
+            DirectoryStream<Path> dirStream;
+            try {
+                dirStream = Files.newDirectoryStream(dirPath);
+            } catch (IOException e) {
+                throw new ContentException("Error reading directory content from: " + dirPath, e);
+            }
+            dirStreams.push(dirStream);
+            dirIterators.push(dirStream.iterator());
+        }
+
+        private void closeDirStreams() {
+            while (!dirStreams.isEmpty()) {
+                closeDirStream(dirStreams.pop());
+            }
+            dirIterators.clear();
+        }
+
+        private void closeDirStream(DirectoryStream<Path> dirStream) {
+            try {
+                dirStream.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing directory stream", e);
+            }
+        }
+    }
+
+    /**
+     * Because the order is deterministic the traversal can resume right after a previously returned path by only
+     * looking at the directories on that path, without reading the attributes of any of the entries that precede it.
+     */
+    private class OrderedPathIterator extends AbstractIterator<PathEntry> {
+        private final int maxDepth;
+        private final Consumer<Path> dirVisitor;
+        // one iterator for each directory level that is currently being traversed - the top is the deepest level
+        private final Deque<Iterator<PathEntry>> dirIterators = new ArrayDeque<>();
+        // listings read ahead, keyed by directory
+        private final Map<Path, ForkJoinTask<List<PathEntry>>> prefetchedListings = new ConcurrentHashMap<>();
+        // entries read ahead but not consumed yet plus one for every listing that is still in progress
+        private final AtomicInteger prefetchedEntriesCount = new AtomicInteger();
+        private Path rootPath;
+
+        OrderedPathIterator(Path rootPath, int maxDepth, Path startAfterPath, Consumer<Path> dirVisitor) {
+            this.maxDepth = maxDepth;
+            this.dirVisitor = dirVisitor;
+            if (startAfterPath == null) {
+                this.rootPath = rootPath;
+            } else if (startAfterPath.toString().isEmpty()) {
+                // the root was the last returned entry
+                if (maxDepth > 0) {
+                    dirIterators.push(getSortedDirEntries(rootPath, 0).iterator());
+                }
+            } else if (startAfterPath.isAbsolute() || !startAfterPath.normalize().equals(startAfterPath) || startAfterPath.startsWith("..")) {
+                // the traversal never leaves the root directory
+                throw new IllegalArgumentException("Cannot resume traversal of " + rootPath + " after " + startAfterPath);
+            } else {
+                positionAfter(rootPath, startAfterPath);
+            }
+        }
+
+        private void positionAfter(Path rootPath, Path startAfterPath) {
+            Path currentDir = rootPath;
+            int lastComponentIndex = startAfterPath.getNameCount() - 1;
+            for (int i = 0; i <= lastComponentIndex && i < maxDepth; i++) {
+                String componentName = startAfterPath.getName(i).toString();
+                List<PathEntry> dirEntries = visitDir(currentDir);
+                int nextEntryIndex = 0;
+                while (nextEntryIndex < dirEntries.size() && dirEntries.get(nextEntryIndex).getPath().getFileName().toString().compareTo(componentName) <= 0) {
+                    nextEntryIndex++;
+                }
+                // the entries that follow the current component are visited after the component's subtree
+                List<PathEntry> remainingEntries = dirEntries.subList(nextEntryIndex, dirEntries.size());
+                prefetchSubdirListings(remainingEntries, i + 1);
+                dirIterators.push(remainingEntries.iterator());
+                PathEntry componentEntry = nextEntryIndex > 0 ? dirEntries.get(nextEntryIndex - 1) : null;
+                if (componentEntry == null
+                        || !componentEntry.getPath().getFileName().toString().equals(componentName)
+                        || !componentEntry.traversable) {
+                    // either this was the last returned entry or the path no longer exists
+                    break;
+                }
+                if (i == lastComponentIndex) {
+                    // the last returned entry was a directory so its content comes next
+                    if (i + 1 < maxDepth) {
+                        dirIterators.push(getSortedDirEntries(componentEntry.getPath(), i + 1).iterator());
+                    }
+                    break;
+                }
+                currentDir = componentEntry.getPath();
+            }
+        }
+
+        @Override
+        protected PathEntry computeNext() {
+            if (rootPath != null) {
+                Path currentPath = rootPath;
+                rootPath = null;
+                PathEntry rootEntry;
+                try {
+                    rootEntry = readPathEntry(currentPath);
+                } catch (IOException e) {
+                    throw new ContentException("Error reading attributes of " + currentPath, e);
+                }
+                if (maxDepth > 0 && rootEntry.traversable) {
+                    dirIterators.push(getSortedDirEntries(currentPath, 0).iterator());
+                }
+                return rootEntry;
+            }
+            while (!dirIterators.isEmpty()) {
+                Iterator<PathEntry> currentDirIterator = dirIterators.peek();
+                if (!currentDirIterator.hasNext()) {
+                    dirIterators.pop();
+                    continue;
+                }
+                PathEntry currentEntry = currentDirIterator.next();
+                // the depth of the current entry is the number of directory levels being traversed
+                int currentDepth = dirIterators.size();
+                if (currentDepth < maxDepth && currentEntry.traversable) {
+                    dirIterators.push(getSortedDirEntries(currentEntry.getPath(), currentDepth).iterator());
+                }
+                return currentEntry;
+            }
+            return endOfData();
+        }
+
+        /**
+         * Get the listing of a directory that is about to be traversed, either from the listings read ahead
+         * or directly from the filesystem, and start reading ahead the listings of its subdirectories.
+         */
+        private List<PathEntry> getSortedDirEntries(Path dirPath, int dirDepth) {
+            ForkJoinTask<List<PathEntry>> listingTask = prefetchedListings.remove(dirPath);
+            List<PathEntry> dirEntries;
+            if (listingTask != null) {
+                dirEntries = listingTask.join();
+                prefetchedEntriesCount.addAndGet(-dirEntries.size());
+            } else {
+                dirEntries = visitDir(dirPath);
+            }
+            prefetchSubdirListings(dirEntries, dirDepth + 1);
+            return dirEntries;
+        }
+
+        private List<PathEntry> visitDir(Path dirPath) {
+            dirVisitor.accept(dirPath);
+            return listSortedDirEntries(dirPath);
+        }
+
+        private void prefetchSubdirListings(List<PathEntry> dirEntries, int entriesDepth) {
+            if (listingPool == null || entriesDepth >= maxDepth) {
+                return;
+            }
+            for (PathEntry dirEntry : dirEntries) {
+                if (prefetchedEntriesCount.get() >= maxPrefetchedEntries) {
+                    // the remaining subdirectories will be listed when they are traversed
+                    break;
+                }
+                if (!dirEntry.traversable) {
+                    continue;
+                }
+                ListingTask listingTask = new ListingTask(dirEntry.getPath(), entriesDepth);
+                if (prefetchedListings.putIfAbsent(dirEntry.getPath(), listingTask) == null) {
+                    prefetchedEntriesCount.incrementAndGet();
+                    if (ForkJoinTask.getPool() == listingPool) {
+                        listingTask.fork();
+                    } else {
+                        listingPool.execute(listingTask);
+                    }
+                }
+            }
+        }
+
+        private void cancelPrefetchedListings() {
+            if (!prefetchedListings.isEmpty()) {
+                LOG.debug("Cancel {} directory listings read ahead", prefetchedListings.size());
+                prefetchedListings.values().forEach(listingTask -> listingTask.cancel(true));
+                prefetchedListings.clear();
+            }
+        }
+
+        private class ListingTask extends RecursiveTask<List<PathEntry>> {
+            private final Path dirPath;
+            private final int dirDepth;
+
+            ListingTask(Path dirPath, int dirDepth) {
+                this.dirPath = dirPath;
+                this.dirDepth = dirDepth;
+            }
+
+            @Override
+            protected List<PathEntry> compute() {
+                try {
+                    List<PathEntry> dirEntries = visitDir(dirPath);
+                    prefetchedEntriesCount.addAndGet(dirEntries.size());
+                    prefetchSubdirListings(dirEntries, dirDepth + 1);
+                    return dirEntries;
+                } finally {
+                    prefetchedEntriesCount.decrementAndGet();
+                }
+            }
+        }
+    }
+}
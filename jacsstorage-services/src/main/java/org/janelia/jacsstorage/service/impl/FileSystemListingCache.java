@@ -0,0 +1,392 @@
+package org.janelia.jacsstorage.service.impl;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache for the directory listings used for browsing the filesystem. A listing is cached only if it was read
+ * completely and it is not too large. The cached listings are invalidated when the filesystem reports a change
+ * in any of the listed directories or when the content is modified through the storage service. Because some
+ * filesystems, such as NFS, do not report remote changes, cached listings also expire after a fixed time.
+ */
+@Singleton
+public class FileSystemListingCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileSystemListingCache.class);
+
+    private static class ListingKey {
+        private final Path dirPath;
+        private final boolean orderedListing;
+        private final int maxDepth;
+        private final String entryNamePattern;
+        private final Set<String> selectedEntries;
+
+        ListingKey(Path dirPath, ContentAccessParams contentAccessParams) {
+            this.dirPath = dirPath;
+            // an unordered listing cannot be resumed by an ordered walk
+            this.orderedListing = contentAccessParams.isOrderedListing();
+            this.maxDepth = contentAccessParams.getMaxDepth();
+            this.entryNamePattern = StringUtils.defaultIfBlank(contentAccessParams.getEntryNamePattern(), null);
+            this.selectedEntries = ImmutableSet.copyOf(contentAccessParams.getSelectedEntries());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ListingKey that = (ListingKey) o;
+            return orderedListing == that.orderedListing &&
+                    maxDepth == that.maxDepth &&
+                    dirPath.equals(that.dirPath) &&
+                    Objects.equals(entryNamePattern, that.entryNamePattern) &&
+                    selectedEntries.equals(that.selectedEntries);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(dirPath, orderedListing, maxDepth, entryNamePattern, selectedEntries);
+        }
+    }
+
+    private static class CachedListing {
+        private final List<ContentNode> contentNodes;
+        private final List<Path> watchedDirs;
+
+        CachedListing(List<ContentNode> contentNodes, List<Path> watchedDirs) {
+            this.contentNodes = contentNodes;
+            this.watchedDirs = watchedDirs;
+        }
+    }
+
+    private static class WatchedDir {
+        private final WatchKey watchKey;
+        private final Multiset<ListingKey> listings = HashMultiset.create();
+
+        WatchedDir(WatchKey watchKey) {
+            this.watchKey = watchKey;
+        }
+    }
+
+    /**
+     * Watches the directories of a listing as the walk reads them. The walk may read ahead from other threads.
+     */
+    private class ListingWatcher implements Consumer<Path> {
+        private final ListingKey listingKey;
+        private final Set<Path> listingWatchedDirs = new LinkedHashSet<>(); // guarded by this
+        private boolean released; // guarded by this
+
+        ListingWatcher(ListingKey listingKey) {
+            this.listingKey = listingKey;
+        }
+
+        @Override
+        public synchronized void accept(Path dirPath) {
+            // a read-ahead listing may still start after the listing was closed
+            if (!released && !listingWatchedDirs.contains(dirPath) && watch(dirPath, listingKey)) {
+                listingWatchedDirs.add(dirPath);
+            }
+        }
+
+        synchronized List<Path> getWatchedDirs() {
+            return ImmutableList.copyOf(listingWatchedDirs);
+        }
+
+        void release() {
+            List<Path> releasedDirs;
+            synchronized (this) {
+                released = true;
+                releasedDirs = ImmutableList.copyOf(listingWatchedDirs);
+            }
+            unwatch(listingKey, releasedDirs);
+        }
+    }
+
+    private final Cache<ListingKey, CachedListing> cachedListings; // null if caching is disabled
+    private final int maxListingEntries;
+    private final int maxWatchedDirs;
+    // incremented on every invalidation so that a listing read while the content was changing is not cached
+    private final AtomicLong invalidationsCount = new AtomicLong();
+    private final Map<Path, WatchedDir> watchedDirs = new HashMap<>(); // guarded by this
+    private WatchService watchService; // guarded by this
+    private boolean watchServiceUnavailable; // guarded by this
+
+    @Inject
+    public FileSystemListingCache(@PropertyValue(name = "StorageAgent.ListingCacheMaxEntries", defaultValue = "1000000") int maxCachedEntries,
+                                  @PropertyValue(name = "StorageAgent.ListingCacheMaxListingEntries", defaultValue = "10000") int maxListingEntries,
+                                  @PropertyValue(name = "StorageAgent.ListingCacheExpirationInSeconds", defaultValue = "60") int expirationInSeconds,
+                                  @PropertyValue(name = "StorageAgent.ListingCacheMaxWatchedDirs", defaultValue = "4096") int maxWatchedDirs) {
+        if (maxCachedEntries > 0 && maxListingEntries > 0 && expirationInSeconds > 0) {
+            this.cachedListings = CacheBuilder.newBuilder()
+                    .maximumWeight(maxCachedEntries)
+                    .weigher((Weigher<ListingKey, CachedListing>) (key, listing) -> listing.contentNodes.size() + 1)
+                    .expireAfterWrite(expirationInSeconds, TimeUnit.SECONDS)
+                    .removalListener((RemovalNotification<ListingKey, CachedListing> notification) ->
+                            unwatch(notification.getKey(), notification.getValue().watchedDirs))
+                    .recordStats()
+                    .build();
+        } else {
+            this.cachedListings = null;
+        }
+        this.maxListingEntries = maxListingEntries;
+        this.maxWatchedDirs = maxWatchedDirs;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing the listing cache watch service", e);
+            }
+            watchService = null;
+        }
+        watchServiceUnavailable = true;
+    }
+
+    public CacheStats getStats() {
+        return cachedListings != null ? cachedListings.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    public long getCachedListingsCount() {
+        return cachedListings != null ? cachedListings.size() : 0;
+    }
+
+    public synchronized int getWatchedDirsCount() {
+        return watchedDirs.size();
+    }
+
+    /**
+     * Stream the nodes of a directory listing, from the cache if the listing is available and caching is allowed,
+     * otherwise from the filesystem. The listing is added to the cache once it was read completely.
+     *
+     * @param dirPath listed directory
+     * @param contentAccessParams listing parameters
+     * @param dirLister lists the matching nodes of the directory that follow the given entry or all of them if the entry is null
+     *                  and calls the given visitor with every directory before reading its entries
+     * @return the matching nodes starting after the entry requested by the listing parameters
+     */
+    Stream<ContentNode> streamListing(Path dirPath, ContentAccessParams contentAccessParams,
+                                      BiFunction<String, Consumer<Path>, Stream<ContentNode>> dirLister) {
+        String startAfterEntry = contentAccessParams.getStartAfterEntry();
+        Consumer<Path> noDirVisitor = p -> {};
+        if (cachedListings == null || !contentAccessParams.isCachedListingAllowed()) {
+            return dirLister.apply(startAfterEntry, noDirVisitor);
+        }
+        ListingKey listingKey = new ListingKey(dirPath, contentAccessParams);
+        CachedListing cachedListing = cachedListings.getIfPresent(listingKey);
+        if (cachedListing != null) {
+            if (StringUtils.isEmpty(startAfterEntry)) {
+                return cachedListing.contentNodes.stream();
+            }
+            for (int i = 0; i < cachedListing.contentNodes.size(); i++) {
+                if (startAfterEntry.equals(cachedListing.contentNodes.get(i).getObjectKey())) {
+                    return cachedListing.contentNodes.subList(i + 1, cachedListing.contentNodes.size()).stream();
+                }
+            }
+            // the entry is no longer in the listing so let the directory walk find where to resume
+            return dirLister.apply(startAfterEntry, noDirVisitor);
+        } else if (StringUtils.isNotEmpty(startAfterEntry)) {
+            // only complete listings are cached
+            return dirLister.apply(startAfterEntry, noDirVisitor);
+        } else {
+            // watch every directory before it is read so that changes made while it is read are noticed
+            ListingWatcher listingWatcher = new ListingWatcher(listingKey);
+            listingWatcher.accept(dirPath);
+            long listingInvalidationsCount = invalidationsCount.get();
+            return cacheWhenComplete(listingKey, dirLister.apply(null, listingWatcher), listingInvalidationsCount, listingWatcher);
+        }
+    }
+
+    private Stream<ContentNode> cacheWhenComplete(ListingKey listingKey, Stream<ContentNode> contentNodes, long listingInvalidationsCount, ListingWatcher listingWatcher) {
+        Iterator<ContentNode> contentNodesIterator = contentNodes.iterator();
+        boolean[] listingCached = new boolean[] {false};
+        Iterator<ContentNode> cachingIterator = new AbstractIterator<ContentNode>() {
+            private List<ContentNode> listedNodes = new ArrayList<>();
+
+            @Override
+            protected ContentNode computeNext() {
+                if (contentNodesIterator.hasNext()) {
+                    ContentNode contentNode = contentNodesIterator.next();
+                    if (listedNodes != null) {
+                        if (listedNodes.size() < maxListingEntries) {
+                            listedNodes.add(contentNode);
+                        } else {
+                            LOG.debug("Listing of {} is too large to be cached", listingKey.dirPath);
+                            listedNodes = null;
+                        }
+                    }
+                    return contentNode;
+                }
+                if (listedNodes != null) {
+                    listingCached[0] = cacheListing(listingKey, listedNodes, listingInvalidationsCount, listingWatcher.getWatchedDirs());
+                    listedNodes = null;
+                }
+                return endOfData();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cachingIterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    // the walk's read-ahead listings are stopped before the watched directories are released
+                    contentNodes.close();
+                    if (!listingCached[0]) {
+                        listingWatcher.release();
+                    }
+                });
+    }
+
+    private boolean cacheListing(ListingKey listingKey, List<ContentNode> contentNodes, long listingInvalidationsCount, List<Path> listingWatchedDirs) {
+        List<ContentNode> cachedNodes = ImmutableList.copyOf(contentNodes);
+        synchronized (this) {
+            // checked under the lock so that an invalidation either rejects the listing or finds it in the cache
+            if (invalidationsCount.get() != listingInvalidationsCount) {
+                LOG.debug("Listing of {} is not cached because the content changed while it was read", listingKey.dirPath);
+                return false;
+            }
+            cachedListings.put(listingKey, new CachedListing(cachedNodes, listingWatchedDirs));
+            return true;
+        }
+    }
+
+    /**
+     * Invalidate the cached listings that could contain the given path.
+     */
+    void invalidatePath(Path changedPath) {
+        if (cachedListings == null) {
+            return;
+        }
+        invalidationsCount.incrementAndGet();
+        List<ListingKey> affectedListings;
+        synchronized (this) {
+            affectedListings = cachedListings.asMap().keySet().stream()
+                    .filter(listingKey -> changedPath.startsWith(listingKey.dirPath))
+                    .collect(Collectors.toList());
+        }
+        cachedListings.invalidateAll(affectedListings);
+    }
+
+    private void invalidateWatchedDir(Path dirPath) {
+        invalidationsCount.incrementAndGet();
+        List<ListingKey> affectedListings;
+        synchronized (this) {
+            WatchedDir watchedDir = watchedDirs.get(dirPath);
+            affectedListings = watchedDir != null ? ImmutableList.copyOf(watchedDir.listings.elementSet()) : Collections.emptyList();
+        }
+        LOG.debug("Invalidate {} cached listings after a change in {}", affectedListings.size(), dirPath);
+        cachedListings.invalidateAll(affectedListings);
+    }
+
+    private synchronized boolean watch(Path dirPath, ListingKey listingKey) {
+        WatchedDir watchedDir = watchedDirs.get(dirPath);
+        if (watchedDir == null) {
+            if (watchedDirs.size() >= maxWatchedDirs || getWatchService() == null) {
+                return false;
+            }
+            try {
+                watchedDir = new WatchedDir(dirPath.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY));
+            } catch (IOException | UnsupportedOperationException e) {
+                LOG.debug("Could not watch {} - its cached listings will only expire", dirPath, e);
+                return false;
+            }
+            watchedDirs.put(dirPath, watchedDir);
+        }
+        watchedDir.listings.add(listingKey);
+        return true;
+    }
+
+    private synchronized void unwatch(ListingKey listingKey, List<Path> dirPaths) {
+        for (Path dirPath : dirPaths) {
+            WatchedDir watchedDir = watchedDirs.get(dirPath);
+            if (watchedDir != null) {
+                watchedDir.listings.remove(listingKey);
+                if (watchedDir.listings.isEmpty()) {
+                    watchedDir.watchKey.cancel();
+                    watchedDirs.remove(dirPath);
+                }
+            }
+        }
+    }
+
+    private WatchService getWatchService() {
+        if (watchService == null && !watchServiceUnavailable) {
+            try {
+                WatchService newWatchService = FileSystems.getDefault().newWatchService();
+                Thread watcherThread = new Thread(() -> processWatchEvents(newWatchService), "JACS-STORAGE-LISTING-WATCHER");
+                watcherThread.setDaemon(true);
+                watcherThread.start();
+                watchService = newWatchService;
+            } catch (IOException | UnsupportedOperationException e) {
+                LOG.warn("Filesystem changes cannot be watched - cached listings will only expire", e);
+                watchServiceUnavailable = true;
+            }
+        }
+        return watchService;
+    }
+
+    private void processWatchEvents(WatchService watchService) {
+        for (;;) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                LOG.info("Stop watching cached listings");
+                return;
+            }
+            // the events themselves are not needed - any change invalidates all listings that include the directory
+            watchKey.pollEvents();
+            invalidateWatchedDir((Path) watchKey.watchable());
+            watchKey.reset();
+        }
+    }
+}
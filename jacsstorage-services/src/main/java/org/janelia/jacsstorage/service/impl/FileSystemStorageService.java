@@ -3,19 +3,21 @@ package org.janelia.jacsstorage.service.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileStore;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Collections;
 import java.util.Date;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
+import org.apache.commons.lang3.StringUtils;
 import org.janelia.jacsstorage.coreutils.IOStreamUtils;
 import org.janelia.jacsstorage.coreutils.PathUtils;
 import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
@@ -35,13 +37,26 @@ public class FileSystemStorageService implements ContentStorageService {
 
     private final static Logger LOG = LoggerFactory.getLogger(FileSystemStorageService.class);
 
+    private final FileSystemDirectoryWalker directoryWalker;
+    private final FileSystemListingCache listingCache;
+
+    FileSystemStorageService(FileSystemDirectoryWalker directoryWalker, FileSystemListingCache listingCache) {
+        this.directoryWalker = directoryWalker;
+        this.listingCache = listingCache;
+    }
+
+    FileSystemStorageService(FileSystemDirectoryWalker directoryWalker) {
+        this(directoryWalker, null);
+    }
+
     FileSystemStorageService() {
+        this(new FileSystemDirectoryWalker());
     }
 
     @Override
     public boolean canAccess(String contentLocation) {
         Path contentPath = Paths.get(contentLocation);
-        if (Files.exists(contentPath)) {
+        if (Files.exists(contentPath) && !FileSystemChunkedUploadService.isStagingPath(contentPath)) {
             return true;
         } else {
             return false;
@@ -51,7 +66,7 @@ public class FileSystemStorageService implements ContentStorageService {
     @Override
     public ContentNode getObjectNode(String contentLocation) {
         Path contentPath = Paths.get(contentLocation);
-        if (Files.exists(contentPath) && Files.isRegularFile(contentPath)) {
+        if (Files.exists(contentPath) && Files.isRegularFile(contentPath) && !FileSystemChunkedUploadService.isStagingPath(contentPath)) {
             return createContentNode(contentPath);
         } else {
             throw new ContentException("Content not found for " + contentLocation);
@@ -59,13 +74,14 @@ public class FileSystemStorageService implements ContentStorageService {
     }
 
     @Override
-    public List<ContentNode> listContentNodes(String contentLocation, ContentAccessParams filterParams) {
-        return listContentFromPath(getContentPath(contentLocation), filterParams);
+    public Stream<ContentNode> streamContentNodes(String contentLocation, ContentAccessParams filterParams) {
+        return streamContentFromPath(getContentPath(contentLocation), filterParams);
     }
 
     private Path getContentPath(String contentLocation) {
         Path contentPath = Paths.get(contentLocation);
-        if (Files.notExists(contentPath)) {
+        // partially uploaded files are not content
+        if (Files.notExists(contentPath) || FileSystemChunkedUploadService.isStagingPath(contentPath)) {
             throw new NoContentFoundException("No content found at " + contentLocation);
         }
         if (Files.isSymbolicLink(contentPath)) {
@@ -79,54 +95,91 @@ public class FileSystemStorageService implements ContentStorageService {
         }
     }
 
-    private List<ContentNode> listContentFromPath(Path contentPath, ContentAccessParams contentAccessParams) {
+    private Stream<ContentNode> streamContentFromPath(Path contentPath, ContentAccessParams contentAccessParams) {
         if (Files.isDirectory(contentPath, LinkOption.NOFOLLOW_LINKS)) {
             long startTime = System.currentTimeMillis();
-            int traverseDepth = contentAccessParams.getMaxDepth() >= 0 ? contentAccessParams.getMaxDepth() : Integer.MAX_VALUE;
-            try (Stream<Path> files = Files.walk(contentPath, traverseDepth)) {
-                Stream<Path> matchingFiles = files.filter(p -> Files.isDirectory(p) || contentAccessParams.matchEntry(p.toString()));
-                Stream<Path> selectedFiles;
-                if (contentAccessParams.getEntriesCount() > 0) {
-                    selectedFiles = matchingFiles.skip(Math.max(contentAccessParams.getStartEntryIndex(), 0))
-                            .limit(contentAccessParams.getEntriesCount());
-                } else {
-                    selectedFiles = matchingFiles.skip(Math.max(contentAccessParams.getStartEntryIndex(), 0));
-                }
-                // if directories only returned nodes only have directories,
-                // otherwise they will have both files and directories
-                return selectedFiles
-                        .filter(p -> !contentAccessParams.isDirectoriesOnly() || Files.isDirectory(p))
-                        .map(this::createContentNode)
-                        .collect(Collectors.toList())
-                        ;
-            } catch (Exception e) {
-                throw new ContentException("Error reading directory content from: " + contentPath, e);
-            } finally {
-                LOG.info("List content {} with {} - {} secs", contentPath, contentAccessParams, (System.currentTimeMillis() - startTime) / 1000.);
+            Stream<ContentNode> matchingNodes = listingCache != null
+                    ? listingCache.streamListing(contentPath, contentAccessParams,
+                            (startAfterEntry, dirVisitor) -> streamMatchingNodes(contentPath, startAfterEntry, contentAccessParams, dirVisitor))
+                    : streamMatchingNodes(contentPath, contentAccessParams.getStartAfterEntry(), contentAccessParams, dirPath -> {});
+            // if directories only returned nodes only have directories,
+            // otherwise they will have both files and directories;
+            // the nodes are filtered before the page is selected so that a page is only short at the end of the listing
+            Stream<ContentNode> filteredNodes = matchingNodes
+                    .filter(n -> !contentAccessParams.isDirectoriesOnly() || n.isCollection());
+            Stream<ContentNode> selectedNodes;
+            if (contentAccessParams.getEntriesCount() > 0) {
+                selectedNodes = filteredNodes.skip(Math.max(contentAccessParams.getStartEntryIndex(), 0))
+                        .limit(contentAccessParams.getEntriesCount());
+            } else {
+                selectedNodes = filteredNodes.skip(Math.max(contentAccessParams.getStartEntryIndex(), 0));
             }
+            // the directory walk is lazy so the directory handles are released only when the stream is closed
+            return selectedNodes
+                    .onClose(() -> LOG.info("List content {} with {} - {} secs", contentPath, contentAccessParams, (System.currentTimeMillis() - startTime) / 1000.))
+                    ;
         } else if (Files.isRegularFile(contentPath, LinkOption.NOFOLLOW_LINKS)) {
-            return Collections.singletonList(createContentNode(contentPath));
+            return Stream.of(createContentNode(contentPath));
         } else {
             throw new ContentException("Cannot handle reading content from " + contentPath);
         }
     }
 
+    private Stream<ContentNode> streamMatchingNodes(Path dirPath, String startAfterEntry, ContentAccessParams contentAccessParams, Consumer<Path> dirVisitor) {
+        int traverseDepth = contentAccessParams.getMaxDepth() >= 0 ? contentAccessParams.getMaxDepth() : Integer.MAX_VALUE;
+        // only resumable listings need the entries in name order
+        return directoryWalker.walk(dirPath, traverseDepth, getStartAfterPath(dirPath, startAfterEntry), contentAccessParams.isOrderedListing(), dirVisitor)
+                .filter(e -> e.isDirectory() || contentAccessParams.matchEntry(e.getPath().toString()))
+                .map(this::createContentNode);
+    }
+
+    /**
+     * @return the path of the start after entry relative to the listed directory or null if the listing must start at the beginning
+     * @throws IllegalArgumentException if the entry references a parent directory or if it is not inside the listed directory
+     */
+    private Path getStartAfterPath(Path contentPath, String startAfterEntry) {
+        if (StringUtils.isEmpty(startAfterEntry)) {
+            return null;
+        }
+        Path startAfterPath;
+        try {
+            startAfterPath = Paths.get(startAfterEntry);
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException("Cannot resume listing " + contentPath + " after " + startAfterEntry, e);
+        }
+        Path normalizedContentPath = contentPath.normalize();
+        Path resolvedStartAfterPath = normalizedContentPath.resolve(startAfterPath).normalize();
+        boolean hasParentReference = false;
+        for (Path pathComponent : startAfterPath) {
+            hasParentReference |= "..".equals(pathComponent.toString());
+        }
+        if (hasParentReference || !resolvedStartAfterPath.startsWith(normalizedContentPath)) {
+            throw new IllegalArgumentException("Cannot resume listing " + contentPath + " after " + startAfterEntry);
+        }
+        return normalizedContentPath.relativize(resolvedStartAfterPath);
+    }
+
     private ContentNode createContentNode(Path p) {
         try {
-            BasicFileAttributes fa = Files.readAttributes(p, BasicFileAttributes.class);
-            Path parent = p.getParent();
-            return new ContentNode(JacsStorageType.FILE_SYSTEM, JADEStorageURI.createStoragePathURI("", JADEOptions.create()))
-                    .setName(p.getFileName().toString() + (Files.isDirectory(p) ? "/" : ""))
-                    .setPrefix(parent != null ? parent.toString() : "")
-                    .setSize(Files.isDirectory(p) ? 0 : fa.size())
-                    .setLastModified(new Date(fa.lastModifiedTime().toMillis()))
-                    .setCollection(Files.isDirectory(p))
-                    ;
-        } catch (Exception e) {
+            return createContentNode(FileSystemDirectoryWalker.readPathEntry(p));
+        } catch (IOException e) {
             throw new ContentException(e);
         }
     }
 
+    private ContentNode createContentNode(FileSystemDirectoryWalker.PathEntry pathEntry) {
+        Path p = pathEntry.getPath();
+        BasicFileAttributes fa = pathEntry.getAttributes();
+        Path parent = p.getParent();
+        return new ContentNode(JacsStorageType.FILE_SYSTEM, JADEStorageURI.createStoragePathURI("", JADEOptions.create()))
+                .setName(p.getFileName().toString() + (fa.isDirectory() ? "/" : ""))
+                .setPrefix(parent != null ? parent.toString() : "")
+                .setSize(fa.isDirectory() ? 0 : fa.size())
+                .setLastModified(new Date(fa.lastModifiedTime().toMillis()))
+                .setCollection(fa.isDirectory())
+                ;
+    }
+
     @Override
     public InputStream getContentInputStream(String contentLocation) {
         Path contentPath = Paths.get(contentLocation);
@@ -144,8 +197,28 @@ public class FileSystemStorageService implements ContentStorageService {
 
     @Override
     public long streamContentToOutput(String contentLocation, OutputStream outputStream) {
-        try (InputStream is = getContentInputStream(contentLocation)) {
-            return IOStreamUtils.copyFrom(is, outputStream);
+        return streamContentRangeToOutput(contentLocation, 0, -1, outputStream);
+    }
+
+    /**
+     * Content is streamed directly from the file channel so that if the output supports it,
+     * the file region is sent without copying it through user space.
+     */
+    @Override
+    public long streamContentRangeToOutput(String contentLocation, long offset, long length, OutputStream outputStream) {
+        Path contentPath = Paths.get(contentLocation);
+        if (Files.notExists(contentPath)) {
+            throw new NoContentFoundException("No object found at " + contentLocation);
+        } else if (!Files.isRegularFile(contentPath)) {
+            throw new ContentException("Content found at " + contentLocation + " is not a regular file");
+        }
+        try (FileChannel fileChannel = FileChannel.open(contentPath, StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            if (offset >= fileSize) {
+                return 0L;
+            }
+            long count = length >= 0 ? Math.min(length, fileSize - offset) : fileSize - offset;
+            return IOStreamUtils.copyFrom(fileChannel, offset, count, outputStream);
         } catch (Exception e) {
             throw new ContentException("Error streaming " + contentLocation, e);
         }
@@ -173,6 +246,8 @@ public class FileSystemStorageService implements ContentStorageService {
             return Files.copy(inputStream, contentPath, StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException e) {
             throw new ContentException(e);
+        } finally {
+            invalidateCachedListings(contentPath);
         }
     }
 
@@ -183,6 +258,14 @@ public class FileSystemStorageService implements ContentStorageService {
             PathUtils.deletePath(contentPath);
         } catch (IOException e) {
             throw new ContentException("Error deleting " + contentLocation, e);
+        } finally {
+            invalidateCachedListings(contentPath);
+        }
+    }
+
+    private void invalidateCachedListings(Path changedPath) {
+        if (listingCache != null) {
+            listingCache.invalidatePath(changedPath);
         }
     }
 
@@ -0,0 +1,296 @@
+package org.janelia.jacsstorage.service.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.janelia.jacsstorage.service.s3.S3Adapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache for the S3 prefix listings used for browsing the content. A listing is cached only if it was read completely
+ * and it is not too large, and the memory used by the cached listings is bounded. S3 does not report changes so
+ * the cached listings expire after a fixed time; the listings that could contain content written or deleted through
+ * the storage service are invalidated right away. The cached listings are indexed by their prefix so that a change
+ * only looks up the prefixes of the changed key instead of going through all cached listings.
+ */
+@Singleton
+public class S3ListingCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(S3ListingCache.class);
+    private static final int MiB = 1024 * 1024;
+    // estimated memory used by a cached node besides its name and prefix
+    private static final int NODE_OVERHEAD_BYTES = 128;
+
+    private static class ListingKey {
+        private final S3Adapter s3Adapter;
+        private final String prefix;
+        private final int maxDepth;
+        private final boolean directoriesOnly;
+        private final boolean orderedListing;
+        private final String entryNamePattern;
+        private final Set<String> selectedEntries;
+
+        ListingKey(S3Adapter s3Adapter, String prefix, ContentAccessParams contentAccessParams) {
+            this.s3Adapter = s3Adapter;
+            this.prefix = prefix;
+            this.maxDepth = contentAccessParams.getMaxDepth();
+            this.directoriesOnly = contentAccessParams.isDirectoriesOnly();
+            // ordered and unordered listings return the nodes in a different order
+            this.orderedListing = contentAccessParams.isOrderedListing();
+            this.entryNamePattern = StringUtils.defaultIfBlank(contentAccessParams.getEntryNamePattern(), null);
+            this.selectedEntries = ImmutableSet.copyOf(contentAccessParams.getSelectedEntries());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ListingKey that = (ListingKey) o;
+            // the adapters are shared by all services that access the same bucket
+            return s3Adapter == that.s3Adapter &&
+                    maxDepth == that.maxDepth &&
+                    directoriesOnly == that.directoriesOnly &&
+                    orderedListing == that.orderedListing &&
+                    prefix.equals(that.prefix) &&
+                    Objects.equals(entryNamePattern, that.entryNamePattern) &&
+                    selectedEntries.equals(that.selectedEntries);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(s3Adapter), prefix, maxDepth, directoriesOnly, orderedListing, entryNamePattern, selectedEntries);
+        }
+    }
+
+    private final Cache<ListingKey, List<ContentNode>> cachedListings; // null if caching is disabled
+    // cached listings by their prefix - guarded by this
+    private final SetMultimap<String, ListingKey> listingsByPrefix = HashMultimap.create();
+    private final int maxListingEntries;
+    // incremented on every invalidation so that a listing read while the content was changing is not cached
+    private final AtomicLong invalidationsCount = new AtomicLong();
+
+    @Inject
+    public S3ListingCache(@PropertyValue(name = "AWS.ListingCacheSizeInMiB", defaultValue = "256") int cacheSizeInMiB,
+                          @PropertyValue(name = "AWS.ListingCacheMaxListingEntries", defaultValue = "10000") int maxListingEntries,
+                          @PropertyValue(name = "AWS.ListingCacheExpirationInSeconds", defaultValue = "300") int expirationInSeconds) {
+        if (cacheSizeInMiB > 0 && maxListingEntries > 0 && expirationInSeconds > 0) {
+            this.cachedListings = CacheBuilder.newBuilder()
+                    .maximumWeight((long) cacheSizeInMiB * MiB)
+                    .weigher((Weigher<ListingKey, List<ContentNode>>) (key, contentNodes) -> estimateListingSize(key, contentNodes))
+                    .expireAfterWrite(expirationInSeconds, TimeUnit.SECONDS)
+                    .removalListener((RemovalNotification<ListingKey, List<ContentNode>> notification) -> unindexListing(notification.getKey()))
+                    .recordStats()
+                    .build();
+        } else {
+            this.cachedListings = null;
+        }
+        this.maxListingEntries = maxListingEntries;
+    }
+
+    public CacheStats getStats() {
+        return cachedListings != null ? cachedListings.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    public long getCachedListingsCount() {
+        return cachedListings != null ? cachedListings.size() : 0;
+    }
+
+    /**
+     * Stream the nodes of a prefix listing, from the cache if the listing is available and caching is allowed,
+     * otherwise from S3. The listing is added to the cache once it was read completely.
+     *
+     * @param s3Adapter bucket accessor
+     * @param prefix listed prefix
+     * @param contentAccessParams listing parameters
+     * @param prefixLister lists the matching nodes of the prefix that follow the given key or all of them if the key is null
+     * @return the matching nodes starting after the entry requested by the listing parameters
+     */
+    Stream<ContentNode> streamListing(S3Adapter s3Adapter, String prefix, ContentAccessParams contentAccessParams,
+                                      Function<String, Stream<ContentNode>> prefixLister) {
+        String startAfterEntry = StringUtils.removeStart(contentAccessParams.getStartAfterEntry(), '/');
+        if (cachedListings == null || !contentAccessParams.isCachedListingAllowed()) {
+            return prefixLister.apply(startAfterEntry);
+        }
+        ListingKey listingKey = new ListingKey(s3Adapter, prefix, contentAccessParams);
+        List<ContentNode> cachedListing = cachedListings.getIfPresent(listingKey);
+        if (cachedListing != null) {
+            if (StringUtils.isEmpty(startAfterEntry)) {
+                return cachedListing.stream();
+            }
+            for (int i = 0; i < cachedListing.size(); i++) {
+                if (startAfterEntry.equals(StringUtils.removeStart(cachedListing.get(i).getObjectKey(), '/'))) {
+                    return cachedListing.subList(i + 1, cachedListing.size()).stream();
+                }
+            }
+            // the entry is no longer in the listing so let the listing find where to resume
+            return prefixLister.apply(startAfterEntry);
+        } else if (StringUtils.isNotEmpty(startAfterEntry)) {
+            // only complete listings are cached
+            return prefixLister.apply(startAfterEntry);
+        } else {
+            return cacheWhenComplete(listingKey, prefixLister.apply(null), invalidationsCount.get());
+        }
+    }
+
+    /**
+     * Get the complete listing of a prefix from the cache if it is available and caching is allowed, otherwise from S3.
+     * The listing retrieved from S3 is added to the cache.
+     *
+     * @param s3Adapter bucket accessor
+     * @param prefix listed prefix
+     * @param contentAccessParams listing parameters
+     * @param prefixLister retrieves all matching nodes of the prefix
+     * @return all matching nodes
+     */
+    CompletableFuture<List<ContentNode>> getListing(S3Adapter s3Adapter, String prefix, ContentAccessParams contentAccessParams,
+                                                    Supplier<CompletableFuture<List<ContentNode>>> prefixLister) {
+        if (cachedListings == null || !contentAccessParams.isCachedListingAllowed()) {
+            return prefixLister.get();
+        }
+        ListingKey listingKey = new ListingKey(s3Adapter, prefix, contentAccessParams);
+        List<ContentNode> cachedListing = cachedListings.getIfPresent(listingKey);
+        if (cachedListing != null) {
+            return CompletableFuture.completedFuture(cachedListing);
+        }
+        long listingInvalidationsCount = invalidationsCount.get();
+        return prefixLister.get()
+                .thenApply(contentNodes -> {
+                    if (contentNodes.size() <= maxListingEntries) {
+                        cacheListing(listingKey, contentNodes, listingInvalidationsCount);
+                    }
+                    return contentNodes;
+                });
+    }
+
+    private Stream<ContentNode> cacheWhenComplete(ListingKey listingKey, Stream<ContentNode> contentNodes, long listingInvalidationsCount) {
+        Iterator<ContentNode> contentNodesIterator = contentNodes.iterator();
+        Iterator<ContentNode> cachingIterator = new AbstractIterator<ContentNode>() {
+            private List<ContentNode> listedNodes = new ArrayList<>();
+
+            @Override
+            protected ContentNode computeNext() {
+                if (contentNodesIterator.hasNext()) {
+                    ContentNode contentNode = contentNodesIterator.next();
+                    if (listedNodes != null) {
+                        if (listedNodes.size() < maxListingEntries) {
+                            listedNodes.add(contentNode);
+                        } else {
+                            LOG.debug("Listing of {} is too large to be cached", listingKey.prefix);
+                            listedNodes = null;
+                        }
+                    }
+                    return contentNode;
+                }
+                if (listedNodes != null) {
+                    cacheListing(listingKey, listedNodes, listingInvalidationsCount);
+                    listedNodes = null;
+                }
+                return endOfData();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cachingIterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(contentNodes::close);
+    }
+
+    private void cacheListing(ListingKey listingKey, List<ContentNode> contentNodes, long listingInvalidationsCount) {
+        List<ContentNode> cachedListing = ImmutableList.copyOf(contentNodes);
+        synchronized (this) {
+            // checked under the lock so that an invalidation either rejects the listing or finds it in the index
+            if (invalidationsCount.get() != listingInvalidationsCount) {
+                LOG.debug("Listing of {} is not cached because the content changed while it was read", listingKey.prefix);
+                return;
+            }
+            cachedListings.put(listingKey, cachedListing);
+            listingsByPrefix.put(listingKey.prefix, listingKey);
+        }
+    }
+
+    private synchronized void unindexListing(ListingKey listingKey) {
+        // a replaced listing or a listing cached again after it was removed is still indexed
+        if (listingKey != null && !cachedListings.asMap().containsKey(listingKey)) {
+            listingsByPrefix.remove(listingKey.prefix, listingKey);
+        }
+    }
+
+    /**
+     * Invalidate the cached listings of the bucket that could contain the given key, i.e. the listings of the key's
+     * parent prefixes. A listing of a prefix that ends inside a key name, e.g. "d1/f" for "d1/f1", is not invalidated
+     * and it is refreshed when it expires.
+     */
+    void invalidateKey(S3Adapter s3Adapter, String changedKey) {
+        if (cachedListings == null) {
+            return;
+        }
+        invalidationsCount.incrementAndGet();
+        List<ListingKey> affectedListings = new ArrayList<>();
+        synchronized (this) {
+            for (String prefix : getParentPrefixes(changedKey)) {
+                for (ListingKey listingKey : listingsByPrefix.get(prefix)) {
+                    if (listingKey.s3Adapter == s3Adapter) {
+                        affectedListings.add(listingKey);
+                    }
+                }
+            }
+        }
+        cachedListings.invalidateAll(affectedListings);
+    }
+
+    /**
+     * @return the prefixes of the key that end at a path separator, with and without the separator, and the key itself,
+     * e.g. "", "d1", "d1/", "d1/f1" for "d1/f1"
+     */
+    static Set<String> getParentPrefixes(String key) {
+        Set<String> prefixes = new LinkedHashSet<>();
+        prefixes.add("");
+        for (int separatorIndex = key.indexOf('/'); separatorIndex >= 0; separatorIndex = key.indexOf('/', separatorIndex + 1)) {
+            prefixes.add(key.substring(0, separatorIndex));
+            prefixes.add(key.substring(0, separatorIndex + 1));
+        }
+        prefixes.add(key);
+        return prefixes;
+    }
+
+    private static int estimateListingSize(ListingKey listingKey, List<ContentNode> contentNodes) {
+        long listingSize = NODE_OVERHEAD_BYTES + 2L * listingKey.prefix.length();
+        for (ContentNode contentNode : contentNodes) {
+            listingSize += NODE_OVERHEAD_BYTES
+                    + 2L * (StringUtils.length(contentNode.getName()) + StringUtils.length(contentNode.getPrefix()));
+        }
+        return (int) Math.min(listingSize, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,258 @@
+package org.janelia.jacsstorage.service.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.janelia.jacsstorage.service.NoContentFoundException;
+import org.janelia.jacsstorage.service.s3.S3Adapter;
+
+/**
+ * Cache for the results of the S3 access checks and object metadata lookups. Existing content and missing content
+ * are cached for different times, so that content which is created shortly after it was checked is found soon,
+ * while repeated checks for existing content do not reach S3. Concurrent lookups of the same key share a single
+ * S3 request. The results that could be affected by content written or deleted through the storage service
+ * are invalidated right away.
+ */
+@Singleton
+public class S3MetadataCache {
+
+    private enum LookupType {
+        ACCESS,
+        OBJECT
+    }
+
+    private static class LookupKey {
+        private final S3Adapter s3Adapter;
+        private final LookupType lookupType;
+        private final String key;
+
+        LookupKey(S3Adapter s3Adapter, LookupType lookupType, String key) {
+            this.s3Adapter = s3Adapter;
+            this.lookupType = lookupType;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            LookupKey that = (LookupKey) o;
+            // the adapters are shared by all services that access the same bucket
+            return s3Adapter == that.s3Adapter &&
+                    lookupType == that.lookupType &&
+                    key.equals(that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(s3Adapter), lookupType, key);
+        }
+    }
+
+    /**
+     * Lookup result - either a value or, for missing objects, the exception raised by the lookup.
+     */
+    private static class LookupResult {
+        private final Object value;
+        private final String notFoundMessage;
+
+        LookupResult(Object value, String notFoundMessage) {
+            this.value = value;
+            this.notFoundMessage = notFoundMessage;
+        }
+
+        boolean isFound() {
+            return notFoundMessage == null && !Boolean.FALSE.equals(value);
+        }
+
+        Object get() {
+            if (notFoundMessage != null) {
+                throw new NoContentFoundException(notFoundMessage);
+            }
+            return value;
+        }
+    }
+
+    private final Cache<LookupKey, LookupResult> foundResults; // null if caching is disabled
+    private final Cache<LookupKey, LookupResult> notFoundResults; // null if caching is disabled
+    private final ConcurrentMap<LookupKey, CompletableFuture<LookupResult>> pendingLookups = new ConcurrentHashMap<>();
+    // incremented on every invalidation so that a result retrieved while the content was changing is not cached
+    private final AtomicLong invalidationsCount = new AtomicLong();
+
+    @Inject
+    public S3MetadataCache(@PropertyValue(name = "AWS.MetadataCacheMaxEntries", defaultValue = "100000") int maxEntries,
+                           @PropertyValue(name = "AWS.MetadataCacheExpirationInSeconds", defaultValue = "60") int expirationInSeconds,
+                           @PropertyValue(name = "AWS.MetadataCacheNotFoundExpirationInSeconds", defaultValue = "5") int notFoundExpirationInSeconds) {
+        if (maxEntries > 0 && expirationInSeconds > 0) {
+            this.foundResults = CacheBuilder.newBuilder()
+                    .maximumSize(maxEntries)
+                    .expireAfterWrite(expirationInSeconds, TimeUnit.SECONDS)
+                    .recordStats()
+                    .build();
+        } else {
+            this.foundResults = null;
+        }
+        if (maxEntries > 0 && notFoundExpirationInSeconds > 0) {
+            this.notFoundResults = CacheBuilder.newBuilder()
+                    .maximumSize(maxEntries)
+                    .expireAfterWrite(notFoundExpirationInSeconds, TimeUnit.SECONDS)
+                    .recordStats()
+                    .build();
+        } else {
+            this.notFoundResults = null;
+        }
+    }
+
+    public CacheStats getStats() {
+        CacheStats noStats = new CacheStats(0, 0, 0, 0, 0, 0);
+        return (foundResults != null ? foundResults.stats() : noStats)
+                .plus(notFoundResults != null ? notFoundResults.stats() : noStats);
+    }
+
+    /**
+     * Check if there is any content at the given prefix.
+     *
+     * @param s3Adapter bucket accessor
+     * @param prefix checked prefix
+     * @param accessChecker checks the access in S3
+     * @return true if there is accessible content at the prefix
+     */
+    CompletableFuture<Boolean> canAccess(S3Adapter s3Adapter, String prefix, Supplier<CompletableFuture<Boolean>> accessChecker) {
+        return lookup(new LookupKey(s3Adapter, LookupType.ACCESS, prefix),
+                () -> load(accessChecker).thenApply(accessible -> new LookupResult(accessible, null)))
+                .thenApply(lookupResult -> (Boolean) lookupResult.get());
+    }
+
+    /**
+     * Get the node of the object with the given key.
+     *
+     * @param s3Adapter bucket accessor
+     * @param key object key
+     * @param nodeLoader retrieves the object metadata from S3 and fails with NoContentFoundException if there is no such object
+     * @return the object node
+     */
+    CompletableFuture<ContentNode> getObjectNode(S3Adapter s3Adapter, String key, Supplier<CompletableFuture<ContentNode>> nodeLoader) {
+        return lookup(new LookupKey(s3Adapter, LookupType.OBJECT, key),
+                () -> load(nodeLoader)
+                        .handle((contentNode, e) -> {
+                            if (e == null) {
+                                return new LookupResult(contentNode, null);
+                            }
+                            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                            if (cause instanceof NoContentFoundException) {
+                                return new LookupResult(null, "No object found for " + key);
+                            }
+                            throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+                        }))
+                .thenApply(lookupResult -> (ContentNode) lookupResult.get());
+    }
+
+    private CompletableFuture<LookupResult> lookup(LookupKey lookupKey, Supplier<CompletableFuture<LookupResult>> resultLoader) {
+        if (foundResults == null && notFoundResults == null) {
+            return load(resultLoader);
+        }
+        LookupResult cachedResult = getCachedResult(lookupKey);
+        if (cachedResult != null) {
+            return CompletableFuture.completedFuture(cachedResult);
+        }
+        CompletableFuture<LookupResult> newLookup = new CompletableFuture<>();
+        CompletableFuture<LookupResult> pendingLookup = pendingLookups.putIfAbsent(lookupKey, newLookup);
+        if (pendingLookup != null) {
+            // another request is already retrieving the same result
+            return pendingLookup;
+        }
+        long lookupInvalidationsCount = invalidationsCount.get();
+        load(resultLoader).whenComplete((lookupResult, e) -> {
+            pendingLookups.remove(lookupKey, newLookup);
+            if (e != null) {
+                newLookup.completeExceptionally(e);
+            } else {
+                cacheResult(lookupKey, lookupResult, lookupInvalidationsCount);
+                newLookup.complete(lookupResult);
+            }
+        });
+        return newLookup;
+    }
+
+    private <T> CompletableFuture<T> load(Supplier<CompletableFuture<T>> resultLoader) {
+        try {
+            return resultLoader.get();
+        } catch (RuntimeException e) {
+            // synchronous lookups fail before they return a result
+            CompletableFuture<T> failedLookup = new CompletableFuture<>();
+            failedLookup.completeExceptionally(e);
+            return failedLookup;
+        }
+    }
+
+    private LookupResult getCachedResult(LookupKey lookupKey) {
+        LookupResult cachedResult = foundResults != null ? foundResults.getIfPresent(lookupKey) : null;
+        if (cachedResult == null && notFoundResults != null) {
+            cachedResult = notFoundResults.getIfPresent(lookupKey);
+        }
+        return cachedResult;
+    }
+
+    private void cacheResult(LookupKey lookupKey, LookupResult lookupResult, long lookupInvalidationsCount) {
+        if (invalidationsCount.get() != lookupInvalidationsCount) {
+            // the content changed while it was looked up
+            return;
+        }
+        Cache<LookupKey, LookupResult> resultsCache = lookupResult.isFound() ? foundResults : notFoundResults;
+        if (resultsCache != null) {
+            resultsCache.put(lookupKey, lookupResult);
+            if (invalidationsCount.get() != lookupInvalidationsCount) {
+                // an invalidation that came between the check and the put may not have seen the result
+                resultsCache.invalidate(lookupKey);
+            }
+        }
+    }
+
+    /**
+     * Invalidate the cached results of the bucket that could be affected by a change of the given key, i.e.
+     * the object's metadata and the access to the key's parent prefixes. Only these keys are looked up, so the cost
+     * depends on the key's depth and not on the number of cached results. The access to a prefix that ends inside
+     * a key name, e.g. "d1/f" for "d1/f1", is not invalidated and it is checked again when it expires.
+     */
+    void invalidateKey(S3Adapter s3Adapter, String changedKey) {
+        if (foundResults == null && notFoundResults == null) {
+            return;
+        }
+        invalidationsCount.incrementAndGet();
+        List<LookupKey> affectedKeys = new ArrayList<>();
+        affectedKeys.add(new LookupKey(s3Adapter, LookupType.OBJECT, changedKey));
+        for (String prefix : S3ListingCache.getParentPrefixes(changedKey)) {
+            affectedKeys.add(new LookupKey(s3Adapter, LookupType.ACCESS, prefix));
+        }
+        if (foundResults != null) {
+            foundResults.invalidateAll(affectedKeys);
+        }
+        if (notFoundResults != null) {
+            notFoundResults.invalidateAll(affectedKeys);
+        }
+        // requests that come after the change must not wait for a lookup that started before it
+        for (LookupKey affectedKey : affectedKeys) {
+            pendingLookups.remove(affectedKey);
+        }
+    }
+}
@@ -1,25 +1,30 @@
 package org.janelia.jacsstorage.service.impl;
 
 import java.io.BufferedInputStream;
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import com.google.common.io.ByteStreams;
+import com.google.common.collect.AbstractIterator;
 import org.janelia.jacsstorage.coreutils.ComparatorUtils;
 import org.janelia.jacsstorage.service.ContentAccessParams;
 import org.janelia.jacsstorage.service.ContentException;
 import org.janelia.jacsstorage.service.ContentNode;
 import org.janelia.jacsstorage.service.NoContentFoundException;
 import org.janelia.jacsstorage.service.s3.S3Adapter;
+import org.janelia.jacsstorage.service.s3.S3MultipartUploader;
+import org.janelia.jacsstorage.service.s3.S3RangedDownloader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.core.sync.ResponseTransformer;
 import software.amazon.awssdk.services.s3.model.CommonPrefix;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
@@ -30,8 +35,8 @@ import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
 import software.amazon.awssdk.services.s3.model.NoSuchBucketException;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.model.S3Object;
 import software.amazon.awssdk.services.s3.paginators.ListObjectsV2Iterable;
@@ -40,13 +45,21 @@ public class SyncS3StorageService extends AbstractS3StorageService {
 
     private final static Logger LOG = LoggerFactory.getLogger(SyncS3StorageService.class);
 
-    SyncS3StorageService(S3Adapter s3Adapter) {
-        super(s3Adapter);
+    SyncS3StorageService(S3Adapter s3Adapter,
+                         S3ListingCache listingCache,
+                         S3MetadataCache metadataCache,
+                         S3MultipartUploader multipartUploader,
+                         S3RangedDownloader rangedDownloader) {
+        super(s3Adapter, listingCache, metadataCache, multipartUploader, rangedDownloader);
     }
 
     @Override
     public boolean canAccess(String contentLocation) {
         String s3Location = adjustLocation(contentLocation);
+        return join(metadataCache.canAccess(s3Adapter, s3Location, () -> CompletableFuture.completedFuture(checkAccess(s3Location))));
+    }
+
+    private boolean checkAccess(String s3Location) {
         LOG.debug("Check access to {}", s3Location);
         // we cannot simply do a head request because that only works for existing objects
         // and contentLocation may be a prefix
@@ -71,7 +84,10 @@ public class SyncS3StorageService extends AbstractS3StorageService {
     @Override
     public ContentNode getObjectNode(String contentLocation) {
         String s3Location = adjustLocation(contentLocation);
+        return join(metadataCache.getObjectNode(s3Adapter, s3Location, () -> CompletableFuture.completedFuture(headObjectNode(s3Location))));
+    }
 
+    private ContentNode headObjectNode(String s3Location) {
         try {
             HeadObjectRequest contentRequest = HeadObjectRequest.builder()
                     .bucket(s3Adapter.getBucket())
@@ -80,129 +96,119 @@ public class SyncS3StorageService extends AbstractS3StorageService {
 
             HeadObjectResponse contentResponse = s3Adapter.getSyncS3Client().headObject(contentRequest);
 
-            return createObjectNode(contentLocation, contentResponse.contentLength(), contentResponse.lastModified());
-        } catch (NoSuchUploadException | NoSuchBucketException e) {
+            return createObjectNode(s3Location, contentResponse.contentLength(), contentResponse.lastModified(), contentResponse.eTag());
+        } catch (NoSuchKeyException | NoSuchUploadException | NoSuchBucketException e) {
             throw new NoContentFoundException(e);
         }
     }
 
 
-    List<ContentNode> listPrefixNodes(String s3Location, ContentAccessParams contentAccessParams) {
+    @Override
+    Stream<ContentNode> streamPrefixNodes(String s3Location, ContentAccessParams contentAccessParams) {
         LOG.debug("List prefix nodes at {}", s3Location);
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(new ContentNodesIterator(s3Location, contentAccessParams, false), Spliterator.ORDERED | Spliterator.NONNULL),
+                false);
+    }
 
-        Queue<String> prefixQueue = new LinkedList<>();
-        prefixQueue.add(s3Location);
+    @Override
+    Stream<ContentNode> streamObjectNodes(String s3Location, ContentAccessParams contentAccessParams) {
+        LOG.debug("List object nodes at {} with {}", s3Location, contentAccessParams);
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(new ContentNodesIterator(s3Location, contentAccessParams, true), Spliterator.ORDERED | Spliterator.NONNULL),
+                false);
+    }
 
-        List<ContentNode> results = new ArrayList<>();
-        int level = 0;
-        while (!prefixQueue.isEmpty()) {
-            String currentPrefix = prefixQueue.poll();
+    @Override
+    ListObjectsV2Response listObjectsPage(ListObjectsV2Request listRequest) {
+        return s3Adapter.getSyncS3Client().listObjectsV2(listRequest);
+    }
 
-            ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
-                    .bucket(s3Adapter.getBucket())
-                    .prefix(currentPrefix)
-                    .delimiter("/")
-                    .build();
+    /**
+     * Traverses the prefixes breadth first and fetches the next listing page only when
+     * all the nodes from the previous page have been consumed.
+     */
+    private class ContentNodesIterator extends AbstractIterator<ContentNode> {
+        private final String s3Location;
+        private final ContentAccessParams contentAccessParams;
+        private final boolean includeObjects;
+        private final Queue<String> prefixQueue = new LinkedList<>();
+        private final Queue<ContentNode> pendingNodes = new LinkedList<>();
+        private String currentPrefix;
+        private Iterator<ListObjectsV2Response> currentResponses;
+        private int level = -1;
+        private int responseIndex;
+        private boolean exactMatchFound;
+
+        ContentNodesIterator(String s3Location, ContentAccessParams contentAccessParams, boolean includeObjects) {
+            this.s3Location = s3Location;
+            this.contentAccessParams = contentAccessParams;
+            this.includeObjects = includeObjects;
+            prefixQueue.add(s3Location);
+        }
 
-            ListObjectsV2Iterable listObjectsResponses = s3Adapter.getSyncS3Client().listObjectsV2Paginator(listRequest);
-            int responseIndex = 0;
-            for (ListObjectsV2Response r : listObjectsResponses) {
-                if (responseIndex++ == 0 && level == 0 &&
-                        (!r.commonPrefixes().isEmpty() || !r.contents().isEmpty()) &&
-                        currentPrefix.endsWith("/") &&
-                        contentAccessParams.checkDepth(getPathDepth(s3Location, currentPrefix))) {
-                    results.add(createPrefixNode(s3Location));
+        @Override
+        protected ContentNode computeNext() {
+            while (pendingNodes.isEmpty()) {
+                if (exactMatchFound) {
+                    return endOfData();
                 }
-                for (CommonPrefix commonPrefix : r.commonPrefixes()) {
-                    String newPrefix = commonPrefix.prefix();
-                    if (contentAccessParams.matchEntry(newPrefix)) {
-                        results.add(createPrefixNode(newPrefix));
-                    }
-                    if (contentAccessParams.checkDepth(getPathDepth(s3Location, newPrefix))) {
-                        prefixQueue.add(newPrefix);
+                if (currentResponses == null || !currentResponses.hasNext()) {
+                    currentPrefix = prefixQueue.poll();
+                    if (currentPrefix == null) {
+                        return endOfData();
                     }
+                    ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                            .bucket(s3Adapter.getBucket())
+                            .prefix(currentPrefix)
+                            .delimiter("/")
+                            .build();
+                    currentResponses = s3Adapter.getSyncS3Client().listObjectsV2Paginator(listRequest).iterator();
+                    responseIndex = 0;
+                    level++;
+                } else {
+                    addNodesFromResponse(currentResponses.next());
                 }
             }
-            level++;
+            return pendingNodes.poll();
         }
 
-        return results;
-    }
-
-    List<ContentNode> listObjectNodes(String s3Location, ContentAccessParams contentAccessParams) {
-        LOG.debug("List object nodes at {} with {}", s3Location, contentAccessParams);
-
-        Queue<String> prefixQueue = new LinkedList<>();
-        prefixQueue.add(s3Location);
-
-        long requestOffset = contentAccessParams.getStartEntryIndex();
-
-        long currentOffset = 0;
-        List<ContentNode> results = new ArrayList<>();
-        int level = 0;
-        while (!prefixQueue.isEmpty()) {
-            String currentPrefix = prefixQueue.poll();
-
-            ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
-                    .bucket(s3Adapter.getBucket())
-                    .prefix(currentPrefix)
-                    .delimiter("/")
-                    .build();
-            ListObjectsV2Iterable listObjectsResponses = s3Adapter.getSyncS3Client().listObjectsV2Paginator(listRequest);
-            int responseIndex = 0;
-            for (ListObjectsV2Response r : listObjectsResponses) {
-                if (responseIndex++ == 0 && level == 0 &&
-                        (!r.commonPrefixes().isEmpty() || !r.contents().isEmpty()) &&
-                        currentPrefix.endsWith("/") &&
-                        contentAccessParams.checkDepth(getPathDepth(s3Location, currentPrefix))) {
-                    if (currentOffset == requestOffset && contentAccessParams.matchEntry(s3Location)) {
-                        results.add(createPrefixNode(s3Location));
-                    }
-                    currentOffset++;
+        private void addNodesFromResponse(ListObjectsV2Response r) {
+            if (responseIndex++ == 0 && level == 0 &&
+                    (!r.commonPrefixes().isEmpty() || !r.contents().isEmpty()) &&
+                    currentPrefix.endsWith("/") &&
+                    contentAccessParams.checkDepth(getPathDepth(s3Location, currentPrefix))) {
+                if (!includeObjects || contentAccessParams.matchEntry(s3Location)) {
+                    pendingNodes.add(createPrefixNode(s3Location));
                 }
-
-                for (CommonPrefix commonPrefix : r.commonPrefixes()) {
-                    if (contentAccessParams.checkDepth(getPathDepth(s3Location, commonPrefix.prefix()))) {
-                        prefixQueue.add(commonPrefix.prefix());
-                    }
-                    if (currentOffset >= requestOffset && contentAccessParams.matchEntry(commonPrefix.prefix())) {
-                        results.add(createPrefixNode(commonPrefix.prefix()));
-                    }
-                    currentOffset++;
+            }
+            for (CommonPrefix commonPrefix : r.commonPrefixes()) {
+                String newPrefix = commonPrefix.prefix();
+                if (contentAccessParams.matchEntry(newPrefix)) {
+                    pendingNodes.add(createPrefixNode(newPrefix));
                 }
-
-                if (currentOffset + r.contents().size() < requestOffset) {
-                    currentOffset += r.contents().size();
-                    continue;
+                if (contentAccessParams.checkDepth(getPathDepth(s3Location, newPrefix))) {
+                    prefixQueue.add(newPrefix);
                 }
-
-                List<S3Object> s3Objects = new ArrayList<>(r.contents());
-                s3Objects.sort((s1, s2) -> ComparatorUtils.naturalCompare(s1.key(), s2.key(), true));
-                for (S3Object s3Object : s3Objects) {
-                    if (currentOffset++ < requestOffset) {
-                        continue;
-                    }
-
-                    if (s3Object.key().equals(s3Location)) {
-                        // if an exact match is found create the node and return
-                        results.add(createObjectNode(s3Object));
-                        return results;
-                    }
-
-                    if (contentAccessParams.matchEntry(s3Object.key())) {
-                        results.add(createObjectNode(s3Object));
-                    }
-
-                    if (contentAccessParams.getEntriesCount() > 0 && results.size() >= contentAccessParams.getEntriesCount()) {
-                        return results;
-                    }
+            }
+            if (!includeObjects) {
+                return;
+            }
+            List<S3Object> s3Objects = new ArrayList<>(r.contents());
+            s3Objects.sort((s1, s2) -> ComparatorUtils.naturalCompare(s1.key(), s2.key(), true));
+            for (S3Object s3Object : s3Objects) {
+                if (s3Object.key().equals(s3Location)) {
+                    // if an exact match is found only return that node
+                    pendingNodes.clear();
+                    pendingNodes.add(createObjectNode(s3Object));
+                    exactMatchFound = true;
+                    return;
+                }
+                if (contentAccessParams.matchEntry(s3Object.key())) {
+                    pendingNodes.add(createObjectNode(s3Object));
                 }
-
             }
-            level++;
         }
-
-        return results;
     }
 
     @Override
@@ -220,39 +226,8 @@ public class SyncS3StorageService extends AbstractS3StorageService {
     }
 
     @Override
-    public long streamContentToOutput(String contentLocation, OutputStream outputStream) {
-        String s3Location = adjustLocation(contentLocation);
-        LOG.info("Stream sync from {}:{} to another output stream", s3Adapter.getBucket(), s3Location);
-
-        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                .bucket(s3Adapter.getBucket())
-                .key(s3Location)
-                .build();
-
-        GetObjectResponse getContentResponse = s3Adapter.getSyncS3Client().getObject(getObjectRequest,
-                ResponseTransformer.toOutputStream(outputStream));
-
-        return getContentResponse.contentLength();
-    }
-
-    @Override
-    public long writeContent(String contentLocation, InputStream dataStream) {
-        String s3Location = adjustLocation(contentLocation);
-
-        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                .bucket(s3Adapter.getBucket())
-                .key(s3Location)
-                .build();
-
-        try {
-            byte[] dataBytes = ByteStreams.toByteArray(dataStream);
-            s3Adapter.getSyncS3Client().putObject(putObjectRequest,
-                    RequestBody.fromBytes(dataBytes)
-            );
-            return dataBytes.length;
-        } catch (IOException e) {
-            throw new ContentException("Error writing content to " + contentLocation, e);
-        }
+    ResponseInputStream<GetObjectResponse> openObjectStream(GetObjectRequest getObjectRequest) {
+        return s3Adapter.getSyncS3Client().getObject(getObjectRequest, ResponseTransformer.toInputStream());
     }
 
     @Override
@@ -268,6 +243,8 @@ public class SyncS3StorageService extends AbstractS3StorageService {
             s3Adapter.getSyncS3Client().deleteObject(deleteObjectRequest);
         } catch (Exception e) {
             throw new ContentException("Error deleting content at " + contentLocation, e);
+        } finally {
+            invalidateCachedContent(s3Location);
         }
     }
 
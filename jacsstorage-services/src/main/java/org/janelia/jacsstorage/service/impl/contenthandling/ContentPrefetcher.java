@@ -0,0 +1,274 @@
+package org.janelia.jacsstorage.service.impl.contenthandling;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.janelia.jacsstorage.cdi.qualifier.PooledResource;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.service.ContentException;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.janelia.jacsstorage.service.ContentStreamReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads ahead the content of the next nodes that need to be written to an archive so that
+ * opening and fetching an object does not have to wait for the previous object to be written.
+ * The number of entries read ahead for an archive is limited and the memory used by all prefetched entries,
+ * across all archives being generated, is limited by a memory budget. Objects that are too large or
+ * that do not fit in the available budget are streamed directly when their turn comes. A prefetch never buffers
+ * more than the memory reserved for the entry - content that turns out to be larger than its listed size
+ * is streamed directly as well.
+ */
+@Singleton
+public class ContentPrefetcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContentPrefetcher.class);
+    private static final int KB = 1024;
+
+    private final ExecutorService executorService;
+    private final int maxPrefetchedEntries;
+    private final long maxPrefetchedEntrySize;
+    private final Semaphore memoryBudgetInKB;
+
+    @Inject
+    public ContentPrefetcher(@PooledResource ExecutorService executorService,
+                             @PropertyValue(name = "StorageAgent.ArchivePrefetchEntries", defaultValue = "16") int maxPrefetchedEntries,
+                             @PropertyValue(name = "StorageAgent.ArchivePrefetchMaxEntrySizeInMiB", defaultValue = "32") int maxPrefetchedEntrySizeInMiB,
+                             @PropertyValue(name = "StorageAgent.ArchivePrefetchBudgetInMiB", defaultValue = "512") int memoryBudgetInMiB) {
+        this.executorService = executorService;
+        this.maxPrefetchedEntries = maxPrefetchedEntries;
+        this.maxPrefetchedEntrySize = (long) maxPrefetchedEntrySizeInMiB * KB * KB;
+        this.memoryBudgetInKB = new Semaphore(Math.max(memoryBudgetInMiB, 0) * KB);
+    }
+
+    /**
+     * Start reading ahead the content of the given nodes.
+     *
+     * @param contentNodes nodes in the order in which they will be consumed
+     * @param contentObjectReader reader for a single node's content
+     * @return an object that must be used to consume the content of the nodes in order
+     */
+    PrefetchedContent prefetch(List<ContentNode> contentNodes, ContentStreamReader contentObjectReader) {
+        return new PrefetchedContent(contentNodes, contentObjectReader);
+    }
+
+    /**
+     * @return the memory currently available for prefetching
+     */
+    int getAvailableBudgetInKB() {
+        return memoryBudgetInKB.availablePermits();
+    }
+
+    private static int sizeInKB(long size) {
+        return (int) ((size + KB - 1) / KB);
+    }
+
+    /**
+     * Buffer that holds at most the reserved memory and that stops the fetch once the entry was cancelled.
+     */
+    private static class ReservedBuffer extends ByteArrayOutputStream {
+        private final int maxSize;
+        private final AtomicBoolean cancelled;
+        private boolean exceeded;
+
+        ReservedBuffer(int initialSize, int maxSize, AtomicBoolean cancelled) {
+            super(Math.min(initialSize, maxSize));
+            this.maxSize = maxSize;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            checkCapacity(1);
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            checkCapacity(len);
+            super.write(b, off, len);
+        }
+
+        private void checkCapacity(int len) {
+            if (cancelled.get()) {
+                throw new ContentException("Prefetch cancelled");
+            }
+            if (count + len > maxSize) {
+                exceeded = true;
+                throw new ContentException("Content is larger than the " + maxSize + " bytes reserved for it");
+            }
+        }
+    }
+
+    private static final int FETCH_NEW = 0;
+    private static final int FETCH_RUNNING = 1;
+    private static final int FETCH_CANCELLED = 2;
+
+    /**
+     * An entry's memory reservation is held both by the fetch task and by the consumer of the entry, and it is
+     * returned to the budget only after both of them are done with it, so the memory is not given to other entries
+     * while a cancelled fetch may still be filling its buffer.
+     */
+    private class PrefetchedEntry {
+        final ContentNode contentNode;
+        final int reservedKB;
+        final Future<ByteArrayOutputStream> contentPromise; // null if the entry is streamed directly
+        private final AtomicInteger fetchState = new AtomicInteger(FETCH_NEW);
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+        private final AtomicInteger reservationHolders = new AtomicInteger(2);
+
+        PrefetchedEntry(ContentNode contentNode) {
+            this.contentNode = contentNode;
+            this.reservedKB = 0;
+            this.contentPromise = null;
+        }
+
+        PrefetchedEntry(ContentNode contentNode, int reservedKB, ContentStreamReader contentObjectReader) {
+            this.contentNode = contentNode;
+            this.reservedKB = reservedKB;
+            this.contentPromise = executorService.submit(() -> fetch(contentObjectReader));
+        }
+
+        /**
+         * @return the fetched content or null if the content did not fit in the reserved memory
+         */
+        private ByteArrayOutputStream fetch(ContentStreamReader contentObjectReader) {
+            if (!fetchState.compareAndSet(FETCH_NEW, FETCH_RUNNING)) {
+                // the entry was cancelled before the fetch started and the reservation was already released
+                return null;
+            }
+            ReservedBuffer contentBuffer = new ReservedBuffer((int) contentNode.getSize(), reservedKB * KB, cancelled);
+            try {
+                contentObjectReader.streamContentToOutput(contentNode.getObjectKey(), contentBuffer);
+                return contentBuffer;
+            } catch (RuntimeException e) {
+                if (contentBuffer.exceeded) {
+                    LOG.debug("{} grew beyond its listed size of {} bytes", contentNode.getObjectKey(), contentNode.getSize());
+                    return null;
+                }
+                throw e;
+            } finally {
+                releaseReservation();
+            }
+        }
+
+        void cancel() {
+            cancelled.set(true);
+            if (contentPromise != null) {
+                if (fetchState.compareAndSet(FETCH_NEW, FETCH_CANCELLED)) {
+                    // the fetch will never run so release its share of the reservation
+                    releaseReservation();
+                }
+                contentPromise.cancel(true);
+            }
+        }
+
+        void releaseReservation() {
+            if (reservedKB > 0 && reservationHolders.decrementAndGet() == 0) {
+                memoryBudgetInKB.release(reservedKB);
+            }
+        }
+    }
+
+    class PrefetchedContent implements Closeable {
+        private final List<ContentNode> contentNodes;
+        private final ContentStreamReader contentObjectReader;
+        private final Deque<PrefetchedEntry> prefetchWindow = new ArrayDeque<>();
+        private int nextNodeIndex = 0;
+
+        private PrefetchedContent(List<ContentNode> contentNodes, ContentStreamReader contentObjectReader) {
+            this.contentNodes = contentNodes;
+            this.contentObjectReader = contentObjectReader;
+            fillPrefetchWindow();
+        }
+
+        /**
+         * Write the content of the next node to the output.
+         *
+         * @param outputStream destination
+         * @return number of bytes written
+         */
+        long streamNextContentToOutput(OutputStream outputStream) {
+            PrefetchedEntry entry = prefetchWindow.poll();
+            if (entry == null) {
+                throw new IllegalStateException("No more content nodes to read");
+            }
+            try {
+                // schedule the next ones before blocking on the current entry
+                fillPrefetchWindow();
+                if (entry.contentNode.isCollection()) {
+                    return 0;
+                } else if (entry.contentPromise == null) {
+                    return contentObjectReader.streamContentToOutput(entry.contentNode.getObjectKey(), outputStream);
+                } else {
+                    ByteArrayOutputStream content = entry.contentPromise.get();
+                    if (content == null) {
+                        // the content did not fit in the memory reserved for it
+                        return contentObjectReader.streamContentToOutput(entry.contentNode.getObjectKey(), outputStream);
+                    }
+                    content.writeTo(outputStream);
+                    return content.size();
+                }
+            } catch (ExecutionException e) {
+                throw new ContentException("Error reading " + entry.contentNode.getObjectKey(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ContentException("Interrupted while reading " + entry.contentNode.getObjectKey(), e);
+            } catch (ContentException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ContentException("Error writing " + entry.contentNode.getObjectKey(), e);
+            } finally {
+                entry.releaseReservation();
+            }
+        }
+
+        private void fillPrefetchWindow() {
+            while (nextNodeIndex < contentNodes.size() && prefetchWindow.size() < Math.max(maxPrefetchedEntries, 1)) {
+                ContentNode contentNode = contentNodes.get(nextNodeIndex++);
+                if (contentNode.isCollection() || contentNode.getSize() > maxPrefetchedEntrySize) {
+                    prefetchWindow.add(new PrefetchedEntry(contentNode));
+                    continue;
+                }
+                // reserve at least 1KB so that every fetch holds a reservation
+                int contentSizeInKB = Math.max(sizeInKB(contentNode.getSize()), 1);
+                if (maxPrefetchedEntries <= 0 || !memoryBudgetInKB.tryAcquire(contentSizeInKB)) {
+                    // no room left - this entry will be streamed directly
+                    prefetchWindow.add(new PrefetchedEntry(contentNode));
+                    continue;
+                }
+                prefetchWindow.add(new PrefetchedEntry(contentNode, contentSizeInKB, contentObjectReader));
+            }
+        }
+
+        /**
+         * Cancel everything that was not consumed. The memory reserved for a fetch that is still running
+         * is released when the fetch stops.
+         */
+        @Override
+        public void close() {
+            PrefetchedEntry entry;
+            while ((entry = prefetchWindow.poll()) != null) {
+                entry.cancel();
+                entry.releaseReservation();
+            }
+            if (nextNodeIndex < contentNodes.size()) {
+                LOG.debug("Prefetch stopped before reading {} out of {} nodes", contentNodes.size() - nextNodeIndex, contentNodes.size());
+            }
+        }
+    }
+}
@@ -1,17 +1,23 @@
 package org.janelia.jacsstorage.service.impl.contenthandling;
 
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
 import javax.enterprise.inject.Vetoed;
 
+import com.github.luben.zstd.ZstdOutputStream;
 import com.google.common.base.Splitter;
+import com.google.common.io.CountingOutputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.archivers.tar.TarConstants;
 import org.apache.commons.lang3.StringUtils;
 import org.janelia.jacsstorage.coreutils.IOStreamUtils;
+import org.janelia.jacsstorage.coreutils.UnclosableOutputStream;
+import org.janelia.jacsstorage.service.ArchiveFormat;
 import org.janelia.jacsstorage.service.ContentAccessParams;
 import org.janelia.jacsstorage.service.ContentException;
 import org.janelia.jacsstorage.service.ContentNode;
@@ -26,9 +32,21 @@ public class DirectContentAccess implements ContentAccess {
     private static final Logger LOG = LoggerFactory.getLogger(DirectContentAccess.class);
 
     private final boolean alwaysArchive;
+    private final ContentPrefetcher contentPrefetcher;
+    private final ZipContentArchiver zipContentArchiver;
 
-    public DirectContentAccess(boolean alwaysArchive) {
+    public DirectContentAccess(boolean alwaysArchive, ContentPrefetcher contentPrefetcher, ZipContentArchiver zipContentArchiver) {
         this.alwaysArchive = alwaysArchive;
+        this.contentPrefetcher = contentPrefetcher;
+        this.zipContentArchiver = zipContentArchiver;
+    }
+
+    public DirectContentAccess(boolean alwaysArchive, ContentPrefetcher contentPrefetcher) {
+        this(alwaysArchive, contentPrefetcher, new ZipContentArchiver());
+    }
+
+    public DirectContentAccess(boolean alwaysArchive) {
+        this(alwaysArchive, null);
     }
 
     DirectContentAccess() {
@@ -46,7 +64,17 @@ public class DirectContentAccess implements ContentAccess {
             return 0L;
         }
         if (alwaysArchive || contentNodes.size() > 1) {
-            return estimateArchiveSize(contentNodes);
+            switch (getArchiveFormat(contentAccessParams)) {
+                case ZIP:
+                    // only an archive with stored entries has a predictable size
+                    return contentAccessParams.isArchiveCompressionDisabled()
+                            ? ZipContentArchiver.estimateStoredArchiveSize(createZipEntrySources(contentNodes, contentObjectReader))
+                            : -1;
+                case TAR_ZST:
+                    return -1;
+                default:
+                    return estimateArchiveSize(contentNodes);
+            }
         } else { // single node
             return contentNodes.get(0).getSize();
         }
@@ -60,7 +88,17 @@ public class DirectContentAccess implements ContentAccess {
         if (contentNodes.isEmpty()) {
             return 0;
         } else if (alwaysArchive || contentNodes.size() > 1) {
-            return archiveContent(contentNodes, contentObjectReader, outputStream);
+            switch (getArchiveFormat(contentAccessParams)) {
+                case ZIP:
+                    return zipContentArchiver.archiveContent(
+                            createZipEntrySources(contentNodes, contentObjectReader),
+                            contentAccessParams.isArchiveCompressionDisabled(),
+                            outputStream);
+                case TAR_ZST:
+                    return archiveCompressedContent(contentNodes, contentObjectReader, outputStream);
+                default:
+                    return archiveContent(contentNodes, contentObjectReader, outputStream);
+            }
         } else { // contentNodes.size() == 1
             if (contentNodes.get(0).isCollection()) {
                 return 0;
@@ -69,9 +107,68 @@ public class DirectContentAccess implements ContentAccess {
         }
     }
 
+    @Override
+    public long retrieveContentRange(List<ContentNode> contentNodes,
+                                     ContentAccessParams contentAccessParams,
+                                     ContentStreamReader contentObjectReader,
+                                     long offset, long length,
+                                     OutputStream outputStream) {
+        if (contentNodes.size() == 1 && !alwaysArchive) {
+            if (contentNodes.get(0).isCollection()) {
+                return 0;
+            }
+            // for a single object read the range directly from the storage
+            return contentObjectReader.streamContentRangeToOutput(contentNodes.get(0).getObjectKey(), offset, length, outputStream);
+        } else {
+            return ContentAccess.super.retrieveContentRange(contentNodes, contentAccessParams, contentObjectReader, offset, length, outputStream);
+        }
+    }
+
+    private ArchiveFormat getArchiveFormat(ContentAccessParams contentAccessParams) {
+        return contentAccessParams != null ? contentAccessParams.getArchiveFormat() : ArchiveFormat.TAR;
+    }
+
+    private List<ZipContentArchiver.ArchiveEntrySource> createZipEntrySources(List<ContentNode> contentNodes, ContentStreamReader contentObjectReader) {
+        String commonPrefix = ContentNodeHelper.commonPrefix(contentNodes);
+        List<ZipContentArchiver.ArchiveEntrySource> entrySources = new ArrayList<>();
+        for (ContentNode contentNode : contentNodes) {
+            // zip entry names are relative and they are not limited in length
+            String entryName = StringUtils.stripStart(
+                    StringUtils.removeStart(contentNode.getObjectKey(), "/" + (commonPrefix.isEmpty() ? "" : commonPrefix)),
+                    "/");
+            if (entryName.isEmpty()) {
+                continue; // the archive's root
+            }
+            entrySources.add(new ZipContentArchiver.ArchiveEntrySource(
+                    entryName,
+                    contentNode.getSize(),
+                    contentNode.isCollection(),
+                    entryOutputStream -> contentObjectReader.streamContentToOutput(contentNode.getObjectKey(), entryOutputStream)));
+        }
+        return entrySources;
+    }
+
+    /**
+     * Write a zstd compressed tar archive.
+     *
+     * @return number of compressed bytes written
+     */
+    private long archiveCompressedContent(List<ContentNode> contentNodes, ContentStreamReader contentObjectReader, OutputStream outputStream) {
+        CountingOutputStream compressedOutputStream = new CountingOutputStream(new UnclosableOutputStream(outputStream));
+        try (ZstdOutputStream zstdOutputStream = new ZstdOutputStream(compressedOutputStream)) {
+            archiveContent(contentNodes, contentObjectReader, zstdOutputStream);
+        } catch (IOException e) {
+            throw new ContentException(e);
+        }
+        LOG.info("Compressed archive to {} bytes", compressedOutputStream.getCount());
+        return compressedOutputStream.getCount();
+    }
+
     private long archiveContent(List<ContentNode> contentNodes, ContentStreamReader contentObjectReader, OutputStream outputStream) {
         TarArchiveOutputStream archiveOutputStream = new TarArchiveOutputStream(outputStream, TarConstants.DEFAULT_RCDSIZE);
-        try {
+        try (ContentPrefetcher.PrefetchedContent prefetchedContent = contentPrefetcher != null
+                ? contentPrefetcher.prefetch(contentNodes, contentObjectReader)
+                : null) {
             String commonPrefix = ContentNodeHelper.commonPrefix(contentNodes);
             LOG.info("Archiving {} content nodes; common prefix: {}", contentNodes.size(), commonPrefix);
             for (ContentNode contentNode : contentNodes) {
@@ -80,7 +177,10 @@ public class DirectContentAccess implements ContentAccess {
                 TarArchiveEntry entry = new TarArchiveEntry(entryName);
                 entry.setSize(contentNode.getSize());
                 archiveOutputStream.putArchiveEntry(entry);
-                if (contentNode.isNotCollection()) {
+                if (prefetchedContent != null) {
+                    // prefetched content must be consumed for every node, including the collection nodes
+                    prefetchedContent.streamNextContentToOutput(archiveOutputStream);
+                } else if (contentNode.isNotCollection()) {
                     contentObjectReader.streamContentToOutput(contentNode.getObjectKey(), archiveOutputStream);
                 }
                 archiveOutputStream.closeArchiveEntry();
@@ -0,0 +1,446 @@
+package org.janelia.jacsstorage.service.impl.contenthandling;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.cdi.qualifier.PooledResource;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.coreutils.UnclosableOutputStream;
+import org.janelia.jacsstorage.service.ContentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes ZIP archives (always in Zip64 format so there is no limit on the size or the number of entries).
+ * The entries that follow the one being written are compressed ahead on a worker pool and then
+ * written in order, so compression is not limited to a single core. The number of entries compressed ahead
+ * and the memory used by all of them, across all archives being generated, are limited. Entries that are too large
+ * to be compressed in memory are compressed when their turn comes. An entry compressed ahead never buffers more than
+ * the memory reserved for it, so an entry whose size is not known in advance and turns out to be larger than
+ * the reservation is compressed when its turn comes as well.
+ *
+ * If compression is disabled all entries are STORED, which makes the archive size predictable from
+ * the entries' sizes. STORED entries need their checksum before they are written, so the content of an entry
+ * that is too large to be read ahead in memory is read twice - once for the checksum and once for writing it.
+ */
+@Singleton
+public class ZipContentArchiver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ZipContentArchiver.class);
+    private static final int KB = 1024;
+    // fixed record sizes for archives written in Zip64 mode
+    private static final int LOCAL_HEADER_SIZE = 30 + 20; // local file header + zip64 extra field with both sizes
+    private static final int CENTRAL_HEADER_SIZE = 46 + 32; // central file header + zip64 extra field with both sizes, the offset and the disk number
+    private static final int END_OF_ARCHIVE_SIZE = 56 + 20 + 22; // zip64 end of central directory record and locator + end of central directory
+    // extensions of the content that is already compressed and therefore always stored
+    private static final Set<String> COMPRESSED_EXTENSIONS = ImmutableSet.of(
+            "7z", "bz2", "gz", "h5j", "jar", "jpeg", "jpg", "mp4", "png", "tgz", "xz", "zip", "zst");
+
+    /**
+     * Archive entry description.
+     */
+    public static class ArchiveEntrySource {
+        private final String name;
+        private final long size;
+        private final boolean directory;
+        private final EntryContentWriter contentWriter;
+
+        /**
+         * @param name entry name relative to the archive root
+         * @param size content size or -1 if the size is only known after the content is generated
+         * @param directory if true the entry has no content
+         * @param contentWriter writes the entry's content
+         */
+        public ArchiveEntrySource(String name, long size, boolean directory, EntryContentWriter contentWriter) {
+            this.name = directory && !name.endsWith("/") ? name + "/" : name;
+            this.size = size;
+            this.directory = directory;
+            this.contentWriter = contentWriter;
+        }
+    }
+
+    @FunctionalInterface
+    public interface EntryContentWriter {
+        /**
+         * Write the entry's content. The writer may be invoked more than once for the same entry.
+         */
+        void writeTo(OutputStream outputStream) throws Exception;
+    }
+
+    private final ExecutorService executorService; // null if the entries are only compressed when they are written
+    private final int maxCompressedAheadEntries;
+    private final long maxCompressedAheadEntrySize;
+    private final Semaphore memoryBudgetInKB;
+
+    @Inject
+    public ZipContentArchiver(@PooledResource ExecutorService executorService,
+                              @PropertyValue(name = "StorageAgent.ZipCompressionAheadEntries", defaultValue = "16") int maxCompressedAheadEntries,
+                              @PropertyValue(name = "StorageAgent.ZipCompressionAheadMaxEntrySizeInMiB", defaultValue = "32") int maxCompressedAheadEntrySizeInMiB,
+                              @PropertyValue(name = "StorageAgent.ZipCompressionAheadBudgetInMiB", defaultValue = "512") int memoryBudgetInMiB) {
+        this.executorService = executorService;
+        this.maxCompressedAheadEntries = maxCompressedAheadEntries;
+        this.maxCompressedAheadEntrySize = (long) maxCompressedAheadEntrySizeInMiB * KB * KB;
+        this.memoryBudgetInKB = new Semaphore(Math.max(memoryBudgetInMiB, 0) * KB);
+    }
+
+    /**
+     * Archiver that compresses each entry only when it is written.
+     */
+    ZipContentArchiver() {
+        this(null, 0, 0, 0);
+    }
+
+    /**
+     * @return the exact size of the archive written with compression disabled
+     */
+    public static long estimateStoredArchiveSize(List<ArchiveEntrySource> entrySources) {
+        long archiveSize = END_OF_ARCHIVE_SIZE;
+        for (ArchiveEntrySource entrySource : entrySources) {
+            int nameLength = entrySource.name.getBytes(StandardCharsets.UTF_8).length;
+            archiveSize += LOCAL_HEADER_SIZE + nameLength + (entrySource.directory ? 0 : entrySource.size)
+                    + CENTRAL_HEADER_SIZE + nameLength;
+        }
+        return archiveSize;
+    }
+
+    /**
+     * Write the archive.
+     *
+     * @param entrySources archive entries in the order in which they must be written
+     * @param compressionDisabled if true all entries are stored without compression
+     * @param outputStream destination - this is not closed when the archive is complete
+     * @return number of bytes written
+     */
+    public long archiveContent(List<ArchiveEntrySource> entrySources, boolean compressionDisabled, OutputStream outputStream) {
+        CountingOutputStream archiveOutputStream = new CountingOutputStream(new UnclosableOutputStream(outputStream));
+        try (ZipArchiveOutputStream zipOutputStream = new ZipArchiveOutputStream(archiveOutputStream);
+             CompressedAheadEntries compressedAheadEntries = new CompressedAheadEntries(entrySources, compressionDisabled)) {
+            zipOutputStream.setUseZip64(Zip64Mode.Always);
+            LOG.info("Archiving {} entries as zip; compression {}", entrySources.size(), compressionDisabled ? "disabled" : "enabled");
+            for (int i = 0; i < entrySources.size(); i++) {
+                compressedAheadEntries.writeNextEntry(zipOutputStream);
+            }
+            zipOutputStream.finish();
+        } catch (ContentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ContentException(e);
+        }
+        long nbytesWritten = archiveOutputStream.getCount();
+        LOG.info("Archived {} bytes", nbytesWritten);
+        return nbytesWritten;
+    }
+
+    private static boolean isCompressedContent(String entryName) {
+        String extension = StringUtils.substringAfterLast(entryName, ".");
+        return COMPRESSED_EXTENSIONS.contains(extension.toLowerCase());
+    }
+
+    private static int sizeInKB(long size) {
+        return (int) ((size + KB - 1) / KB);
+    }
+
+    /**
+     * @return the memory currently available for compressing entries ahead
+     */
+    int getAvailableBudgetInKB() {
+        return memoryBudgetInKB.availablePermits();
+    }
+
+    /**
+     * Entry whose compressed content and checksum are known before the entry is written.
+     */
+    private static class PreparedEntry {
+        private final ZipArchiveEntry zipEntry;
+        private final byte[] rawContent; // null if the content must be generated when the entry is written
+
+        PreparedEntry(ZipArchiveEntry zipEntry, byte[] rawContent) {
+            this.zipEntry = zipEntry;
+            this.rawContent = rawContent;
+        }
+    }
+
+    /**
+     * Buffer that holds at most the reserved memory and that stops the compression once the entry was cancelled.
+     */
+    private static class ReservedBuffer extends ByteArrayOutputStream {
+        private final int maxSize;
+        private final AtomicBoolean cancelled;
+        private boolean exceeded;
+
+        ReservedBuffer(int initialSize, int maxSize, AtomicBoolean cancelled) {
+            super(Math.min(initialSize, maxSize));
+            this.maxSize = maxSize;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            checkCapacity(1);
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            checkCapacity(len);
+            super.write(b, off, len);
+        }
+
+        private void checkCapacity(int len) {
+            if (cancelled.get()) {
+                throw new ContentException("Compression cancelled");
+            }
+            if (count + len > maxSize) {
+                exceeded = true;
+                throw new ContentException("Entry is larger than the " + maxSize + " bytes reserved for it");
+            }
+        }
+    }
+
+    private static final int TASK_NEW = 0;
+    private static final int TASK_RUNNING = 1;
+    private static final int TASK_CANCELLED = 2;
+
+    /**
+     * The memory reservation of an entry compressed ahead is held both by the compression task and by the writer
+     * of the entry, and it is returned to the budget only after both of them are done with it.
+     */
+    private class CompressedAheadEntry {
+        final ArchiveEntrySource entrySource;
+        final boolean entryStored;
+        final int reservedKB;
+        final Future<PreparedEntry> preparedEntryPromise; // the prepared entry is null if the entry did not fit in its reservation
+        private final AtomicInteger taskState = new AtomicInteger(TASK_NEW);
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+        private final AtomicInteger reservationHolders = new AtomicInteger(2);
+
+        CompressedAheadEntry(ArchiveEntrySource entrySource, boolean entryStored, Future<PreparedEntry> preparedEntryPromise) {
+            this.entrySource = entrySource;
+            this.entryStored = entryStored;
+            this.reservedKB = 0;
+            this.preparedEntryPromise = preparedEntryPromise;
+        }
+
+        CompressedAheadEntry(ArchiveEntrySource entrySource, boolean entryStored, int reservedKB) {
+            this.entrySource = entrySource;
+            this.entryStored = entryStored;
+            this.reservedKB = reservedKB;
+            this.preparedEntryPromise = executorService.submit(this::prepareWithinReservation);
+        }
+
+        private PreparedEntry prepareWithinReservation() {
+            if (!taskState.compareAndSet(TASK_NEW, TASK_RUNNING)) {
+                // the entry was cancelled before the task started and the reservation was already released
+                return null;
+            }
+            try {
+                return prepareBufferedEntry(entrySource, entryStored, reservedKB * KB, cancelled);
+            } finally {
+                releaseReservation();
+            }
+        }
+
+        void cancel() {
+            cancelled.set(true);
+            if (taskState.compareAndSet(TASK_NEW, TASK_CANCELLED) && reservedKB > 0) {
+                // the task will never run so release its share of the reservation
+                releaseReservation();
+            }
+            preparedEntryPromise.cancel(true);
+        }
+
+        void releaseReservation() {
+            if (reservedKB > 0 && reservationHolders.decrementAndGet() == 0) {
+                memoryBudgetInKB.release(reservedKB);
+            }
+        }
+    }
+
+    private class CompressedAheadEntries implements AutoCloseable {
+        private final Iterator<ArchiveEntrySource> entrySourcesIterator;
+        private final boolean compressionDisabled;
+        private final Deque<CompressedAheadEntry> compressionWindow = new ArrayDeque<>();
+
+        CompressedAheadEntries(List<ArchiveEntrySource> entrySources, boolean compressionDisabled) {
+            this.entrySourcesIterator = entrySources.iterator();
+            this.compressionDisabled = compressionDisabled;
+            fillCompressionWindow();
+        }
+
+        void writeNextEntry(ZipArchiveOutputStream zipOutputStream) throws Exception {
+            CompressedAheadEntry entry = compressionWindow.poll();
+            if (entry == null) {
+                throw new IllegalStateException("No more entries to archive");
+            }
+            try {
+                // schedule the next ones before blocking on the current entry
+                fillCompressionWindow();
+                PreparedEntry preparedEntry = entry.preparedEntryPromise.get();
+                if (preparedEntry == null) {
+                    // the entry did not fit in the memory reserved for it so it is compressed while it is written
+                    preparedEntry = compressionDisabled ? prepareStoredEntry(entry.entrySource) : prepareDeflatedEntry(entry.entrySource);
+                }
+                if (preparedEntry.rawContent != null) {
+                    zipOutputStream.addRawArchiveEntry(preparedEntry.zipEntry, new ByteArrayInputStream(preparedEntry.rawContent));
+                } else {
+                    zipOutputStream.putArchiveEntry(preparedEntry.zipEntry);
+                    if (!entry.entrySource.directory) {
+                        entry.entrySource.contentWriter.writeTo(zipOutputStream);
+                    }
+                    zipOutputStream.closeArchiveEntry();
+                }
+            } catch (ExecutionException e) {
+                throw new ContentException("Error archiving " + entry.entrySource.name, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ContentException("Interrupted while archiving " + entry.entrySource.name, e);
+            } finally {
+                entry.releaseReservation();
+            }
+        }
+
+        private void fillCompressionWindow() {
+            while (entrySourcesIterator.hasNext() && compressionWindow.size() < Math.max(maxCompressedAheadEntries, 1)) {
+                ArchiveEntrySource entrySource = entrySourcesIterator.next();
+                boolean entryStored = compressionDisabled || isCompressedContent(entrySource.name);
+                if (entrySource.directory) {
+                    compressionWindow.add(new CompressedAheadEntry(entrySource, true, CompletableFuture.completedFuture(prepareDirectoryEntry(entrySource))));
+                    continue;
+                }
+                // an entry of unknown size reserves the maximum size of an entry compressed ahead
+                boolean entryBuffered = entrySource.size <= maxCompressedAheadEntrySize;
+                int reservedKB = entryBuffered ? Math.max(sizeInKB(entrySource.size >= 0 ? entrySource.size : maxCompressedAheadEntrySize), 1) : 0;
+                if (entryBuffered && executorService != null && maxCompressedAheadEntries > 0 && memoryBudgetInKB.tryAcquire(reservedKB)) {
+                    compressionWindow.add(new CompressedAheadEntry(entrySource, entryStored, reservedKB));
+                    continue;
+                }
+                // no room left - this entry will be compressed when it is written
+                Future<PreparedEntry> preparedEntryPromise;
+                if (compressionDisabled) {
+                    // a stored entry needs the checksum in the entry's header
+                    preparedEntryPromise = executorService != null
+                            ? executorService.submit(() -> prepareStoredEntry(entrySource))
+                            : CompletableFuture.completedFuture(prepareStoredEntry(entrySource));
+                } else {
+                    preparedEntryPromise = CompletableFuture.completedFuture(prepareDeflatedEntry(entrySource));
+                }
+                compressionWindow.add(new CompressedAheadEntry(entrySource, entryStored, preparedEntryPromise));
+            }
+        }
+
+        @Override
+        public void close() {
+            CompressedAheadEntry entry;
+            while ((entry = compressionWindow.poll()) != null) {
+                // a running task releases its share of the reservation when it stops
+                entry.cancel();
+                entry.releaseReservation();
+            }
+            if (entrySourcesIterator.hasNext()) {
+                LOG.debug("Archive stopped before all entries were written");
+            }
+        }
+    }
+
+    private PreparedEntry prepareDirectoryEntry(ArchiveEntrySource entrySource) {
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(entrySource.name);
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(0);
+        zipEntry.setCrc(0);
+        return new PreparedEntry(zipEntry, null);
+    }
+
+    /**
+     * @return the prepared entry or null if the entry's content is larger than the maximum buffer size
+     */
+    private PreparedEntry prepareBufferedEntry(ArchiveEntrySource entrySource, boolean entryStored, int maxBufferSize, AtomicBoolean cancelled) {
+        ReservedBuffer rawContentStream = new ReservedBuffer(entrySource.size > 0 ? (int) entrySource.size : 32 * KB, maxBufferSize, cancelled);
+        CRC32 crc = new CRC32();
+        Deflater deflater = entryStored ? null : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            CountingOutputStream contentStream;
+            if (deflater == null) {
+                contentStream = new CountingOutputStream(new CheckedOutputStream(rawContentStream, crc));
+                entrySource.contentWriter.writeTo(contentStream);
+            } else {
+                DeflaterOutputStream deflaterStream = new DeflaterOutputStream(rawContentStream, deflater, 64 * KB);
+                contentStream = new CountingOutputStream(new CheckedOutputStream(deflaterStream, crc));
+                entrySource.contentWriter.writeTo(contentStream);
+                deflaterStream.finish();
+            }
+            ZipArchiveEntry zipEntry = new ZipArchiveEntry(entrySource.name);
+            zipEntry.setMethod(entryStored ? ZipEntry.STORED : ZipEntry.DEFLATED);
+            zipEntry.setSize(contentStream.getCount());
+            zipEntry.setCompressedSize(rawContentStream.size());
+            zipEntry.setCrc(crc.getValue());
+            return new PreparedEntry(zipEntry, rawContentStream.toByteArray());
+        } catch (Exception e) {
+            if (rawContentStream.exceeded) {
+                LOG.debug("{} is larger than the {} bytes reserved for compressing it ahead", entrySource.name, maxBufferSize);
+                return null;
+            } else if (e instanceof ContentException) {
+                throw (ContentException) e;
+            }
+            throw new ContentException("Error compressing " + entrySource.name, e);
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private PreparedEntry prepareStoredEntry(ArchiveEntrySource entrySource) {
+        CRC32 crc = new CRC32();
+        CountingOutputStream contentStream = new CountingOutputStream(new CheckedOutputStream(ByteStreams.nullOutputStream(), crc));
+        try {
+            entrySource.contentWriter.writeTo(contentStream);
+        } catch (ContentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ContentException("Error reading " + entrySource.name, e);
+        }
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(entrySource.name);
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(contentStream.getCount());
+        zipEntry.setCrc(crc.getValue());
+        return new PreparedEntry(zipEntry, null);
+    }
+
+    private PreparedEntry prepareDeflatedEntry(ArchiveEntrySource entrySource) {
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(entrySource.name);
+        zipEntry.setMethod(ZipEntry.DEFLATED);
+        if (entrySource.size >= 0) {
+            zipEntry.setSize(entrySource.size);
+        }
+        return new PreparedEntry(zipEntry, null);
+    }
+}
@@ -0,0 +1,159 @@
+package org.janelia.jacsstorage.service.impl.contenthandling.tiff;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.service.ContentException;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Short lived cache for the pixels decoded from TIFF content. A TIFF request first estimates the size of the response
+ * and then retrieves the content, so without the cache the same TIFF would be read and decoded twice.
+ * The entries are keyed by the object's key, size and modification time together with the access parameters,
+ * so a modified object is never served from the cache. Concurrent requests for the same entry only decode it once.
+ *
+ * Decoding builds the entire result in memory, so the memory that can be used by the decoders running at the same time
+ * is limited by a budget. Before a decoder starts it reserves the memory needed for the decoded pixels, which is
+ * calculated from the image dimensions found in the TIFF directories, and if there's not enough memory left
+ * it waits for the other decoders to finish.
+ */
+@Singleton
+public class TiffContentCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TiffContentCache.class);
+    private static final byte[] NO_CONTENT = new byte[0];
+    private static final long MB = 1024 * 1024;
+
+    private final Cache<String, byte[]> decodedContentCache; // null if caching is disabled
+    private final int decodeBudgetInMiB;
+    private final Semaphore availableDecodeBudgetInMiB; // null if the decoding memory is not limited
+    private final int decodeWaitInSeconds;
+
+    @Inject
+    public TiffContentCache(@PropertyValue(name = "StorageAgent.TiffContentCacheSizeInMiB", defaultValue = "256") int cacheSizeInMiB,
+                            @PropertyValue(name = "StorageAgent.TiffContentCacheExpirationInSeconds", defaultValue = "60") int expirationInSeconds,
+                            @PropertyValue(name = "StorageAgent.TiffDecodeBudgetInMiB", defaultValue = "2048") int decodeBudgetInMiB,
+                            @PropertyValue(name = "StorageAgent.TiffDecodeWaitInSeconds", defaultValue = "60") int decodeWaitInSeconds) {
+        if (cacheSizeInMiB > 0 && expirationInSeconds > 0) {
+            this.decodedContentCache = CacheBuilder.newBuilder()
+                    .maximumWeight((long) cacheSizeInMiB * 1024 * 1024)
+                    .weigher((Weigher<String, byte[]>) (key, content) -> content.length)
+                    .expireAfterWrite(expirationInSeconds, TimeUnit.SECONDS)
+                    .recordStats()
+                    .build();
+        } else {
+            this.decodedContentCache = null;
+        }
+        this.decodeBudgetInMiB = decodeBudgetInMiB;
+        this.availableDecodeBudgetInMiB = decodeBudgetInMiB > 0 ? new Semaphore(decodeBudgetInMiB, true) : null;
+        this.decodeWaitInSeconds = decodeWaitInSeconds;
+    }
+
+    public CacheStats getStats() {
+        return decodedContentCache != null ? decodedContentCache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * @return a key that identifies the current version of the nodes' content for the given access parameters
+     */
+    static String contentKey(List<ContentNode> contentNodes, String accessType, Object... accessParams) {
+        StringBuilder keyBuilder = new StringBuilder(accessType);
+        for (Object accessParam : accessParams) {
+            keyBuilder.append(':').append(accessParam);
+        }
+        return keyBuilder.append(contentNodes.stream()
+                        .map(n -> n.getObjectKey() + "@" + n.getSize() + "@" + (n.getLastModified() != null ? n.getLastModified().getTime() : 0L))
+                        .collect(Collectors.joining(",", "[", "]")))
+                .toString();
+    }
+
+    /**
+     * @return the memory currently available for decoding or -1 if the decoding memory is not limited
+     */
+    int getAvailableDecodeBudgetInMiB() {
+        return availableDecodeBudgetInMiB != null ? availableDecodeBudgetInMiB.availablePermits() : -1;
+    }
+
+    /**
+     * @param contentKey key created with {@link #contentKey(List, String, Object...)}
+     * @return the size of the decoded content if it is in the cache or -1 otherwise
+     */
+    long getCachedContentSize(String contentKey) {
+        byte[] content = decodedContentCache != null ? decodedContentCache.getIfPresent(contentKey) : null;
+        return content != null ? content.length : -1;
+    }
+
+    /**
+     * Get the decoded content from the cache or decode it.
+     *
+     * @param contentKey key created with {@link #contentKey(List, String, Object...)}
+     * @param decodedSizeEstimator estimates the memory needed for decoding the content;
+     *                             it is only called if the content must be decoded
+     * @param contentDecoder decodes the content - it may return null if there is no content
+     * @return decoded content - never null
+     */
+    byte[] getDecodedContent(String contentKey, LongSupplier decodedSizeEstimator, Callable<byte[]> contentDecoder) {
+        if (decodedContentCache == null) {
+            return decodeWithinBudget(contentKey, decodedSizeEstimator, contentDecoder);
+        }
+        try {
+            return decodedContentCache.get(contentKey, () -> decodeWithinBudget(contentKey, decodedSizeEstimator, contentDecoder));
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            LOG.debug("Error decoding {}", contentKey, e);
+            if (e.getCause() instanceof ContentException) {
+                throw (ContentException) e.getCause();
+            }
+            throw new ContentException("Error decoding " + contentKey, e.getCause());
+        }
+    }
+
+    private byte[] decodeWithinBudget(String contentKey, LongSupplier decodedSizeEstimator, Callable<byte[]> contentDecoder) {
+        if (availableDecodeBudgetInMiB == null) {
+            return decode(contentDecoder);
+        }
+        long decodedSize = decodedSizeEstimator.getAsLong();
+        // a single decoder can never reserve more than the entire budget
+        int reservedMiB = (int) Math.min(Math.max((decodedSize + MB - 1) / MB, 1), decodeBudgetInMiB);
+        try {
+            if (!availableDecodeBudgetInMiB.tryAcquire(reservedMiB, decodeWaitInSeconds, TimeUnit.SECONDS)) {
+                throw new ContentException("Timed out waiting for " + reservedMiB + "MiB needed for decoding " + contentKey);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ContentException("Interrupted while waiting to decode " + contentKey, e);
+        }
+        try {
+            return decode(contentDecoder);
+        } finally {
+            availableDecodeBudgetInMiB.release(reservedMiB);
+        }
+    }
+
+    private byte[] decode(Callable<byte[]> contentDecoder) {
+        try {
+            byte[] content = contentDecoder.call();
+            return content != null ? content : NO_CONTENT;
+        } catch (ContentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ContentException(e);
+        }
+    }
+}
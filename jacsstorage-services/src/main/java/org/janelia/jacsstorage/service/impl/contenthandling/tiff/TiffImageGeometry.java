@@ -0,0 +1,230 @@
+package org.janelia.jacsstorage.service.impl.contenthandling.tiff;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.janelia.jacsstorage.service.ContentException;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.janelia.jacsstorage.service.ContentStreamReader;
+
+/**
+ * Dimensions of a TIFF image read from its image file directories (IFD) without decoding any pixels.
+ * Only the header and the IFDs are read, using range reads, so finding out the size of the decoded image
+ * is cheap compared to decoding it. Both classic TIFF and BigTIFF are supported.
+ *
+ * Walking the IFD chain of a large stack takes a couple of reads for every page, so the walk stops after
+ * a given number of pages and the remaining pages are estimated from the average distance between the IFDs.
+ */
+class TiffImageGeometry {
+
+    private static final int IMAGE_WIDTH_TAG = 256;
+    private static final int IMAGE_LENGTH_TAG = 257;
+    private static final int BITS_PER_SAMPLE_TAG = 258;
+    private static final int SAMPLES_PER_PIXEL_TAG = 277;
+    // maximum number of IFDs read when all the pages of an image are needed
+    static final long MAX_WALKED_PAGES = 64;
+
+    final int width;
+    final int height;
+    final int bytesPerPixel;
+    final long pages;
+    // true if all the pages were walked so the number of pages is exact
+    final boolean allPagesWalked;
+
+    private TiffImageGeometry(int width, int height, int bytesPerPixel, long pages, boolean allPagesWalked) {
+        this.width = width;
+        this.height = height;
+        this.bytesPerPixel = bytesPerPixel;
+        this.pages = pages;
+        this.allPagesWalked = allPagesWalked;
+    }
+
+    /**
+     * @return the size of a single decoded page
+     */
+    long decodedPageSize() {
+        return (long) width * height * bytesPerPixel;
+    }
+
+    /**
+     * Read the geometry of the TIFF image.
+     *
+     * @param contentNode TIFF image node
+     * @param contentObjectReader reader used for retrieving the header and the IFDs
+     * @param maxWalkedPages maximum number of IFDs that are read for counting the pages
+     * @return the image geometry
+     * @throws ContentException if the content is not a TIFF image
+     */
+    static TiffImageGeometry read(ContentNode contentNode, ContentStreamReader contentObjectReader, long maxWalkedPages) {
+        TiffReader tiffReader = new TiffReader(contentNode, contentObjectReader);
+        ByteBuffer header = tiffReader.read(0, 16);
+        if (header.remaining() < 8) {
+            throw new ContentException(contentNode.getObjectKey() + " is not a TIFF image");
+        }
+        byte byteOrder = header.get(0);
+        if (byteOrder == 'I' && header.get(1) == 'I') {
+            tiffReader.byteOrder = ByteOrder.LITTLE_ENDIAN;
+        } else if (byteOrder == 'M' && header.get(1) == 'M') {
+            tiffReader.byteOrder = ByteOrder.BIG_ENDIAN;
+        } else {
+            throw new ContentException(contentNode.getObjectKey() + " is not a TIFF image");
+        }
+        header.order(tiffReader.byteOrder);
+        int version = header.getShort(2) & 0xFFFF;
+        long firstIFDOffset;
+        if (version == 42) {
+            firstIFDOffset = header.getInt(4) & 0xFFFFFFFFL;
+        } else if (version == 43 && header.remaining() >= 16) {
+            tiffReader.bigTiff = true;
+            firstIFDOffset = header.getLong(8);
+        } else {
+            throw new ContentException(contentNode.getObjectKey() + " is not a TIFF image");
+        }
+        ByteBuffer firstIFD = tiffReader.readIFD(firstIFDOffset);
+        int width = 0;
+        int height = 0;
+        int bitsPerSample = 8;
+        int samplesPerPixel = 1;
+        int entriesCount = tiffReader.entriesCount(firstIFD);
+        for (int i = 0; i < entriesCount; i++) {
+            int entryPosition = tiffReader.countSize() + i * tiffReader.entrySize();
+            int tag = firstIFD.getShort(entryPosition) & 0xFFFF;
+            switch (tag) {
+                case IMAGE_WIDTH_TAG:
+                    width = (int) tiffReader.entryValue(firstIFD, entryPosition);
+                    break;
+                case IMAGE_LENGTH_TAG:
+                    height = (int) tiffReader.entryValue(firstIFD, entryPosition);
+                    break;
+                case BITS_PER_SAMPLE_TAG:
+                    // all samples are expected to have the same size
+                    bitsPerSample = (int) tiffReader.entryValue(firstIFD, entryPosition);
+                    break;
+                case SAMPLES_PER_PIXEL_TAG:
+                    samplesPerPixel = (int) tiffReader.entryValue(firstIFD, entryPosition);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (width <= 0 || height <= 0) {
+            throw new ContentException("Invalid TIFF dimensions for " + contentNode.getObjectKey() + ": " + width + "x" + height);
+        }
+        int bytesPerPixel = Math.max(1, (bitsPerSample + 7) / 8) * Math.max(1, samplesPerPixel);
+        long pages = 1;
+        long nextIFDOffset = tiffReader.nextIFDOffset(firstIFD, entriesCount);
+        while (nextIFDOffset != 0 && pages < maxWalkedPages) {
+            int ifdEntriesCount = tiffReader.entriesCount(tiffReader.read(nextIFDOffset, tiffReader.countSize()));
+            ByteBuffer ifdNextOffset = tiffReader.read(nextIFDOffset + tiffReader.countSize() + (long) ifdEntriesCount * tiffReader.entrySize(), tiffReader.offsetSize());
+            pages++;
+            nextIFDOffset = tiffReader.offset(ifdNextOffset, 0);
+        }
+        if (nextIFDOffset == 0) {
+            return new TiffImageGeometry(width, height, bytesPerPixel, pages, true);
+        } else {
+            return new TiffImageGeometry(width, height, bytesPerPixel,
+                    estimatePages(pages, firstIFDOffset, nextIFDOffset, contentNode.getSize()), false);
+        }
+    }
+
+    private static long estimatePages(long pages, long firstIFDOffset, long nextIFDOffset, long contentSize) {
+        if (nextIFDOffset > firstIFDOffset && contentSize > nextIFDOffset) {
+            // the pages that were not walked are assumed to take as much space as the ones that were
+            double averagePageSize = (double) (nextIFDOffset - firstIFDOffset) / pages;
+            return pages + Math.max(1L, (long) Math.ceil((contentSize - nextIFDOffset) / averagePageSize));
+        } else {
+            return pages + 1;
+        }
+    }
+
+    private static class TiffReader {
+        private final ContentNode contentNode;
+        private final ContentStreamReader contentObjectReader;
+        private ByteOrder byteOrder;
+        private boolean bigTiff;
+
+        TiffReader(ContentNode contentNode, ContentStreamReader contentObjectReader) {
+            this.contentNode = contentNode;
+            this.contentObjectReader = contentObjectReader;
+        }
+
+        int countSize() {
+            return bigTiff ? 8 : 2;
+        }
+
+        int entrySize() {
+            return bigTiff ? 20 : 12;
+        }
+
+        int offsetSize() {
+            return bigTiff ? 8 : 4;
+        }
+
+        ByteBuffer read(long offset, int length) {
+            ByteArrayOutputStream bytesStream = new ByteArrayOutputStream(length);
+            contentObjectReader.streamContentRangeToOutput(contentNode.getObjectKey(), offset, length, bytesStream);
+            ByteBuffer bytes = ByteBuffer.wrap(bytesStream.toByteArray());
+            if (byteOrder != null) {
+                bytes.order(byteOrder);
+            }
+            return bytes;
+        }
+
+        /**
+         * @return the entire IFD including the offset of the next IFD
+         */
+        ByteBuffer readIFD(long ifdOffset) {
+            int entriesCount = entriesCount(read(ifdOffset, countSize()));
+            return read(ifdOffset, countSize() + entriesCount * entrySize() + offsetSize());
+        }
+
+        int entriesCount(ByteBuffer ifd) {
+            if (ifd.remaining() < countSize()) {
+                throw new ContentException("Truncated TIFF directory in " + contentNode.getObjectKey());
+            }
+            return bigTiff ? (int) ifd.getLong(0) : ifd.getShort(0) & 0xFFFF;
+        }
+
+        long nextIFDOffset(ByteBuffer ifd, int entriesCount) {
+            return offset(ifd, countSize() + entriesCount * entrySize());
+        }
+
+        long offset(ByteBuffer bytes, int position) {
+            if (bytes.limit() < position + offsetSize()) {
+                throw new ContentException("Truncated TIFF directory in " + contentNode.getObjectKey());
+            }
+            return bigTiff ? bytes.getLong(position) : bytes.getInt(position) & 0xFFFFFFFFL;
+        }
+
+        /**
+         * @return the first value of an IFD entry of an unsigned integer type
+         */
+        long entryValue(ByteBuffer ifd, int entryPosition) {
+            int type = ifd.getShort(entryPosition + 2) & 0xFFFF;
+            long count = bigTiff ? ifd.getLong(entryPosition + 4) : ifd.getInt(entryPosition + 4) & 0xFFFFFFFFL;
+            int typeSize = type == 3 ? 2 : (type == 16 ? 8 : (type == 4 ? 4 : 1));
+            int valuePosition = entryPosition + (bigTiff ? 12 : 8);
+            ByteBuffer valueBytes;
+            int position;
+            if (count * typeSize <= offsetSize()) {
+                // the value fits in the entry
+                valueBytes = ifd;
+                position = valuePosition;
+            } else {
+                valueBytes = read(offset(ifd, valuePosition), typeSize);
+                position = 0;
+            }
+            switch (type) {
+                case 3: // SHORT
+                    return valueBytes.getShort(position) & 0xFFFF;
+                case 4: // LONG
+                    return valueBytes.getInt(position) & 0xFFFFFFFFL;
+                case 16: // LONG8
+                    return valueBytes.getLong(position);
+                default:
+                    return valueBytes.get(position) & 0xFF;
+            }
+        }
+    }
+}
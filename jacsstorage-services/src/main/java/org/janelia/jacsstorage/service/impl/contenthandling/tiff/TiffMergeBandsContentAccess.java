@@ -1,23 +1,57 @@
 package org.janelia.jacsstorage.service.impl.contenthandling.tiff;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.janelia.jacsstorage.cdi.qualifier.PooledResource;
 import org.janelia.jacsstorage.coreutils.IOStreamUtils;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
 import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.janelia.jacsstorage.service.ContentException;
 import org.janelia.jacsstorage.service.ContentNode;
 import org.janelia.jacsstorage.service.ContentStreamReader;
 import org.janelia.jacsstorage.service.impl.ContentAccess;
 import org.janelia.rendering.NamedSupplier;
 import org.janelia.rendering.utils.ImageUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+@Singleton
 public class TiffMergeBandsContentAccess implements ContentAccess {
 
+    private static final Logger LOG = LoggerFactory.getLogger(TiffMergeBandsContentAccess.class);
+    private static final String TIFF_MERGE_BANDS = "TIFF_MERGE_BANDS";
+
+    private final TiffContentCache tiffContentCache;
+    private final ExecutorService executorService;
+
+    @Inject
+    public TiffMergeBandsContentAccess(TiffContentCache tiffContentCache,
+                                       @PooledResource ExecutorService executorService) {
+        this.tiffContentCache = tiffContentCache;
+        this.executorService = executorService;
+    }
+
     @Override
     public boolean isAccessTypeSupported(String contentAccessType) {
-        return "TIFF_MERGE_BANDS".equalsIgnoreCase(contentAccessType);
+        return TIFF_MERGE_BANDS.equalsIgnoreCase(contentAccessType);
     }
 
+    /**
+     * The size is the size of the merged texture, which is kept in the cache for the subsequent retrieval.
+     */
     @Override
     public long estimateContentSize(List<ContentNode> contentNodes,
                                     ContentAccessParams contentAccessParams,
@@ -25,15 +59,7 @@ public class TiffMergeBandsContentAccess implements ContentAccess {
         if (contentNodes.isEmpty()) {
             return 0L;
         }
-        Integer pageNumber = contentAccessParams.getAsInt("z", 0);
-        return ImageUtils.sizeBandMergedTextureBytesFromImageStreams(
-                contentNodes.stream()
-                        .filter(ContentNode::isNotCollection)
-                        .map(n -> NamedSupplier.namedSupplier(
-                                n.getName(),
-                                () -> contentObjectReader.getContentInputStream(n.getObjectKey()))),
-                pageNumber
-        );
+        return getBandMergedTextureBytes(contentNodes, contentAccessParams, contentObjectReader).length;
     }
 
     @Override
@@ -44,20 +70,127 @@ public class TiffMergeBandsContentAccess implements ContentAccess {
         if (contentNodes.isEmpty()) {
             return 0L;
         }
-        Integer pageNumber = contentAccessParams.getAsInt("z", 0);
-        byte[] contentBytes = ImageUtils.bandMergedTextureBytesFromImageStreams(
-                contentNodes.stream()
-                        .filter(ContentNode::isNotCollection)
-                        .map(n -> NamedSupplier.namedSupplier(
-                                n.getName(),
-                                () -> contentObjectReader.getContentInputStream(n.getObjectKey()))),
-                pageNumber
-        );
-        if (contentBytes == null) {
+        byte[] contentBytes = getBandMergedTextureBytes(contentNodes, contentAccessParams, contentObjectReader);
+        if (contentBytes.length == 0) {
             return 0L;
         } else {
             return IOStreamUtils.copyFrom(contentBytes, outputStream);
         }
     }
 
+    private byte[] getBandMergedTextureBytes(List<ContentNode> contentNodes,
+                                             ContentAccessParams contentAccessParams,
+                                             ContentStreamReader contentObjectReader) {
+        Integer pageNumber = contentAccessParams.getAsInt("z", 0);
+        List<ContentNode> bandNodes = contentNodes.stream()
+                .filter(ContentNode::isNotCollection)
+                .collect(Collectors.toList());
+        return tiffContentCache.getDecodedContent(
+                TiffContentCache.contentKey(bandNodes, TIFF_MERGE_BANDS, pageNumber),
+                () -> estimateMergedDecodedSize(bandNodes, contentObjectReader),
+                () -> mergeBands(bandNodes, pageNumber, contentObjectReader));
+    }
+
+    /**
+     * Only one page is decoded from each band and it is copied into the merged texture. The content of the bands that
+     * are not on the filesystem is held in memory as well while the bands are merged.
+     */
+    private long estimateMergedDecodedSize(List<ContentNode> bandNodes, ContentStreamReader contentObjectReader) {
+        long decodedSize = 0;
+        for (ContentNode bandNode : bandNodes) {
+            long decodedPageSize;
+            try {
+                decodedPageSize = TiffImageGeometry.read(bandNode, contentObjectReader, 1).decodedPageSize();
+            } catch (RuntimeException e) {
+                LOG.debug("Could not read the image geometry of {} so the decoding memory is estimated from its size", bandNode.getObjectKey(), e);
+                decodedPageSize = bandNode.getSize();
+            }
+            decodedSize += 2 * decodedPageSize;
+            if (bandNodes.size() > 1 && bandNode.getStorageType() != JacsStorageType.FILE_SYSTEM) {
+                decodedSize += bandNode.getSize();
+            }
+        }
+        return decodedSize;
+    }
+
+    /**
+     * Bands that are not on the filesystem are fetched concurrently, before the merge starts, so that the merge
+     * does not have to wait for one band to be downloaded before it can request the next one.
+     * Filesystem bands are read directly by the decoder because it only needs to read the requested page.
+     * Once the merge is done, successfully or not, the fetches that are still running are stopped.
+     */
+    private byte[] mergeBands(List<ContentNode> bandNodes, Integer pageNumber, ContentStreamReader contentObjectReader) {
+        AtomicBoolean mergeDone = new AtomicBoolean(false);
+        List<Future<byte[]>> bandContents = bandNodes.stream()
+                .map(n -> bandNodes.size() > 1 && n.getStorageType() != JacsStorageType.FILE_SYSTEM
+                        ? executorService.submit(() -> fetchContent(n, contentObjectReader, mergeDone))
+                        : null)
+                .collect(Collectors.toList());
+        try {
+            return ImageUtils.bandMergedTextureBytesFromImageStreams(
+                    IntStream.range(0, bandNodes.size())
+                            .mapToObj(i -> NamedSupplier.namedSupplier(
+                                    bandNodes.get(i).getName(),
+                                    () -> bandContents.get(i) != null
+                                            ? new ByteArrayInputStream(getFetchedContent(bandNodes.get(i), bandContents.get(i)))
+                                            : contentObjectReader.getContentInputStream(bandNodes.get(i).getObjectKey()))),
+                    pageNumber
+            );
+        } finally {
+            mergeDone.set(true);
+            bandContents.stream().filter(Objects::nonNull).forEach(f -> f.cancel(true));
+        }
+    }
+
+    private byte[] getFetchedContent(ContentNode contentNode, Future<byte[]> contentFetch) {
+        try {
+            return contentFetch.get();
+        } catch (ExecutionException e) {
+            throw new ContentException("Error fetching " + contentNode.getObjectKey(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ContentException("Interrupted while fetching " + contentNode.getObjectKey(), e);
+        }
+    }
+
+    private byte[] fetchContent(ContentNode contentNode, ContentStreamReader contentObjectReader, AtomicBoolean mergeDone) {
+        if (mergeDone.get()) {
+            return null;
+        }
+        StoppableBuffer contentBuffer = new StoppableBuffer((int) Math.max(contentNode.getSize(), 32), mergeDone);
+        contentObjectReader.streamContentToOutput(contentNode.getObjectKey(), contentBuffer);
+        return contentBuffer.toByteArray();
+    }
+
+    /**
+     * Buffer that fails the next write once the merge is done, which ends the fetch and closes the content stream
+     * even if the reader does not respond to interrupts.
+     */
+    private static class StoppableBuffer extends ByteArrayOutputStream {
+        private final AtomicBoolean stopped;
+
+        StoppableBuffer(int initialSize, AtomicBoolean stopped) {
+            super(initialSize);
+            this.stopped = stopped;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            checkNotStopped();
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            checkNotStopped();
+            super.write(b, off, len);
+        }
+
+        private void checkNotStopped() {
+            if (stopped.get()) {
+                throw new ContentException("Band fetch stopped");
+            }
+        }
+    }
+
 }
@@ -1,20 +1,29 @@
 package org.janelia.jacsstorage.service.impl.contenthandling.tiff;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import javax.inject.Inject;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import com.google.common.io.CountingOutputStream;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.archivers.tar.TarConstants;
 import org.janelia.jacsstorage.coreutils.IOStreamUtils;
+import org.janelia.jacsstorage.coreutils.UnclosableOutputStream;
 import org.janelia.jacsstorage.service.ContentAccessParams;
 import org.janelia.jacsstorage.service.ContentException;
 import org.janelia.jacsstorage.service.ContentNode;
 import org.janelia.jacsstorage.service.ContentStreamReader;
 import org.janelia.jacsstorage.service.impl.ContentAccess;
 import org.janelia.jacsstorage.service.impl.contenthandling.ContentNodeHelper;
+import org.janelia.jacsstorage.service.impl.contenthandling.ZipContentArchiver;
 import org.janelia.rendering.utils.ImageUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,20 +34,30 @@ import org.slf4j.LoggerFactory;
 public class TiffROIPixelsContentAccess implements ContentAccess {
 
     private static final Logger LOG = LoggerFactory.getLogger(TiffROIPixelsContentAccess.class);
+    private static final String TIFF_ROI_PIXELS = "TIFF_ROI_PIXELS";
+
+    private final TiffContentCache tiffContentCache;
+    private final ZipContentArchiver zipContentArchiver;
+
+    @Inject
+    public TiffROIPixelsContentAccess(TiffContentCache tiffContentCache, ZipContentArchiver zipContentArchiver) {
+        this.tiffContentCache = tiffContentCache;
+        this.zipContentArchiver = zipContentArchiver;
+    }
 
     @Override
     public boolean isAccessTypeSupported(String contentAccessType) {
-        return "TIFF_ROI_PIXELS".equalsIgnoreCase(contentAccessType);
+        return TIFF_ROI_PIXELS.equalsIgnoreCase(contentAccessType);
     }
 
+    /**
+     * The size of the ROI is calculated from the image dimensions found in the TIFF directories, so no pixels are decoded.
+     * If the size cannot be calculated, because the ROI is clipped by the image boundaries or the number of pages
+     * is not known exactly, the size is unknown unless the ROI was already decoded.
+     */
     @Override
     public long estimateContentSize(List<ContentNode> contentNodes, ContentAccessParams contentAccessParams, ContentStreamReader contentObjectReader) {
-        Integer xCenter = contentAccessParams.getAsInt("xCenter", 0);
-        Integer yCenter = contentAccessParams.getAsInt("yCenter", 0);
-        Integer zCenter = contentAccessParams.getAsInt("zCenter", 0);
-        Integer dimX = contentAccessParams.getAsInt("dimX", -1);
-        Integer dimY = contentAccessParams.getAsInt("dimY", -1);
-        Integer dimZ = contentAccessParams.getAsInt("dimZ", -1);
+        PixelsROI pixelsROI = new PixelsROI(contentAccessParams);
         try {
             if (CollectionUtils.isEmpty(contentNodes)) {
                 return 0L;
@@ -46,30 +65,48 @@ public class TiffROIPixelsContentAccess implements ContentAccess {
                 if (contentNodes.get(0).isCollection()) {
                     return 0L;
                 }
-                try (InputStream nodeContentStream = contentObjectReader.getContentInputStream(contentNodes.get(0).getObjectKey())) {
-                    return ImageUtils.sizeImagePixelBytesFromTiffStream(
-                            nodeContentStream,
-                            xCenter, yCenter, zCenter,
-                            dimX, dimY, dimZ
-                    );
-                }
-            } else {
-                long totalSize = 2 * TarConstants.DEFAULT_RCDSIZE;
-                for (ContentNode contentNode : contentNodes) {
-                    if (contentNode.isCollection()) {
-                        continue; // skip dirs
+                return estimateROIPixelsSize(contentNodes.get(0), pixelsROI, contentObjectReader);
+            }
+            switch (contentAccessParams.getArchiveFormat()) {
+                case ZIP:
+                    if (!contentAccessParams.isArchiveCompressionDisabled()) {
+                        return -1;
                     }
-                    try (InputStream nodeContentStream = contentObjectReader.getContentInputStream(contentNode.getObjectKey())) {
-                        long entrySize = ImageUtils.sizeImagePixelBytesFromTiffStream(
-                                nodeContentStream,
-                                xCenter, yCenter, zCenter,
-                                dimX, dimY, dimZ
-                        );
+                    List<ZipContentArchiver.ArchiveEntrySource> entrySources = new ArrayList<>();
+                    String commonPrefix = ContentNodeHelper.commonPrefix(contentNodes);
+                    for (ContentNode contentNode : contentNodes) {
+                        if (contentNode.isCollection()) {
+                            continue; // skip dirs
+                        }
+                        long entrySize = estimateROIPixelsSize(contentNode, pixelsROI, contentObjectReader);
+                        if (entrySize < 0) {
+                            return -1;
+                        }
+                        entrySources.add(new ZipContentArchiver.ArchiveEntrySource(
+                                getEntryName(contentNode, commonPrefix),
+                                entrySize,
+                                false,
+                                null));
+                    }
+                    return ZipContentArchiver.estimateStoredArchiveSize(entrySources);
+                case TAR_ZST:
+                    return -1;
+                default:
+                    long totalSize = 2 * TarConstants.DEFAULT_RCDSIZE;
+                    for (ContentNode contentNode : contentNodes) {
+                        if (contentNode.isCollection()) {
+                            continue; // skip dirs
+                        }
+                        long entrySize = estimateROIPixelsSize(contentNode, pixelsROI, contentObjectReader);
+                        if (entrySize < 0) {
+                            return -1;
+                        }
                         totalSize += ContentNodeHelper.calculateTarEntrySize(entrySize);
                     }
-                }
-                return totalSize;
+                    return totalSize;
             }
+        } catch (ContentException e) {
+            throw e;
         } catch (Exception e) {
             throw new ContentException(e);
         }
@@ -80,13 +117,7 @@ public class TiffROIPixelsContentAccess implements ContentAccess {
                                 ContentAccessParams contentAccessParams,
                                 ContentStreamReader contentObjectReader,
                                 OutputStream outputStream) {
-        Integer xCenter = contentAccessParams.getAsInt("xCenter", 0);
-        Integer yCenter = contentAccessParams.getAsInt("yCenter", 0);
-        Integer zCenter = contentAccessParams.getAsInt("zCenter", 0);
-        Integer dimX = contentAccessParams.getAsInt("dimX", -1);
-        Integer dimY = contentAccessParams.getAsInt("dimY", -1);
-        Integer dimZ = contentAccessParams.getAsInt("dimZ", -1);
-
+        PixelsROI pixelsROI = new PixelsROI(contentAccessParams);
         try {
             if (CollectionUtils.isEmpty(contentNodes)) {
                 return 0L;
@@ -94,42 +125,169 @@ public class TiffROIPixelsContentAccess implements ContentAccess {
                 if (contentNodes.get(0).isCollection()) {
                     return 0L;
                 }
-                try (InputStream nodeContentStream = contentObjectReader.getContentInputStream(contentNodes.get(0).getObjectKey())) {
-                    return IOStreamUtils.copyFrom(ImageUtils.loadImagePixelBytesFromTiffStream(
-                            nodeContentStream,
-                            xCenter, yCenter, zCenter,
-                            dimX, dimY, dimZ
-                    ), outputStream);
-                }
-            } else {
-                TarArchiveOutputStream archiveOutputStream = new TarArchiveOutputStream(outputStream, TarConstants.DEFAULT_RCDSIZE);
-                String commonPrefix = ContentNodeHelper.commonPrefix(contentNodes);
-                for (ContentNode contentNode : contentNodes) {
-                    if (contentNode.isCollection()) {
-                        continue; // skip dirs
+                return IOStreamUtils.copyFrom(getROIPixelBytes(contentNodes.get(0), pixelsROI, contentObjectReader), outputStream);
+            }
+            switch (contentAccessParams.getArchiveFormat()) {
+                case ZIP:
+                    // the ROIs of the entries that follow are decoded while the current entry is written
+                    List<ZipContentArchiver.ArchiveEntrySource> entrySources = new ArrayList<>();
+                    String commonPrefix = ContentNodeHelper.commonPrefix(contentNodes);
+                    for (ContentNode contentNode : contentNodes) {
+                        if (contentNode.isCollection()) {
+                            continue; // skip dirs
+                        }
+                        entrySources.add(new ZipContentArchiver.ArchiveEntrySource(
+                                getEntryName(contentNode, commonPrefix),
+                                -1,
+                                false,
+                                entryOutputStream -> IOStreamUtils.copyFrom(getROIPixelBytes(contentNode, pixelsROI, contentObjectReader), entryOutputStream)));
                     }
-                    String tarEntryPrefix = commonPrefix.isEmpty() ? contentNode.getPrefix() : commonPrefix;
-                    String tarEntryName = tarEntryPrefix.isEmpty() ? contentNode.getName() : tarEntryPrefix + "/" + contentNode.getName();
-                    TarArchiveEntry entry = new TarArchiveEntry(tarEntryName);
-                    entry.setSize(contentNode.getSize());
-                    archiveOutputStream.putArchiveEntry(entry);
-                    try (InputStream nodeContent = contentObjectReader.getContentInputStream(contentNode.getObjectKey())) {
-                        IOStreamUtils.copyFrom(ImageUtils.loadImagePixelBytesFromTiffStream(
-                                nodeContent,
-                                xCenter, yCenter, zCenter,
-                                dimX, dimY, dimZ
-                        ), archiveOutputStream);
+                    return zipContentArchiver.archiveContent(entrySources, contentAccessParams.isArchiveCompressionDisabled(), outputStream);
+                case TAR_ZST:
+                    CountingOutputStream compressedOutputStream = new CountingOutputStream(new UnclosableOutputStream(outputStream));
+                    try (ZstdOutputStream zstdOutputStream = new ZstdOutputStream(compressedOutputStream)) {
+                        archiveROIPixels(contentNodes, pixelsROI, contentObjectReader, zstdOutputStream);
                     }
-                    archiveOutputStream.closeArchiveEntry();
-                }
-                archiveOutputStream.finish();
-                long nbytesWritten = archiveOutputStream.getBytesWritten();
-                LOG.info("Archived {} bytes", nbytesWritten);
-                return nbytesWritten;
+                    return compressedOutputStream.getCount();
+                default:
+                    return archiveROIPixels(contentNodes, pixelsROI, contentObjectReader, outputStream);
             }
+        } catch (ContentException e) {
+            throw e;
         } catch (Exception e) {
             throw new ContentException(e);
         }
     }
 
+    private long archiveROIPixels(List<ContentNode> contentNodes,
+                                  PixelsROI pixelsROI,
+                                  ContentStreamReader contentObjectReader,
+                                  OutputStream outputStream) throws IOException {
+        TarArchiveOutputStream archiveOutputStream = new TarArchiveOutputStream(outputStream, TarConstants.DEFAULT_RCDSIZE);
+        String commonPrefix = ContentNodeHelper.commonPrefix(contentNodes);
+        for (ContentNode contentNode : contentNodes) {
+            if (contentNode.isCollection()) {
+                continue; // skip dirs
+            }
+            byte[] roiPixelBytes = getROIPixelBytes(contentNode, pixelsROI, contentObjectReader);
+            TarArchiveEntry entry = new TarArchiveEntry(getEntryName(contentNode, commonPrefix));
+            // the entry contains only the ROI pixels, not the entire file
+            entry.setSize(roiPixelBytes.length);
+            archiveOutputStream.putArchiveEntry(entry);
+            IOStreamUtils.copyFrom(roiPixelBytes, archiveOutputStream);
+            archiveOutputStream.closeArchiveEntry();
+        }
+        archiveOutputStream.finish();
+        long nbytesWritten = archiveOutputStream.getBytesWritten();
+        LOG.info("Archived {} bytes", nbytesWritten);
+        return nbytesWritten;
+    }
+
+    private String getEntryName(ContentNode contentNode, String commonPrefix) {
+        String entryPrefix = commonPrefix.isEmpty() ? contentNode.getPrefix() : commonPrefix;
+        return entryPrefix.isEmpty() ? contentNode.getName() : entryPrefix + "/" + contentNode.getName();
+    }
+
+    private String getROIContentKey(ContentNode contentNode, PixelsROI pixelsROI) {
+        return TiffContentCache.contentKey(Collections.singletonList(contentNode), TIFF_ROI_PIXELS,
+                pixelsROI.xCenter, pixelsROI.yCenter, pixelsROI.zCenter,
+                pixelsROI.dimX, pixelsROI.dimY, pixelsROI.dimZ);
+    }
+
+    private byte[] getROIPixelBytes(ContentNode contentNode, PixelsROI pixelsROI, ContentStreamReader contentObjectReader) {
+        return tiffContentCache.getDecodedContent(
+                getROIContentKey(contentNode, pixelsROI),
+                () -> estimateROIDecodedSize(contentNode, pixelsROI, contentObjectReader),
+                () -> {
+                    try (InputStream nodeContentStream = contentObjectReader.getContentInputStream(contentNode.getObjectKey())) {
+                        return ImageUtils.loadImagePixelBytesFromTiffStream(
+                                nodeContentStream,
+                                pixelsROI.xCenter, pixelsROI.yCenter, pixelsROI.zCenter,
+                                pixelsROI.dimX, pixelsROI.dimY, pixelsROI.dimZ
+                        );
+                    }
+                });
+    }
+
+    /**
+     * @return the size of the ROI pixels or -1 if it cannot be determined without decoding the image
+     */
+    private long estimateROIPixelsSize(ContentNode contentNode, PixelsROI pixelsROI, ContentStreamReader contentObjectReader) {
+        long cachedSize = tiffContentCache.getCachedContentSize(getROIContentKey(contentNode, pixelsROI));
+        if (cachedSize >= 0) {
+            return cachedSize;
+        }
+        TiffImageGeometry imageGeometry;
+        try {
+            // only the pages up to the end of the ROI must be walked to know that the ROI is inside the image
+            imageGeometry = TiffImageGeometry.read(contentNode, contentObjectReader,
+                    pixelsROI.dimZ > 0 ? Math.max(pixelsROI.zCenter + pixelsROI.dimZ / 2 + 1, 1) : TiffImageGeometry.MAX_WALKED_PAGES);
+        } catch (RuntimeException e) {
+            LOG.debug("Could not read the image geometry of {} so the ROI size is unknown", contentNode.getObjectKey(), e);
+            return -1;
+        }
+        long roiWidth = roiDim(pixelsROI.xCenter, pixelsROI.dimX, imageGeometry.width, true);
+        long roiHeight = roiDim(pixelsROI.yCenter, pixelsROI.dimY, imageGeometry.height, true);
+        // the number of pages is exact if the walk reached the last page or if the ROI ends before the last walked page
+        long roiDepth = roiDim(pixelsROI.zCenter, pixelsROI.dimZ, imageGeometry.pages, imageGeometry.allPagesWalked || pixelsROI.dimZ > 0);
+        if (roiWidth < 0 || roiHeight < 0 || roiDepth < 0) {
+            return -1;
+        }
+        return roiWidth * roiHeight * roiDepth * imageGeometry.bytesPerPixel;
+    }
+
+    /**
+     * @return the ROI's size along one axis, or -1 if the ROI is not entirely inside the image along the axis
+     * since then the size depends on how the decoder clips it
+     */
+    private long roiDim(int roiCenter, int roiDim, long imageDim, boolean imageDimExact) {
+        if (roiDim <= 0) {
+            return imageDimExact ? imageDim : -1;
+        } else if (roiCenter - roiDim / 2 >= 0 && roiCenter + roiDim / 2 < imageDim) {
+            return roiDim;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * The decoder holds one decoded page besides the ROI pixels.
+     */
+    private long estimateROIDecodedSize(ContentNode contentNode, PixelsROI pixelsROI, ContentStreamReader contentObjectReader) {
+        try {
+            // only as many pages as the ROI's depth need to be counted
+            TiffImageGeometry imageGeometry = TiffImageGeometry.read(contentNode, contentObjectReader,
+                    pixelsROI.dimZ > 0 ? pixelsROI.dimZ : TiffImageGeometry.MAX_WALKED_PAGES);
+            long roiPixels = (long) clipROIDim(pixelsROI.dimX, imageGeometry.width)
+                    * clipROIDim(pixelsROI.dimY, imageGeometry.height)
+                    * clipROIDim(pixelsROI.dimZ, imageGeometry.pages);
+            return roiPixels * imageGeometry.bytesPerPixel + imageGeometry.decodedPageSize();
+        } catch (RuntimeException e) {
+            LOG.debug("Could not read the image geometry of {} so the decoding memory is estimated from its size", contentNode.getObjectKey(), e);
+            return contentNode.getSize();
+        }
+    }
+
+    private long clipROIDim(int roiDim, long imageDim) {
+        return roiDim > 0 ? Math.min(roiDim, imageDim) : imageDim;
+    }
+
+    private static class PixelsROI {
+        private final int xCenter;
+        private final int yCenter;
+        private final int zCenter;
+        private final int dimX;
+        private final int dimY;
+        private final int dimZ;
+
+        PixelsROI(ContentAccessParams contentAccessParams) {
+            this.xCenter = contentAccessParams.getAsInt("xCenter", 0);
+            this.yCenter = contentAccessParams.getAsInt("yCenter", 0);
+            this.zCenter = contentAccessParams.getAsInt("zCenter", 0);
+            this.dimX = contentAccessParams.getAsInt("dimX", -1);
+            this.dimY = contentAccessParams.getAsInt("dimY", -1);
+            this.dimZ = contentAccessParams.getAsInt("dimZ", -1);
+        }
+    }
+
 }
@@ -0,0 +1,241 @@
+package org.janelia.jacsstorage.service.impl.n5;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.service.ContentException;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+
+/**
+ * Cache for the N5 blocks served to the viewers, which request the same blocks over and over while they navigate
+ * through a volume. The memory used by the cached blocks is bounded and the least recently used blocks are evicted
+ * first. Missing blocks, which are common in sparse volumes, are cached as well. The attributes of the datasets
+ * are kept for the same time as the blocks so that serving a block does not require reading the dataset's attributes.
+ *
+ * The cached blocks and attributes are indexed by their storage location so that the ones written or deleted
+ * through the storage service are invalidated right away; the ones changed by other writers are read again
+ * once they expire.
+ */
+@Singleton
+public class N5BlockCache {
+
+    private static final byte[] NO_BLOCK = new byte[0];
+    // estimated memory used by a cached block besides its content
+    private static final int BLOCK_OVERHEAD_BYTES = 128;
+
+    private static class CacheKey {
+        private final String location;
+        private final String accessKey;
+
+        CacheKey(String location, String accessKey) {
+            this.location = location;
+            this.accessKey = accessKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return location.equals(that.location) && accessKey.equals(that.accessKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * location.hashCode() + accessKey.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return location;
+        }
+    }
+
+    private final Cache<CacheKey, byte[]> blocksCache; // null if caching is disabled
+    private final Cache<CacheKey, DatasetAttributes> datasetAttributesCache; // null if caching is disabled
+    // cached blocks and attributes by their location - guarded by this
+    private final NavigableMap<String, Set<CacheKey>> keysByLocation = new TreeMap<>();
+    // incremented on every invalidation so that content read while it was changing is not kept
+    private final AtomicLong invalidationsCount = new AtomicLong();
+
+    @Inject
+    public N5BlockCache(@PropertyValue(name = "StorageAgent.N5BlockCacheSizeInMiB", defaultValue = "512") int cacheSizeInMiB,
+                        @PropertyValue(name = "StorageAgent.N5BlockCacheExpirationInSeconds", defaultValue = "600") int expirationInSeconds) {
+        if (cacheSizeInMiB > 0 && expirationInSeconds > 0) {
+            this.blocksCache = CacheBuilder.newBuilder()
+                    .maximumWeight((long) cacheSizeInMiB * 1024 * 1024)
+                    .weigher((Weigher<CacheKey, byte[]>) (key, content) ->
+                            BLOCK_OVERHEAD_BYTES + 2 * (key.location.length() + key.accessKey.length()) + content.length)
+                    .expireAfterWrite(expirationInSeconds, TimeUnit.SECONDS)
+                    .removalListener((RemovalNotification<CacheKey, byte[]> notification) -> unindexKey(notification.getKey()))
+                    .recordStats()
+                    .build();
+            this.datasetAttributesCache = CacheBuilder.newBuilder()
+                    .maximumSize(1000)
+                    .expireAfterWrite(expirationInSeconds, TimeUnit.SECONDS)
+                    .removalListener((RemovalNotification<CacheKey, DatasetAttributes> notification) -> unindexKey(notification.getKey()))
+                    .build();
+        } else {
+            this.blocksCache = null;
+            this.datasetAttributesCache = null;
+        }
+    }
+
+    public CacheStats getStats() {
+        return blocksCache != null ? blocksCache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * @return the storage location of a dataset in the container at the given location
+     */
+    public static String datasetLocation(String containerLocation, String datasetPath) {
+        String normalizedDatasetPath = StringUtils.strip(datasetPath, "/");
+        String normalizedContainerLocation = StringUtils.removeEnd(containerLocation, "/");
+        return normalizedDatasetPath.isEmpty() ? normalizedContainerLocation : normalizedContainerLocation + "/" + normalizedDatasetPath;
+    }
+
+    /**
+     * @return the storage location of the block at the given grid position, which for N5 is the dataset location
+     * followed by the grid coordinates, e.g. "/data/c.n5/s0/1/2/3"
+     */
+    public static String blockLocation(String datasetLocation, long[] gridPosition) {
+        StringBuilder locationBuilder = new StringBuilder(datasetLocation);
+        for (long p : gridPosition) {
+            locationBuilder.append('/').append(p);
+        }
+        return locationBuilder.toString();
+    }
+
+    /**
+     * Get the block from the cache or read it.
+     *
+     * @param containerKey identifies the container and the credentials used for reading it
+     * @param blockLocation location created with {@link #blockLocation(String, long[])}
+     * @param decoded whether the block is decoded or raw
+     * @param blockReader reads the block - it returns null if there is no block at the requested position
+     * @return the block's content or null if there is no block
+     */
+    public byte[] getBlock(String containerKey, String blockLocation, boolean decoded, Callable<byte[]> blockReader) {
+        byte[] blockContent = blocksCache != null
+                ? get(blocksCache, new CacheKey(blockLocation, containerKey + (decoded ? ":decoded" : ":raw")), () -> {
+                    byte[] content = blockReader.call();
+                    return content != null ? content : NO_BLOCK;
+                })
+                : call(blockLocation, blockReader);
+        return blockContent == NO_BLOCK ? null : blockContent;
+    }
+
+    /**
+     * Get the dataset attributes from the cache or read them.
+     *
+     * @param containerKey identifies the container and the credentials used for reading it
+     * @param datasetLocation location created with {@link #datasetLocation(String, String)}
+     * @param attributesReader reads the attributes
+     */
+    public DatasetAttributes getDatasetAttributes(String containerKey, String datasetLocation, Callable<DatasetAttributes> attributesReader) {
+        // the attributes are changed by writing the dataset's attributes file
+        return datasetAttributesCache != null
+                ? get(datasetAttributesCache, new CacheKey(datasetLocation + "/attributes.json", containerKey), attributesReader)
+                : call(datasetLocation, attributesReader);
+    }
+
+    /**
+     * Invalidate the cached blocks and attributes read from the given location or, if the location is a directory,
+     * from anywhere below it.
+     */
+    public void invalidateLocation(String changedLocation) {
+        if (blocksCache == null || StringUtils.isBlank(changedLocation)) {
+            return;
+        }
+        invalidationsCount.incrementAndGet();
+        String location = StringUtils.removeEnd(changedLocation, "/");
+        List<CacheKey> affectedKeys = new ArrayList<>();
+        synchronized (this) {
+            Set<CacheKey> locationKeys = keysByLocation.get(location);
+            if (locationKeys != null) {
+                affectedKeys.addAll(locationKeys);
+            }
+            keysByLocation.subMap(location + "/", true, location + "/" + Character.MAX_VALUE, true)
+                    .values()
+                    .forEach(affectedKeys::addAll);
+        }
+        blocksCache.invalidateAll(affectedKeys);
+        datasetAttributesCache.invalidateAll(affectedKeys);
+    }
+
+    private <T> T get(Cache<CacheKey, T> cache, CacheKey key, Callable<T> valueReader) {
+        long readInvalidationsCount = invalidationsCount.get();
+        boolean[] valueRead = new boolean[1];
+        T value;
+        try {
+            value = cache.get(key, () -> {
+                valueRead[0] = true;
+                return valueReader.call();
+            });
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ContentException("Error reading " + key, e.getCause());
+        }
+        if (valueRead[0]) {
+            indexKey(cache, key);
+            if (invalidationsCount.get() != readInvalidationsCount) {
+                // the value is returned but it is not kept because the content may have changed while it was read
+                cache.invalidate(key);
+            }
+        }
+        return value;
+    }
+
+    private synchronized void indexKey(Cache<CacheKey, ?> cache, CacheKey key) {
+        // a value that was already evicted is not indexed
+        if (cache.asMap().containsKey(key)) {
+            keysByLocation.computeIfAbsent(key.location, l -> new HashSet<>()).add(key);
+        }
+    }
+
+    private synchronized void unindexKey(CacheKey key) {
+        // a value that was read again after it was removed is still indexed
+        if (key != null && !blocksCache.asMap().containsKey(key) && !datasetAttributesCache.asMap().containsKey(key)) {
+            Set<CacheKey> locationKeys = keysByLocation.get(key.location);
+            if (locationKeys != null && locationKeys.remove(key) && locationKeys.isEmpty()) {
+                keysByLocation.remove(key.location);
+            }
+        }
+    }
+
+    private <T> T call(String location, Callable<T> valueReader) {
+        try {
+            return valueReader.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ContentException("Error reading " + location, e);
+        }
+    }
+}
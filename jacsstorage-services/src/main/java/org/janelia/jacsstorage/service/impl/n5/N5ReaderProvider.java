@@ -1,14 +1,36 @@
 package org.janelia.jacsstorage.service.impl.n5;
 
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.cdi.qualifier.PooledResource;
 import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
 import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
 import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
+import org.janelia.jacsstorage.service.ContentException;
+import org.janelia.jacsstorage.service.s3.S3Adapter;
 import org.janelia.jacsstorage.service.s3.S3AdapterProvider;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5Reader;
 
+/**
+ * Creates the N5 readers for filesystem and S3 containers. The readers are reused for requests that access
+ * the same container with the same credentials, except for the inventory readers, which are only valid
+ * for the listing they were created from.
+ */
+@Singleton
 public class N5ReaderProvider {
 
     private final S3AdapterProvider s3AdapterProvider;
@@ -16,26 +38,86 @@ public class N5ReaderProvider {
     private final boolean defaultAsyncAccess;
     private final int apiBufferSizeInMiB;
     private final int minPartSizeInMiB;
+    private final int inventoryMaxKeys;
+    private final long inventoryMaxKeysSize;
+    private final int inventoryConcurrency;
+    private final ExecutorService executorService;
+    private final Cache<String, N5Reader> n5ReadersCache; // null if caching is disabled
 
     @Inject
     public N5ReaderProvider(S3AdapterProvider s3AdapterProvider,
                             @PropertyValue(name = "AWS.Region.Default", defaultValue = "us-east-1") String defaultAWSRegion,
                             @PropertyValue(name = "AWS.AsyncAccess.Default", defaultValue = "false") boolean defaultAsyncAccess,
                             @PropertyValue(name = "AWS.ApiCallBufferInMiB.Default", defaultValue = "1024") int apiBufferSizeInMiB,
-                            @PropertyValue(name = "AWS.MinPartSizeInMiB.Default", defaultValue = "384") int minPartSizeInMiB) {
+                            @PropertyValue(name = "AWS.MinPartSizeInMiB.Default", defaultValue = "384") int minPartSizeInMiB,
+                            @PropertyValue(name = "AWS.N5InventoryMaxKeys", defaultValue = "1000000") int inventoryMaxKeys,
+                            @PropertyValue(name = "AWS.N5InventoryMaxKeysSizeInMiB", defaultValue = "64") int inventoryMaxKeysSizeInMiB,
+                            @PropertyValue(name = "AWS.N5InventoryConcurrency", defaultValue = "16") int inventoryConcurrency,
+                            @PropertyValue(name = "StorageAgent.N5ReaderCacheMaxEntries", defaultValue = "100") int readersCacheMaxEntries,
+                            @PropertyValue(name = "StorageAgent.N5ReaderCacheExpirationInSeconds", defaultValue = "600") int readersCacheExpirationInSeconds,
+                            @PooledResource ExecutorService executorService) {
         this.s3AdapterProvider = s3AdapterProvider;
         this.defaultAWSRegion = defaultAWSRegion;
         this.defaultAsyncAccess = defaultAsyncAccess;
         this.apiBufferSizeInMiB = apiBufferSizeInMiB;
         this.minPartSizeInMiB = minPartSizeInMiB;
+        this.inventoryMaxKeys = inventoryMaxKeys;
+        this.inventoryMaxKeysSize = inventoryMaxKeysSizeInMiB * 1024L * 1024L;
+        this.inventoryConcurrency = inventoryConcurrency;
+        this.executorService = executorService;
+        if (readersCacheMaxEntries > 0 && readersCacheExpirationInSeconds > 0) {
+            this.n5ReadersCache = CacheBuilder.newBuilder()
+                    .maximumSize(readersCacheMaxEntries)
+                    .expireAfterAccess(readersCacheExpirationInSeconds, TimeUnit.SECONDS)
+                    .build();
+        } else {
+            this.n5ReadersCache = null;
+        }
+    }
+
+    /**
+     * @return a key that identifies the container together with the credentials used for accessing it
+     */
+    public static String containerKey(JADEStorageURI storageURI) {
+        JADEOptions storageOptions = storageURI.getStorageOptions() != null ? storageURI.getStorageOptions() : JADEOptions.create();
+        // only a fingerprint of the credentials is kept in the key
+        String credentialsFingerprint = Hashing.sha256().newHasher()
+                .putString(StringUtils.defaultString(storageOptions.getAccessKey()), StandardCharsets.UTF_8)
+                .putChar('\n')
+                .putString(StringUtils.defaultString(storageOptions.getSecretKey()), StandardCharsets.UTF_8)
+                .putChar('\n')
+                .putString(StringUtils.defaultString(storageOptions.getAWSRegion()), StandardCharsets.UTF_8)
+                .hash()
+                .toString();
+        return storageURI.getJadeStorage() + "#" + credentialsFingerprint;
     }
 
     public N5Reader getN5Reader(JADEStorageURI storageURI) {
+        if (storageURI == null || n5ReadersCache == null) {
+            return getN5Reader(storageURI, false);
+        }
+        try {
+            return n5ReadersCache.get(containerKey(storageURI), () -> getN5Reader(storageURI, false));
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ContentException("Error creating N5 reader for " + storageURI, e.getCause());
+        }
+    }
+
+    /**
+     * @param storageURI N5 container location
+     * @param inventoryAccess if true an S3 container is listed once and the existence and listing queries
+     *                        are answered from that listing - this is meant for traversing the entire container
+     * @return the N5 reader
+     */
+    public N5Reader getN5Reader(JADEStorageURI storageURI, boolean inventoryAccess) {
         if (storageURI == null) {
             return null;
         }
         if (storageURI.getStorageType() == JacsStorageType.S3) {
-            return createN5S3Reader(storageURI);
+            return createN5S3Reader(storageURI, inventoryAccess);
         } else {
             return createN5FSReader(storageURI);
         }
@@ -45,36 +127,42 @@ public class N5ReaderProvider {
         return new N5FSReader(storageURI.getContentKey());
     }
 
-    private S3N5Reader createN5S3Reader(JADEStorageURI storageURI) {
+    private S3N5Reader createN5S3Reader(JADEStorageURI storageURI, boolean inventoryAccess) {
+        S3Adapter s3Adapter;
         if (storageURI.getStorageScheme() == JADEStorageURI.JADEStorageScheme.S3) {
-            return new S3N5Reader(
-                    s3AdapterProvider.getS3Adapter(
-                            storageURI.getContentBucket(),
-                            null,
-                            storageURI.getStorageOptions()
-                                    .setDefaultAWSRegion(defaultAWSRegion)
-                                    .setDefaultPathStyleBucket(false)
-                                    .setDefaultAsyncAccess(defaultAsyncAccess),
-                            apiBufferSizeInMiB,
-                            minPartSizeInMiB
-                    ),
-                    storageURI.getContentKey());
+            s3Adapter = s3AdapterProvider.getS3Adapter(
+                    storageURI.getContentBucket(),
+                    null,
+                    storageURI.getStorageOptions()
+                            .setDefaultAWSRegion(defaultAWSRegion)
+                            .setDefaultPathStyleBucket(false)
+                            .setDefaultAsyncAccess(defaultAsyncAccess),
+                    apiBufferSizeInMiB,
+                    minPartSizeInMiB
+            );
         } else if (storageURI.getStorageScheme() == JADEStorageURI.JADEStorageScheme.HTTP) {
-            return new S3N5Reader(
-                    s3AdapterProvider.getS3Adapter(
-                            storageURI.getContentBucket(),
-                            storageURI.getStorageEndpoint(),
-                            storageURI.getStorageOptions()
-                                    .setDefaultAWSRegion(defaultAWSRegion)
-                                    .setDefaultPathStyleBucket(true)
-                                    .setDefaultAsyncAccess(false),
-                            apiBufferSizeInMiB,
-                            minPartSizeInMiB
-                    ),
-                    storageURI.getContentKey());
+            s3Adapter = s3AdapterProvider.getS3Adapter(
+                    storageURI.getContentBucket(),
+                    storageURI.getStorageEndpoint(),
+                    storageURI.getStorageOptions()
+                            .setDefaultAWSRegion(defaultAWSRegion)
+                            .setDefaultPathStyleBucket(true)
+                            .setDefaultAsyncAccess(false),
+                    apiBufferSizeInMiB,
+                    minPartSizeInMiB
+            );
         } else {
             throw new IllegalArgumentException("Cannot create S3 N5 reader instance for " + storageURI);
         }
+        String basePrefix = storageURI.getContentKey();
+        if (inventoryAccess) {
+            S3KeyValueAccess keyValueAccess = new S3KeyValueAccess(s3Adapter, basePrefix, inventoryMaxKeys, inventoryMaxKeysSize, inventoryConcurrency, executorService);
+            // load the inventory on the caller's thread, before the reader's tasks start using the pooled executor
+            keyValueAccess.loadInventory();
+            return new S3N5Reader(keyValueAccess, basePrefix);
+        } else {
+            return new S3N5Reader(s3Adapter, basePrefix);
+        }
     }
 
 }
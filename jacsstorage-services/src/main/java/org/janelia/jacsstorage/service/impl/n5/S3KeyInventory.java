@@ -0,0 +1,321 @@
+package org.janelia.jacsstorage.service.impl.n5;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.service.s3.S3Adapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * In-memory tree of the keys under an N5 container prefix, created from a single flat listing of the prefix.
+ * The content of all attributes files is retrieved together with the tree, so that discovering the datasets
+ * of the container does not need any other S3 request.
+ *
+ * The blocks of a dataset are not part of the tree: when the listing reaches the first block key of a directory,
+ * i.e. a key with a numeric component, the directory's attributes are retrieved and if the directory is a dataset
+ * the listing resumes after its blocks, whose names sort before "attributes.json". Keys below a dataset are therefore
+ * not in the inventory and they are looked up in S3.
+ *
+ * The paths in the tree are S3 keys without the trailing '/'.
+ */
+class S3KeyInventory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(S3KeyInventory.class);
+    private static final String ATTRIBUTES_FILE = "attributes.json";
+
+    private final String rootPath;
+    private final Map<String, Set<String>> subDirectories = new HashMap<>();
+    private final Map<String, Set<String>> files = new HashMap<>();
+    private final Map<String, byte[]> attributesContent = new ConcurrentHashMap<>();
+    // directories that have numeric sub-directories or files, whose attributes were checked while listing
+    private final Set<String> checkedDirectories = new HashSet<>();
+    // checked directories that are not datasets
+    private final Set<String> groups = new HashSet<>();
+    private final Set<String> datasets = new HashSet<>();
+
+    private S3KeyInventory(String rootPath) {
+        this.rootPath = rootPath;
+    }
+
+    /**
+     * List the keys under the given prefix, except the dataset blocks, and retrieve the attributes files.
+     *
+     * @param s3Adapter bucket accessor
+     * @param prefix container prefix
+     * @param maxKeys maximum number of keys in the inventory
+     * @param maxKeysSize maximum total size of the keys in the inventory
+     * @param concurrency maximum number of attributes files retrieved at the same time
+     * @param executorService executor used for retrieving the attributes files
+     * @return the inventory or null if the prefix contains more than the maximum number or size of keys
+     */
+    static S3KeyInventory load(S3Adapter s3Adapter, String prefix, int maxKeys, long maxKeysSize, int concurrency, ExecutorService executorService) {
+        S3KeyInventory keyInventory = new S3KeyInventory(toPath(prefix));
+        String listPrefix = keyInventory.rootPath.isEmpty() ? null : keyInventory.rootPath + "/";
+        long startTime = System.currentTimeMillis();
+        int keysCount = 0;
+        long keysSize = 0;
+        int listingsCount = 0;
+        List<String> attributesKeys = new ArrayList<>();
+        String startAfter = null;
+        String continuationToken = null;
+        for (boolean hasMoreKeys = true; hasMoreKeys; ) {
+            ListObjectsV2Response r = s3Adapter.getSyncS3Client().listObjectsV2(ListObjectsV2Request.builder()
+                    .bucket(s3Adapter.getBucket())
+                    .prefix(listPrefix)
+                    .startAfter(startAfter)
+                    .continuationToken(continuationToken)
+                    .build());
+            listingsCount++;
+            String datasetPath = null;
+            for (S3Object s3Object : r.contents()) {
+                datasetPath = keyInventory.checkDataset(s3Adapter, s3Object.key());
+                if (datasetPath != null) {
+                    break;
+                }
+                keysCount++;
+                keysSize += s3Object.key().length();
+                if (keysCount > maxKeys || keysSize > maxKeysSize) {
+                    LOG.info("{} has more than {} keys or {} bytes of keys so it will be accessed without an inventory",
+                            prefix, maxKeys, maxKeysSize);
+                    return null;
+                }
+                if (keyInventory.addKey(s3Object.key())) {
+                    attributesKeys.add(s3Object.key());
+                }
+            }
+            if (datasetPath != null) {
+                // block names are numeric so they all sort before the dataset's attributes
+                startAfter = datasetPath + "/9" + Character.MAX_VALUE;
+                continuationToken = null;
+            } else if (Boolean.TRUE.equals(r.isTruncated())) {
+                continuationToken = r.nextContinuationToken();
+            } else {
+                hasMoreKeys = false;
+            }
+        }
+        if (keyInventory.subDirectories.isEmpty()) {
+            // the prefix is not a directory - it is either a single object or it does not exist
+            return null;
+        }
+        keyInventory.fetchAttributes(s3Adapter, attributesKeys, concurrency, executorService);
+        LOG.debug("Created inventory of {} keys with {} attributes files and {} datasets for {} from {} listings in {} ms",
+                keysCount, attributesKeys.size(), keyInventory.datasets.size(), prefix, listingsCount, System.currentTimeMillis() - startTime);
+        return keyInventory;
+    }
+
+    private static String toPath(String key) {
+        return StringUtils.removeEnd(StringUtils.removeStart(StringUtils.defaultString(key), '/'), "/");
+    }
+
+    /**
+     * Add the object key and all its parent directories.
+     *
+     * @return true if the key is an attributes file
+     */
+    private boolean addKey(String key) {
+        String path = toPath(key);
+        boolean isFile = !key.endsWith("/"); // a folder marker only creates the directory
+        String parentPath = path;
+        String name = null;
+        while (!parentPath.equals(rootPath)) {
+            int separatorIndex = parentPath.lastIndexOf('/');
+            String childName = parentPath.substring(separatorIndex + 1);
+            String childPath = parentPath;
+            parentPath = separatorIndex < 0 ? "" : parentPath.substring(0, separatorIndex);
+            if (name == null && isFile) {
+                files.computeIfAbsent(parentPath, p -> new TreeSet<>()).add(childName);
+            } else {
+                subDirectories.computeIfAbsent(childPath, p -> new TreeSet<>());
+                subDirectories.computeIfAbsent(parentPath, p -> new TreeSet<>()).add(childName);
+            }
+            if (name == null) {
+                name = childName;
+            }
+        }
+        subDirectories.computeIfAbsent(rootPath, p -> new TreeSet<>());
+        return isFile && ATTRIBUTES_FILE.equals(name);
+    }
+
+    /**
+     * If the key has a numeric component check if the directory that contains that component is a dataset.
+     * Each directory is checked once and the numeric components below a dataset or below a directory
+     * whose attributes could not be read are not checked any more.
+     *
+     * @return the path of the dataset if the key is the first block of the dataset or null otherwise
+     */
+    private String checkDataset(S3Adapter s3Adapter, String key) {
+        String path = toPath(key);
+        if (path.length() <= rootPath.length()) {
+            return null;
+        }
+        String[] components = (rootPath.isEmpty() ? path : path.substring(rootPath.length() + 1)).split("/");
+        String parentPath = rootPath;
+        for (String component : components) {
+            if (StringUtils.isNumeric(component) && !groups.contains(parentPath)) {
+                if (!checkedDirectories.add(parentPath)) {
+                    return null;
+                }
+                String attributesKey = parentPath.isEmpty() ? ATTRIBUTES_FILE : parentPath + "/" + ATTRIBUTES_FILE;
+                byte[] attributes;
+                try {
+                    attributes = readAttributes(s3Adapter, attributesKey);
+                } catch (Exception e) {
+                    // the directory's content is listed as it is
+                    LOG.warn("Error retrieving {}", attributesKey, e);
+                    return null;
+                }
+                if (isDatasetAttributes(attributes)) {
+                    datasets.add(parentPath);
+                    return parentPath;
+                }
+                groups.add(parentPath);
+            }
+            parentPath = parentPath.isEmpty() ? component : parentPath + "/" + component;
+        }
+        return null;
+    }
+
+    private static boolean isDatasetAttributes(byte[] attributes) {
+        if (attributes == null) {
+            return false;
+        }
+        try {
+            JsonElement attributesElement = JsonParser.parseString(new String(attributes, StandardCharsets.UTF_8));
+            return attributesElement.isJsonObject() && attributesElement.getAsJsonObject().has("dimensions");
+        } catch (RuntimeException e) {
+            LOG.warn("Invalid attributes {}", new String(attributes, StandardCharsets.UTF_8), e);
+            return false;
+        }
+    }
+
+    private void fetchAttributes(S3Adapter s3Adapter, List<String> attributesKeys, int concurrency, ExecutorService executorService) {
+        Queue<String> pendingKeys = new ConcurrentLinkedQueue<>();
+        for (String key : attributesKeys) {
+            // the attributes of the checked directories were already retrieved
+            if (!attributesContent.containsKey(toPath(key))) {
+                pendingKeys.add(key);
+            }
+        }
+        List<CompletableFuture<Void>> fetchTasks = new ArrayList<>();
+        for (int i = 0; i < Math.min(Math.max(1, concurrency), pendingKeys.size()); i++) {
+            fetchTasks.add(CompletableFuture.runAsync(() -> {
+                for (String key = pendingKeys.poll(); key != null; key = pendingKeys.poll()) {
+                    fetchAttributes(s3Adapter, key);
+                }
+            }, executorService));
+        }
+        CompletableFuture.allOf(fetchTasks.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private void fetchAttributes(S3Adapter s3Adapter, String key) {
+        try {
+            readAttributes(s3Adapter, key);
+        } catch (Exception e) {
+            // the file will be read again when it is needed
+            LOG.warn("Error retrieving {}", key, e);
+        }
+    }
+
+    /**
+     * @return the content of the attributes file or null if the file does not exist
+     */
+    private byte[] readAttributes(S3Adapter s3Adapter, String key) {
+        try {
+            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                    .bucket(s3Adapter.getBucket())
+                    .key(key)
+                    .build();
+            byte[] content = s3Adapter.getSyncS3Client().getObject(getObjectRequest, ResponseTransformer.toBytes()).asByteArray();
+            attributesContent.put(toPath(key), content);
+            return content;
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the key is in the inventory's tree, i.e. the inventory can tell if the key exists or not
+     */
+    boolean contains(String key) {
+        String path = toPath(key);
+        if (!rootPath.isEmpty() && !path.equals(rootPath) && !path.startsWith(rootPath + "/")) {
+            return false;
+        }
+        // of the keys below a dataset only its attributes are in the inventory
+        for (String childPath = path; childPath.length() > rootPath.length(); ) {
+            int separatorIndex = childPath.lastIndexOf('/');
+            String parentPath = separatorIndex < 0 ? "" : childPath.substring(0, separatorIndex);
+            if (datasets.contains(parentPath)) {
+                return childPath.equals(path) && ATTRIBUTES_FILE.equals(childPath.substring(separatorIndex + 1));
+            }
+            childPath = parentPath;
+        }
+        return true;
+    }
+
+    boolean isDirectory(String key) {
+        return subDirectories.containsKey(toPath(key));
+    }
+
+    boolean isFile(String key) {
+        String path = toPath(key);
+        int separatorIndex = path.lastIndexOf('/');
+        String parentPath = separatorIndex < 0 ? "" : path.substring(0, separatorIndex);
+        return files.getOrDefault(parentPath, Collections.emptySet()).contains(path.substring(separatorIndex + 1));
+    }
+
+    /**
+     * @return the names of the sub-directories of the given directory or null if the directory is a dataset
+     * whose blocks are not in the inventory
+     */
+    List<String> listDirectories(String key) {
+        String path = toPath(key);
+        if (datasets.contains(path)) {
+            return null;
+        }
+        return new ArrayList<>(subDirectories.getOrDefault(path, Collections.emptySet()));
+    }
+
+    /**
+     * @return the names of the sub-directories and files of the given directory or null if the directory is a dataset
+     * whose blocks are not in the inventory
+     */
+    List<String> list(String key) {
+        String path = toPath(key);
+        if (datasets.contains(path)) {
+            return null;
+        }
+        List<String> children = new ArrayList<>(subDirectories.getOrDefault(path, Collections.emptySet()));
+        children.addAll(files.getOrDefault(path, Collections.emptySet()));
+        return children;
+    }
+
+    /**
+     * @return the prefetched content of the file or null if the file was not prefetched
+     */
+    byte[] getContent(String key) {
+        return attributesContent.get(toPath(key));
+    }
+}
@@ -1,5 +1,6 @@
 package org.janelia.jacsstorage.service.impl.n5;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,6 +18,9 @@ import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
@@ -42,15 +46,43 @@ import software.amazon.awssdk.services.s3.paginators.ListObjectsV2Iterable;
  * The reason for this is that the saalfeldlab implementation is using the old S3 API.
  *
  * So far we only support read operations so all writes will raise an UnsupportedOperationException.
+ *
+ * In inventory mode the container, except for the dataset blocks, is listed once, on the first access, and the existence
+ * and listing queries are answered from the resulting key tree instead of sending an S3 request for each of them.
+ * Containers that have more than the maximum number or size of keys are accessed without an inventory.
  */
 public class S3KeyValueAccess implements KeyValueAccess {
 
     private final S3Adapter s3Adapter;
     private final String basePrefix;
+    private final int inventoryMaxKeys;
+    private final long inventoryMaxKeysSize;
+    private final int inventoryConcurrency;
+    private final ExecutorService executorService;
+    private final Lock inventoryLock = new ReentrantLock();
+    private volatile boolean inventoryLoaded;
+    private S3KeyInventory keyInventory;
 
     S3KeyValueAccess(S3Adapter s3Adapter, String basePrefix) {
+        this(s3Adapter, basePrefix, 0, 0, 0, null);
+    }
+
+    /**
+     * @param s3Adapter bucket accessor
+     * @param basePrefix container prefix
+     * @param inventoryMaxKeys maximum number of keys in the container's inventory - 0 disables the inventory mode
+     * @param inventoryMaxKeysSize maximum total size of the keys in the container's inventory
+     * @param inventoryConcurrency maximum number of attributes files retrieved at the same time for the inventory
+     * @param executorService executor used for retrieving the attributes files
+     */
+    S3KeyValueAccess(S3Adapter s3Adapter, String basePrefix, int inventoryMaxKeys, long inventoryMaxKeysSize, int inventoryConcurrency, ExecutorService executorService) {
         this.s3Adapter = s3Adapter;
         this.basePrefix = basePrefix;
+        this.inventoryMaxKeys = inventoryMaxKeys;
+        this.inventoryMaxKeysSize = inventoryMaxKeysSize;
+        this.inventoryConcurrency = inventoryConcurrency;
+        this.executorService = executorService;
+        this.inventoryLoaded = inventoryMaxKeys <= 0 || executorService == null;
     }
 
     @Override
@@ -163,6 +195,10 @@ public class S3KeyValueAccess implements KeyValueAccess {
     @Override
     public boolean isDirectory(String normalPath) {
         String s3Key = s3Adapter.getStorageURI().resolve(normalPath).getContentKey();
+        S3KeyInventory inventory = getInventory(s3Key);
+        if (inventory != null) {
+            return inventory.isDirectory(s3Key);
+        }
         // append '/' (if normalPath is not root) to force looking for a prefix not an object
         String key = StringUtils.removeStart(StringUtils.appendIfMissing(s3Key, "/"), '/');
         ListObjectsV2Iterable iterableContent = queryIfExists(key);
@@ -179,6 +215,10 @@ public class S3KeyValueAccess implements KeyValueAccess {
     @Override
     public boolean isFile(String normalPath) {
         String s3Key = s3Adapter.getStorageURI().resolve(normalPath).getContentKey();
+        S3KeyInventory inventory = getInventory(s3Key);
+        if (inventory != null) {
+            return inventory.isFile(s3Key);
+        }
         ListObjectsV2Iterable iterableContent = queryIfExists(s3Key);
         for (ListObjectsV2Response r : iterableContent ) {
             if (r.contents().size() > 0) {
@@ -204,6 +244,11 @@ public class S3KeyValueAccess implements KeyValueAccess {
     @Override
     public String[] listDirectories(String normalPath) throws IOException {
         String s3Key = s3Adapter.getStorageURI().resolve(normalPath).getContentKey();
+        S3KeyInventory inventory = getInventory(s3Key);
+        List<String> inventoryDirectories = inventory != null ? inventory.listDirectories(s3Key) : null;
+        if (inventoryDirectories != null) {
+            return inventoryDirectories.toArray(new String[0]);
+        }
         String prefix = StringUtils.removeStart(StringUtils.appendIfMissing(s3Key, "/"), '/');
         return listAllPrefixes(prefix).toArray(new String[0]);
     }
@@ -211,6 +256,11 @@ public class S3KeyValueAccess implements KeyValueAccess {
     @Override
     public String[] list(String normalPath) throws IOException {
         String s3Key = s3Adapter.getStorageURI().resolve(normalPath).getContentKey();
+        S3KeyInventory inventory = getInventory(s3Key);
+        List<String> inventoryChildren = inventory != null ? inventory.list(s3Key) : null;
+        if (inventoryChildren != null) {
+            return inventoryChildren.toArray(new String[0]);
+        }
         return listPrefixesAndObjects(s3Key).toArray(new String[0]);
     }
 
@@ -224,6 +274,31 @@ public class S3KeyValueAccess implements KeyValueAccess {
         throw new UnsupportedOperationException("Write operations are not implemented");
     }
 
+    /**
+     * List the container if the inventory mode is enabled and the inventory was not loaded yet.
+     */
+    void loadInventory() {
+        if (!inventoryLoaded) {
+            inventoryLock.lock();
+            try {
+                if (!inventoryLoaded) {
+                    keyInventory = S3KeyInventory.load(s3Adapter, basePrefix, inventoryMaxKeys, inventoryMaxKeysSize, inventoryConcurrency, executorService);
+                    inventoryLoaded = true;
+                }
+            } finally {
+                inventoryLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the container's inventory if it contains the given key or null if the key must be looked up in S3
+     */
+    private S3KeyInventory getInventory(String s3Key) {
+        loadInventory();
+        return keyInventory != null && keyInventory.contains(s3Key) ? keyInventory : null;
+    }
+
     private List<String> listAllPrefixes(String s3Prefix)  {
         List<String> allPrefixes = new ArrayList<>();
         ListObjectsV2Request initialRequest = ListObjectsV2Request.builder()
@@ -293,6 +368,8 @@ public class S3KeyValueAccess implements KeyValueAccess {
 
         private final String objectKey;
         private final List<Closeable> resources = new ArrayList<>();
+        // closing the S3 streams may block so use a lock that does not pin virtual threads
+        private final Lock resourcesLock = new ReentrantLock();
 
         private S3ObjectChannel(String objectKey) {
             this.objectKey = objectKey;
@@ -301,8 +378,11 @@ public class S3KeyValueAccess implements KeyValueAccess {
         @Override
         public Reader newReader() {
             final InputStreamReader reader = new InputStreamReader(createInputStream(), StandardCharsets.UTF_8);
-            synchronized (resources) {
+            resourcesLock.lock();
+            try {
                 resources.add(reader);
+            } finally {
+                resourcesLock.unlock();
             }
             return reader;
         }
@@ -310,13 +390,25 @@ public class S3KeyValueAccess implements KeyValueAccess {
         @Override
         public InputStream newInputStream() {
             final InputStream inputStream = createInputStream();
-            synchronized (resources) {
+            resourcesLock.lock();
+            try {
                 resources.add(inputStream);
+            } finally {
+                resourcesLock.unlock();
             }
             return inputStream;
         }
 
         private InputStream createInputStream() {
+            S3KeyInventory inventory = getInventory(objectKey);
+            if (inventory != null) {
+                byte[] content = inventory.getContent(objectKey);
+                if (content != null) {
+                    return new ByteArrayInputStream(content);
+                } else if (!inventory.isFile(objectKey)) {
+                    throw new N5Exception.N5NoSuchKeyException("No object found for " + objectKey);
+                }
+            }
             try {
                 GetObjectRequest getObjectRequest = GetObjectRequest.builder()
                         .bucket(s3Adapter.getBucket())
@@ -340,10 +432,13 @@ public class S3KeyValueAccess implements KeyValueAccess {
 
         @Override
         public void close() throws IOException {
-            synchronized (resources) {
+            resourcesLock.lock();
+            try {
                 for (final Closeable resource : resources)
                     resource.close();
                 resources.clear();
+            } finally {
+                resourcesLock.unlock();
             }
         }
     }
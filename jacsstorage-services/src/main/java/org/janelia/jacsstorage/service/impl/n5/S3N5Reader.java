@@ -7,7 +7,11 @@ import org.janelia.saalfeldlab.n5.N5KeyValueReader;
 public class S3N5Reader extends N5KeyValueReader {
 
     public S3N5Reader(S3Adapter s3Adapter, String basePrefix) {
-        super(new S3KeyValueAccess(s3Adapter, basePrefix),
+        this(new S3KeyValueAccess(s3Adapter, basePrefix), basePrefix);
+    }
+
+    S3N5Reader(S3KeyValueAccess keyValueAccess, String basePrefix) {
+        super(keyValueAccess,
                 basePrefix,
                 new GsonBuilder(),
                 false);
@@ -0,0 +1,100 @@
+package org.janelia.jacsstorage.service.s3;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.janelia.jacsstorage.coreutils.IOStreamUtils;
+import org.janelia.jacsstorage.service.ContentException;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Writes the content published by an S3 response to an output stream. The buffers are handed over from the S3
+ * client's event loop to the writing thread and the next buffer is requested only after a buffer was written, so
+ * at most the prefetched buffers are held in memory no matter how slow the destination is, and the event loop,
+ * which is shared by all S3 requests, never blocks on the destination.
+ *
+ * The buffers are written as they are, respecting their position and limit, and without copying them if the
+ * destination supports writing byte buffers directly.
+ */
+public class S3ContentWriter implements Subscriber<ByteBuffer> {
+
+    private static final ByteBuffer END_OF_CONTENT = ByteBuffer.allocate(0);
+
+    private final int prefetchedBuffers;
+    private final BlockingQueue<ByteBuffer> receivedBuffers;
+    private volatile Subscription subscription;
+    private volatile Throwable contentError;
+
+    public S3ContentWriter(int prefetchedBuffers) {
+        this.prefetchedBuffers = Math.max(1, prefetchedBuffers);
+        // one more slot for the end of content marker
+        this.receivedBuffers = new ArrayBlockingQueue<>(this.prefetchedBuffers + 1);
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        subscription = s;
+        s.request(prefetchedBuffers);
+    }
+
+    @Override
+    public void onNext(ByteBuffer byteBuffer) {
+        // never blocks because no more than the prefetched buffers are requested before one is written
+        receivedBuffers.offer(byteBuffer);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        contentError = t;
+        receivedBuffers.offer(END_OF_CONTENT);
+    }
+
+    @Override
+    public void onComplete() {
+        receivedBuffers.offer(END_OF_CONTENT);
+    }
+
+    /**
+     * Write the content to the output stream. This must be called after the writer subscribed to the content
+     * and it returns once all the content was written.
+     *
+     * @param outputStream destination stream
+     * @return the number of bytes written
+     */
+    public long writeTo(OutputStream outputStream) {
+        long nbytes = 0;
+        try {
+            for (;;) {
+                ByteBuffer buffer = receivedBuffers.take();
+                if (buffer == END_OF_CONTENT) {
+                    if (contentError != null) {
+                        throw new ContentException("Error receiving content after " + nbytes + " bytes", contentError);
+                    }
+                    return nbytes;
+                }
+                nbytes += IOStreamUtils.copyFrom(buffer, outputStream);
+                subscription.request(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new ContentException("Interrupted while writing content", e);
+        } catch (ContentException e) {
+            throw e;
+        } catch (Exception e) {
+            // the destination failed so there is no point to receive the rest of the content
+            cancel();
+            throw new ContentException("Error writing content after " + nbytes + " bytes", e);
+        }
+    }
+
+    private void cancel() {
+        Subscription s = subscription;
+        if (s != null) {
+            s.cancel();
+        }
+    }
+}
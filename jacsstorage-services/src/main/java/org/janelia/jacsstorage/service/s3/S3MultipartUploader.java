@@ -0,0 +1,265 @@
+package org.janelia.jacsstorage.service.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.io.ByteStreams;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.service.ContentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+/**
+ * Uploads streams of unknown length to S3. The stream is read in fixed size parts and up to the configured number
+ * of parts of the same stream are uploaded concurrently while the next part is read. Content that fits in a single
+ * part is uploaded with a simple put.
+ *
+ * The part buffers are pooled and shared by all uploads and their number is limited by the configured memory budget,
+ * so the memory used for uploads does not grow with the number of concurrent uploads - when the budget is exhausted
+ * the uploads wait for the parts in flight to complete, but only up to the configured time. Small content, which is
+ * read entirely into a small chunk, never takes a part buffer, so it is not held up by the large uploads.
+ */
+@Singleton
+public class S3MultipartUploader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(S3MultipartUploader.class);
+    private static final int MiB = 1024 * 1024;
+    private static final int MIN_PART_SIZE_IN_MiB = 5; // S3 minimum except for the last part
+    private static final int MAX_PARTS = 10000; // S3 maximum number of parts per upload
+    private static final int FIRST_CHUNK_SIZE = 256 * 1024;
+
+    private final int partSize;
+    private final int partsConcurrency;
+    private final Semaphore availableBuffers;
+    private final Queue<byte[]> buffersPool = new ConcurrentLinkedQueue<>();
+    private final int bufferWaitInSeconds;
+
+    @Inject
+    public S3MultipartUploader(@PropertyValue(name = "AWS.MultipartUploadPartSizeInMiB", defaultValue = "32") int partSizeInMiB,
+                               @PropertyValue(name = "AWS.MultipartUploadConcurrency", defaultValue = "4") int partsConcurrency,
+                               @PropertyValue(name = "AWS.MultipartUploadBufferBudgetInMiB", defaultValue = "1024") int bufferBudgetInMiB,
+                               @PropertyValue(name = "AWS.MultipartUploadBufferWaitInSeconds", defaultValue = "300") int bufferWaitInSeconds) {
+        int partSizeInMiBValue = Math.max(MIN_PART_SIZE_IN_MiB, partSizeInMiB);
+        this.partSize = partSizeInMiBValue * MiB;
+        this.partsConcurrency = Math.max(1, partsConcurrency);
+        this.availableBuffers = new Semaphore(Math.max(1, bufferBudgetInMiB / partSizeInMiBValue));
+        this.bufferWaitInSeconds = bufferWaitInSeconds;
+    }
+
+    /**
+     * Upload the stream to the given key.
+     *
+     * @param s3Adapter S3 bucket accessor
+     * @param key object key
+     * @param inputStream content to be uploaded
+     * @return the number of bytes uploaded
+     */
+    public long upload(S3Adapter s3Adapter, String key, InputStream inputStream) {
+        // a part buffer is taken only when the content does not fit in the first chunk
+        byte[] firstChunk = new byte[Math.min(FIRST_CHUNK_SIZE, partSize)];
+        int firstChunkLength = readPart(inputStream, firstChunk, 0, firstChunk.length, key);
+        if (firstChunkLength < firstChunk.length) {
+            putObject(s3Adapter, key, firstChunk, firstChunkLength);
+            return firstChunkLength;
+        }
+        byte[] buffer = acquireBuffer(key);
+        try {
+            System.arraycopy(firstChunk, 0, buffer, 0, firstChunkLength);
+            int length = firstChunkLength + readPart(inputStream, buffer, firstChunkLength, partSize - firstChunkLength, key);
+            if (length < partSize) {
+                putObject(s3Adapter, key, buffer, length);
+                return length;
+            }
+            byte[] firstPart = buffer;
+            buffer = null; // from here on the multipart upload owns the buffer
+            return uploadParts(s3Adapter, key, firstPart, inputStream);
+        } catch (ContentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ContentException("Error uploading content to " + key, e);
+        } finally {
+            if (buffer != null) {
+                releaseBuffer(buffer);
+            }
+        }
+    }
+
+    private void putObject(S3Adapter s3Adapter, String key, byte[] buffer, int length) {
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(s3Adapter.getBucket())
+                .key(key)
+                .contentLength((long) length)
+                .build();
+        try {
+            s3Adapter.getAsyncS3Client()
+                    .putObject(putObjectRequest, AsyncRequestBody.fromByteBufferUnsafe(ByteBuffer.wrap(buffer, 0, length)))
+                    .join();
+        } catch (Exception e) {
+            throw new ContentException("Error uploading content to " + key, e);
+        }
+    }
+
+    private long uploadParts(S3Adapter s3Adapter, String key, byte[] firstPart, InputStream inputStream) {
+        CreateMultipartUploadRequest createRequest = CreateMultipartUploadRequest.builder()
+                .bucket(s3Adapter.getBucket())
+                .key(key)
+                .build();
+        String uploadId;
+        try {
+            uploadId = s3Adapter.getAsyncS3Client().createMultipartUpload(createRequest).join().uploadId();
+        } catch (Exception e) {
+            releaseBuffer(firstPart);
+            throw new ContentException("Error starting multipart upload to " + key, e);
+        }
+        LOG.debug("Started multipart upload {} to {}", uploadId, key);
+        // limits the number of parts of this upload that are in flight
+        Semaphore partsWindow = new Semaphore(partsConcurrency);
+        List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        byte[] buffer = firstPart;
+        int length = partSize;
+        long uploadedBytes = 0;
+        try {
+            partsWindow.acquire();
+            for (;;) {
+                int partNumber = parts.size() + 1;
+                if (partNumber > MAX_PARTS) {
+                    throw new ContentException("Content uploaded to " + key + " exceeds the maximum size of " + ((long) MAX_PARTS * partSize) + " bytes");
+                }
+                parts.add(uploadPart(s3Adapter, key, uploadId, partNumber, buffer, length, partsWindow));
+                buffer = null;
+                uploadedBytes += length;
+                if (length < partSize) {
+                    break;
+                }
+                // stop reading as soon as any part failed
+                for (CompletableFuture<CompletedPart> part : parts) {
+                    if (part.isCompletedExceptionally()) {
+                        part.join();
+                    }
+                }
+                partsWindow.acquire();
+                buffer = acquireBuffer(key);
+                length = readPart(inputStream, buffer, 0, partSize, key);
+                if (length == 0) {
+                    break;
+                }
+            }
+            List<CompletedPart> completedParts = parts.stream().map(CompletableFuture::join).collect(Collectors.toList());
+            CompleteMultipartUploadRequest completeRequest = CompleteMultipartUploadRequest.builder()
+                    .bucket(s3Adapter.getBucket())
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build();
+            s3Adapter.getAsyncS3Client().completeMultipartUpload(completeRequest).join();
+            LOG.debug("Completed multipart upload {} of {} bytes in {} parts to {}", uploadId, uploadedBytes, completedParts.size(), key);
+            return uploadedBytes;
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            abortUpload(s3Adapter, key, uploadId, parts);
+            if (e instanceof ContentException) {
+                throw (ContentException) e;
+            } else {
+                throw new ContentException("Error uploading content to " + key, e);
+            }
+        } finally {
+            if (buffer != null) {
+                releaseBuffer(buffer);
+            }
+        }
+    }
+
+    private CompletableFuture<CompletedPart> uploadPart(S3Adapter s3Adapter, String key, String uploadId, int partNumber,
+                                                        byte[] buffer, int length, Semaphore partsWindow) {
+        UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+                .bucket(s3Adapter.getBucket())
+                .key(key)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .contentLength((long) length)
+                .build();
+        return s3Adapter.getAsyncS3Client()
+                .uploadPart(uploadPartRequest, AsyncRequestBody.fromByteBufferUnsafe(ByteBuffer.wrap(buffer, 0, length)))
+                .thenApply(response -> CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build())
+                .whenComplete((completedPart, e) -> {
+                    releaseBuffer(buffer);
+                    partsWindow.release();
+                });
+    }
+
+    private void abortUpload(S3Adapter s3Adapter, String key, String uploadId, List<CompletableFuture<CompletedPart>> parts) {
+        // let the parts in flight finish so that none of them is stored after the upload is aborted
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).handle((r, e) -> null).join();
+        AbortMultipartUploadRequest abortRequest = AbortMultipartUploadRequest.builder()
+                .bucket(s3Adapter.getBucket())
+                .key(key)
+                .uploadId(uploadId)
+                .build();
+        try {
+            s3Adapter.getAsyncS3Client().abortMultipartUpload(abortRequest).join();
+            LOG.info("Aborted multipart upload {} to {}", uploadId, key);
+        } catch (Exception e) {
+            LOG.error("Error aborting multipart upload {} to {}", uploadId, key, e);
+        }
+    }
+
+    /**
+     * Read the requested number of bytes unless the stream ends first.
+     *
+     * @return the number of bytes read - this is less than the requested length only at the end of the stream
+     */
+    private int readPart(InputStream inputStream, byte[] buffer, int offset, int length, String key) {
+        try {
+            return ByteStreams.read(inputStream, buffer, offset, length);
+        } catch (IOException e) {
+            throw new ContentException("Error reading content uploaded to " + key, e);
+        }
+    }
+
+    private byte[] acquireBuffer(String key) {
+        try {
+            if (!availableBuffers.tryAcquire(bufferWaitInSeconds, TimeUnit.SECONDS)) {
+                throw new ContentException("Timed out after " + bufferWaitInSeconds + "s waiting for an upload buffer for " + key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ContentException("Interrupted while waiting for an upload buffer", e);
+        }
+        byte[] buffer = buffersPool.poll();
+        return buffer != null ? buffer : new byte[partSize];
+    }
+
+    /**
+     * @return the number of part buffers that can still be taken
+     */
+    int getAvailableBuffers() {
+        return availableBuffers.availablePermits();
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        buffersPool.offer(buffer);
+        availableBuffers.release();
+    }
+}
@@ -0,0 +1,178 @@
+package org.janelia.jacsstorage.service.s3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.service.ContentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Downloads large S3 objects as a sequence of byte ranges that are fetched concurrently. Up to the configured number
+ * of ranges of the same object are in flight while the ranges are written in order to the output stream. A range
+ * that fails is fetched again up to the configured number of retries.
+ *
+ * The range buffers are shared by all downloads and their number is limited by the configured memory budget,
+ * so a slow client cannot make the server buffer more than the budget - when the budget is exhausted each download
+ * keeps at most the range it is currently writing.
+ */
+@Singleton
+public class S3RangedDownloader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(S3RangedDownloader.class);
+    private static final int MiB = 1024 * 1024;
+
+    private static class RangeFetch {
+        private final long offset;
+        private final int length;
+        private CompletableFuture<byte[]> content;
+
+        private RangeFetch(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final long thresholdSize;
+    private final int rangeSize;
+    private final int rangesConcurrency;
+    private final int rangeRetries;
+    private final Semaphore availableBuffers;
+
+    @Inject
+    public S3RangedDownloader(@PropertyValue(name = "AWS.RangedDownloadThresholdInMiB", defaultValue = "128") int thresholdInMiB,
+                              @PropertyValue(name = "AWS.RangedDownloadRangeSizeInMiB", defaultValue = "16") int rangeSizeInMiB,
+                              @PropertyValue(name = "AWS.RangedDownloadConcurrency", defaultValue = "8") int rangesConcurrency,
+                              @PropertyValue(name = "AWS.RangedDownloadRetries", defaultValue = "3") int rangeRetries,
+                              @PropertyValue(name = "AWS.RangedDownloadBufferBudgetInMiB", defaultValue = "1024") int bufferBudgetInMiB) {
+        int rangeSizeInMiBValue = Math.max(1, rangeSizeInMiB);
+        this.thresholdSize = (long) thresholdInMiB * MiB;
+        this.rangeSize = rangeSizeInMiBValue * MiB;
+        this.rangesConcurrency = Math.max(1, rangesConcurrency);
+        this.rangeRetries = Math.max(0, rangeRetries);
+        this.availableBuffers = new Semaphore(Math.max(1, bufferBudgetInMiB / rangeSizeInMiBValue));
+    }
+
+    /**
+     * @return true if content of the given size should be downloaded in ranges; a non positive threshold
+     * disables ranged downloads.
+     */
+    public boolean isRangedDownload(long contentLength) {
+        return thresholdSize > 0 && contentLength >= thresholdSize;
+    }
+
+    /**
+     * @return the number of range buffers that can still be taken
+     */
+    int getAvailableBuffers() {
+        return availableBuffers.availablePermits();
+    }
+
+    /**
+     * Download length bytes starting at offset from the given key to the output stream.
+     *
+     * @param s3Adapter S3 bucket accessor
+     * @param key object key
+     * @param offset start offset in the object
+     * @param length number of bytes to download - the range must be within the object
+     * @param eTag if set all ranges must come from the object version with this entity tag
+     * @param outputStream destination stream
+     * @return the number of bytes written to the output stream
+     */
+    public long download(S3Adapter s3Adapter, String key, long offset, long length, String eTag, OutputStream outputStream) {
+        LOG.debug("Download {} bytes from {} at {} in ranges of {} bytes", length, key, offset, rangeSize);
+        Deque<RangeFetch> window = new ArrayDeque<>();
+        long nextOffset = offset;
+        long endOffset = offset + length;
+        long downloadedBytes = 0;
+        try {
+            while (nextOffset < endOffset || !window.isEmpty()) {
+                // a download always gets a buffer for its next range but it only competes for more while there is space
+                while (nextOffset < endOffset && window.size() < rangesConcurrency && acquireBuffer(window.isEmpty())) {
+                    RangeFetch rangeFetch = new RangeFetch(nextOffset, (int) Math.min(rangeSize, endOffset - nextOffset));
+                    rangeFetch.content = fetchRange(s3Adapter, key, eTag, rangeFetch);
+                    window.add(rangeFetch);
+                    nextOffset += rangeFetch.length;
+                }
+                RangeFetch rangeFetch = window.peek();
+                byte[] content = awaitRange(s3Adapter, key, eTag, rangeFetch);
+                outputStream.write(content, 0, rangeFetch.length);
+                window.remove();
+                availableBuffers.release();
+                downloadedBytes += rangeFetch.length;
+            }
+            return downloadedBytes;
+        } catch (ContentException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ContentException("Error writing content downloaded from " + key, e);
+        } catch (Exception e) {
+            throw new ContentException("Error downloading content from " + key, e);
+        } finally {
+            for (RangeFetch rangeFetch : window) {
+                rangeFetch.content.cancel(true);
+                availableBuffers.release();
+            }
+        }
+    }
+
+    private CompletableFuture<byte[]> fetchRange(S3Adapter s3Adapter, String key, String eTag, RangeFetch rangeFetch) {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(s3Adapter.getBucket())
+                .key(key)
+                .range("bytes=" + rangeFetch.offset + "-" + (rangeFetch.offset + rangeFetch.length - 1))
+                .ifMatch(eTag)
+                .build();
+        return s3Adapter.getAsyncS3Client()
+                .getObject(getObjectRequest, AsyncResponseTransformer.toBytes())
+                .thenApply(ResponseBytes::asByteArrayUnsafe);
+    }
+
+    private byte[] awaitRange(S3Adapter s3Adapter, String key, String eTag, RangeFetch rangeFetch) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                byte[] content = rangeFetch.content.join();
+                if (content.length != rangeFetch.length) {
+                    throw new CompletionException(new IOException("Expected " + rangeFetch.length + " bytes but received " + content.length));
+                }
+                return content;
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof S3Exception && ((S3Exception) cause).statusCode() == 412) {
+                    // the object was replaced while it was downloaded so the ranges already written do not match
+                    throw new ContentException("Content of " + key + " changed during download", cause);
+                } else if (attempt >= rangeRetries) {
+                    throw new ContentException("Error downloading range at " + rangeFetch.offset + " from " + key, cause);
+                }
+                LOG.warn("Retry range of {} bytes at {} from {} after error: {}", rangeFetch.length, rangeFetch.offset, key, cause.toString());
+                rangeFetch.content = fetchRange(s3Adapter, key, eTag, rangeFetch);
+            }
+        }
+    }
+
+    private boolean acquireBuffer(boolean mustAcquire) {
+        if (!mustAcquire) {
+            return availableBuffers.tryAcquire();
+        }
+        try {
+            availableBuffers.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ContentException("Interrupted while waiting for a download buffer", e);
+        }
+    }
+}
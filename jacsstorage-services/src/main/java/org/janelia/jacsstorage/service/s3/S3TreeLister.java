@@ -0,0 +1,273 @@
+package org.janelia.jacsstorage.service.s3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.janelia.jacsstorage.cdi.qualifier.PropertyValue;
+import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Lists deep S3 prefixes without a listing request for every "directory". The first levels of the tree are listed
+ * with a delimiter until there are enough sub-prefixes to be listed in parallel, then each of these partitions is
+ * scanned with a flat paginated listing, without a delimiter, and the intermediate prefixes are derived from the keys.
+ * At most the configured number of partitions are scanned at the same time and their entries are returned in
+ * the partitions' order.
+ *
+ * The entries are the same as the ones returned by listing the tree one level at a time with a delimiter:
+ * the entries of a prefix are returned only if the prefix depth is within the requested depth.
+ */
+@Singleton
+public class S3TreeLister {
+
+    private static final Logger LOG = LoggerFactory.getLogger(S3TreeLister.class);
+    // levels listed with a delimiter while looking for partitions
+    private static final int MAX_DISCOVERY_LEVELS = 3;
+
+    /**
+     * Listed key - either an object or a prefix.
+     */
+    public static class TreeEntry {
+        private final String key;
+        private final S3Object s3Object;
+
+        private TreeEntry(String key, S3Object s3Object) {
+            this.key = key;
+            this.s3Object = s3Object;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the listed object or null if the entry is a prefix
+         */
+        public S3Object getS3Object() {
+            return s3Object;
+        }
+
+        public boolean isPrefix() {
+            return s3Object == null;
+        }
+    }
+
+    private static class TreeDiscovery {
+        private final List<TreeEntry> entries = new ArrayList<>();
+        private final List<String> partitions = new ArrayList<>();
+        private boolean exactMatch;
+    }
+
+    private final int flatListingMinDepth;
+    private final int partitionsCount;
+    private final int partitionsConcurrency;
+
+    @Inject
+    public S3TreeLister(@PropertyValue(name = "AWS.FlatListingMinDepth", defaultValue = "3") int flatListingMinDepth,
+                        @PropertyValue(name = "AWS.ListingPartitions", defaultValue = "32") int partitionsCount,
+                        @PropertyValue(name = "AWS.ListingConcurrency", defaultValue = "8") int partitionsConcurrency) {
+        this.flatListingMinDepth = flatListingMinDepth;
+        this.partitionsCount = Math.max(1, partitionsCount);
+        this.partitionsConcurrency = Math.max(1, partitionsConcurrency);
+    }
+
+    /**
+     * @return true if the listing is deep enough to be scanned flat; a non positive minimum depth disables flat listings.
+     * Ordered listings, e.g. listings that start after a given entry, are never scanned flat because the partitions
+     * do not return the entries in key order.
+     */
+    public boolean isFlatListing(ContentAccessParams contentAccessParams) {
+        return flatListingMinDepth > 0 &&
+                !contentAccessParams.isOrderedListing() &&
+                (contentAccessParams.getMaxDepth() < 0 || contentAccessParams.getMaxDepth() >= flatListingMinDepth);
+    }
+
+    /**
+     * List the tree under the given prefix. If the prefix is the key of an object then only that object is returned.
+     *
+     * @param s3Adapter S3 bucket accessor
+     * @param basePrefix listed prefix
+     * @param contentAccessParams depth and entry name filters
+     * @param includeObjects if false only the prefixes are returned
+     * @return the listed entries
+     */
+    public Flux<TreeEntry> listTree(S3Adapter s3Adapter, String basePrefix, ContentAccessParams contentAccessParams, boolean includeObjects) {
+        return discoverTree(s3Adapter, basePrefix, contentAccessParams, includeObjects,
+                new TreeDiscovery(), Collections.singletonList(basePrefix), 0)
+                .flatMapMany(treeDiscovery -> {
+                    LOG.debug("List {} in {} partitions", basePrefix, treeDiscovery.partitions.size());
+                    return Flux.concat(
+                            Flux.fromIterable(treeDiscovery.entries),
+                            Flux.fromIterable(treeDiscovery.partitions)
+                                    .flatMapSequential(
+                                            p -> scanPartition(s3Adapter, basePrefix, p, contentAccessParams, includeObjects),
+                                            partitionsConcurrency)
+                    );
+                });
+    }
+
+    private Mono<TreeDiscovery> discoverTree(S3Adapter s3Adapter,
+                                             String basePrefix,
+                                             ContentAccessParams contentAccessParams,
+                                             boolean includeObjects,
+                                             TreeDiscovery treeDiscovery,
+                                             List<String> prefixes,
+                                             int level) {
+        if (prefixes.isEmpty()) {
+            return Mono.just(treeDiscovery);
+        } else if (level > 0 && (prefixes.size() >= partitionsCount || level >= MAX_DISCOVERY_LEVELS)) {
+            treeDiscovery.partitions.addAll(prefixes);
+            return Mono.just(treeDiscovery);
+        }
+        return Flux.fromIterable(prefixes)
+                .flatMapSequential(p -> listFirstPage(s3Adapter, p).map(r -> Pair.of(p, r)), partitionsConcurrency)
+                .collectList()
+                .flatMap(responses -> {
+                    List<String> nextPrefixes = new ArrayList<>();
+                    for (Pair<String, ListObjectsV2Response> response : responses) {
+                        addDiscoveredEntries(basePrefix, response.getLeft(), response.getRight(), contentAccessParams, includeObjects, treeDiscovery, nextPrefixes);
+                        if (treeDiscovery.exactMatch) {
+                            return Mono.just(treeDiscovery);
+                        }
+                    }
+                    return discoverTree(s3Adapter, basePrefix, contentAccessParams, includeObjects, treeDiscovery, nextPrefixes, level + 1);
+                });
+    }
+
+    private void addDiscoveredEntries(String basePrefix,
+                                      String prefix,
+                                      ListObjectsV2Response response,
+                                      ContentAccessParams contentAccessParams,
+                                      boolean includeObjects,
+                                      TreeDiscovery treeDiscovery,
+                                      List<String> nextPrefixes) {
+        if (prefix.equals(basePrefix)) {
+            List<S3Object> s3Objects = response.contents();
+            if (includeObjects && !s3Objects.isEmpty() && s3Objects.get(0).key().equals(basePrefix)) {
+                // if there is an exact key match only return that object
+                treeDiscovery.entries.clear();
+                treeDiscovery.entries.add(new TreeEntry(basePrefix, s3Objects.get(0)));
+                treeDiscovery.exactMatch = true;
+                return;
+            }
+            if ((!response.commonPrefixes().isEmpty() || !s3Objects.isEmpty()) &&
+                    basePrefix.endsWith("/") &&
+                    contentAccessParams.checkDepth(getPathDepth(basePrefix, basePrefix)) &&
+                    contentAccessParams.matchEntry(basePrefix)) {
+                treeDiscovery.entries.add(new TreeEntry(basePrefix, null));
+            }
+        }
+        if (response.isTruncated()) {
+            // the prefix has too many entries to be listed level by level so scan it flat
+            treeDiscovery.partitions.add(prefix);
+            return;
+        }
+        for (CommonPrefix commonPrefix : response.commonPrefixes()) {
+            String subPrefix = commonPrefix.prefix();
+            if (contentAccessParams.matchEntry(subPrefix)) {
+                treeDiscovery.entries.add(new TreeEntry(subPrefix, null));
+            }
+            if (contentAccessParams.checkDepth(getPathDepth(basePrefix, subPrefix))) {
+                nextPrefixes.add(subPrefix);
+            }
+        }
+        if (includeObjects) {
+            for (S3Object s3Object : response.contents()) {
+                // a folder marker has the key of the prefix, which is returned as a prefix entry
+                if (!s3Object.key().endsWith("/") && contentAccessParams.matchEntry(s3Object.key())) {
+                    treeDiscovery.entries.add(new TreeEntry(s3Object.key(), s3Object));
+                }
+            }
+        }
+    }
+
+    private Mono<ListObjectsV2Response> listFirstPage(S3Adapter s3Adapter, String prefix) {
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(s3Adapter.getBucket())
+                .prefix(prefix)
+                .delimiter("/")
+                .build();
+        return Mono.fromFuture(() -> s3Adapter.getAsyncS3Client().listObjectsV2(listRequest));
+    }
+
+    private Flux<TreeEntry> scanPartition(S3Adapter s3Adapter,
+                                          String basePrefix,
+                                          String partitionPrefix,
+                                          ContentAccessParams contentAccessParams,
+                                          boolean includeObjects) {
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(s3Adapter.getBucket())
+                .prefix(partitionPrefix)
+                .build();
+        return Flux.defer(() -> {
+            PartitionScan partitionScan = new PartitionScan(basePrefix, partitionPrefix, contentAccessParams, includeObjects);
+            return Flux.from(s3Adapter.getAsyncS3Client().listObjectsV2Paginator(listRequest))
+                    .concatMapIterable(response -> partitionScan.scanPage(response.contents()));
+        });
+    }
+
+    /**
+     * Derives the prefix entries from the keys of a flat listing. The keys come in lexicographic order so all keys
+     * that share a prefix are consecutive and a prefix is new if it is not a prefix of the previous key.
+     */
+    private class PartitionScan {
+        private final String basePrefix;
+        private final String partitionPrefix;
+        private final ContentAccessParams contentAccessParams;
+        private final boolean includeObjects;
+        private String lastPrefix;
+
+        private PartitionScan(String basePrefix, String partitionPrefix, ContentAccessParams contentAccessParams, boolean includeObjects) {
+            this.basePrefix = basePrefix;
+            this.partitionPrefix = partitionPrefix;
+            this.contentAccessParams = contentAccessParams;
+            this.includeObjects = includeObjects;
+            this.lastPrefix = partitionPrefix;
+        }
+
+        private List<TreeEntry> scanPage(List<S3Object> s3Objects) {
+            List<TreeEntry> entries = new ArrayList<>();
+            for (S3Object s3Object : s3Objects) {
+                String key = s3Object.key();
+                String parentPrefix = partitionPrefix;
+                boolean parentListed = true; // the partition is always within the requested depth
+                for (int separatorIndex = key.indexOf('/', parentPrefix.length());
+                     separatorIndex >= 0 && parentListed;
+                     separatorIndex = key.indexOf('/', parentPrefix.length())) {
+                    String subPrefix = key.substring(0, separatorIndex + 1);
+                    if (!lastPrefix.startsWith(subPrefix) && contentAccessParams.matchEntry(subPrefix)) {
+                        entries.add(new TreeEntry(subPrefix, null));
+                    }
+                    parentPrefix = subPrefix;
+                    parentListed = contentAccessParams.checkDepth(getPathDepth(basePrefix, subPrefix));
+                }
+                lastPrefix = parentPrefix;
+                // a folder marker has the key of the prefix, which is returned as a prefix entry
+                if (includeObjects && parentListed && !key.endsWith("/") && contentAccessParams.matchEntry(key)) {
+                    entries.add(new TreeEntry(key, s3Object));
+                }
+            }
+            return entries;
+        }
+    }
+
+    private static int getPathDepth(String basePath, String p) {
+        String relativePrefix = StringUtils.removeEnd(
+                StringUtils.removeStart(p.substring(basePath.length()), '/'),
+                "/");
+        return StringUtils.isEmpty(relativePrefix) ? 0 : StringUtils.countMatches(relativePrefix, '/') + 1;
+    }
+}
@@ -0,0 +1,61 @@
+package org.janelia.jacsstorage.coreutils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void fallbackExecutorIsUsedWhenVirtualThreadsAreNotSupported() throws Exception {
+        ExecutorService fallbackExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "fallback-thread"));
+        try {
+            ExecutorService executorService = VirtualThreads.newVirtualThreadPerTaskExecutorOrElse(false, "test-", () -> fallbackExecutor);
+            assertSame(fallbackExecutor, executorService);
+            assertEquals("fallback-thread", executorService.submit(() -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS));
+        } finally {
+            fallbackExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void fallbackExecutorIsUsedOnJVMsWithoutVirtualThreads() throws Exception {
+        Assume.assumeFalse(VirtualThreads.isSupported());
+        ExecutorService fallbackExecutor = Executors.newSingleThreadExecutor();
+        try {
+            assertSame(fallbackExecutor, VirtualThreads.newVirtualThreadPerTaskExecutorOrElse("test-", () -> fallbackExecutor));
+            try {
+                VirtualThreads.newVirtualThreadPerTaskExecutor("test-");
+                fail("Expected virtual threads to be unsupported");
+            } catch (UnsupportedOperationException e) {
+                assertTrue(e.getMessage().contains(System.getProperty("java.version")));
+            }
+        } finally {
+            fallbackExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void tasksRunOnVirtualThreadsWhenSupported() throws Exception {
+        Assume.assumeTrue(VirtualThreads.isSupported());
+        ExecutorService executorService = VirtualThreads.newVirtualThreadPerTaskExecutorOrElse("test-", () -> {
+            throw new AssertionError("The fallback executor should not be created");
+        });
+        try {
+            boolean virtualThread = executorService.submit(() -> (Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread()))
+                    .get(5, TimeUnit.SECONDS);
+            assertTrue(virtualThread);
+            assertTrue(executorService.submit(() -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS).startsWith("test-"));
+        } finally {
+            executorService.shutdown();
+        }
+    }
+}
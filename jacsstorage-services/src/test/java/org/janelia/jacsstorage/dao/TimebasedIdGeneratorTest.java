@@ -1,6 +1,14 @@
 package org.janelia.jacsstorage.dao;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.ImmutableSet;
 
@@ -9,6 +17,8 @@ import org.junit.Test;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TimebasedIdGeneratorTest {
     private TimebasedIdGenerator idGenerator;
@@ -23,4 +33,43 @@ public class TimebasedIdGeneratorTest {
         List<Number> idList = idGenerator.generateIdList(16384);
         assertThat(ImmutableSet.copyOf(idList), hasSize(idList.size()));
     }
+
+    @Test
+    public void concurrentlyGeneratedIdsAreUnique() throws Exception {
+        int nThreads = 16;
+        int idsPerThread = 5000;
+        Set<Number> generatedIds = ConcurrentHashMap.newKeySet();
+        CountDownLatch startSignal = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<Integer>> generators = new ArrayList<>();
+            for (int i = 0; i < nThreads; i++) {
+                boolean generateList = i % 2 == 0;
+                generators.add(executorService.submit(() -> {
+                    startSignal.await();
+                    int n = 0;
+                    // mix single ids and lists so that the callers share and exhaust the same ID blocks
+                    while (n < idsPerThread) {
+                        if (generateList) {
+                            List<Number> idList = idGenerator.generateIdList(Math.min(7, idsPerThread - n));
+                            generatedIds.addAll(idList);
+                            n += idList.size();
+                        } else {
+                            generatedIds.add(idGenerator.generateId());
+                            n++;
+                        }
+                    }
+                    return n;
+                }));
+            }
+            startSignal.countDown();
+            for (Future<Integer> generator : generators) {
+                assertEquals(idsPerThread, (int) generator.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            executorService.shutdown();
+            assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        assertThat(generatedIds, hasSize(nThreads * idsPerThread));
+    }
 }
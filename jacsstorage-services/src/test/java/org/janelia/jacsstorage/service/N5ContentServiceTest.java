@@ -1,32 +1,331 @@
 package org.janelia.jacsstorage.service;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
 
 import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
 import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.service.impl.n5.N5BlockCache;
 import org.janelia.jacsstorage.service.impl.n5.N5ReaderProvider;
 import org.janelia.jacsstorage.service.s3.S3AdapterProvider;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
 import org.janelia.saalfeldlab.n5.universe.N5TreeNode;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class N5ContentServiceTest {
 
+    private static class TestTicker extends Ticker {
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advance(long time, TimeUnit timeUnit) {
+            nanos.addAndGet(timeUnit.toNanos(time));
+        }
+    }
+
     private static S3AdapterProvider s3AdapterProvider;
 
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private ExecutorService executorService;
+    private Path containerPath;
+    private JADEStorageURI containerURI;
+    private N5ReaderProvider n5ReaderProvider;
+    private AtomicInteger discoveries;
+    private AtomicInteger inventoryDiscoveries;
+
     @BeforeClass
-    public static void setUp() {
+    public static void setUpS3() {
         s3AdapterProvider = new S3AdapterProvider();
     }
 
+    @Before
+    public void setUp() throws IOException {
+        executorService = Executors.newFixedThreadPool(4);
+        containerPath = testFolder.newFolder("test.n5").toPath();
+        containerURI = JADEStorageURI.createStoragePathURI(containerPath.toString(), JADEOptions.create());
+        // d0
+        // g1/s0
+        // g1/g2/g3
+        // d0 has blocks only at (0,0) and (1,1)
+        try (N5Writer n5Writer = new N5FSWriter(containerPath.toString())) {
+            n5Writer.createDataset("d0", new long[]{8, 8}, new int[]{4, 4}, DataType.UINT8, new RawCompression());
+            n5Writer.createDataset("g1/s0", new long[]{8, 8}, new int[]{4, 4}, DataType.UINT16, new RawCompression());
+            n5Writer.createGroup("g1/g2/g3");
+            writeBlock(n5Writer, new long[]{0, 0}, (byte) 1);
+            writeBlock(n5Writer, new long[]{1, 1}, (byte) 2);
+        }
+        discoveries = new AtomicInteger();
+        inventoryDiscoveries = new AtomicInteger();
+        n5ReaderProvider = mock(N5ReaderProvider.class);
+        when(n5ReaderProvider.getN5Reader(any(JADEStorageURI.class), eq(true)))
+                .thenAnswer(invocation -> {
+                    discoveries.incrementAndGet();
+                    inventoryDiscoveries.incrementAndGet();
+                    return new N5FSReader(containerPath.toString());
+                });
+        // the tests that discover the tree do not read blocks so every reader is created for a discovery
+        when(n5ReaderProvider.getN5Reader(any(JADEStorageURI.class)))
+                .thenAnswer(invocation -> {
+                    discoveries.incrementAndGet();
+                    return new N5FSReader(containerPath.toString());
+                });
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void discoveredTreeIsReturnedFromCache() {
+        N5ContentService testService = new N5ContentService(n5ReaderProvider, new N5BlockCache(0, 0), executorService, 10, 60, 600, 8, 2, 2);
+
+        N5TreeNode n5Tree = testService.getN5Container(containerURI, 2);
+        assertSame(n5Tree, testService.getN5Container(containerURI, 2));
+        assertSame(n5Tree, testService.getN5Container(
+                JADEStorageURI.createStoragePathURI(containerPath.toString(), JADEOptions.create()), 2));
+        assertEquals(1, discoveries.get());
+        assertEquals(0, inventoryDiscoveries.get());
+        assertEquals(2, testService.getStats().hitCount());
+        assertEquals(1, testService.getStats().missCount());
+
+        // a different depth is a different tree and only the full tree is discovered from the container's inventory
+        N5TreeNode fullN5Tree = testService.getN5Container(containerURI);
+        assertNotNull(fullN5Tree);
+        assertSame(fullN5Tree, testService.getN5Container(containerURI, -5));
+        assertEquals(2, discoveries.get());
+        assertEquals(1, inventoryDiscoveries.get());
+    }
+
+    @Test
+    public void staleTreeIsReturnedUntilTheRefreshedTreeIsDiscovered() throws Exception {
+        TestTicker ticker = new TestTicker();
+        N5ContentService testService = new N5ContentService(n5ReaderProvider, new N5BlockCache(0, 0), executorService, 10, 60, 600, 8, 2, 2, ticker);
+        CountDownLatch refreshStarted = new CountDownLatch(1);
+        CountDownLatch refreshReleased = new CountDownLatch(1);
+        doAnswer(invocation -> {
+                    if (discoveries.incrementAndGet() > 1) {
+                        refreshStarted.countDown();
+                        refreshReleased.await(5, TimeUnit.SECONDS);
+                    }
+                    return new N5FSReader(containerPath.toString());
+                })
+                .when(n5ReaderProvider).getN5Reader(any(JADEStorageURI.class));
+
+        N5TreeNode n5Tree = testService.getN5Container(containerURI, 1);
+        assertEquals(ImmutableSet.of("d0", "g1"), childNames(n5Tree));
+        try (N5Writer n5Writer = new N5FSWriter(containerPath.toString())) {
+            n5Writer.createGroup("g4");
+        }
+        // the new group is not seen before the refresh time
+        ticker.advance(59, TimeUnit.SECONDS);
+        assertSame(n5Tree, testService.getN5Container(containerURI, 1));
+        assertEquals(1, discoveries.get());
+
+        ticker.advance(2, TimeUnit.SECONDS);
+        try {
+            assertSame(n5Tree, testService.getN5Container(containerURI, 1));
+            assertTrue(refreshStarted.await(5, TimeUnit.SECONDS));
+            // the stale tree is still returned while the refresh is blocked and no other refresh is started
+            assertSame(n5Tree, testService.getN5Container(containerURI, 1));
+            assertEquals(2, discoveries.get());
+        } finally {
+            refreshReleased.countDown();
+        }
+        N5TreeNode refreshedN5Tree = n5Tree;
+        for (int i = 0; i < 100 && refreshedN5Tree == n5Tree; i++) {
+            Thread.sleep(50);
+            refreshedN5Tree = testService.getN5Container(containerURI, 1);
+        }
+        assertEquals(ImmutableSet.of("d0", "g1", "g4"), childNames(refreshedN5Tree));
+        assertEquals(2, discoveries.get());
+    }
+
+    @Test
+    public void depthLimitedDiscoveryStopsAtTheMaxDepthAndAtDatasets() {
+        // no cache so that every call discovers the tree
+        N5ContentService testService = new N5ContentService(n5ReaderProvider, new N5BlockCache(0, 0), executorService, 0, 0, 0, 8, 2, 2);
+
+        N5TreeNode depth0Tree = testService.getN5Container(containerURI, 0);
+        assertTrue(depth0Tree.childrenList().isEmpty());
+
+        N5TreeNode depth1Tree = testService.getN5Container(containerURI, 1);
+        assertEquals(ImmutableSet.of("d0", "g1"), childNames(depth1Tree));
+        assertTrue(findChild(depth1Tree, "g1").childrenList().isEmpty());
+        assertNotNull(findChild(depth1Tree, "d0").getMetadata());
+
+        N5TreeNode depth2Tree = testService.getN5Container(containerURI, 2);
+        assertEquals(ImmutableSet.of("d0", "g1"), childNames(depth2Tree));
+        assertEquals(ImmutableSet.of("g2", "s0"), childNames(findChild(depth2Tree, "g1")));
+        assertTrue(findChild(findChild(depth2Tree, "g1"), "g2").childrenList().isEmpty());
+        assertNotNull(findChild(findChild(depth2Tree, "g1"), "s0").getMetadata());
+
+        N5TreeNode depth3Tree = testService.getN5Container(containerURI, 3);
+        assertEquals(ImmutableSet.of("g3"), childNames(findChild(findChild(depth3Tree, "g1"), "g2")));
+        // datasets are never traversed
+        assertTrue(findChild(depth3Tree, "d0").childrenList().isEmpty());
+        assertNull(findChild(depth3Tree, "g4"));
+        assertEquals(4, discoveries.get());
+        // the depth limited discoveries do not list the entire container
+        assertEquals(0, inventoryDiscoveries.get());
+    }
+
+    @Test
+    public void blocksAreReadWhileTheSharedPoolIsBusy() throws Exception {
+        ExecutorService sharedExecutorService = Executors.newSingleThreadExecutor();
+        CountDownLatch sharedPoolReleased = new CountDownLatch(1);
+        try {
+            sharedExecutorService.submit(() -> {
+                sharedPoolReleased.await();
+                return null;
+            });
+            for (int blockReadThreads : new int[] {2, 0}) {
+                N5ContentService testService = new N5ContentService(n5ReaderProvider, new N5BlockCache(0, 0), sharedExecutorService, 0, 0, 0, 8, 2, blockReadThreads);
+                List<long[]> gridPositions = Arrays.asList(new long[]{1, 1}, new long[]{0, 1}, new long[]{0, 0});
+
+                List<byte[]> blocks = CompletableFuture.supplyAsync(() -> toList(testService.getN5Blocks(containerURI, "d0", gridPositions, true)))
+                        .get(10, TimeUnit.SECONDS);
+                assertEquals(3, blocks.size());
+                assertArrayEquals(blockData((byte) 2), blocks.get(0));
+                assertNull(blocks.get(1));
+                assertArrayEquals(blockData((byte) 1), blocks.get(2));
+                testService.shutdown();
+            }
+        } finally {
+            sharedPoolReleased.countDown();
+            sharedExecutorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void blocksAreReturnedInTheRequestedOrder() {
+        N5ContentService testService = new N5ContentService(n5ReaderProvider, new N5BlockCache(1, 60), executorService, 0, 0, 0, 8, 2, 2);
+        List<long[]> gridPositions = Arrays.asList(
+                new long[]{1, 1}, new long[]{0, 1}, new long[]{0, 0}, new long[]{1, 0}, new long[]{1, 1});
+
+        List<byte[]> decodedBlocks = toList(testService.getN5Blocks(containerURI, "/d0", gridPositions, true));
+        assertEquals(5, decodedBlocks.size());
+        assertArrayEquals(blockData((byte) 2), decodedBlocks.get(0));
+        assertNull(decodedBlocks.get(1));
+        assertArrayEquals(blockData((byte) 1), decodedBlocks.get(2));
+        assertNull(decodedBlocks.get(3));
+        assertArrayEquals(blockData((byte) 2), decodedBlocks.get(4));
+
+        // the raw blocks include the N5 block header
+        List<byte[]> rawBlocks = toList(testService.getN5Blocks(containerURI, "d0", gridPositions, false));
+        assertEquals(5, rawBlocks.size());
+        assertTrue(rawBlocks.get(0).length > 16);
+        assertNull(rawBlocks.get(1));
+        assertNull(rawBlocks.get(3));
+
+        List<byte[]> singleBlock = toList(testService.getN5Blocks(containerURI, "d0", Arrays.asList(new long[]{0, 0}), true));
+        assertEquals(1, singleBlock.size());
+        assertArrayEquals(blockData((byte) 1), singleBlock.get(0));
+    }
+
+    @Test
+    public void invalidBlockRequestsAreRejectedBeforeReadingTheBlocks() {
+        N5ContentService testService = new N5ContentService(n5ReaderProvider, new N5BlockCache(1, 60), executorService, 0, 0, 0, 4, 2, 2);
+        List<long[]> tooManyPositions = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            tooManyPositions.add(new long[]{0, 0});
+        }
+        try {
+            testService.getN5Blocks(containerURI, "d0", tooManyPositions, true);
+            fail("Expected the request to be rejected because it has too many positions");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("at most 4 blocks"));
+        }
+        try {
+            testService.getN5Blocks(containerURI, "d0", Arrays.asList(new long[]{0, 0}, new long[]{0, 0, 0}), true);
+            fail("Expected the request to be rejected because a position does not match the dataset");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("does not match"));
+        }
+        try {
+            testService.getN5Blocks(containerURI, "d1", Arrays.asList(new long[]{0, 0}), true);
+            fail("Expected the request to fail because the dataset does not exist");
+        } catch (NoContentFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rewrittenBlockIsReadAgainOnceItsLocationIsInvalidated() {
+        N5BlockCache blockCache = new N5BlockCache(1, 60);
+        N5ContentService testService = new N5ContentService(n5ReaderProvider, blockCache, executorService, 0, 0, 0, 8, 2, 2);
+        List<long[]> gridPositions = Arrays.asList(new long[]{0, 0}, new long[]{1, 1});
+        assertArrayEquals(blockData((byte) 1), toList(testService.getN5Blocks(containerURI, "d0", gridPositions, true)).get(0));
+
+        try (N5Writer n5Writer = new N5FSWriter(containerPath.toString())) {
+            writeBlock(n5Writer, new long[]{0, 0}, (byte) 3);
+            writeBlock(n5Writer, new long[]{1, 1}, (byte) 4);
+        }
+        List<byte[]> cachedBlocks = toList(testService.getN5Blocks(containerURI, "d0", gridPositions, true));
+        assertArrayEquals(blockData((byte) 1), cachedBlocks.get(0));
+        assertArrayEquals(blockData((byte) 2), cachedBlocks.get(1));
+
+        blockCache.invalidateLocation(containerURI.resolveJadeStorage("d0/0/0"));
+        List<byte[]> refreshedBlocks = toList(testService.getN5Blocks(containerURI, "d0", gridPositions, true));
+        assertArrayEquals(blockData((byte) 3), refreshedBlocks.get(0));
+        assertArrayEquals(blockData((byte) 2), refreshedBlocks.get(1));
+    }
+
     @Test
     public void readN5TreeFromS3() {
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
         N5ContentService testService = new N5ContentService(
-                new N5ReaderProvider(s3AdapterProvider, "us-east-1", true, 512, 128),
-                Executors.newSingleThreadExecutor()
+                new N5ReaderProvider(s3AdapterProvider, "us-east-1", true, 512, 128, 1000000, 64, 4, 0, 0, executorService),
+                new N5BlockCache(0, 0),
+                executorService,
+                10, 60, 600, 8, 2, 2
         );
         // this test is a bit flaky because I don't control this location so it may disappear
         N5TreeNode node = testService.getN5Container(JADEStorageURI.createStoragePathURI(
@@ -35,4 +334,34 @@ public class N5ContentServiceTest {
         assertNotNull(node);
         assertFalse(node.childrenList().isEmpty());
     }
+
+    private void writeBlock(N5Writer n5Writer, long[] gridPosition, byte value) {
+        DatasetAttributes datasetAttributes = n5Writer.getDatasetAttributes("d0");
+        n5Writer.writeBlock("d0", datasetAttributes, new ByteArrayDataBlock(new int[]{4, 4}, gridPosition, blockData(value)));
+    }
+
+    private byte[] blockData(byte value) {
+        byte[] data = new byte[16];
+        Arrays.fill(data, value);
+        return data;
+    }
+
+    private List<byte[]> toList(Iterator<byte[]> blocks) {
+        List<byte[]> blocksList = new ArrayList<>();
+        blocks.forEachRemaining(blocksList::add);
+        return blocksList;
+    }
+
+    private Set<String> childNames(N5TreeNode n5Node) {
+        Set<String> names = new TreeSet<>();
+        n5Node.childrenList().forEach(n -> names.add(n.getNodeName()));
+        return names;
+    }
+
+    private N5TreeNode findChild(N5TreeNode n5Node, String name) {
+        return n5Node.childrenList().stream()
+                .filter(n -> name.equals(n.getNodeName()))
+                .findFirst()
+                .orElse(null);
+    }
 }
@@ -0,0 +1,168 @@
+package org.janelia.jacsstorage.service.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.service.ChunkedUpload;
+import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.janelia.jacsstorage.service.NoContentFoundException;
+import org.janelia.jacsstorage.service.impl.n5.N5BlockCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileSystemChunkedUploadServiceTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(1);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void partsWrittenConcurrentlyInAnyOrder() throws Exception {
+        Path testDir = testFolder.newFolder("testDir").toPath();
+        Path targetPath = testDir.resolve("d1/target");
+        byte[] testData = new byte[1000003];
+        new Random(17).nextBytes(testData);
+        FileSystemChunkedUploadService uploadService = new FileSystemChunkedUploadService(new FileSystemListingCache(0, 0, 0, 0), new N5BlockCache(0, 0), scheduler, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+        ChunkedUpload upload = uploadService.initiateUpload(JADEStorageURI.createStoragePathURI(targetPath.toString(), JADEOptions.create()), testData.length, "user:test", 1);
+        assertEquals(1, upload.getMissingRanges().size());
+        assertEquals("user:test", upload.getOwnerKey());
+        assertEquals(1, upload.getVolumeId().intValue());
+
+        int partSize = 100000;
+        List<Integer> partOffsets = new ArrayList<>();
+        for (int offset = 0; offset < testData.length; offset += partSize) {
+            partOffsets.add(offset);
+        }
+        // hold back the first part to check that the upload cannot be completed without it
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CompletableFuture.allOf(partOffsets.stream()
+                    .skip(1)
+                    .map(offset -> CompletableFuture.runAsync(() -> uploadService.writePart(
+                            upload.getUploadId(),
+                            offset,
+                            new ByteArrayInputStream(testData, offset, Math.min(partSize, testData.length - offset))), executor))
+                    .toArray(CompletableFuture[]::new))
+                    .join();
+        } finally {
+            executor.shutdown();
+        }
+        ChunkedUpload partialUpload = uploadService.getUpload(upload.getUploadId());
+        assertEquals(testData.length - partSize, partialUpload.getReceivedBytes());
+        assertEquals(0L, (long) partialUpload.getMissingRanges().get(0).getFrom());
+        assertEquals((long) partSize, (long) partialUpload.getMissingRanges().get(0).getTo());
+        // an incomplete upload is left in progress
+        assertFalse(uploadService.completeUpload(upload.getUploadId()).isComplete());
+        assertFalse(Files.exists(targetPath));
+        // a retried part simply replaces the bytes written before
+        uploadService.writePart(upload.getUploadId(), partSize / 2, new ByteArrayInputStream(testData, partSize / 2, partSize / 2));
+        uploadService.writePart(upload.getUploadId(), 0, new ByteArrayInputStream(testData, 0, partSize));
+        assertTrue(uploadService.getUpload(upload.getUploadId()).isComplete());
+
+        assertEquals(testData.length, uploadService.completeUpload(upload.getUploadId()).getContentSize());
+        assertArrayEquals(testData, Files.readAllBytes(targetPath));
+        // only the target remains in the directory
+        assertEquals(Arrays.asList(targetPath), listDir(targetPath.getParent()));
+        try {
+            uploadService.getUpload(upload.getUploadId());
+            fail("Completed upload must be removed");
+        } catch (NoContentFoundException expected) {
+        }
+    }
+
+    @Test
+    public void partsBeyondContentSizeAreRejected() throws IOException {
+        Path targetPath = testFolder.newFolder("testDir").toPath().resolve("target");
+        FileSystemChunkedUploadService uploadService = new FileSystemChunkedUploadService(new FileSystemListingCache(0, 0, 0, 0), new N5BlockCache(0, 0), scheduler, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+        ChunkedUpload upload = uploadService.initiateUpload(JADEStorageURI.createStoragePathURI(targetPath.toString(), JADEOptions.create()), 10, "user:test", 1);
+        try {
+            uploadService.writePart(upload.getUploadId(), 5, new ByteArrayInputStream(new byte[6]));
+            fail("Part exceeding the content size must be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        uploadService.abortUpload(upload.getUploadId());
+        assertEquals(Arrays.asList(), listDir(targetPath.getParent()));
+    }
+
+    @Test
+    public void uploadsInProgressAreNotListed() throws IOException {
+        Path testDir = testFolder.newFolder("testDir").toPath();
+        Files.write(testDir.resolve("existing"), new byte[] {1, 2, 3});
+        FileSystemChunkedUploadService uploadService = new FileSystemChunkedUploadService(new FileSystemListingCache(0, 0, 0, 0), new N5BlockCache(0, 0), scheduler, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+        ChunkedUpload upload = uploadService.initiateUpload(JADEStorageURI.createStoragePathURI(testDir.resolve("target").toString(), JADEOptions.create()), 10, "user:test", 1);
+        Path stagingDir = testDir.resolve(FileSystemChunkedUploadService.STAGING_DIR_NAME);
+        assertTrue(Files.isDirectory(stagingDir));
+
+        FileSystemStorageService storageService = new FileSystemStorageService();
+        List<String> listedNames;
+        try (Stream<ContentNode> listedNodes = storageService.streamContentNodes(testDir.toString(), new ContentAccessParams().setMaxDepth(-1))) {
+            listedNames = listedNodes.map(ContentNode::getName).collect(Collectors.toList());
+        }
+        assertEquals(Arrays.asList("testDir/", "existing"), listedNames);
+        assertFalse(storageService.canAccess(stagingDir.toString()));
+        try {
+            storageService.streamContentNodes(stagingDir.toString(), new ContentAccessParams()).close();
+            fail("Staging directory must not be accessible");
+        } catch (NoContentFoundException expected) {
+        }
+
+        uploadService.abortUpload(upload.getUploadId());
+        // the staging directory is removed once no upload uses it
+        assertEquals(Arrays.asList(testDir.resolve("existing")), listDir(testDir));
+    }
+
+    @Test
+    public void expiredUploadsAreDiscardedWithoutBeingAccessed() throws Exception {
+        Path testDir = testFolder.newFolder("testDir").toPath();
+        FileSystemChunkedUploadService uploadService = new FileSystemChunkedUploadService(new FileSystemListingCache(0, 0, 0, 0), new N5BlockCache(0, 0), scheduler, 100L, 20L);
+        uploadService.initiateUpload(JADEStorageURI.createStoragePathURI(testDir.resolve("target").toString(), JADEOptions.create()), 10, "user:test", 1);
+        assertEquals(1, listDir(testDir).size());
+        // nothing accesses the uploads so only the periodic sweep can discard it
+        for (int i = 0; i < 250 && !listDir(testDir).isEmpty(); i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(Arrays.asList(), listDir(testDir));
+    }
+
+    private List<Path> listDir(Path dir) throws IOException {
+        try (Stream<Path> entries = Files.list(dir)) {
+            return entries.collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.janelia.jacsstorage.service.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.collect.ImmutableSet;
+import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileSystemStorageServiceTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Test
+    public void pagedListingResumesAfterLastEntry() throws IOException {
+        Path testDir = testFolder.newFolder("testDir").toPath();
+        for (String d : new String[] {"d2", "d1", "d1/sd2", "d1/sd1"}) {
+            Files.createDirectories(testDir.resolve(d));
+        }
+        for (String f : new String[] {"f3", "f1", "d1/f2", "d1/sd1/f1", "d1/sd1/f0", "d2/f1", "f2"}) {
+            Files.write(testDir.resolve(f), f.getBytes());
+        }
+        FileSystemStorageService storageService = new FileSystemStorageService();
+
+        List<String> allEntries = storageService.listContentNodes(testDir.toString(), new ContentAccessParams().setMaxDepth(-1).setEntriesCount(100))
+                .stream()
+                .map(ContentNode::getObjectKey)
+                .collect(Collectors.toList());
+        assertEquals(12, allEntries.size());
+        // all entries in a directory come right after the directory
+        assertTrue(allEntries.indexOf(testDir + "/d1/sd1/f0") == allEntries.indexOf(testDir + "/d1/sd1/") + 1);
+
+        for (int pageSize = 1; pageSize <= 5; pageSize++) {
+            List<String> pagedEntries = new ArrayList<>();
+            String startAfterEntry = null;
+            for (;;) {
+                List<ContentNode> page = storageService.listContentNodes(testDir.toString(), new ContentAccessParams()
+                        .setMaxDepth(-1)
+                        .setEntriesCount(pageSize)
+                        .setStartAfterEntry(startAfterEntry));
+                page.forEach(n -> pagedEntries.add(n.getObjectKey()));
+                if (page.size() < pageSize) {
+                    break;
+                }
+                startAfterEntry = page.get(page.size() - 1).getObjectKey();
+            }
+            assertEquals("Page size " + pageSize, allEntries, pagedEntries);
+        }
+
+        // a small read ahead limit forces some directories to be listed only when they are traversed
+        for (int prefetchedEntries : new int[] {1, 3, 100}) {
+            FileSystemDirectoryWalker parallelWalker = new FileSystemDirectoryWalker(4, prefetchedEntries);
+            try {
+                List<String> parallelEntries = new FileSystemStorageService(parallelWalker)
+                        .listContentNodes(testDir.toString(), new ContentAccessParams().setMaxDepth(-1).setEntriesCount(100))
+                        .stream()
+                        .map(ContentNode::getObjectKey)
+                        .collect(Collectors.toList());
+                assertEquals("Prefetched entries " + prefetchedEntries, allEntries, parallelEntries);
+            } finally {
+                parallelWalker.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void unorderedListingReturnsTheSameEntriesAsTheOrderedListing() throws IOException {
+        Path testDir = testFolder.newFolder("testDir").toPath();
+        for (String d : new String[] {"d2", "d1", "d1/sd2", "d1/sd1", "d1/sd1/ssd1"}) {
+            Files.createDirectories(testDir.resolve(d));
+        }
+        for (String f : new String[] {"f3", "f1", "d1/f2", "d1/sd1/f1", "d1/sd1/f0", "d1/sd1/ssd1/f0", "d2/f1", "f2"}) {
+            Files.write(testDir.resolve(f), f.getBytes());
+        }
+        FileSystemStorageService storageService = new FileSystemStorageService();
+
+        for (int maxDepth : new int[] {0, 1, 2, -1}) {
+            List<String> orderedEntries = storageService.listContentNodes(testDir.toString(), new ContentAccessParams().setMaxDepth(maxDepth).setEntriesCount(100))
+                    .stream()
+                    .map(ContentNode::getObjectKey)
+                    .collect(Collectors.toList());
+            List<String> unorderedEntries = storageService.listContentNodes(testDir.toString(), new ContentAccessParams().setMaxDepth(maxDepth))
+                    .stream()
+                    .map(ContentNode::getObjectKey)
+                    .collect(Collectors.toList());
+            assertEquals("Depth " + maxDepth, ImmutableSet.copyOf(orderedEntries), ImmutableSet.copyOf(unorderedEntries));
+            assertEquals("Depth " + maxDepth, orderedEntries.size(), unorderedEntries.size());
+            // the unordered walk is still depth first
+            for (String entry : unorderedEntries) {
+                if (entry.endsWith("/") && !entry.equals(testDir + "/")) {
+                    int dirIndex = unorderedEntries.indexOf(entry);
+                    long dirContentCount = unorderedEntries.stream().filter(e -> e.startsWith(entry) && !e.equals(entry)).count();
+                    for (int i = dirIndex + 1; i <= dirIndex + dirContentCount; i++) {
+                        assertTrue(unorderedEntries.get(i), unorderedEntries.get(i).startsWith(entry));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pagedDirectoriesOnlyListingReturnsFullPages() throws IOException {
+        Path testDir = testFolder.newFolder("testDir").toPath();
+        for (String d : new String[] {"d2", "d1", "d1/sd2", "d1/sd1"}) {
+            Files.createDirectories(testDir.resolve(d));
+        }
+        for (String f : new String[] {"f3", "f1", "d1/f2", "d1/sd1/f1", "d1/sd1/f0", "d2/f1", "f2"}) {
+            Files.write(testDir.resolve(f), f.getBytes());
+        }
+        FileSystemStorageService storageService = new FileSystemStorageService();
+
+        List<String> allDirectories = storageService.listContentNodes(testDir.toString(), new ContentAccessParams()
+                        .setMaxDepth(-1)
+                        .setDirectoriesOnly(true)
+                        .setEntriesCount(100))
+                .stream()
+                .map(ContentNode::getObjectKey)
+                .collect(Collectors.toList());
+        assertEquals(5, allDirectories.size());
+
+        for (int pageSize = 1; pageSize <= 3; pageSize++) {
+            List<String> pagedDirectories = new ArrayList<>();
+            String startAfterEntry = null;
+            for (;;) {
+                List<ContentNode> page = storageService.listContentNodes(testDir.toString(), new ContentAccessParams()
+                        .setMaxDepth(-1)
+                        .setDirectoriesOnly(true)
+                        .setEntriesCount(pageSize)
+                        .setStartAfterEntry(startAfterEntry));
+                page.forEach(n -> pagedDirectories.add(n.getObjectKey()));
+                if (page.size() < pageSize) {
+                    break;
+                }
+                startAfterEntry = page.get(page.size() - 1).getObjectKey();
+            }
+            // only the last page may be short, otherwise the listing would stop before all directories are returned
+            assertEquals("Page size " + pageSize, allDirectories, pagedDirectories);
+        }
+    }
+
+    @Test
+    public void pagedListingCannotResumeOutsideListedDirectory() throws IOException {
+        Path testDir = testFolder.newFolder("listedDir").toPath();
+        Files.write(testDir.resolve("f1"), "f1".getBytes());
+        Path siblingDir = testFolder.newFolder("siblingDir").toPath();
+        Files.write(siblingDir.resolve("f1"), "f1".getBytes());
+        FileSystemStorageService storageService = new FileSystemStorageService();
+
+        for (String startAfterEntry : new String[] {
+                testDir + "/../siblingDir/f1",
+                testDir + "/f1/../../siblingDir",
+                siblingDir + "/f1",
+                "../siblingDir"}) {
+            try {
+                storageService.listContentNodes(testDir.toString(), new ContentAccessParams()
+                        .setMaxDepth(-1)
+                        .setEntriesCount(10)
+                        .setStartAfterEntry(startAfterEntry));
+                fail("Expected the listing after " + startAfterEntry + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(startAfterEntry));
+            }
+        }
+    }
+
+    @Test
+    public void directoriesAreVisitedBeforeTheirEntriesAreRead() throws IOException {
+        for (int parallelism : new int[] {1, 4}) {
+            Path testDir = testFolder.newFolder("visitedDir" + parallelism).toPath();
+            Files.createDirectories(testDir.resolve("d1/sd1"));
+            Files.createDirectories(testDir.resolve("d2"));
+            FileSystemDirectoryWalker directoryWalker = new FileSystemDirectoryWalker(parallelism, 100);
+            try (Stream<FileSystemDirectoryWalker.PathEntry> pathEntries = directoryWalker.walk(testDir, Integer.MAX_VALUE, null, parallelism == 1, dirPath -> {
+                try {
+                    Files.write(dirPath.resolve("visited"), "visited".getBytes());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })) {
+                Set<String> visitedFiles = pathEntries
+                        .filter(e -> !e.isDirectory())
+                        .map(e -> testDir.relativize(e.getPath()).toString())
+                        .collect(Collectors.toSet());
+                // a file created by the visitor is part of the listing
+                assertEquals(ImmutableSet.of("visited", "d1/visited", "d1/sd1/visited", "d2/visited"), visitedFiles);
+            } finally {
+                directoryWalker.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void cachedListingWatchesTheListedSubdirectories() throws Exception {
+        Path testDir = testFolder.newFolder("watchedDir").toPath();
+        Files.createDirectories(testDir.resolve("d1/sd1"));
+        Files.write(testDir.resolve("d1/sd1/f1"), "f1".getBytes());
+        FileSystemListingCache listingCache = new FileSystemListingCache(100, 10, 60, 10);
+        FileSystemStorageService storageService = new FileSystemStorageService(new FileSystemDirectoryWalker(), listingCache);
+        try {
+            storageService.listContentNodes(testDir.toString(), new ContentAccessParams().setMaxDepth(1).setCachedListingAllowed(true));
+            // only the content of the listed directory is part of the listing
+            assertEquals(1, listingCache.getWatchedDirsCount());
+
+            ContentAccessParams listingParams = new ContentAccessParams().setMaxDepth(-1).setCachedListingAllowed(true);
+            assertEquals(4, storageService.listContentNodes(testDir.toString(), listingParams).size());
+            assertEquals(3, listingCache.getWatchedDirsCount());
+
+            // a change that is not made through the storage service is reported by the filesystem
+            Files.write(testDir.resolve("d1/sd1/f2"), "f2".getBytes());
+            List<ContentNode> updatedListing = storageService.listContentNodes(testDir.toString(), listingParams);
+            for (int i = 0; i < 100 && updatedListing.size() == 4; i++) {
+                Thread.sleep(100);
+                updatedListing = storageService.listContentNodes(testDir.toString(), listingParams);
+            }
+            assertEquals(5, updatedListing.size());
+        } finally {
+            listingCache.shutdown();
+        }
+    }
+
+    @Test
+    public void cachedListingIsInvalidatedByWrites() throws IOException {
+        Path testDir = testFolder.newFolder("cachedDir").toPath();
+        Files.createDirectories(testDir.resolve("d1"));
+        Files.write(testDir.resolve("d1/f1"), "f1".getBytes());
+        FileSystemListingCache listingCache = new FileSystemListingCache(100, 10, 60, 10);
+        FileSystemStorageService storageService = new FileSystemStorageService(new FileSystemDirectoryWalker(), listingCache);
+        try {
+            ContentAccessParams listingParams = new ContentAccessParams().setMaxDepth(-1).setCachedListingAllowed(true);
+            List<ContentNode> firstListing = storageService.listContentNodes(testDir.toString(), listingParams);
+            List<ContentNode> secondListing = storageService.listContentNodes(testDir.toString(), listingParams);
+            assertEquals(3, secondListing.size());
+            assertEquals(1, listingCache.getStats().hitCount());
+            assertTrue(firstListing.get(2) == secondListing.get(2));
+
+            storageService.writeContent(testDir.resolve("d1/f2").toString(), new ByteArrayInputStream("f2".getBytes()));
+            List<String> updatedListing = storageService.listContentNodes(testDir.toString(), listingParams)
+                    .stream()
+                    .map(ContentNode::getObjectKey)
+                    .collect(Collectors.toList());
+            assertEquals(4, updatedListing.size());
+            assertTrue(updatedListing.contains(testDir + "/d1/f2"));
+        } finally {
+            listingCache.shutdown();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.janelia.jacsstorage.service.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
+import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class S3ListingCacheTest {
+
+    @Test
+    public void cachedListingIsInvalidatedByChangesUnderThePrefix() {
+        S3ListingCache listingCache = new S3ListingCache(1, 10, 60);
+        AtomicInteger listingsCount = new AtomicInteger();
+        ContentAccessParams listingParams = new ContentAccessParams().setMaxDepth(-1).setCachedListingAllowed(true);
+
+        List<String> firstListing = listKeys(listingCache, "d1/", listingParams, listingsCount);
+        List<String> secondListing = listKeys(listingCache, "d1/", listingParams, listingsCount);
+        assertEquals(Arrays.asList("/d1/", "/d1/f1", "/d1/f2"), secondListing);
+        assertEquals(firstListing, secondListing);
+        assertEquals(1, listingsCount.get());
+        assertEquals(1, listingCache.getStats().hitCount());
+
+        listingCache.invalidateKey(null, "d2/f1");
+        listKeys(listingCache, "d1/", listingParams, listingsCount);
+        assertEquals(1, listingsCount.get());
+
+        listingCache.invalidateKey(null, "d1/f3");
+        listKeys(listingCache, "d1/", listingParams, listingsCount);
+        assertEquals(2, listingsCount.get());
+    }
+
+    @Test
+    public void changeInvalidatesOnlyTheListingsOfTheParentPrefixes() {
+        S3ListingCache listingCache = new S3ListingCache(1, 10, 60);
+        ContentAccessParams deepListingParams = new ContentAccessParams().setMaxDepth(-1).setCachedListingAllowed(true);
+        ContentAccessParams shallowListingParams = new ContentAccessParams().setMaxDepth(1).setCachedListingAllowed(true);
+        List<String> prefixes = Arrays.asList("", "d1", "d1/", "d1/d2/", "d1/d2/f", "d1/d3/", "d2/");
+        Map<String, AtomicInteger> listingsCount = new HashMap<>();
+        for (String prefix : prefixes) {
+            listingsCount.put(prefix, new AtomicInteger());
+            listKeys(listingCache, prefix, deepListingParams, listingsCount.get(prefix));
+            listKeys(listingCache, prefix, shallowListingParams, listingsCount.get(prefix));
+        }
+        assertEquals(2 * prefixes.size(), listingCache.getCachedListingsCount());
+
+        listingCache.invalidateKey(null, "d1/d2/f1");
+        for (String prefix : prefixes) {
+            listKeys(listingCache, prefix, deepListingParams, listingsCount.get(prefix));
+            listKeys(listingCache, prefix, shallowListingParams, listingsCount.get(prefix));
+        }
+        assertEquals(4, listingsCount.get("").get());
+        assertEquals(4, listingsCount.get("d1").get());
+        assertEquals(4, listingsCount.get("d1/").get());
+        assertEquals(4, listingsCount.get("d1/d2/").get());
+        // a prefix that ends inside a name is only refreshed when it expires
+        assertEquals(2, listingsCount.get("d1/d2/f").get());
+        assertEquals(2, listingsCount.get("d1/d3/").get());
+        assertEquals(2, listingsCount.get("d2/").get());
+
+        // the listings cached again after the invalidation are invalidated by the next change
+        listingCache.invalidateKey(null, "d1/d2/f2");
+        listKeys(listingCache, "d1/d2/", deepListingParams, listingsCount.get("d1/d2/"));
+        assertEquals(5, listingsCount.get("d1/d2/").get());
+        assertEquals(Arrays.asList("", "d1", "d1/", "d1/d2", "d1/d2/", "d1/d2/f1"), Arrays.asList(S3ListingCache.getParentPrefixes("d1/d2/f1").toArray()));
+    }
+
+    private List<String> listKeys(S3ListingCache listingCache, String prefix, ContentAccessParams listingParams, AtomicInteger listingsCount) {
+        try (Stream<ContentNode> contentNodes = listingCache.streamListing(null, prefix, listingParams, startAfterEntry -> {
+            listingsCount.incrementAndGet();
+            return Stream.of(createNode("", "d1/"), createNode("d1", "f1"), createNode("d1", "f2"));
+        })) {
+            return contentNodes.map(ContentNode::getObjectKey).collect(Collectors.toList());
+        }
+    }
+
+    private ContentNode createNode(String prefix, String name) {
+        return new ContentNode(JacsStorageType.S3, JADEStorageURI.createStoragePathURI("s3://testBucket", JADEOptions.create()))
+                .setPrefix(prefix)
+                .setName(name);
+    }
+}
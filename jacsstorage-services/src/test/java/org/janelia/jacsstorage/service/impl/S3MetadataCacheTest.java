@@ -0,0 +1,138 @@
+package org.janelia.jacsstorage.service.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.janelia.jacsstorage.service.NoContentFoundException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class S3MetadataCacheTest {
+
+    @Test
+    public void concurrentLookupsShareTheSameRequest() {
+        S3MetadataCache metadataCache = new S3MetadataCache(10, 60, 60);
+        AtomicInteger lookupsCount = new AtomicInteger();
+        CompletableFuture<ContentNode> s3Lookup = new CompletableFuture<>();
+
+        CompletableFuture<ContentNode> firstLookup = metadataCache.getObjectNode(null, "d1/f1", () -> {
+            lookupsCount.incrementAndGet();
+            return s3Lookup;
+        });
+        CompletableFuture<ContentNode> secondLookup = metadataCache.getObjectNode(null, "d1/f1", () -> {
+            lookupsCount.incrementAndGet();
+            return s3Lookup;
+        });
+        ContentNode objectNode = createNode("d1", "f1");
+        s3Lookup.complete(objectNode);
+
+        assertSame(objectNode, firstLookup.join());
+        assertSame(objectNode, secondLookup.join());
+        assertSame(objectNode, metadataCache.getObjectNode(null, "d1/f1", () -> {
+            lookupsCount.incrementAndGet();
+            return s3Lookup;
+        }).join());
+        assertEquals(1, lookupsCount.get());
+    }
+
+    @Test
+    public void missingObjectIsCachedUntilItIsWritten() {
+        S3MetadataCache metadataCache = new S3MetadataCache(10, 60, 60);
+        AtomicInteger lookupsCount = new AtomicInteger();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                metadataCache.getObjectNode(null, "d1/f1", () -> {
+                    lookupsCount.incrementAndGet();
+                    throw new NoContentFoundException("No object found");
+                }).join();
+                fail("Missing object must not be found");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof NoContentFoundException);
+            }
+            assertEquals(Boolean.FALSE, metadataCache.canAccess(null, "d1/", () -> {
+                lookupsCount.incrementAndGet();
+                return CompletableFuture.completedFuture(false);
+            }).join());
+        }
+        assertEquals(2, lookupsCount.get());
+
+        metadataCache.invalidateKey(null, "d1/f1");
+        ContentNode objectNode = createNode("d1", "f1");
+        assertSame(objectNode, metadataCache.getObjectNode(null, "d1/f1", () -> {
+            lookupsCount.incrementAndGet();
+            return CompletableFuture.completedFuture(objectNode);
+        }).join());
+        assertEquals(Boolean.TRUE, metadataCache.canAccess(null, "d1/", () -> {
+            lookupsCount.incrementAndGet();
+            return CompletableFuture.completedFuture(true);
+        }).join());
+        assertEquals(4, lookupsCount.get());
+    }
+
+    @Test
+    public void writeInvalidatesOnlyTheObjectAndTheAccessToItsParentPrefixes() {
+        S3MetadataCache metadataCache = new S3MetadataCache(100, 60, 60);
+        List<String> prefixes = Arrays.asList("", "d1", "d1/", "d1/d2/", "d1/d3/", "d2/");
+        Map<String, AtomicInteger> lookupsCount = new HashMap<>();
+        for (String key : Arrays.asList("", "d1", "d1/", "d1/d2/", "d1/d3/", "d2/", "d1/d2/f1", "d1/d2/f2")) {
+            lookupsCount.put(key, new AtomicInteger());
+        }
+        for (int i = 0; i < 2; i++) {
+            for (String prefix : prefixes) {
+                checkAccess(metadataCache, prefix, lookupsCount.get(prefix));
+            }
+            getObjectNode(metadataCache, "d1/d2/", "f1", lookupsCount.get("d1/d2/f1"));
+            getObjectNode(metadataCache, "d1/d2/", "f2", lookupsCount.get("d1/d2/f2"));
+        }
+
+        metadataCache.invalidateKey(null, "d1/d2/f1");
+        for (String prefix : prefixes) {
+            checkAccess(metadataCache, prefix, lookupsCount.get(prefix));
+        }
+        getObjectNode(metadataCache, "d1/d2/", "f1", lookupsCount.get("d1/d2/f1"));
+        getObjectNode(metadataCache, "d1/d2/", "f2", lookupsCount.get("d1/d2/f2"));
+
+        assertEquals(2, lookupsCount.get("").get());
+        assertEquals(2, lookupsCount.get("d1").get());
+        assertEquals(2, lookupsCount.get("d1/").get());
+        assertEquals(2, lookupsCount.get("d1/d2/").get());
+        assertEquals(1, lookupsCount.get("d1/d3/").get());
+        assertEquals(1, lookupsCount.get("d2/").get());
+        assertEquals(2, lookupsCount.get("d1/d2/f1").get());
+        assertEquals(1, lookupsCount.get("d1/d2/f2").get());
+    }
+
+    private void checkAccess(S3MetadataCache metadataCache, String prefix, AtomicInteger lookupsCount) {
+        assertEquals(Boolean.TRUE, metadataCache.canAccess(null, prefix, () -> {
+            lookupsCount.incrementAndGet();
+            return CompletableFuture.completedFuture(true);
+        }).join());
+    }
+
+    private void getObjectNode(S3MetadataCache metadataCache, String prefix, String name, AtomicInteger lookupsCount) {
+        metadataCache.getObjectNode(null, prefix + name, () -> {
+            lookupsCount.incrementAndGet();
+            return CompletableFuture.completedFuture(createNode(prefix, name));
+        }).join();
+    }
+
+    private ContentNode createNode(String prefix, String name) {
+        return new ContentNode(JacsStorageType.S3, JADEStorageURI.createStoragePathURI("s3://testBucket", JADEOptions.create()))
+                .setPrefix(prefix)
+                .setName(name);
+    }
+}
@@ -0,0 +1,131 @@
+package org.janelia.jacsstorage.service.impl.contenthandling;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
+import org.janelia.jacsstorage.service.ContentException;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.janelia.jacsstorage.service.ContentStreamReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContentPrefetcherTest {
+
+    private static final int BUDGET_IN_KB = 1024;
+
+    private ExecutorService executorService;
+
+    @Before
+    public void setUp() {
+        executorService = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void reservationIsKeptUntilCancelledFetchStops() throws Exception {
+        ContentPrefetcher contentPrefetcher = new ContentPrefetcher(executorService, 4, 1, 1);
+        CountDownLatch fetchStarted = new CountDownLatch(1);
+        CountDownLatch fetchReleased = new CountDownLatch(1);
+        ContentStreamReader blockingReader = new TestContentReader(new byte[10 * 1024]) {
+            @Override
+            public long streamContentToOutput(String contentLocation, OutputStream outputStream) {
+                fetchStarted.countDown();
+                try {
+                    // ignore the interrupt to simulate a reader that does not respond to it
+                    while (!fetchReleased.await(10, TimeUnit.MILLISECONDS)) {
+                        Thread.interrupted();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.streamContentToOutput(contentLocation, outputStream);
+            }
+        };
+        ContentPrefetcher.PrefetchedContent prefetchedContent = contentPrefetcher.prefetch(
+                Collections.singletonList(createNode("f1", 10 * 1024)), blockingReader);
+        assertTrue(fetchStarted.await(5, TimeUnit.SECONDS));
+        prefetchedContent.close();
+        assertEquals(BUDGET_IN_KB - 10, contentPrefetcher.getAvailableBudgetInKB());
+
+        fetchReleased.countDown();
+        waitForBudget(contentPrefetcher);
+        assertEquals(BUDGET_IN_KB, contentPrefetcher.getAvailableBudgetInKB());
+    }
+
+    @Test
+    public void contentLargerThanListedSizeIsStreamedDirectly() throws Exception {
+        ContentPrefetcher contentPrefetcher = new ContentPrefetcher(executorService, 4, 1, 1);
+        byte[] testContent = new byte[5000];
+        // the listed size is smaller than the actual content
+        try (ContentPrefetcher.PrefetchedContent prefetchedContent = contentPrefetcher.prefetch(
+                Collections.singletonList(createNode("f1", 10)), new TestContentReader(testContent))) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            assertEquals(testContent.length, prefetchedContent.streamNextContentToOutput(outputStream));
+            assertEquals(testContent.length, outputStream.size());
+        }
+        waitForBudget(contentPrefetcher);
+        assertEquals(BUDGET_IN_KB, contentPrefetcher.getAvailableBudgetInKB());
+    }
+
+    private void waitForBudget(ContentPrefetcher contentPrefetcher) throws InterruptedException {
+        for (int i = 0; i < 500 && contentPrefetcher.getAvailableBudgetInKB() < BUDGET_IN_KB; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private ContentNode createNode(String name, long size) {
+        return new ContentNode(JacsStorageType.FILE_SYSTEM, JADEStorageURI.createStoragePathURI("", JADEOptions.create()))
+                .setPrefix("d1")
+                .setName(name)
+                .setSize(size);
+    }
+
+    private static class TestContentReader implements ContentStreamReader {
+        private final byte[] content;
+
+        TestContentReader(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public InputStream getContentInputStream(String contentLocation) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long streamContentToOutput(String contentLocation, OutputStream outputStream) {
+            try {
+                // write in small chunks like a real stream copy
+                for (int offset = 0; offset < content.length; offset += 1024) {
+                    outputStream.write(content, offset, Math.min(1024, content.length - offset));
+                }
+                return content.length;
+            } catch (IOException e) {
+                throw new ContentException(e);
+            }
+        }
+
+        @Override
+        public long streamContentRangeToOutput(String contentLocation, long offset, long length, OutputStream outputStream) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
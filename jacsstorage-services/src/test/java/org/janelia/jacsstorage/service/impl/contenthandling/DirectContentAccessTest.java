@@ -0,0 +1,161 @@
+package org.janelia.jacsstorage.service.impl.contenthandling;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.io.ByteStreams;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.janelia.jacsstorage.service.ArchiveFormat;
+import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
+import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.janelia.jacsstorage.service.ContentStreamReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DirectContentAccessTest {
+
+    private ExecutorService executorService;
+
+    @Before
+    public void setUp() {
+        executorService = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void prefetchedArchiveKeepsEntriesOrder() throws Exception {
+        List<ContentNode> testNodes = new ArrayList<>();
+        testNodes.add(createNode("d1", "sd/", 0, true));
+        for (int i = 0; i < 20; i++) {
+            testNodes.add(createNode("d1/sd", "f" + i, createContent("f" + i).length, false));
+        }
+        ContentStreamReader testReader = mock(ContentStreamReader.class);
+        when(testReader.streamContentToOutput(anyString(), any(OutputStream.class)))
+                .then(invocation -> {
+                    String key = invocation.getArgument(0);
+                    OutputStream os = invocation.getArgument(1);
+                    String name = key.substring(key.lastIndexOf('/') + 1);
+                    // make the first entries slower so that later ones complete first
+                    Thread.sleep(Math.max(0, 20 - Integer.parseInt(name.substring(1))));
+                    byte[] content = createContent(name);
+                    os.write(content);
+                    return (long) content.length;
+                });
+        ContentAccessParams contentAccessParams = new ContentAccessParams();
+        ByteArrayOutputStream expectedArchiveStream = new ByteArrayOutputStream();
+        new DirectContentAccess(false).retrieveContent(testNodes, contentAccessParams, testReader, expectedArchiveStream);
+        try (TarArchiveInputStream archiveInputStream = new TarArchiveInputStream(new ByteArrayInputStream(expectedArchiveStream.toByteArray()))) {
+            TarArchiveEntry entry = archiveInputStream.getNextTarEntry();
+            assertTrue(entry.isDirectory());
+            for (int i = 0; i < 20; i++) {
+                entry = archiveInputStream.getNextTarEntry();
+                assertTrue(entry.getName().endsWith("f" + i));
+                assertArrayEquals(createContent("f" + i), ByteStreams.toByteArray(archiveInputStream));
+            }
+            assertNull(archiveInputStream.getNextTarEntry());
+        }
+        for (int budgetInMiB : new int[] {0, 1, 512}) {
+            ContentPrefetcher contentPrefetcher = new ContentPrefetcher(executorService, 4, 1, budgetInMiB);
+            DirectContentAccess contentAccess = new DirectContentAccess(false, contentPrefetcher);
+
+            ByteArrayOutputStream archiveStream = new ByteArrayOutputStream();
+            long nbytes = contentAccess.retrieveContent(testNodes, contentAccessParams, testReader, archiveStream);
+
+            assertEquals(contentAccess.estimateContentSize(testNodes, contentAccessParams, testReader), nbytes);
+            assertArrayEquals(expectedArchiveStream.toByteArray(), archiveStream.toByteArray());
+        }
+    }
+
+    @Test
+    public void zipArchiveKeepsEntriesOrder() throws Exception {
+        List<ContentNode> testNodes = new ArrayList<>();
+        testNodes.add(createNode("d1", "sd/", 0, true));
+        for (int i = 0; i < 20; i++) {
+            testNodes.add(createNode("d1/sd", "f" + i + (i % 5 == 0 ? ".gz" : ""), createContent("f" + i).length, false));
+        }
+        testNodes.add(createNode("d1", "sd2/", 0, true));
+        ContentStreamReader testReader = mock(ContentStreamReader.class);
+        when(testReader.streamContentToOutput(anyString(), any(OutputStream.class)))
+                .then(invocation -> {
+                    String key = invocation.getArgument(0);
+                    OutputStream os = invocation.getArgument(1);
+                    String name = key.substring(key.lastIndexOf('/') + 1).replace(".gz", "");
+                    // make the first entries slower so that later ones complete first
+                    Thread.sleep(Math.max(0, 20 - Integer.parseInt(name.substring(1))));
+                    byte[] content = createContent(name);
+                    os.write(content);
+                    return (long) content.length;
+                });
+        // an entry size limit of 0 forces all entries to be compressed only when they are written
+        for (int maxEntrySizeInMiB : new int[] {0, 1}) {
+            DirectContentAccess contentAccess = new DirectContentAccess(false, null, new ZipContentArchiver(executorService, 4, maxEntrySizeInMiB, 1));
+            for (boolean compressionDisabled : new boolean[] {false, true}) {
+                ContentAccessParams contentAccessParams = new ContentAccessParams()
+                        .setArchiveFormat(ArchiveFormat.ZIP)
+                        .setArchiveCompressionDisabled(compressionDisabled);
+                ByteArrayOutputStream archiveStream = new ByteArrayOutputStream();
+                long nbytes = contentAccess.retrieveContent(testNodes, contentAccessParams, testReader, archiveStream);
+
+                assertEquals(archiveStream.size(), nbytes);
+                if (compressionDisabled) {
+                    assertEquals(contentAccess.estimateContentSize(testNodes, contentAccessParams, testReader), nbytes);
+                } else {
+                    assertEquals(-1, contentAccess.estimateContentSize(testNodes, contentAccessParams, testReader));
+                }
+                try (ZipArchiveInputStream archiveInputStream = new ZipArchiveInputStream(new ByteArrayInputStream(archiveStream.toByteArray()))) {
+                    ZipArchiveEntry entry = archiveInputStream.getNextZipEntry();
+                    assertEquals("sd/", entry.getName());
+                    for (int i = 0; i < 20; i++) {
+                        entry = archiveInputStream.getNextZipEntry();
+                        assertEquals("sd/f" + i + (i % 5 == 0 ? ".gz" : ""), entry.getName());
+                        assertArrayEquals(createContent("f" + i), ByteStreams.toByteArray(archiveInputStream));
+                    }
+                    assertTrue(archiveInputStream.getNextZipEntry().isDirectory());
+                    assertNull(archiveInputStream.getNextZipEntry());
+                }
+            }
+        }
+    }
+
+    private ContentNode createNode(String prefix, String name, long size, boolean collection) {
+        return new ContentNode(JacsStorageType.FILE_SYSTEM, JADEStorageURI.createStoragePathURI("", JADEOptions.create()))
+                .setPrefix(prefix)
+                .setName(name)
+                .setSize(size)
+                .setCollection(collection);
+    }
+
+    private byte[] createContent(String name) {
+        StringBuilder contentBuilder = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            contentBuilder.append(name).append(' ');
+        }
+        return contentBuilder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,120 @@
+package org.janelia.jacsstorage.service.impl.contenthandling;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.google.common.io.ByteStreams;
+import org.janelia.jacsstorage.service.ContentException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ZipContentArchiverTest {
+
+    private static final int BUDGET_IN_KB = 8 * 1024;
+
+    private ExecutorService executorService;
+
+    @Before
+    public void setUp() {
+        executorService = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void unknownSizeEntriesLargerThanTheirReservationAreWrittenInline() throws Exception {
+        for (boolean compressionDisabled : new boolean[] {false, true}) {
+            ZipContentArchiver zipContentArchiver = new ZipContentArchiver(executorService, 4, 1, 8);
+            byte[] smallContent = createContent(100, 1);
+            // larger than the 1MiB that can be reserved for an entry of unknown size
+            byte[] largeContent = createContent(3 * 1024 * 1024, 7);
+            List<ZipContentArchiver.ArchiveEntrySource> entrySources = Arrays.asList(
+                    new ZipContentArchiver.ArchiveEntrySource("d1/small1", -1, false, os -> os.write(smallContent)),
+                    new ZipContentArchiver.ArchiveEntrySource("d1/large", -1, false, os -> os.write(largeContent)),
+                    new ZipContentArchiver.ArchiveEntrySource("d1/small2", smallContent.length, false, os -> os.write(smallContent))
+            );
+            ByteArrayOutputStream archiveStream = new ByteArrayOutputStream();
+            long archiveSize = zipContentArchiver.archiveContent(entrySources, compressionDisabled, archiveStream);
+
+            assertEquals(archiveStream.size(), archiveSize);
+            List<String> entryNames = new ArrayList<>();
+            try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(archiveStream.toByteArray()))) {
+                for (ZipEntry zipEntry = zipInputStream.getNextEntry(); zipEntry != null; zipEntry = zipInputStream.getNextEntry()) {
+                    entryNames.add(zipEntry.getName());
+                    assertArrayEquals("Compression disabled: " + compressionDisabled + ", entry: " + zipEntry.getName(),
+                            zipEntry.getName().equals("d1/large") ? largeContent : smallContent,
+                            ByteStreams.toByteArray(zipInputStream));
+                }
+            }
+            assertEquals(Arrays.asList("d1/small1", "d1/large", "d1/small2"), entryNames);
+            waitForBudget(zipContentArchiver);
+            assertEquals(BUDGET_IN_KB, zipContentArchiver.getAvailableBudgetInKB());
+        }
+    }
+
+    @Test
+    public void reservationIsKeptUntilCancelledCompressionStops() throws Exception {
+        ZipContentArchiver zipContentArchiver = new ZipContentArchiver(executorService, 4, 1, 8);
+        CountDownLatch compressionStarted = new CountDownLatch(1);
+        CountDownLatch compressionReleased = new CountDownLatch(1);
+        List<ZipContentArchiver.ArchiveEntrySource> entrySources = Arrays.asList(
+                new ZipContentArchiver.ArchiveEntrySource("f1", 10, false, os -> {
+                    // wait until the next entry's compression started and then fail the archive
+                    compressionStarted.await(5, TimeUnit.SECONDS);
+                    throw new IOException("Error reading f1");
+                }),
+                new ZipContentArchiver.ArchiveEntrySource("f2", -1, false, os -> {
+                    compressionStarted.countDown();
+                    // ignore the interrupt to simulate a writer that does not respond to it
+                    while (!compressionReleased.await(10, TimeUnit.MILLISECONDS)) {
+                        Thread.interrupted();
+                    }
+                    os.write(createContent(100, 2));
+                })
+        );
+        try {
+            zipContentArchiver.archiveContent(entrySources, false, new ByteArrayOutputStream());
+            fail("Expected the archive to fail");
+        } catch (ContentException e) {
+            // expected
+        }
+        // the compression of f2 is still running so its 1MiB reservation was not returned
+        assertEquals(BUDGET_IN_KB - 1024, zipContentArchiver.getAvailableBudgetInKB());
+
+        compressionReleased.countDown();
+        waitForBudget(zipContentArchiver);
+        assertEquals(BUDGET_IN_KB, zipContentArchiver.getAvailableBudgetInKB());
+    }
+
+    private byte[] createContent(int size, int seed) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) ((i * seed) % 251);
+        }
+        return content;
+    }
+
+    private void waitForBudget(ZipContentArchiver zipContentArchiver) throws InterruptedException {
+        for (int i = 0; i < 500 && zipContentArchiver.getAvailableBudgetInKB() < BUDGET_IN_KB; i++) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.janelia.jacsstorage.service.impl.contenthandling.tiff;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.jacsstorage.service.ContentException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TiffContentCacheTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private ExecutorService executorService;
+
+    @Before
+    public void setUp() {
+        executorService = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void decodedSizeIsReservedBeforeDecoding() {
+        TiffContentCache tiffContentCache = new TiffContentCache(0, 0, 16, 5);
+        AtomicInteger budgetDuringDecode = new AtomicInteger();
+        // the encoded content is small but it decodes into 5MiB
+        byte[] decodedContent = tiffContentCache.getDecodedContent("k1", () -> 5 * MB - 10, () -> {
+            budgetDuringDecode.set(tiffContentCache.getAvailableDecodeBudgetInMiB());
+            return new byte[] {1, 2, 3};
+        });
+        assertArrayEquals(new byte[] {1, 2, 3}, decodedContent);
+        assertEquals(11, budgetDuringDecode.get());
+        assertEquals(16, tiffContentCache.getAvailableDecodeBudgetInMiB());
+    }
+
+    @Test
+    public void decodedSizeIsOnlyEstimatedOnCacheMiss() {
+        TiffContentCache tiffContentCache = new TiffContentCache(16, 60, 16, 5);
+        AtomicInteger estimatesCount = new AtomicInteger();
+        AtomicInteger decodesCount = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            tiffContentCache.getDecodedContent("k1",
+                    () -> {
+                        estimatesCount.incrementAndGet();
+                        return MB;
+                    },
+                    () -> {
+                        decodesCount.incrementAndGet();
+                        return new byte[] {1};
+                    });
+        }
+        assertEquals(1, estimatesCount.get());
+        assertEquals(1, decodesCount.get());
+        assertEquals(2, tiffContentCache.getStats().hitCount());
+    }
+
+    @Test
+    public void decoderWaitsUntilThereIsEnoughMemory() throws Exception {
+        TiffContentCache tiffContentCache = new TiffContentCache(0, 0, 8, 5);
+        CountDownLatch firstDecodeStarted = new CountDownLatch(1);
+        CountDownLatch firstDecodeReleased = new CountDownLatch(1);
+        CountDownLatch secondDecodeStarted = new CountDownLatch(1);
+        Future<byte[]> firstDecode = executorService.submit(() -> tiffContentCache.getDecodedContent("k1", () -> 6 * MB, () -> {
+            firstDecodeStarted.countDown();
+            firstDecodeReleased.await();
+            return new byte[] {1};
+        }));
+        assertTrue(firstDecodeStarted.await(5, TimeUnit.SECONDS));
+        Future<byte[]> secondDecode = executorService.submit(() -> tiffContentCache.getDecodedContent("k2", () -> 4 * MB, () -> {
+            secondDecodeStarted.countDown();
+            return new byte[] {2};
+        }));
+        // only 2MiB are left so the second decoder must wait
+        assertFalse(secondDecodeStarted.await(200, TimeUnit.MILLISECONDS));
+
+        firstDecodeReleased.countDown();
+        assertArrayEquals(new byte[] {1}, firstDecode.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] {2}, secondDecode.get(5, TimeUnit.SECONDS));
+        assertEquals(8, tiffContentCache.getAvailableDecodeBudgetInMiB());
+    }
+
+    @Test
+    public void decoderGivesUpWaitingForMemory() throws Exception {
+        TiffContentCache tiffContentCache = new TiffContentCache(0, 0, 4, 1);
+        CountDownLatch firstDecodeStarted = new CountDownLatch(1);
+        CountDownLatch firstDecodeReleased = new CountDownLatch(1);
+        Future<byte[]> firstDecode = executorService.submit(() -> tiffContentCache.getDecodedContent("k1", () -> 10 * MB, () -> {
+            firstDecodeStarted.countDown();
+            firstDecodeReleased.await();
+            return new byte[] {1};
+        }));
+        assertTrue(firstDecodeStarted.await(5, TimeUnit.SECONDS));
+        // the first decoder reserved the entire budget
+        assertEquals(0, tiffContentCache.getAvailableDecodeBudgetInMiB());
+        try {
+            tiffContentCache.getDecodedContent("k2", () -> MB, () -> new byte[] {2});
+            fail("Expected the decoder to time out");
+        } catch (ContentException e) {
+            assertTrue(e.getMessage().contains("Timed out"));
+        } finally {
+            firstDecodeReleased.countDown();
+        }
+        firstDecode.get(5, TimeUnit.SECONDS);
+        assertEquals(4, tiffContentCache.getAvailableDecodeBudgetInMiB());
+    }
+}
@@ -0,0 +1,134 @@
+package org.janelia.jacsstorage.service.impl.contenthandling.tiff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
+import org.janelia.jacsstorage.service.ContentException;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.janelia.jacsstorage.service.ContentStreamReader;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TiffImageGeometryTest {
+
+    @Test
+    public void readGeometryFromImageDirectories() {
+        for (ByteOrder byteOrder : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            byte[] tiffContent = createTiff(byteOrder, 10, 20, 16, 3);
+            TestRangeReader rangeReader = new TestRangeReader(tiffContent);
+            TiffImageGeometry imageGeometry = TiffImageGeometry.read(createNode(tiffContent.length), rangeReader, TiffImageGeometry.MAX_WALKED_PAGES);
+            assertEquals(10, imageGeometry.width);
+            assertEquals(20, imageGeometry.height);
+            assertEquals(2, imageGeometry.bytesPerPixel);
+            assertEquals(3, imageGeometry.pages);
+            assertTrue(imageGeometry.allPagesWalked);
+            assertEquals(400, imageGeometry.decodedPageSize());
+            // the pixels were never read
+            assertEquals(0, rangeReader.fullReads);
+        }
+    }
+
+    @Test
+    public void pagesThatWereNotWalkedAreEstimated() {
+        byte[] tiffContent = createTiff(ByteOrder.LITTLE_ENDIAN, 10, 20, 8, 100);
+        TestRangeReader rangeReader = new TestRangeReader(tiffContent);
+        TiffImageGeometry imageGeometry = TiffImageGeometry.read(createNode(tiffContent.length), rangeReader, 4);
+        assertEquals(100, imageGeometry.pages);
+        assertFalse(imageGeometry.allPagesWalked);
+        // the header, the first IFD read twice and two reads for each of the other 3 walked IFDs
+        assertEquals(9, rangeReader.rangeReads);
+    }
+
+    @Test
+    public void contentThatIsNotTiffIsRejected() {
+        byte[] content = "This is not a TIFF image".getBytes();
+        try {
+            TiffImageGeometry.read(createNode(content.length), new TestRangeReader(content), TiffImageGeometry.MAX_WALKED_PAGES);
+            fail("Expected the content to be rejected");
+        } catch (ContentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Create a TIFF in which each page's IFD follows the page's pixels.
+     */
+    static byte[] createTiff(ByteOrder byteOrder, int width, int height, int bitsPerSample, int pages) {
+        int pixelsSize = width * height * bitsPerSample / 8;
+        int ifdSize = 2 + 7 * 12 + 4;
+        ByteBuffer tiffBuffer = ByteBuffer.allocate(8 + pages * (pixelsSize + ifdSize)).order(byteOrder);
+        tiffBuffer.put(byteOrder == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        tiffBuffer.put(byteOrder == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        tiffBuffer.putShort((short) 42);
+        tiffBuffer.putInt(8 + pixelsSize);
+        for (int p = 0; p < pages; p++) {
+            int pixelsOffset = tiffBuffer.position();
+            tiffBuffer.position(pixelsOffset + pixelsSize);
+            tiffBuffer.putShort((short) 7);
+            putShortEntry(tiffBuffer, 256, width);
+            putShortEntry(tiffBuffer, 257, height);
+            putShortEntry(tiffBuffer, 258, bitsPerSample);
+            putShortEntry(tiffBuffer, 262, 1); // black is zero
+            tiffBuffer.putShort((short) 273).putShort((short) 4).putInt(1).putInt(pixelsOffset);
+            putShortEntry(tiffBuffer, 277, 1);
+            tiffBuffer.putShort((short) 279).putShort((short) 4).putInt(1).putInt(pixelsSize);
+            tiffBuffer.putInt(p + 1 < pages ? tiffBuffer.position() + 4 + pixelsSize : 0);
+        }
+        return tiffBuffer.array();
+    }
+
+    private static void putShortEntry(ByteBuffer tiffBuffer, int tag, int value) {
+        tiffBuffer.putShort((short) tag).putShort((short) 3).putInt(1).putShort((short) value).putShort((short) 0);
+    }
+
+    static ContentNode createNode(long size) {
+        return new ContentNode(JacsStorageType.FILE_SYSTEM, JADEStorageURI.createStoragePathURI("", JADEOptions.create()))
+                .setPrefix("d1")
+                .setName("image.tif")
+                .setSize(size);
+    }
+
+    static class TestRangeReader implements ContentStreamReader {
+        private final byte[] content;
+        int rangeReads;
+        int fullReads;
+
+        TestRangeReader(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public InputStream getContentInputStream(String contentLocation) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long streamContentToOutput(String contentLocation, OutputStream outputStream) {
+            fullReads++;
+            return streamContentRangeToOutput(contentLocation, 0, content.length, outputStream);
+        }
+
+        @Override
+        public long streamContentRangeToOutput(String contentLocation, long offset, long length, OutputStream outputStream) {
+            rangeReads++;
+            int start = (int) Math.min(offset, content.length);
+            int end = length < 0 ? content.length : (int) Math.min(offset + length, content.length);
+            try {
+                outputStream.write(content, start, end - start);
+            } catch (IOException e) {
+                throw new ContentException(e);
+            }
+            return end - start;
+        }
+    }
+}
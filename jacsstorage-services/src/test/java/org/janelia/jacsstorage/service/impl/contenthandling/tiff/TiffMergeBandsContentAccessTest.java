@@ -0,0 +1,164 @@
+package org.janelia.jacsstorage.service.impl.contenthandling.tiff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.jacsstorage.model.jacsstorage.JADEOptions;
+import org.janelia.jacsstorage.model.jacsstorage.JADEStorageURI;
+import org.janelia.jacsstorage.model.jacsstorage.JacsStorageType;
+import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.janelia.jacsstorage.service.ContentException;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.janelia.jacsstorage.service.ContentStreamReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TiffMergeBandsContentAccessTest {
+
+    private ExecutorService executorService;
+
+    @Before
+    public void setUp() {
+        executorService = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void mergeFetchesEachBandOnce() {
+        TiffMergeBandsContentAccess contentAccess = new TiffMergeBandsContentAccess(new TiffContentCache(16, 60, 16, 5), executorService);
+        Map<String, byte[]> bandsContent = new ConcurrentHashMap<>();
+        bandsContent.put("/bucket/b1.tif", TiffImageGeometryTest.createTiff(ByteOrder.LITTLE_ENDIAN, 4, 4, 8, 1));
+        bandsContent.put("/bucket/b2.tif", TiffImageGeometryTest.createTiff(ByteOrder.LITTLE_ENDIAN, 4, 4, 8, 1));
+        Map<String, AtomicInteger> fullReads = new ConcurrentHashMap<>();
+        ContentStreamReader bandsReader = new TestBandsReader(bandsContent) {
+            @Override
+            public long streamContentToOutput(String contentLocation, OutputStream outputStream) {
+                fullReads.computeIfAbsent(contentLocation, k -> new AtomicInteger()).incrementAndGet();
+                return super.streamContentToOutput(contentLocation, outputStream);
+            }
+        };
+        List<ContentNode> bandNodes = Arrays.asList(createS3Node("b1.tif"), createS3Node("b2.tif"));
+
+        long estimatedSize = contentAccess.estimateContentSize(bandNodes, new ContentAccessParams(), bandsReader);
+        ByteArrayOutputStream mergedOutput = new ByteArrayOutputStream();
+        long mergedSize = contentAccess.retrieveContent(bandNodes, new ContentAccessParams(), bandsReader, mergedOutput);
+
+        assertTrue(mergedSize > 0);
+        assertEquals(estimatedSize, mergedSize);
+        assertEquals(mergedSize, mergedOutput.size());
+        // the merged texture was decoded once and then served from the cache
+        assertEquals(1, fullReads.get("/bucket/b1.tif").get());
+        assertEquals(1, fullReads.get("/bucket/b2.tif").get());
+    }
+
+    @Test
+    public void failedMergeStopsRunningBandFetches() throws Exception {
+        TiffMergeBandsContentAccess contentAccess = new TiffMergeBandsContentAccess(new TiffContentCache(0, 0, 0, 0), executorService);
+        CountDownLatch slowBandStopped = new CountDownLatch(1);
+        ContentStreamReader bandsReader = new TestBandsReader(new ConcurrentHashMap<>()) {
+            @Override
+            public long streamContentToOutput(String contentLocation, OutputStream outputStream) {
+                if (contentLocation.endsWith("b1.tif")) {
+                    throw new ContentException("Error reading " + contentLocation);
+                }
+                // keep writing until the merge stops the fetch even though interrupts are ignored
+                long startTime = System.currentTimeMillis();
+                long written = 0;
+                try {
+                    while (System.currentTimeMillis() - startTime < 10000) {
+                        Thread.interrupted();
+                        outputStream.write(new byte[1024]);
+                        written += 1024;
+                    }
+                } catch (ContentException | IOException e) {
+                    slowBandStopped.countDown();
+                    throw e instanceof ContentException ? (ContentException) e : new ContentException(e);
+                }
+                return written;
+            }
+        };
+        List<ContentNode> bandNodes = Arrays.asList(createS3Node("b1.tif"), createS3Node("b2.tif"));
+        try {
+            contentAccess.retrieveContent(bandNodes, new ContentAccessParams(), bandsReader, new ByteArrayOutputStream());
+            fail("Expected the merge to fail");
+        } catch (ContentException e) {
+            // expected
+        }
+        assertTrue(slowBandStopped.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void emptyBandsListIsNotMerged() {
+        TiffMergeBandsContentAccess contentAccess = new TiffMergeBandsContentAccess(new TiffContentCache(0, 0, 0, 0), executorService);
+        ByteArrayOutputStream mergedOutput = new ByteArrayOutputStream();
+        assertEquals(0L, contentAccess.retrieveContent(Arrays.asList(), new ContentAccessParams(), new TestBandsReader(new ConcurrentHashMap<>()), mergedOutput));
+        assertArrayEquals(new byte[0], mergedOutput.toByteArray());
+    }
+
+    private ContentNode createS3Node(String name) {
+        return new ContentNode(JacsStorageType.S3, JADEStorageURI.createStoragePathURI("s3://bucket", JADEOptions.create()))
+                .setPrefix("bucket")
+                .setName(name)
+                .setSize(100);
+    }
+
+    private static class TestBandsReader implements ContentStreamReader {
+        private final Map<String, byte[]> bandsContent;
+
+        TestBandsReader(Map<String, byte[]> bandsContent) {
+            this.bandsContent = bandsContent;
+        }
+
+        @Override
+        public InputStream getContentInputStream(String contentLocation) {
+            return new ByteArrayInputStream(bandsContent.get(contentLocation));
+        }
+
+        @Override
+        public long streamContentToOutput(String contentLocation, OutputStream outputStream) {
+            byte[] content = bandsContent.get(contentLocation);
+            try {
+                outputStream.write(content);
+            } catch (IOException e) {
+                throw new ContentException(e);
+            }
+            return content.length;
+        }
+
+        @Override
+        public long streamContentRangeToOutput(String contentLocation, long offset, long length, OutputStream outputStream) {
+            byte[] content = bandsContent.get(contentLocation);
+            int start = (int) Math.min(offset, content.length);
+            int end = length < 0 ? content.length : (int) Math.min(offset + length, content.length);
+            try {
+                outputStream.write(content, start, end - start);
+            } catch (IOException e) {
+                throw new ContentException(e);
+            }
+            return end - start;
+        }
+    }
+}
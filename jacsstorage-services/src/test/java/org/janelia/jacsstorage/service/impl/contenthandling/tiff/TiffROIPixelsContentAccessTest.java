@@ -0,0 +1,83 @@
+package org.janelia.jacsstorage.service.impl.contenthandling.tiff;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.janelia.jacsstorage.service.ContentNode;
+import org.janelia.jacsstorage.service.impl.contenthandling.ContentNodeHelper;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TiffROIPixelsContentAccessTest {
+
+    @Test
+    public void roiSizeIsCalculatedWithoutDecodingThePixels() {
+        TiffROIPixelsContentAccess contentAccess = new TiffROIPixelsContentAccess(new TiffContentCache(16, 60, 16, 5), null);
+        byte[] tiffContent = TiffImageGeometryTest.createTiff(ByteOrder.LITTLE_ENDIAN, 10, 20, 16, 100);
+        TiffImageGeometryTest.TestRangeReader rangeReader = new TiffImageGeometryTest.TestRangeReader(tiffContent);
+        ContentNode tiffNode = TiffImageGeometryTest.createNode(tiffContent.length);
+
+        assertEquals(4 * 6 * 3 * 2, contentAccess.estimateContentSize(Collections.singletonList(tiffNode), createROIParams(5, 10, 2, 4, 6, 3), rangeReader));
+        assertEquals(0, rangeReader.fullReads);
+    }
+
+    @Test
+    public void roiThatCoversTheEntireImageHasTheImageSize() {
+        TiffROIPixelsContentAccess contentAccess = new TiffROIPixelsContentAccess(new TiffContentCache(16, 60, 16, 5), null);
+        byte[] tiffContent = TiffImageGeometryTest.createTiff(ByteOrder.BIG_ENDIAN, 10, 20, 16, 3);
+        TiffImageGeometryTest.TestRangeReader rangeReader = new TiffImageGeometryTest.TestRangeReader(tiffContent);
+        ContentNode tiffNode = TiffImageGeometryTest.createNode(tiffContent.length);
+
+        assertEquals(10 * 20 * 3 * 2, contentAccess.estimateContentSize(Collections.singletonList(tiffNode), createROIParams(0, 0, 0, -1, -1, -1), rangeReader));
+        assertEquals(0, rangeReader.fullReads);
+    }
+
+    @Test
+    public void roiSizeIsUnknownIfTheROIIsClippedByTheImage() {
+        TiffROIPixelsContentAccess contentAccess = new TiffROIPixelsContentAccess(new TiffContentCache(16, 60, 16, 5), null);
+        byte[] tiffContent = TiffImageGeometryTest.createTiff(ByteOrder.LITTLE_ENDIAN, 10, 20, 8, 3);
+        TiffImageGeometryTest.TestRangeReader rangeReader = new TiffImageGeometryTest.TestRangeReader(tiffContent);
+        ContentNode tiffNode = TiffImageGeometryTest.createNode(tiffContent.length);
+
+        assertEquals(-1, contentAccess.estimateContentSize(Collections.singletonList(tiffNode), createROIParams(1, 10, 1, 4, 6, 1), rangeReader));
+        assertEquals(-1, contentAccess.estimateContentSize(Collections.singletonList(tiffNode), createROIParams(5, 10, 2, 4, 6, 3), rangeReader));
+        assertEquals(0, rangeReader.fullReads);
+    }
+
+    @Test
+    public void pagesMustBeCountedExactlyForAnUnboundedROIDepth() {
+        TiffROIPixelsContentAccess contentAccess = new TiffROIPixelsContentAccess(new TiffContentCache(16, 60, 16, 5), null);
+        byte[] tiffContent = TiffImageGeometryTest.createTiff(ByteOrder.LITTLE_ENDIAN, 4, 4, 8, (int) TiffImageGeometry.MAX_WALKED_PAGES + 1);
+        TiffImageGeometryTest.TestRangeReader rangeReader = new TiffImageGeometryTest.TestRangeReader(tiffContent);
+        ContentNode tiffNode = TiffImageGeometryTest.createNode(tiffContent.length);
+
+        assertEquals(-1, contentAccess.estimateContentSize(Collections.singletonList(tiffNode), createROIParams(2, 2, 0, 2, 2, -1), rangeReader));
+        assertEquals(2 * 2 * 4, contentAccess.estimateContentSize(Collections.singletonList(tiffNode), createROIParams(2, 2, 60, 2, 2, 4), rangeReader));
+    }
+
+    @Test
+    public void archivedROIsSizeIsCalculatedFromTheEntriesSize() {
+        TiffROIPixelsContentAccess contentAccess = new TiffROIPixelsContentAccess(new TiffContentCache(16, 60, 16, 5), null);
+        byte[] tiffContent = TiffImageGeometryTest.createTiff(ByteOrder.LITTLE_ENDIAN, 10, 20, 8, 3);
+        TiffImageGeometryTest.TestRangeReader rangeReader = new TiffImageGeometryTest.TestRangeReader(tiffContent);
+        ContentNode tiffNode = TiffImageGeometryTest.createNode(tiffContent.length);
+
+        assertEquals(2 * TarConstants.DEFAULT_RCDSIZE + 2 * ContentNodeHelper.calculateTarEntrySize(4 * 6),
+                contentAccess.estimateContentSize(Arrays.asList(tiffNode, tiffNode), createROIParams(5, 10, 1, 4, 6, 1), rangeReader));
+        assertEquals(0, rangeReader.fullReads);
+    }
+
+    private ContentAccessParams createROIParams(int xCenter, int yCenter, int zCenter, int dimX, int dimY, int dimZ) {
+        return new ContentAccessParams()
+                .addFilterTypeSpecificParam("xCenter", String.valueOf(xCenter))
+                .addFilterTypeSpecificParam("yCenter", String.valueOf(yCenter))
+                .addFilterTypeSpecificParam("zCenter", String.valueOf(zCenter))
+                .addFilterTypeSpecificParam("dimX", String.valueOf(dimX))
+                .addFilterTypeSpecificParam("dimY", String.valueOf(dimY))
+                .addFilterTypeSpecificParam("dimZ", String.valueOf(dimZ));
+    }
+}
@@ -0,0 +1,123 @@
+package org.janelia.jacsstorage.service.impl.n5;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class N5BlockCacheTest {
+
+    private static final String CONTAINER_KEY = "s3://bucket/c.n5#credentials";
+
+    @Test
+    public void existingAndMissingBlocksAreReadOnce() {
+        N5BlockCache blockCache = new N5BlockCache(1, 60);
+        AtomicInteger readsCount = new AtomicInteger();
+        String datasetLocation = N5BlockCache.datasetLocation("s3://bucket/c.n5", "/s0");
+        String existingBlockLocation = N5BlockCache.blockLocation(datasetLocation, new long[]{0, 1, 2});
+        String missingBlockLocation = N5BlockCache.blockLocation(datasetLocation, new long[]{0, 1, 3});
+        assertEquals("s3://bucket/c.n5/s0/0/1/2", existingBlockLocation);
+
+        for (int i = 0; i < 2; i++) {
+            assertArrayEquals(new byte[]{1, 2, 3}, blockCache.getBlock(CONTAINER_KEY, existingBlockLocation, false, () -> {
+                readsCount.incrementAndGet();
+                return new byte[]{1, 2, 3};
+            }));
+            assertNull(blockCache.getBlock(CONTAINER_KEY, missingBlockLocation, false, () -> {
+                readsCount.incrementAndGet();
+                return null;
+            }));
+        }
+        assertEquals(2, readsCount.get());
+        assertEquals(2, blockCache.getStats().hitCount());
+    }
+
+    @Test
+    public void changedLocationsAreReadAgain() {
+        N5BlockCache blockCache = new N5BlockCache(1, 60);
+        AtomicInteger readsCount = new AtomicInteger();
+        String s0Location = N5BlockCache.datasetLocation("/data/c.n5/", "g1/s0/");
+        String s1Location = N5BlockCache.datasetLocation("/data/c.n5", "g1/s1");
+        String[] blockLocations = new String[] {
+                N5BlockCache.blockLocation(s0Location, new long[]{1, 2}),
+                N5BlockCache.blockLocation(s0Location, new long[]{1, 20}),
+                N5BlockCache.blockLocation(s1Location, new long[]{1, 2})
+        };
+        DatasetAttributes s0Attributes = new DatasetAttributes(new long[]{64, 64}, new int[]{2, 2}, DataType.UINT8, new RawCompression());
+
+        readAll(blockCache, s0Location, s0Attributes, blockLocations, readsCount);
+        assertEquals(4, readsCount.get());
+        readAll(blockCache, s0Location, s0Attributes, blockLocations, readsCount);
+        assertEquals(4, readsCount.get());
+
+        // a rewritten block is the only one read again, for both the raw and the decoded block
+        blockCache.getBlock(CONTAINER_KEY, blockLocations[0], true, () -> {
+            readsCount.incrementAndGet();
+            return new byte[]{1};
+        });
+        assertEquals(5, readsCount.get());
+        blockCache.invalidateLocation("/data/c.n5/g1/s0/1/2");
+        readAll(blockCache, s0Location, s0Attributes, blockLocations, readsCount);
+        assertEquals(6, readsCount.get());
+        blockCache.getBlock(CONTAINER_KEY, blockLocations[0], true, () -> {
+            readsCount.incrementAndGet();
+            return new byte[]{1};
+        });
+        assertEquals(7, readsCount.get());
+
+        // rewritten attributes
+        blockCache.invalidateLocation("/data/c.n5/g1/s0/attributes.json");
+        readAll(blockCache, s0Location, s0Attributes, blockLocations, readsCount);
+        assertEquals(8, readsCount.get());
+
+        // a deleted dataset
+        blockCache.invalidateLocation("/data/c.n5/g1/s0/");
+        readAll(blockCache, s0Location, s0Attributes, blockLocations, readsCount);
+        assertEquals(11, readsCount.get());
+
+        // a deleted container
+        blockCache.invalidateLocation("/data/c.n5");
+        readAll(blockCache, s0Location, s0Attributes, blockLocations, readsCount);
+        assertEquals(15, readsCount.get());
+
+        // unrelated locations
+        blockCache.invalidateLocation("/data/c.n5/g1/s");
+        blockCache.invalidateLocation("/data/c.n");
+        blockCache.invalidateLocation("/data/c.n5/g1/s0/1/2/3");
+        readAll(blockCache, s0Location, s0Attributes, blockLocations, readsCount);
+        assertEquals(15, readsCount.get());
+    }
+
+    @Test
+    public void blockChangedWhileItIsReadIsNotKept() {
+        N5BlockCache blockCache = new N5BlockCache(1, 60);
+        String blockLocation = N5BlockCache.blockLocation("/data/c.n5/s0", new long[]{0, 0});
+
+        assertArrayEquals(new byte[]{1}, blockCache.getBlock(CONTAINER_KEY, blockLocation, false, () -> {
+            blockCache.invalidateLocation(blockLocation);
+            return new byte[]{1};
+        }));
+        assertArrayEquals(new byte[]{2}, blockCache.getBlock(CONTAINER_KEY, blockLocation, false, () -> new byte[]{2}));
+        assertArrayEquals(new byte[]{2}, blockCache.getBlock(CONTAINER_KEY, blockLocation, false, () -> new byte[]{3}));
+    }
+
+    private void readAll(N5BlockCache blockCache, String datasetLocation, DatasetAttributes datasetAttributes,
+                         String[] blockLocations, AtomicInteger readsCount) {
+        blockCache.getDatasetAttributes(CONTAINER_KEY, datasetLocation, () -> {
+            readsCount.incrementAndGet();
+            return datasetAttributes;
+        });
+        for (String blockLocation : blockLocations) {
+            blockCache.getBlock(CONTAINER_KEY, blockLocation, false, () -> {
+                readsCount.incrementAndGet();
+                return new byte[]{1, 2, 3};
+            });
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.janelia.jacsstorage.service.impl.n5;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.service.s3.S3Adapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class S3KeyInventoryTest {
+
+    private static final String GROUP_ATTRIBUTES = "{\"n5\":\"4.0.0\"}";
+    private static final String DATASET_ATTRIBUTES = "{\"dimensions\":[64,64,64],\"blockSize\":[16,16,16],\"dataType\":\"uint8\",\"compression\":{\"type\":\"raw\"}}";
+
+    private S3Adapter s3Adapter;
+    private TestBucket testBucket;
+    private ExecutorService executorService;
+
+    @Before
+    public void setUp() {
+        S3Client s3Client = mock(S3Client.class);
+        s3Adapter = mock(S3Adapter.class);
+        testBucket = new TestBucket();
+        executorService = Executors.newFixedThreadPool(2);
+        when(s3Adapter.getBucket()).thenReturn("testBucket");
+        when(s3Adapter.getSyncS3Client()).thenReturn(s3Client);
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+                .thenAnswer(invocation -> testBucket.listObjects(invocation.getArgument(0)));
+        when(s3Client.getObject(any(GetObjectRequest.class), any(ResponseTransformer.class)))
+                .thenAnswer(invocation -> testBucket.getObject(invocation.getArgument(0)));
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void inventoryHasTheContainerTreeWithoutTheDatasetBlocks() {
+        createTestContainer();
+        for (int pageSize : new int[] {1, 2, 5, 1000}) {
+            testBucket.pageSize = pageSize;
+            testBucket.listedKeys.clear();
+            testBucket.readKeys.clear();
+
+            S3KeyInventory keyInventory = S3KeyInventory.load(s3Adapter, "c.n5/", 1000, 1024 * 1024, 2, executorService);
+
+            assertNotNull(keyInventory);
+            assertTrue(keyInventory.isDirectory("c.n5"));
+            assertTrue(keyInventory.isDirectory("c.n5/g1/"));
+            assertTrue(keyInventory.isDirectory("c.n5/g1/s0"));
+            assertTrue(keyInventory.isDirectory("c.n5/empty"));
+            assertFalse(keyInventory.isDirectory("c.n5/g1/s0/attributes.json"));
+            assertFalse(keyInventory.isDirectory("c.n5/missing"));
+            assertTrue(keyInventory.isFile("c.n5/attributes.json"));
+            assertTrue(keyInventory.isFile("c.n5/g1/s0/attributes.json"));
+            assertTrue(keyInventory.isFile("c.n5/g2/readme.txt"));
+            assertFalse(keyInventory.isFile("c.n5/g1"));
+            assertFalse(keyInventory.isFile("c.n5/g2/missing.txt"));
+            assertEquals(Arrays.asList("empty", "g1", "g2", "ms"), keyInventory.listDirectories("c.n5"));
+            assertEquals(Arrays.asList("s0", "s1", "attributes.json"), keyInventory.list("c.n5/g1"));
+            assertEquals(Collections.singletonList("0"), keyInventory.listDirectories("c.n5/ms"));
+            // the blocks are not in the inventory so they are looked up in S3
+            assertNull(keyInventory.list("c.n5/g1/s0"));
+            assertNull(keyInventory.listDirectories("c.n5/ms/0"));
+            assertTrue(keyInventory.contains("c.n5/g1/s0"));
+            assertTrue(keyInventory.contains("c.n5/g1/s0/attributes.json"));
+            assertFalse(keyInventory.contains("c.n5/g1/s0/0"));
+            assertFalse(keyInventory.contains("c.n5/g1/s0/3/0/1"));
+            assertFalse(keyInventory.contains("c.n5/ms/0/1/1/1"));
+            assertFalse(keyInventory.contains("other.n5/attributes.json"));
+            assertArrayEquals(DATASET_ATTRIBUTES.getBytes(StandardCharsets.UTF_8), keyInventory.getContent("c.n5/g1/s0/attributes.json"));
+            assertArrayEquals(GROUP_ATTRIBUTES.getBytes(StandardCharsets.UTF_8), keyInventory.getContent("c.n5/ms/attributes.json"));
+            assertNull(keyInventory.getContent("c.n5/g2/readme.txt"));
+
+            // the listing resumes after the first block of each dataset, at most a page later, and each attributes file is read once
+            String testCase = "Page size " + pageSize;
+            long listedBlocks = testBucket.listedKeys.stream().filter(k -> k.matches(".*/[0-9]+")).count();
+            assertTrue(testCase + " - listed blocks " + listedBlocks, listedBlocks >= 3 && listedBlocks <= 3L * pageSize);
+            assertEquals(testCase, testBucket.objects.keySet().stream()
+                    .filter(k -> k.startsWith("c.n5/") && k.endsWith("attributes.json"))
+                    .collect(Collectors.toSet()), new HashSet<>(testBucket.readKeys));
+            assertEquals(testCase, testBucket.readKeys.size(), new HashSet<>(testBucket.readKeys).size());
+        }
+    }
+
+    @Test
+    public void containersWithTooManyKeysHaveNoInventory() {
+        createTestContainer();
+        // the container has 8 keys besides its blocks
+        assertNotNull(S3KeyInventory.load(s3Adapter, "c.n5", 8, 1024 * 1024, 2, executorService));
+        assertNull(S3KeyInventory.load(s3Adapter, "c.n5", 7, 1024 * 1024, 2, executorService));
+        long keysSize = testBucket.listedKeys.stream()
+                .filter(k -> !k.matches(".*/[0-9]+"))
+                .distinct()
+                .mapToLong(String::length)
+                .sum();
+        assertNotNull(S3KeyInventory.load(s3Adapter, "c.n5", 8, keysSize, 2, executorService));
+        assertNull(S3KeyInventory.load(s3Adapter, "c.n5", 8, keysSize - 1, 2, executorService));
+    }
+
+    @Test
+    public void missingPrefixHasNoInventory() {
+        createTestContainer();
+        assertNull(S3KeyInventory.load(s3Adapter, "missing.n5/", 1000, 1024 * 1024, 2, executorService));
+        assertNull(S3KeyInventory.load(s3Adapter, "c.n5/g2/readme.txt", 1000, 1024 * 1024, 2, executorService));
+    }
+
+    @Test
+    public void datasetWhoseAttributesCannotBeReadIsListedWithItsBlocks() {
+        createTestContainer();
+        testBucket.failedKeys.add("c.n5/g1/s0/attributes.json");
+
+        S3KeyInventory keyInventory = S3KeyInventory.load(s3Adapter, "c.n5", 1000, 1024 * 1024, 2, executorService);
+
+        assertNotNull(keyInventory);
+        // the attributes will be read again when they are needed
+        assertNull(keyInventory.getContent("c.n5/g1/s0/attributes.json"));
+        assertTrue(keyInventory.isFile("c.n5/g1/s0/attributes.json"));
+        assertTrue(keyInventory.contains("c.n5/g1/s0/3/0/1"));
+        assertTrue(keyInventory.isFile("c.n5/g1/s0/3/0/1"));
+        assertEquals(Arrays.asList("0", "1", "2", "3", "attributes.json"), keyInventory.list("c.n5/g1/s0"));
+        // the other datasets are still listed without their blocks
+        assertFalse(keyInventory.contains("c.n5/g1/s1/0/0/0"));
+        assertArrayEquals(DATASET_ATTRIBUTES.getBytes(StandardCharsets.UTF_8), keyInventory.getContent("c.n5/g1/s1/attributes.json"));
+    }
+
+    private void createTestContainer() {
+        testBucket.putObject("c.n5/attributes.json", GROUP_ATTRIBUTES);
+        testBucket.putObject("c.n5/g1/attributes.json", GROUP_ATTRIBUTES);
+        testBucket.putObject("c.n5/g1/s0/attributes.json", DATASET_ATTRIBUTES);
+        testBucket.putObject("c.n5/g1/s1/attributes.json", DATASET_ATTRIBUTES);
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 2; j++) {
+                for (int k = 0; k < 2; k++) {
+                    testBucket.putObject("c.n5/g1/s0/" + i + "/" + j + "/" + k, "block");
+                    testBucket.putObject("c.n5/g1/s1/" + i + "/" + j + "/" + k, "block");
+                }
+            }
+        }
+        // a group that has numeric datasets
+        testBucket.putObject("c.n5/ms/attributes.json", GROUP_ATTRIBUTES);
+        testBucket.putObject("c.n5/ms/0/attributes.json", DATASET_ATTRIBUTES);
+        testBucket.putObject("c.n5/ms/0/0/0/0", "block");
+        testBucket.putObject("c.n5/ms/0/1/1/1", "block");
+        testBucket.putObject("c.n5/g2/readme.txt", "readme");
+        testBucket.putObject("c.n5/empty/", "");
+        // keys outside of the container
+        testBucket.putObject("c.n5.bak/attributes.json", GROUP_ATTRIBUTES);
+        testBucket.putObject("other.n5/attributes.json", GROUP_ATTRIBUTES);
+    }
+
+    /**
+     * In memory bucket that serves flat listing pages of a fixed size.
+     */
+    private static class TestBucket {
+        private final NavigableMap<String, String> objects = new TreeMap<>();
+        private final Set<String> failedKeys = ConcurrentHashMap.newKeySet();
+        private final List<String> listedKeys = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> readKeys = Collections.synchronizedList(new ArrayList<>());
+        private int pageSize = 1000;
+
+        private void putObject(String key, String content) {
+            objects.put(key, content);
+        }
+
+        private ListObjectsV2Response listObjects(ListObjectsV2Request listRequest) {
+            String prefix = StringUtils.defaultString(listRequest.prefix());
+            // the continuation token is the key after which the next page starts
+            String startAfter = listRequest.continuationToken() != null ? listRequest.continuationToken() : listRequest.startAfter();
+            NavigableMap<String, String> candidates = startAfter != null
+                    ? objects.tailMap(startAfter, false)
+                    : objects.tailMap(prefix, true);
+            List<S3Object> pageObjects = new ArrayList<>();
+            boolean truncated = false;
+            for (String key : candidates.keySet()) {
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                if (pageObjects.size() == pageSize) {
+                    truncated = true;
+                    break;
+                }
+                pageObjects.add(S3Object.builder().key(key).size((long) objects.get(key).length()).build());
+                listedKeys.add(key);
+            }
+            return ListObjectsV2Response.builder()
+                    .contents(pageObjects)
+                    .keyCount(pageObjects.size())
+                    .isTruncated(truncated)
+                    .nextContinuationToken(truncated ? pageObjects.get(pageObjects.size() - 1).key() : null)
+                    .build();
+        }
+
+        private ResponseBytes<GetObjectResponse> getObject(GetObjectRequest getRequest) {
+            String key = getRequest.key();
+            readKeys.add(key);
+            if (failedKeys.contains(key)) {
+                throw S3Exception.builder().statusCode(503).message("Slow down").build();
+            }
+            String content = objects.get(key);
+            if (content == null) {
+                throw NoSuchKeyException.builder().statusCode(404).message("No such key " + key).build();
+            }
+            return ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.janelia.jacsstorage.service.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import org.janelia.jacsstorage.service.ContentException;
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class S3ContentWriterTest {
+
+    /**
+     * Publishes the buffers only as they are requested, the same way the S3 client does.
+     */
+    private static class TestSubscription implements Subscription {
+        private final S3ContentWriter contentWriter;
+        private final Deque<ByteBuffer> pendingBuffers;
+        private final Throwable contentError;
+        private long demand;
+        private long requested;
+        private boolean cancelled;
+        private boolean done;
+
+        TestSubscription(S3ContentWriter contentWriter, List<ByteBuffer> buffers, Throwable contentError) {
+            this.contentWriter = contentWriter;
+            this.pendingBuffers = new ArrayDeque<>(buffers);
+            this.contentError = contentError;
+        }
+
+        @Override
+        public synchronized void request(long n) {
+            requested += n;
+            demand += n;
+            while (!cancelled && demand > 0 && !pendingBuffers.isEmpty()) {
+                demand--;
+                contentWriter.onNext(pendingBuffers.remove());
+            }
+            if (!cancelled && !done && pendingBuffers.isEmpty()) {
+                done = true;
+                if (contentError != null) {
+                    contentWriter.onError(contentError);
+                } else {
+                    contentWriter.onComplete();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void cancel() {
+            cancelled = true;
+        }
+    }
+
+    @Test
+    public void buffersAreRequestedAsTheyAreWritten() {
+        S3ContentWriter contentWriter = new S3ContentWriter(2);
+        List<ByteBuffer> buffers = Arrays.asList(buffer("b1,"), buffer("b2,"), directBuffer("b3,"), buffer("b4,"), buffer("b5"));
+        TestSubscription subscription = new TestSubscription(contentWriter, buffers, null);
+        contentWriter.onSubscribe(subscription);
+        // only the prefetched buffers are published before anything is written
+        assertEquals(2, subscription.requested);
+        assertEquals(3, subscription.pendingBuffers.size());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertEquals(14, contentWriter.writeTo(outputStream));
+
+        assertArrayEquals("b1,b2,b3,b4,b5".getBytes(), outputStream.toByteArray());
+        // one more buffer is requested after each buffer is written
+        assertEquals(2 + buffers.size(), subscription.requested);
+        assertFalse(subscription.cancelled);
+    }
+
+    @Test
+    public void bufferPositionAndLimitAreRespected() {
+        S3ContentWriter contentWriter = new S3ContentWriter(4);
+        ByteBuffer slicedBuffer = buffer("skip,content,skip");
+        slicedBuffer.position(5).limit(12);
+        contentWriter.onSubscribe(new TestSubscription(contentWriter, Arrays.asList(slicedBuffer), null));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertEquals(7, contentWriter.writeTo(outputStream));
+        assertArrayEquals("content".getBytes(), outputStream.toByteArray());
+    }
+
+    @Test
+    public void upstreamErrorFailsTheWrite() {
+        S3ContentWriter contentWriter = new S3ContentWriter(2);
+        IOException contentError = new IOException("Connection reset");
+        TestSubscription subscription = new TestSubscription(contentWriter, Arrays.asList(buffer("b1,"), buffer("b2,")), contentError);
+        contentWriter.onSubscribe(subscription);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            contentWriter.writeTo(outputStream);
+            fail("Expected the write to fail");
+        } catch (ContentException e) {
+            assertSame(contentError, e.getCause());
+            assertTrue(e.getMessage().contains("after 6 bytes"));
+        }
+        // the buffers received before the error were written
+        assertArrayEquals("b1,b2,".getBytes(), outputStream.toByteArray());
+        assertFalse(subscription.cancelled);
+    }
+
+    @Test
+    public void writeFailureCancelsTheSubscription() {
+        S3ContentWriter contentWriter = new S3ContentWriter(2);
+        TestSubscription subscription = new TestSubscription(contentWriter, Arrays.asList(buffer("b1,"), buffer("b2,"), buffer("b3,"), buffer("b4")), null);
+        contentWriter.onSubscribe(subscription);
+        OutputStream failingOutputStream = new OutputStream() {
+            private int nbytes;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (nbytes >= 3) {
+                    throw new IOException("Broken pipe");
+                }
+                nbytes++;
+            }
+        };
+        try {
+            contentWriter.writeTo(failingOutputStream);
+            fail("Expected the write to fail");
+        } catch (ContentException e) {
+            assertTrue(e.getMessage().contains("after 3 bytes"));
+        }
+        assertTrue(subscription.cancelled);
+        // no more buffers were requested after the failure
+        assertEquals(3, subscription.requested);
+        assertEquals(1, subscription.pendingBuffers.size());
+    }
+
+    private ByteBuffer buffer(String s) {
+        return ByteBuffer.wrap(s.getBytes());
+    }
+
+    private ByteBuffer directBuffer(String s) {
+        byte[] bytes = s.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+}
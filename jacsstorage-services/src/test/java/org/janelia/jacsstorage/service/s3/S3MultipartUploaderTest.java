@@ -0,0 +1,219 @@
+package org.janelia.jacsstorage.service.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.jacsstorage.service.ContentException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class S3MultipartUploaderTest {
+
+    private static final int MiB = 1024 * 1024;
+
+    private S3AsyncClient s3Client;
+    private S3Adapter s3Adapter;
+    private Map<Integer, byte[]> uploadedParts;
+
+    @Before
+    public void setUp() {
+        s3Client = mock(S3AsyncClient.class);
+        s3Adapter = mock(S3Adapter.class);
+        when(s3Adapter.getBucket()).thenReturn("testBucket");
+        when(s3Adapter.getAsyncS3Client()).thenReturn(s3Client);
+        uploadedParts = new ConcurrentHashMap<>();
+        when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(CreateMultipartUploadResponse.builder().uploadId("u1").build()));
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(AsyncRequestBody.class)))
+                .thenAnswer(invocation -> {
+                    UploadPartRequest request = invocation.getArgument(0);
+                    uploadedParts.put(request.partNumber(), readBody(invocation.getArgument(1)));
+                    return CompletableFuture.completedFuture(UploadPartResponse.builder().eTag("etag" + request.partNumber()).build());
+                });
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(CompleteMultipartUploadResponse.builder().build()));
+        when(s3Client.abortMultipartUpload(any(AbortMultipartUploadRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(AbortMultipartUploadResponse.builder().build()));
+    }
+
+    @Test
+    public void contentThatFitsInOnePartIsUploadedWithSinglePut() {
+        S3MultipartUploader uploader = new S3MultipartUploader(5, 2, 10, 1);
+        for (int contentSize : new int[] {0, 10, 256 * 1024, MiB, 5 * MiB - 1}) {
+            byte[] testContent = createContent(contentSize);
+            byte[][] putContent = new byte[1][];
+            when(s3Client.putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class)))
+                    .thenAnswer(invocation -> {
+                        putContent[0] = readBody(invocation.getArgument(1));
+                        return CompletableFuture.completedFuture(PutObjectResponse.builder().build());
+                    });
+
+            assertEquals(contentSize, uploader.upload(s3Adapter, "k1", new ByteArrayInputStream(testContent)));
+            assertArrayEquals("Content size " + contentSize, testContent, putContent[0]);
+            assertEquals(2, uploader.getAvailableBuffers());
+        }
+        verify(s3Client, never()).createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void smallContentIsUploadedWhenAllPartBuffersAreTaken() throws Exception {
+        // the budget has a single part buffer and no wait
+        S3MultipartUploader uploader = new S3MultipartUploader(5, 2, 5, 0);
+        CountDownLatch largePutStarted = new CountDownLatch(1);
+        CountDownLatch largePutReleased = new CountDownLatch(1);
+        when(s3Client.putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class)))
+                .thenAnswer(invocation -> {
+                    PutObjectRequest request = invocation.getArgument(0);
+                    if (request.contentLength() > MiB) {
+                        largePutStarted.countDown();
+                        largePutReleased.await(5, TimeUnit.SECONDS);
+                    }
+                    return CompletableFuture.completedFuture(PutObjectResponse.builder().build());
+                });
+        CompletableFuture<Long> largeUpload = CompletableFuture.supplyAsync(() -> uploader.upload(s3Adapter, "large", new ByteArrayInputStream(createContent(2 * MiB))));
+        try {
+            assertTrue(largePutStarted.await(5, TimeUnit.SECONDS));
+            assertEquals(0, uploader.getAvailableBuffers());
+
+            assertEquals(100, uploader.upload(s3Adapter, "small", new ByteArrayInputStream(createContent(100))));
+            try {
+                uploader.upload(s3Adapter, "other", new ByteArrayInputStream(createContent(MiB)));
+                fail("Expected the upload to time out waiting for a part buffer");
+            } catch (ContentException e) {
+                assertTrue(e.getMessage().contains("Timed out"));
+            }
+        } finally {
+            largePutReleased.countDown();
+        }
+        assertEquals(2 * MiB, (long) largeUpload.get(5, TimeUnit.SECONDS));
+        assertEquals(1, uploader.getAvailableBuffers());
+    }
+
+    @Test
+    public void largeContentIsUploadedInParts() {
+        S3MultipartUploader uploader = new S3MultipartUploader(5, 2, 10, 1);
+        byte[] testContent = createContent(12 * MiB + 3);
+
+        assertEquals(testContent.length, uploader.upload(s3Adapter, "k1", new ByteArrayInputStream(testContent)));
+
+        assertEquals(3, uploadedParts.size());
+        assertEquals(5 * MiB, uploadedParts.get(1).length);
+        assertEquals(5 * MiB, uploadedParts.get(2).length);
+        assertEquals(2 * MiB + 3, uploadedParts.get(3).length);
+        ByteArrayOutputStream uploadedContent = new ByteArrayOutputStream();
+        for (int partNumber = 1; partNumber <= 3; partNumber++) {
+            uploadedContent.write(uploadedParts.get(partNumber), 0, uploadedParts.get(partNumber).length);
+        }
+        assertArrayEquals(testContent, uploadedContent.toByteArray());
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeRequest = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3Client).completeMultipartUpload(completeRequest.capture());
+        List<CompletedPart> completedParts = completeRequest.getValue().multipartUpload().parts();
+        assertEquals(3, completedParts.size());
+        for (int i = 0; i < completedParts.size(); i++) {
+            assertEquals(i + 1, (int) completedParts.get(i).partNumber());
+            assertEquals("etag" + (i + 1), completedParts.get(i).eTag());
+        }
+        verify(s3Client, never()).putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class));
+        verify(s3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        assertEquals(2, uploader.getAvailableBuffers());
+    }
+
+    @Test
+    public void failedPartAbortsTheUpload() {
+        S3MultipartUploader uploader = new S3MultipartUploader(5, 2, 10, 1);
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(AsyncRequestBody.class)))
+                .thenAnswer(invocation -> {
+                    UploadPartRequest request = invocation.getArgument(0);
+                    CompletableFuture<UploadPartResponse> response = new CompletableFuture<>();
+                    if (request.partNumber() == 2) {
+                        response.completeExceptionally(new IllegalStateException("Part upload failed"));
+                    } else {
+                        response.complete(UploadPartResponse.builder().eTag("etag" + request.partNumber()).build());
+                    }
+                    return response;
+                });
+        try {
+            uploader.upload(s3Adapter, "k1", new ByteArrayInputStream(createContent(16 * MiB)));
+            fail("Expected the upload to fail");
+        } catch (ContentException e) {
+            // expected
+        }
+        ArgumentCaptor<AbortMultipartUploadRequest> abortRequest = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(s3Client).abortMultipartUpload(abortRequest.capture());
+        assertEquals("u1", abortRequest.getValue().uploadId());
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        assertEquals(2, uploader.getAvailableBuffers());
+    }
+
+    private byte[] createContent(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i % 253);
+        }
+        return content;
+    }
+
+    private static byte[] readBody(AsyncRequestBody body) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        CompletableFuture<Void> bodyRead = new CompletableFuture<>();
+        body.subscribe(new Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer byteBuffer) {
+                byte[] bytes = new byte[byteBuffer.remaining()];
+                byteBuffer.get(bytes);
+                content.write(bytes, 0, bytes.length);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                bodyRead.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                bodyRead.complete(null);
+            }
+        });
+        bodyRead.join();
+        return content.toByteArray();
+    }
+}
@@ -0,0 +1,227 @@
+package org.janelia.jacsstorage.service.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.jacsstorage.service.ContentException;
+import org.junit.Before;
+import org.junit.Test;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class S3RangedDownloaderTest {
+
+    private static final int MiB = 1024 * 1024;
+
+    private S3AsyncClient s3Client;
+    private S3Adapter s3Adapter;
+    private List<GetObjectRequest> rangeRequests;
+
+    @Before
+    public void setUp() {
+        s3Client = mock(S3AsyncClient.class);
+        s3Adapter = mock(S3Adapter.class);
+        when(s3Adapter.getBucket()).thenReturn("testBucket");
+        when(s3Adapter.getAsyncS3Client()).thenReturn(s3Client);
+        rangeRequests = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @Test
+    public void rangesAreWrittenInOrder() throws Exception {
+        S3RangedDownloader downloader = new S3RangedDownloader(1, 1, 4, 0, 8);
+        byte[] testContent = createContent(3 * MiB + MiB / 2);
+        List<CompletableFuture<ResponseBytes<GetObjectResponse>>> pendingRanges = Collections.synchronizedList(new ArrayList<>());
+        when(s3Client.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class)))
+                .thenAnswer(invocation -> {
+                    rangeRequests.add(invocation.getArgument(0));
+                    CompletableFuture<ResponseBytes<GetObjectResponse>> rangeResponse = new CompletableFuture<>();
+                    pendingRanges.add(rangeResponse);
+                    return rangeResponse;
+                });
+        ByteArrayOutputStream downloadedContent = new ByteArrayOutputStream();
+        CompletableFuture<Long> download = CompletableFuture.supplyAsync(() -> downloader.download(s3Adapter, "k1", 0, testContent.length, "etag1", downloadedContent));
+        long waitEnd = System.currentTimeMillis() + 5000;
+        while (pendingRanges.size() < 4 && System.currentTimeMillis() < waitEnd) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, pendingRanges.size());
+        // the ranges arrive in reverse order
+        for (int i = pendingRanges.size() - 1; i >= 0; i--) {
+            pendingRanges.get(i).complete(rangeResponse(testContent, rangeRequests.get(i)));
+        }
+
+        assertEquals(testContent.length, (long) download.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(testContent, downloadedContent.toByteArray());
+        assertEquals("bytes=" + (3 * MiB) + "-" + (testContent.length - 1), rangeRequests.get(3).range());
+        // all ranges, including the first one, must come from the same version
+        for (GetObjectRequest rangeRequest : rangeRequests) {
+            assertEquals("etag1", rangeRequest.ifMatch());
+        }
+        assertEquals(8, downloader.getAvailableBuffers());
+    }
+
+    @Test
+    public void failedRangeIsFetchedAgain() {
+        S3RangedDownloader downloader = new S3RangedDownloader(1, 1, 2, 2, 8);
+        byte[] testContent = createContent(3 * MiB);
+        Map<String, AtomicInteger> rangeAttempts = new ConcurrentHashMap<>();
+        when(s3Client.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class)))
+                .thenAnswer(invocation -> {
+                    GetObjectRequest request = invocation.getArgument(0);
+                    rangeRequests.add(request);
+                    CompletableFuture<ResponseBytes<GetObjectResponse>> rangeResponse = new CompletableFuture<>();
+                    // the second range fails the first two times
+                    if (request.range().startsWith("bytes=" + MiB + "-")
+                            && rangeAttempts.computeIfAbsent(request.range(), r -> new AtomicInteger()).incrementAndGet() <= 2) {
+                        rangeResponse.completeExceptionally(new IllegalStateException("Connection reset"));
+                    } else {
+                        rangeResponse.complete(rangeResponse(testContent, request));
+                    }
+                    return rangeResponse;
+                });
+        ByteArrayOutputStream downloadedContent = new ByteArrayOutputStream();
+
+        assertEquals(testContent.length, downloader.download(s3Adapter, "k1", 0, testContent.length, null, downloadedContent));
+
+        assertArrayEquals(testContent, downloadedContent.toByteArray());
+        assertEquals(5, rangeRequests.size());
+        assertEquals(8, downloader.getAvailableBuffers());
+    }
+
+    @Test
+    public void rangeThatKeepsFailingStopsTheDownload() {
+        S3RangedDownloader downloader = new S3RangedDownloader(1, 1, 2, 1, 8);
+        byte[] testContent = createContent(3 * MiB);
+        when(s3Client.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class)))
+                .thenAnswer(invocation -> {
+                    GetObjectRequest request = invocation.getArgument(0);
+                    rangeRequests.add(request);
+                    CompletableFuture<ResponseBytes<GetObjectResponse>> rangeResponse = new CompletableFuture<>();
+                    if (request.range().startsWith("bytes=" + MiB + "-")) {
+                        rangeResponse.completeExceptionally(new IllegalStateException("Connection reset"));
+                    } else {
+                        rangeResponse.complete(rangeResponse(testContent, request));
+                    }
+                    return rangeResponse;
+                });
+        ByteArrayOutputStream downloadedContent = new ByteArrayOutputStream();
+        try {
+            downloader.download(s3Adapter, "k1", 0, testContent.length, null, downloadedContent);
+            fail("Expected the download to fail");
+        } catch (ContentException e) {
+            assertTrue(e.getMessage().contains("range at " + MiB));
+        }
+        // only the first range was written
+        assertEquals(MiB, downloadedContent.size());
+        assertEquals(8, downloader.getAvailableBuffers());
+    }
+
+    @Test
+    public void changedContentStopsTheDownloadWithoutRetries() {
+        S3RangedDownloader downloader = new S3RangedDownloader(1, 1, 2, 3, 8);
+        byte[] testContent = createContent(3 * MiB);
+        when(s3Client.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class)))
+                .thenAnswer(invocation -> {
+                    GetObjectRequest request = invocation.getArgument(0);
+                    rangeRequests.add(request);
+                    CompletableFuture<ResponseBytes<GetObjectResponse>> rangeResponse = new CompletableFuture<>();
+                    if (request.range().startsWith("bytes=" + MiB + "-")) {
+                        // the object was replaced so its entity tag no longer matches
+                        rangeResponse.completeExceptionally(S3Exception.builder().statusCode(412).message("Precondition Failed").build());
+                    } else {
+                        rangeResponse.complete(rangeResponse(testContent, request));
+                    }
+                    return rangeResponse;
+                });
+        try {
+            downloader.download(s3Adapter, "k1", 0, testContent.length, "etag1", new ByteArrayOutputStream());
+            fail("Expected the download to fail");
+        } catch (ContentException e) {
+            assertTrue(e.getMessage().contains("changed during download"));
+        }
+        assertEquals(1, rangeRequests.stream().filter(r -> r.range().startsWith("bytes=" + MiB + "-")).count());
+        assertEquals(8, downloader.getAvailableBuffers());
+    }
+
+    @Test
+    public void downloadsShareTheBufferBudget() throws Exception {
+        // the budget has two range buffers for all the downloads
+        S3RangedDownloader downloader = new S3RangedDownloader(1, 1, 4, 0, 2);
+        byte[] testContent = createContent(4 * MiB);
+        AtomicInteger fetchedRanges = new AtomicInteger();
+        AtomicInteger writtenRanges = new AtomicInteger();
+        AtomicInteger maxBufferedRanges = new AtomicInteger();
+        ExecutorService downloadsExecutor = Executors.newFixedThreadPool(4);
+        ExecutorService rangesExecutor = Executors.newFixedThreadPool(4);
+        when(s3Client.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class)))
+                .thenAnswer(invocation -> {
+                    GetObjectRequest request = invocation.getArgument(0);
+                    int bufferedRanges = fetchedRanges.incrementAndGet() - writtenRanges.get();
+                    maxBufferedRanges.accumulateAndGet(bufferedRanges, Math::max);
+                    return CompletableFuture.supplyAsync(() -> rangeResponse(testContent, request), rangesExecutor);
+                });
+        List<CompletableFuture<byte[]>> downloads = new ArrayList<>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                downloads.add(CompletableFuture.supplyAsync(() -> {
+                    ByteArrayOutputStream downloadedContent = new ByteArrayOutputStream() {
+                        @Override
+                        public synchronized void write(byte[] b, int off, int len) {
+                            super.write(b, off, len);
+                            writtenRanges.incrementAndGet();
+                        }
+                    };
+                    downloader.download(s3Adapter, "k1", 0, testContent.length, null, downloadedContent);
+                    return downloadedContent.toByteArray();
+                }, downloadsExecutor));
+            }
+            for (CompletableFuture<byte[]> download : downloads) {
+                assertArrayEquals(testContent, download.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            downloadsExecutor.shutdownNow();
+            rangesExecutor.shutdownNow();
+        }
+        assertEquals(16, fetchedRanges.get());
+        assertTrue("Buffered ranges: " + maxBufferedRanges.get(), maxBufferedRanges.get() <= 2);
+        assertEquals(2, downloader.getAvailableBuffers());
+    }
+
+    private static ResponseBytes<GetObjectResponse> rangeResponse(byte[] content, GetObjectRequest request) {
+        String[] range = request.range().substring("bytes=".length()).split("-");
+        int start = Integer.parseInt(range[0]);
+        int end = Integer.parseInt(range[1]);
+        byte[] rangeContent = new byte[end - start + 1];
+        System.arraycopy(content, start, rangeContent, 0, rangeContent.length);
+        return ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), rangeContent);
+    }
+
+    private byte[] createContent(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i % 253);
+        }
+        return content;
+    }
+}
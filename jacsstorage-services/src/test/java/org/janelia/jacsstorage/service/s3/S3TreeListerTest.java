@@ -0,0 +1,336 @@
+package org.janelia.jacsstorage.service.s3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.jacsstorage.service.ContentAccessParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.paginators.ListObjectsV2Publisher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class S3TreeListerTest {
+
+    private static final String BASE_PREFIX = "data/";
+
+    private S3AsyncClient s3Client;
+    private S3Adapter s3Adapter;
+    private TestBucket testBucket;
+    private ScheduledExecutorService listingResponseScheduler;
+
+    @Before
+    public void setUp() {
+        s3Client = mock(S3AsyncClient.class);
+        s3Adapter = mock(S3Adapter.class);
+        testBucket = new TestBucket();
+        listingResponseScheduler = Executors.newSingleThreadScheduledExecutor();
+        when(s3Adapter.getBucket()).thenReturn("testBucket");
+        when(s3Adapter.getAsyncS3Client()).thenReturn(s3Client);
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+                .thenAnswer(invocation -> testBucket.listObjects(invocation.getArgument(0)));
+        when(s3Client.listObjectsV2Paginator(any(ListObjectsV2Request.class)))
+                .thenAnswer(invocation -> new ListObjectsV2Publisher(s3Client, invocation.getArgument(0)));
+    }
+
+    @After
+    public void tearDown() {
+        listingResponseScheduler.shutdownNow();
+    }
+
+    @Test
+    public void flatListingReturnsTheEntriesOfTheLevelByLevelListing() {
+        createTestTree();
+        int[][] listerConfigs = new int[][] {
+                // flat listing min depth, partitions, concurrency
+                {1, 1, 1},
+                {1, 2, 2},
+                {1, 32, 8}
+        };
+        for (int pageSize : new int[] {1, 2, 5, 1000}) {
+            testBucket.pageSize = pageSize;
+            for (int[] listerConfig : listerConfigs) {
+                S3TreeLister treeLister = new S3TreeLister(listerConfig[0], listerConfig[1], listerConfig[2]);
+                for (int maxDepth : new int[] {-1, 1, 2, 3, 5}) {
+                    for (boolean includeObjects : new boolean[] {true, false}) {
+                        String testCase = String.format("page size %d, partitions %d, concurrency %d, depth %d, objects %b",
+                                pageSize, listerConfig[1], listerConfig[2], maxDepth, includeObjects);
+                        List<S3TreeLister.TreeEntry> entries = treeLister.listTree(
+                                s3Adapter,
+                                BASE_PREFIX,
+                                new ContentAccessParams().setMaxDepth(maxDepth),
+                                includeObjects).collectList().block();
+                        List<String> entryKeys = entries.stream().map(S3TreeLister.TreeEntry::getKey).collect(Collectors.toList());
+                        assertEquals(testCase, getExpectedEntries(BASE_PREFIX, maxDepth, includeObjects), new TreeSet<>(entryKeys));
+                        assertEquals(testCase + " - duplicate entries " + entryKeys, entryKeys.size(), new TreeSet<>(entryKeys).size());
+                        for (S3TreeLister.TreeEntry entry : entries) {
+                            assertEquals(testCase + " - " + entry.getKey(), entry.getKey().endsWith("/"), entry.isPrefix());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void prefixesThatSpanListingPagesAreReturnedOnce() {
+        // each page boundary falls inside the content of a prefix
+        for (int i = 0; i < 7; i++) {
+            testBucket.putObject("data/p/q/obj" + i);
+            testBucket.putObject("data/p/r/s/obj" + i);
+        }
+        testBucket.putObject("data/p/z.bin");
+        testBucket.pageSize = 2;
+        S3TreeLister treeLister = new S3TreeLister(1, 1, 1);
+
+        List<String> entryKeys = treeLister.listTree(s3Adapter, BASE_PREFIX, new ContentAccessParams().setMaxDepth(-1), false)
+                .map(S3TreeLister.TreeEntry::getKey)
+                .collectList()
+                .block();
+
+        assertEquals(new ArrayList<>(getExpectedEntries(BASE_PREFIX, -1, false)), new ArrayList<>(new TreeSet<>(entryKeys)));
+        assertEquals(entryKeys.toString(), 5, entryKeys.size());
+    }
+
+    @Test
+    public void depthLimitedListingSkipsDeeperContent() {
+        createTestTree();
+        S3TreeLister treeLister = new S3TreeLister(1, 2, 2);
+
+        List<String> entryKeys = treeLister.listTree(s3Adapter, BASE_PREFIX, new ContentAccessParams().setMaxDepth(1), true)
+                .map(S3TreeLister.TreeEntry::getKey)
+                .collectList()
+                .block();
+
+        assertTrue(entryKeys.contains(BASE_PREFIX));
+        assertTrue(entryKeys.contains("data/a0/"));
+        assertTrue(entryKeys.contains("data/root.txt"));
+        assertFalse(entryKeys.contains("data/a0/top.txt"));
+        assertFalse(entryKeys.contains("data/a0/b0/"));
+        for (String entryKey : entryKeys) {
+            assertTrue(entryKey, entryKey.startsWith(BASE_PREFIX));
+            assertTrue(entryKey, StringUtils.countMatches(StringUtils.removeEnd(entryKey.substring(BASE_PREFIX.length()), "/"), '/') == 0);
+        }
+    }
+
+    @Test
+    public void exactKeyMatchReturnsOnlyTheObject() {
+        createTestTree();
+        testBucket.putObject("data/root.txt.bak");
+        S3TreeLister treeLister = new S3TreeLister(1, 2, 2);
+
+        List<S3TreeLister.TreeEntry> entries = treeLister.listTree(s3Adapter, "data/root.txt", new ContentAccessParams().setMaxDepth(-1), true)
+                .collectList()
+                .block();
+
+        assertEquals(1, entries.size());
+        assertEquals("data/root.txt", entries.get(0).getKey());
+        assertFalse(entries.get(0).isPrefix());
+    }
+
+    @Test
+    public void orderedListingsAreNotScannedFlat() {
+        S3TreeLister treeLister = new S3TreeLister(2, 2, 2);
+
+        assertTrue(treeLister.isFlatListing(new ContentAccessParams().setMaxDepth(-1)));
+        assertTrue(treeLister.isFlatListing(new ContentAccessParams().setMaxDepth(2)));
+        assertFalse(treeLister.isFlatListing(new ContentAccessParams().setMaxDepth(1)));
+        assertFalse(treeLister.isFlatListing(new ContentAccessParams().setMaxDepth(-1).setStartAfterEntry("data/a0/top.txt")));
+        assertFalse(treeLister.isFlatListing(new ContentAccessParams().setMaxDepth(-1).setEntriesCount(10)));
+        assertFalse(new S3TreeLister(0, 2, 2).isFlatListing(new ContentAccessParams().setMaxDepth(-1)));
+    }
+
+    @Test
+    public void partitionsAreScannedWithBoundedConcurrency() {
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 20; j++) {
+                testBucket.putObject("data/part" + i + "/obj" + j);
+            }
+        }
+        testBucket.pageSize = 10;
+        testBucket.responseDelayInMillis = 5;
+        S3TreeLister treeLister = new S3TreeLister(1, 2, 3);
+
+        List<String> entryKeys = treeLister.listTree(s3Adapter, BASE_PREFIX, new ContentAccessParams().setMaxDepth(-1), true)
+                .map(S3TreeLister.TreeEntry::getKey)
+                .collectList()
+                .block();
+
+        assertEquals(getExpectedEntries(BASE_PREFIX, -1, true), new TreeSet<>(entryKeys));
+        // the base prefix is listed with a delimiter and its 8 sub-prefixes are scanned flat, 2 pages each
+        assertEquals(1, testBucket.delimitedListings.get());
+        assertEquals(16, testBucket.flatListings.get());
+        assertTrue("Max concurrent scans " + testBucket.maxFlatListingsInProgress.get(), testBucket.maxFlatListingsInProgress.get() <= 3);
+        assertTrue("Max concurrent scans " + testBucket.maxFlatListingsInProgress.get(), testBucket.maxFlatListingsInProgress.get() > 1);
+    }
+
+    @Test
+    public void emptyPrefixHasNoEntries() {
+        createTestTree();
+        S3TreeLister treeLister = new S3TreeLister(1, 2, 2);
+
+        List<S3TreeLister.TreeEntry> entries = treeLister.listTree(s3Adapter, "missing/", new ContentAccessParams().setMaxDepth(-1), true)
+                .collectList()
+                .block();
+
+        assertTrue(entries.isEmpty());
+    }
+
+    private void createTestTree() {
+        testBucket.putObject("data/root.txt");
+        for (int i = 0; i < 4; i++) {
+            testBucket.putObject("data/a" + i + "/top.txt");
+            for (int j = 0; j < 3; j++) {
+                for (int k = 0; k < 3; k++) {
+                    testBucket.putObject("data/a" + i + "/b" + j + "/obj" + k + ".bin");
+                }
+            }
+        }
+        testBucket.putObject("data/a0/b0/c0/d0/deep.bin");
+        // folder markers
+        testBucket.putObject("data/a1/");
+        testBucket.putObject("data/a1/b1/");
+        testBucket.putObject("data/empty/");
+        // keys outside of the listed prefix
+        testBucket.putObject("datax/other.bin");
+        testBucket.putObject("other/data/x.bin");
+    }
+
+    /**
+     * The entries returned by listing one level at a time with a delimiter: a prefix is returned if its depth
+     * is within the max depth and an object is returned if its parent's depth is less than the max depth.
+     */
+    private Set<String> getExpectedEntries(String basePrefix, int maxDepth, boolean includeObjects) {
+        Set<String> expectedEntries = new TreeSet<>();
+        for (String key : testBucket.objects.keySet()) {
+            if (!key.startsWith(basePrefix)) {
+                continue;
+            }
+            if (maxDepth != 0) {
+                expectedEntries.add(basePrefix);
+            }
+            for (int separatorIndex = key.indexOf('/', basePrefix.length());
+                 separatorIndex >= 0;
+                 separatorIndex = key.indexOf('/', separatorIndex + 1)) {
+                String prefix = key.substring(0, separatorIndex + 1);
+                int prefixDepth = StringUtils.countMatches(prefix.substring(basePrefix.length()), '/');
+                if (maxDepth < 0 || prefixDepth <= maxDepth) {
+                    expectedEntries.add(prefix);
+                }
+            }
+            int parentDepth = StringUtils.countMatches(key.substring(basePrefix.length()), '/');
+            if (includeObjects && !key.endsWith("/") && (maxDepth < 0 || parentDepth < maxDepth)) {
+                expectedEntries.add(key);
+            }
+        }
+        return expectedEntries;
+    }
+
+    /**
+     * In memory bucket that serves listing pages of a fixed size, with or without a delimiter.
+     */
+    private class TestBucket {
+        private final NavigableMap<String, S3Object> objects = new TreeMap<>();
+        private final AtomicInteger delimitedListings = new AtomicInteger();
+        private final AtomicInteger flatListings = new AtomicInteger();
+        private final AtomicInteger flatListingsInProgress = new AtomicInteger();
+        private final AtomicInteger maxFlatListingsInProgress = new AtomicInteger();
+        private int pageSize = 1000;
+        private long responseDelayInMillis;
+
+        private void putObject(String key) {
+            objects.put(key, S3Object.builder().key(key).size((long) key.length()).build());
+        }
+
+        private CompletableFuture<ListObjectsV2Response> listObjects(ListObjectsV2Request listRequest) {
+            boolean delimited = listRequest.delimiter() != null;
+            if (delimited) {
+                delimitedListings.incrementAndGet();
+            } else {
+                flatListings.incrementAndGet();
+                maxFlatListingsInProgress.accumulateAndGet(flatListingsInProgress.incrementAndGet(), Math::max);
+            }
+            ListObjectsV2Response listResponse = listPage(listRequest);
+            CompletableFuture<ListObjectsV2Response> listResult = new CompletableFuture<>();
+            Runnable completeListing = () -> {
+                if (!delimited) {
+                    flatListingsInProgress.decrementAndGet();
+                }
+                listResult.complete(listResponse);
+            };
+            if (responseDelayInMillis > 0) {
+                listingResponseScheduler.schedule(completeListing, responseDelayInMillis, TimeUnit.MILLISECONDS);
+            } else {
+                completeListing.run();
+            }
+            return listResult;
+        }
+
+        private ListObjectsV2Response listPage(ListObjectsV2Request listRequest) {
+            String prefix = StringUtils.defaultString(listRequest.prefix());
+            // the continuation token is the key after which the next page starts
+            String startAfter = listRequest.continuationToken() != null ? listRequest.continuationToken() : listRequest.startAfter();
+            NavigableMap<String, S3Object> candidates = startAfter != null
+                    ? objects.tailMap(startAfter, false)
+                    : objects.tailMap(prefix, true);
+            List<S3Object> pageObjects = new ArrayList<>();
+            List<CommonPrefix> pagePrefixes = new ArrayList<>();
+            String lastEntry = null;
+            boolean truncated = false;
+            for (Map.Entry<String, S3Object> candidate : candidates.entrySet()) {
+                String key = candidate.getKey();
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                int separatorIndex = listRequest.delimiter() != null ? key.indexOf(listRequest.delimiter(), prefix.length()) : -1;
+                String commonPrefix = separatorIndex >= 0 ? key.substring(0, separatorIndex + 1) : null;
+                if (commonPrefix != null && lastEntry != null && lastEntry.startsWith(commonPrefix)) {
+                    // the common prefix was already added to this page
+                    continue;
+                }
+                if (pageObjects.size() + pagePrefixes.size() == pageSize) {
+                    truncated = true;
+                    break;
+                }
+                if (commonPrefix != null) {
+                    pagePrefixes.add(CommonPrefix.builder().prefix(commonPrefix).build());
+                    // a page never resumes inside a returned common prefix
+                    lastEntry = commonPrefix + Character.MAX_VALUE;
+                } else {
+                    pageObjects.add(candidate.getValue());
+                    lastEntry = key;
+                }
+            }
+            return ListObjectsV2Response.builder()
+                    .contents(pageObjects)
+                    .commonPrefixes(pagePrefixes)
+                    .keyCount(pageObjects.size() + pagePrefixes.size())
+                    .isTruncated(truncated)
+                    .nextContinuationToken(truncated ? lastEntry : null)
+                    .build();
+        }
+    }
+}